@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.activation.DataHandler;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.util.ByteArrayDataSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.helger.as2lib.message.AS2Message;
+import com.helger.as2lib.processor.storage.IProcessorStorageModule;
+import com.helger.peppol.as2servlet.AS2PeppolServletConfiguration;
+import com.helger.peppol.as2servlet.AS2PeppolServletConfigurationSnapshot;
+import com.helger.peppol.as2servlet.AS2ServletSBDModule;
+import com.helger.peppol.as2servlet.EPeppolAS2Version;
+
+/**
+ * Measures {@link AS2ServletSBDModule#handle(String, com.helger.as2lib.message.IMessage, java.util.Map)}
+ * for different document sizes, both Peppol AS2 profiles and with and without
+ * the receiver checks. The SMP is replaced by {@link MockSMPClient}, so the
+ * benchmark runs offline and measures the module only. The handlers are the
+ * mock handlers registered in the test resources.<br>
+ * Run with <code>mvn -Pjmh test-compile exec:exec</code>. The allocation rate
+ * is reported by the GC profiler (<code>gc.alloc.rate.norm</code>).
+ *
+ * @author Philip Helger
+ */
+@State (Scope.Benchmark)
+@BenchmarkMode ({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit (TimeUnit.MILLISECONDS)
+@Warmup (iterations = 3, time = 2)
+@Measurement (iterations = 5, time = 2)
+@Fork (value = 1, jvmArgsAppend = { "-Xmx2g", "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn" })
+public class AS2ServletSBDModuleBenchmark
+{
+  public static final String AP_ENDPOINT_URL = "http://localhost:8080/as2";
+
+  /** 5 KB, 100 KB, 1 MB, 10 MB and 50 MB */
+  @Param ({ "5120", "102400", "1048576", "10485760", "52428800" })
+  public int m_nDocumentSize;
+
+  @Param ({ "V1", "V2" })
+  public String m_sAS2Version;
+
+  @Param ({ "true", "false" })
+  public boolean m_bReceiverChecks;
+
+  private AS2PeppolServletConfigurationSnapshot m_aOldSnapshot;
+  private AS2ServletSBDModule m_aModule;
+  private byte [] m_aSBD;
+
+  @Setup (Level.Trial)
+  public void setup () throws Exception
+  {
+    final SelfSignedCertificate aCert = new SelfSignedCertificate ("benchmark-ap");
+    m_aOldSnapshot = AS2PeppolServletConfiguration.getSnapshot ();
+    AS2PeppolServletConfiguration.setSnapshot (AS2PeppolServletConfigurationSnapshot.DEFAULT.getWithReceiverCheckEnabled (m_bReceiverChecks)
+                                                                                            .getWithSMPClient (new MockSMPClient (AP_ENDPOINT_URL,
+                                                                                                                                  aCert.getCertificateAsBase64 ()))
+                                                                                            .getWithAS2EndpointURL (AP_ENDPOINT_URL)
+                                                                                            .getWithAPCertificate (aCert.getCertificate ()));
+
+    m_aModule = new AS2ServletSBDModule (EPeppolAS2Version.valueOf (m_sAS2Version));
+    m_aSBD = new SyntheticSBDFactory ().createSBD (m_nDocumentSize, SyntheticSBDFactory.TEMPLATE_INSTANCE_ID);
+  }
+
+  @TearDown (Level.Trial)
+  public void tearDown ()
+  {
+    m_aModule.shutdown ();
+    AS2PeppolServletConfiguration.setSnapshot (m_aOldSnapshot);
+  }
+
+  @Benchmark
+  public AS2Message handle () throws Exception
+  {
+    // A new message per invocation, as the module modifies the partnership
+    final AS2Message aMsg = new AS2Message ();
+    final MimeBodyPart aPart = new MimeBodyPart ();
+    aPart.setDataHandler (new DataHandler (new ByteArrayDataSource (m_aSBD, "application/xml")));
+    aMsg.setData (aPart);
+    m_aModule.handle (IProcessorStorageModule.DO_STORE, aMsg, null);
+    return aMsg;
+  }
+
+  public static void main (final String [] args) throws RunnerException
+  {
+    final Options aOptions = new OptionsBuilder ().include (AS2ServletSBDModuleBenchmark.class.getSimpleName ())
+                                                  .addProfiler ("gc")
+                                                  .build ();
+    new Runner (aOptions).run ();
+  }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet.jmh;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+/**
+ * A self-signed certificate for the AP, so that the receiver checks can run
+ * without a key store.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class SelfSignedCertificate
+{
+  private final KeyPair m_aKeyPair;
+  private final X509Certificate m_aCertificate;
+
+  public SelfSignedCertificate (@Nonnull final String sCommonName) throws GeneralSecurityException
+  {
+    final KeyPairGenerator aKPG = KeyPairGenerator.getInstance ("RSA");
+    aKPG.initialize (2048);
+    m_aKeyPair = aKPG.generateKeyPair ();
+
+    final long nNow = System.currentTimeMillis ();
+    final X500Name aName = new X500Name ("CN=" + sCommonName);
+    final X509v3CertificateBuilder aBuilder = new JcaX509v3CertificateBuilder (aName,
+                                                                               BigInteger.valueOf (nNow),
+                                                                               new Date (nNow - TimeUnit.DAYS.toMillis (1)),
+                                                                               new Date (nNow + TimeUnit.DAYS.toMillis (365)),
+                                                                               aName,
+                                                                               m_aKeyPair.getPublic ());
+    try
+    {
+      m_aCertificate = new JcaX509CertificateConverter ().getCertificate (aBuilder.build (new JcaContentSignerBuilder ("SHA256withRSA").build (m_aKeyPair.getPrivate ())));
+    }
+    catch (final OperatorCreationException ex)
+    {
+      throw new GeneralSecurityException ("Failed to sign the certificate", ex);
+    }
+  }
+
+  @Nonnull
+  public KeyPair getKeyPair ()
+  {
+    return m_aKeyPair;
+  }
+
+  @Nonnull
+  public X509Certificate getCertificate ()
+  {
+    return m_aCertificate;
+  }
+
+  /**
+   * @return The certificate in the format used in SMP endpoints. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public String getCertificateAsBase64 ()
+  {
+    try
+    {
+      return Base64.getEncoder ().encodeToString (m_aCertificate.getEncoded ());
+    }
+    catch (final CertificateEncodingException ex)
+    {
+      throw new IllegalStateException ("Failed to encode the certificate", ex);
+    }
+  }
+}
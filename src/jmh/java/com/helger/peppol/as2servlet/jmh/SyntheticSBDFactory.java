@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet.jmh;
+
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.StringHelper;
+
+/**
+ * Creates synthetic Peppol Standard Business Documents of a given size, based
+ * on the example invoice of the test resources. The invoice is padded with
+ * <code>cbc:Note</code> elements, so that parsing costs grow with the size.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class SyntheticSBDFactory
+{
+  public static final String TEMPLATE_PATH = "sbd/example-invoice.xml";
+  public static final String TEMPLATE_INSTANCE_ID = "4c5e3d5e-7b07-4a3e-9c9d-0c1b2d3e4f50";
+  public static final String SENDER_ID = "iso6523-actorid-upis::9915:sender";
+  public static final String RECEIVER_ID = "iso6523-actorid-upis::9915:receiver";
+
+  private static final String INSERT_BEFORE = "  </Invoice>";
+  private static final String NOTE = "    <cbc:Note>" +
+                                     StringHelper.getRepeated ("Synthetic padding for the benchmark. ", 4) +
+                                     "</cbc:Note>\n";
+
+  private final String m_sPrefix;
+  private final String m_sSuffix;
+
+  public SyntheticSBDFactory ()
+  {
+    final byte [] aTemplate = StreamHelper.getAllBytes (new ClassPathResource (TEMPLATE_PATH));
+    if (aTemplate == null)
+      throw new IllegalStateException ("Failed to read " + TEMPLATE_PATH);
+    final String sTemplate = new String (aTemplate, StandardCharsets.UTF_8);
+    final int nIndex = sTemplate.indexOf (INSERT_BEFORE);
+    if (nIndex < 0)
+      throw new IllegalStateException ("Unexpected template " + TEMPLATE_PATH);
+    m_sPrefix = sTemplate.substring (0, nIndex);
+    m_sSuffix = sTemplate.substring (nIndex);
+  }
+
+  /**
+   * Create a new document.
+   *
+   * @param nMinSize
+   *        The minimum size of the document in bytes. Must be &ge; 0.
+   * @param sInstanceID
+   *        The SBDH instance identifier to use. May not be <code>null</code>.
+   * @return The UTF-8 encoded document. Never <code>null</code>.
+   */
+  @Nonnull
+  public byte [] createSBD (@Nonnegative final int nMinSize, @Nonnull final String sInstanceID)
+  {
+    ValueEnforcer.isGE0 (nMinSize, "MinSize");
+    ValueEnforcer.notEmpty (sInstanceID, "InstanceID");
+
+    final String sPrefix = StringHelper.replaceAll (m_sPrefix, TEMPLATE_INSTANCE_ID, sInstanceID);
+    final StringBuilder aSB = new StringBuilder (nMinSize + NOTE.length () + m_sSuffix.length ());
+    aSB.append (sPrefix);
+    while (aSB.length () + m_sSuffix.length () < nMinSize)
+      aSB.append (NOTE);
+    aSB.append (m_sSuffix);
+    // The template is ASCII only
+    return aSB.toString ().getBytes (StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,331 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet.jmh.loadtest;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.activation.DataHandler;
+import javax.annotation.Nonnull;
+import javax.mail.util.ByteArrayDataSource;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as2lib.client.AS2Client;
+import com.helger.as2lib.client.AS2ClientRequest;
+import com.helger.as2lib.client.AS2ClientResponse;
+import com.helger.as2lib.client.AS2ClientSettings;
+import com.helger.as2lib.disposition.DispositionOptions;
+import com.helger.as2servlet.AS2ReceiveServlet;
+import com.helger.commons.io.file.FileOperationManager;
+import com.helger.commons.system.SystemProperties;
+import com.helger.peppol.as2servlet.AS2PeppolServletConfiguration;
+import com.helger.peppol.as2servlet.AS2PeppolServletConfigurationSnapshot;
+import com.helger.peppol.as2servlet.EPeppolAS2Version;
+import com.helger.peppol.as2servlet.InMemoryAS2PeppolServletMetrics;
+import com.helger.peppol.as2servlet.LatencyHistogram;
+import com.helger.peppol.as2servlet.jmh.SelfSignedCertificate;
+import com.helger.peppol.as2servlet.jmh.SyntheticSBDFactory;
+import com.helger.security.keystore.EKeyStoreType;
+import com.helger.smpclient.peppol.SMPClientReadOnly;
+import com.helger.web.scope.mgr.WebScopeListener;
+
+/**
+ * End-to-end load test of the receiving side. Everything runs on the local
+ * machine without network access:
+ * <ul>
+ * <li>an embedded Jetty with the AS2 servlet and the
+ * {@link com.helger.peppol.as2servlet.AS2ServletSBDModule}</li>
+ * <li>a {@link LocalSMPServer} that answers the SMP queries of the receiver
+ * checks with configurable latency and faults</li>
+ * <li>a multi-threaded AS2 client that sends signed messages</li>
+ * </ul>
+ * Run with <code>mvn -Pjmh test-compile exec:java@loadtest</code>. All settings
+ * are system properties with the prefix <code>loadtest.</code> - see the
+ * constants below.
+ *
+ * @author Philip Helger
+ */
+public final class AS2LoadTest
+{
+  public static final String SENDER_AS2_ID = "APP_1000000001";
+  public static final String RECEIVER_AS2_ID = "APP_1000000002";
+  private static final String KEYSTORE_PASSWORD = "loadtest";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS2LoadTest.class);
+
+  private AS2LoadTest ()
+  {}
+
+  private static int _getInt (@Nonnull final String sName, final int nDefault)
+  {
+    final String sValue = SystemProperties.getPropertyValueOrNull ("loadtest." + sName);
+    return sValue != null ? Integer.parseInt (sValue) : nDefault;
+  }
+
+  private static double _getDouble (@Nonnull final String sName, final double dDefault)
+  {
+    final String sValue = SystemProperties.getPropertyValueOrNull ("loadtest." + sName);
+    return sValue != null ? Double.parseDouble (sValue) : dDefault;
+  }
+
+  private static boolean _getBoolean (@Nonnull final String sName, final boolean bDefault)
+  {
+    final String sValue = SystemProperties.getPropertyValueOrNull ("loadtest." + sName);
+    return sValue != null ? Boolean.parseBoolean (sValue) : bDefault;
+  }
+
+  @Nonnull
+  private static File _createKeyStore (@Nonnull final File aDir,
+                                       @Nonnull final SelfSignedCertificate aSender,
+                                       @Nonnull final SelfSignedCertificate aReceiver) throws Exception
+  {
+    final KeyStore aKS = KeyStore.getInstance ("PKCS12");
+    aKS.load (null, null);
+    aKS.setKeyEntry (SENDER_AS2_ID,
+                     aSender.getKeyPair ().getPrivate (),
+                     KEYSTORE_PASSWORD.toCharArray (),
+                     new Certificate [] { aSender.getCertificate () });
+    aKS.setKeyEntry (RECEIVER_AS2_ID,
+                     aReceiver.getKeyPair ().getPrivate (),
+                     KEYSTORE_PASSWORD.toCharArray (),
+                     new Certificate [] { aReceiver.getCertificate () });
+    final File ret = new File (aDir, "keys.p12");
+    try (final OutputStream aOS = Files.newOutputStream (ret.toPath ()))
+    {
+      aKS.store (aOS, KEYSTORE_PASSWORD.toCharArray ());
+    }
+    return ret;
+  }
+
+  @Nonnull
+  private static File _createServerConfig (@Nonnull final File aDir, @Nonnull final File aKeyStore) throws Exception
+  {
+    final String sConfig = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                           "<openas2>\n" +
+                           "  <certificates classname=\"com.helger.as2lib.cert.CertificateFactory\"\n" +
+                           "                type=\"pkcs12\"\n" +
+                           "                filename=\"" +
+                           aKeyStore.getAbsolutePath () +
+                           "\"\n" +
+                           "                password=\"" +
+                           KEYSTORE_PASSWORD +
+                           "\" />\n" +
+                           "  <partnerships classname=\"com.helger.as2lib.partner.SelfFillingPartnershipFactory\" />\n" +
+                           "  <processor classname=\"com.helger.as2lib.processor.DefaultMessageProcessor\"\n" +
+                           "             pendingMDN=\"%home%/pendingMDN\"\n" +
+                           "             pendingMDNinfo=\"%home%/pendinginfoMDN\">\n" +
+                           "    <module classname=\"com.helger.peppol.as2servlet.AS2ServletSBDModule\" />\n" +
+                           "  </processor>\n" +
+                           "</openas2>\n";
+    final File ret = new File (aDir, "as2-server-config.xml");
+    Files.write (ret.toPath (), sConfig.getBytes (StandardCharsets.UTF_8));
+    return ret;
+  }
+
+  @Nonnull
+  private static AS2ClientSettings _createClientSettings (@Nonnull final File aKeyStore,
+                                                          @Nonnull final SelfSignedCertificate aReceiver,
+                                                          @Nonnull final String sAS2URL,
+                                                          @Nonnull final EPeppolAS2Version eAS2Version)
+  {
+    final AS2ClientSettings ret = new AS2ClientSettings ();
+    ret.setKeyStore (EKeyStoreType.PKCS12, aKeyStore, KEYSTORE_PASSWORD);
+    ret.setSenderData (SENDER_AS2_ID, "loadtest@example.org", SENDER_AS2_ID);
+    ret.setReceiverData (RECEIVER_AS2_ID, RECEIVER_AS2_ID, sAS2URL);
+    ret.setReceiverCertificate (aReceiver.getCertificate ());
+    ret.setPartnershipName (SENDER_AS2_ID + "-" + RECEIVER_AS2_ID);
+    // Peppol AS2 messages are signed but not encrypted
+    ret.setEncryptAndSign (null, eAS2Version.getCryptoAlgorithmSign ());
+    ret.setMDNOptions (new DispositionOptions ().setMICAlg (eAS2Version.getCryptoAlgorithmSign ())
+                                                .setMICAlgImportance (DispositionOptions.IMPORTANCE_REQUIRED)
+                                                .setProtocol (DispositionOptions.PROTOCOL_PKCS7_SIGNATURE)
+                                                .setProtocolImportance (DispositionOptions.IMPORTANCE_REQUIRED));
+    return ret;
+  }
+
+  private static boolean _isSuccess (@Nonnull final AS2ClientResponse aResponse)
+  {
+    if (aResponse.hasException ())
+      return false;
+    final String sDisposition = aResponse.getMDNDisposition ();
+    return sDisposition != null &&
+           sDisposition.toLowerCase (Locale.ROOT).contains ("processed") &&
+           !sDisposition.toLowerCase (Locale.ROOT).contains ("error");
+  }
+
+  public static void main (final String [] args) throws Exception
+  {
+    final int nThreads = _getInt ("threads", 8);
+    final int nMessages = _getInt ("messages", 1000);
+    final int nWarmupMessages = _getInt ("warmup", 50);
+    final int nDocumentSize = _getInt ("size", 10 * 1024);
+    final boolean bReceiverChecks = _getBoolean ("receiverChecks", true);
+    final int nSMPLatencyMillis = _getInt ("smpLatencyMillis", 20);
+    final double dSMPFaultRate = _getDouble ("smpFaultRate", 0);
+    final EPeppolAS2Version eAS2Version = EPeppolAS2Version.valueOf (SystemProperties.getPropertyValue ("loadtest.as2Version",
+                                                                                                        EPeppolAS2Version.V2.name ()));
+
+    final File aDir = Files.createTempDirectory ("as2-peppol-loadtest").toFile ();
+    final SelfSignedCertificate aSenderCert = new SelfSignedCertificate (SENDER_AS2_ID);
+    final SelfSignedCertificate aReceiverCert = new SelfSignedCertificate (RECEIVER_AS2_ID);
+    final File aKeyStore = _createKeyStore (aDir, aSenderCert, aReceiverCert);
+    final File aServerConfig = _createServerConfig (aDir, aKeyStore);
+
+    // The AS2 servlet in an embedded container on a free local port
+    final Server aJetty = new Server ();
+    final ServerConnector aConnector = new ServerConnector (aJetty);
+    aConnector.setHost ("127.0.0.1");
+    aConnector.setPort (0);
+    aJetty.addConnector (aConnector);
+    final ServletContextHandler aContext = new ServletContextHandler ();
+    aContext.setContextPath ("/");
+    aContext.addEventListener (new WebScopeListener ());
+    final ServletHolder aServlet = aContext.addServlet (AS2ReceiveServlet.class, "/as2");
+    aServlet.setInitParameter ("as2-servlet-config-filename", aServerConfig.getAbsolutePath ());
+    aServlet.setInitOrder (1);
+    aJetty.setHandler (aContext);
+    aJetty.start ();
+    final String sAS2URL = "http://127.0.0.1:" + aConnector.getLocalPort () + "/as2";
+
+    final InMemoryAS2PeppolServletMetrics aMetrics = new InMemoryAS2PeppolServletMetrics ();
+    final AS2PeppolServletConfigurationSnapshot aOldSnapshot = AS2PeppolServletConfiguration.getSnapshot ();
+    try (final LocalSMPServer aSMP = new LocalSMPServer (sAS2URL,
+                                                         eAS2Version.getTransportProfile ().getID (),
+                                                         aReceiverCert.getCertificateAsBase64 (),
+                                                         nSMPLatencyMillis,
+                                                         dSMPFaultRate,
+                                                         Math.max (nThreads, 4)))
+    {
+      final SMPClientReadOnly aSMPClient = new SMPClientReadOnly (new URI (aSMP.getBaseURL ()));
+      // The stand-in does not sign its responses
+      aSMPClient.setVerifySignature (false);
+      AS2PeppolServletConfiguration.setSnapshot (AS2PeppolServletConfigurationSnapshot.DEFAULT.getWithReceiverCheckEnabled (bReceiverChecks)
+                                                                                              .getWithSMPClient (aSMPClient)
+                                                                                              .getWithAS2EndpointURL (sAS2URL)
+                                                                                              .getWithAPCertificate (aReceiverCert.getCertificate ()));
+      AS2PeppolServletConfiguration.setMetrics (aMetrics);
+
+      final AS2ClientSettings aClientSettings = _createClientSettings (aKeyStore, aReceiverCert, sAS2URL, eAS2Version);
+      final SyntheticSBDFactory aSBDFactory = new SyntheticSBDFactory ();
+
+      LOGGER.info ("Sending " +
+                   nWarmupMessages +
+                   " warm-up and " +
+                   nMessages +
+                   " measured messages of " +
+                   nDocumentSize +
+                   " bytes with " +
+                   nThreads +
+                   " threads to " +
+                   sAS2URL +
+                   " (receiver checks " +
+                   (bReceiverChecks ? "enabled" : "disabled") +
+                   ", SMP " +
+                   aSMP +
+                   ")");
+
+      final LatencyHistogram aLatencies = new LatencyHistogram ();
+      final LongAdder aSuccesses = new LongAdder ();
+      final LongAdder aFailures = new LongAdder ();
+      final AtomicInteger aRemaining = new AtomicInteger (nWarmupMessages + nMessages);
+      final ExecutorService aSenders = Executors.newFixedThreadPool (nThreads);
+      final AtomicLong aStartNanos = new AtomicLong (System.nanoTime ());
+      for (int i = 0; i < nThreads; ++i)
+        aSenders.execute ( () -> {
+          int nIndex;
+          while ((nIndex = aRemaining.getAndDecrement ()) > 0)
+          {
+            final boolean bMeasured = nIndex <= nMessages;
+            if (nIndex == nMessages)
+            {
+              // First measured message
+              aStartNanos.set (System.nanoTime ());
+            }
+
+            final byte [] aSBD = aSBDFactory.createSBD (nDocumentSize, UUID.randomUUID ().toString ());
+            final AS2ClientRequest aRequest = new AS2ClientRequest ("Peppol load test");
+            aRequest.setData (new DataHandler (new ByteArrayDataSource (aSBD, "application/xml")));
+
+            final long nStart = System.nanoTime ();
+            boolean bSuccess;
+            try
+            {
+              bSuccess = _isSuccess (new AS2Client ().sendSynchronous (aClientSettings, aRequest));
+            }
+            catch (final RuntimeException ex)
+            {
+              bSuccess = false;
+            }
+            if (bMeasured)
+            {
+              aLatencies.record (System.nanoTime () - nStart);
+              if (bSuccess)
+                aSuccesses.increment ();
+              else
+                aFailures.increment ();
+            }
+          }
+        });
+      aSenders.shutdown ();
+      aSenders.awaitTermination (1, TimeUnit.DAYS);
+      final long nDurationNanos = System.nanoTime () - aStartNanos.get ();
+
+      final long nTotal = aSuccesses.sum () + aFailures.sum ();
+      final double dSeconds = nDurationNanos / 1_000_000_000d;
+      final StringBuilder aReport = new StringBuilder ();
+      aReport.append (String.format (Locale.ROOT, "Messages:      %d (%d ok, %d failed)%n", nTotal, aSuccesses.sum (), aFailures.sum ()))
+             .append (String.format (Locale.ROOT, "Error rate:    %.2f %%%n", nTotal == 0 ? 0d : aFailures.sum () * 100d / nTotal))
+             .append (String.format (Locale.ROOT, "Throughput:    %.1f messages/s%n", nTotal / dSeconds))
+             .append (String.format (Locale.ROOT,
+                                     "Latency (ms):  p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f%n",
+                                     aLatencies.getPercentileMicros (50) / 1000d,
+                                     aLatencies.getPercentileMicros (90) / 1000d,
+                                     aLatencies.getPercentileMicros (99) / 1000d,
+                                     aLatencies.getPercentileMicros (99.9) / 1000d,
+                                     aLatencies.getMaxNanos () / 1_000_000d))
+             .append (String.format (Locale.ROOT, "SMP requests:  %d (%d faults)%n", aSMP.getRequestCount (), aSMP.getFaultCount ()))
+             .append ("Server stages: ")
+             .append (aMetrics);
+      LOGGER.info ("Load test finished\n" + aReport);
+    }
+    finally
+    {
+      AS2PeppolServletConfiguration.setSnapshot (aOldSnapshot);
+      aJetty.stop ();
+      FileOperationManager.INSTANCE.deleteDirRecursiveIfExisting (aDir);
+    }
+  }
+}
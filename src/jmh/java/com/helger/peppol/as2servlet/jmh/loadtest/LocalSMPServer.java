@@ -0,0 +1,213 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet.jmh.loadtest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for an SMP, based on the JDK HTTP server. Every service
+ * metadata query is answered with the same endpoint, after a configurable
+ * latency. A configurable share of the queries fails with an HTTP 500. The
+ * signature of the response is a placeholder, so signature verification must
+ * be disabled in the SMP client.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class LocalSMPServer implements AutoCloseable
+{
+  private final HttpServer m_aServer;
+  private final ExecutorService m_aExecutor;
+  private final byte [] m_aResponse;
+  private final long m_nLatencyMillis;
+  private final double m_dFaultRate;
+  private final LongAdder m_aRequests = new LongAdder ();
+  private final LongAdder m_aFaults = new LongAdder ();
+
+  /**
+   * Constructor. Starts the server on a free local port.
+   *
+   * @param sEndpointURL
+   *        The AS2 endpoint URL to return. May not be <code>null</code>.
+   * @param sTransportProfile
+   *        The transport profile ID of the endpoint. May not be
+   *        <code>null</code>.
+   * @param sCertificate
+   *        The Base64 encoded AP certificate to return. May not be
+   *        <code>null</code>.
+   * @param nLatencyMillis
+   *        The artificial latency of each response in milliseconds. Must be
+   *        &ge; 0.
+   * @param dFaultRate
+   *        The share of queries to fail, between 0 and 1.
+   * @param nThreads
+   *        The number of server threads. Must be &gt; 0.
+   * @throws IOException
+   *         If the server cannot be started.
+   */
+  public LocalSMPServer (@Nonnull final String sEndpointURL,
+                         @Nonnull final String sTransportProfile,
+                         @Nonnull final String sCertificate,
+                         @Nonnegative final long nLatencyMillis,
+                         final double dFaultRate,
+                         @Nonnegative final int nThreads) throws IOException
+  {
+    ValueEnforcer.notEmpty (sEndpointURL, "EndpointURL");
+    ValueEnforcer.notEmpty (sTransportProfile, "TransportProfile");
+    ValueEnforcer.notEmpty (sCertificate, "Certificate");
+    ValueEnforcer.isGE0 (nLatencyMillis, "LatencyMillis");
+    ValueEnforcer.isBetweenInclusive (dFaultRate, "FaultRate", 0, 1);
+    ValueEnforcer.isGT0 (nThreads, "Threads");
+
+    m_aResponse = _createResponse (sEndpointURL, sTransportProfile, sCertificate).getBytes (StandardCharsets.UTF_8);
+    m_nLatencyMillis = nLatencyMillis;
+    m_dFaultRate = dFaultRate;
+    m_aExecutor = Executors.newFixedThreadPool (nThreads);
+    m_aServer = HttpServer.create (new InetSocketAddress (InetAddress.getLoopbackAddress (), 0), 0);
+    m_aServer.createContext ("/", this::_handle);
+    m_aServer.setExecutor (m_aExecutor);
+    m_aServer.start ();
+  }
+
+  @Nonnull
+  private static String _createResponse (@Nonnull final String sEndpointURL,
+                                         @Nonnull final String sTransportProfile,
+                                         @Nonnull final String sCertificate)
+  {
+    return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+           "<SignedServiceMetadata xmlns=\"http://busdox.org/serviceMetadata/publishing/1.0/\"" +
+           " xmlns:ids=\"http://busdox.org/transport/identifiers/1.0/\"" +
+           " xmlns:wsa=\"http://www.w3.org/2005/08/addressing\">" +
+           "<ServiceMetadata><ServiceInformation>" +
+           "<ids:ParticipantIdentifier scheme=\"iso6523-actorid-upis\">9915:receiver</ids:ParticipantIdentifier>" +
+           "<ids:DocumentIdentifier scheme=\"busdox-docid-qns\">urn:oasis:names:specification:ubl:schema:xsd:Invoice-2::Invoice##urn:cen.eu:en16931:2017#compliant#urn:fdc:peppol.eu:2017:poacc:billing:3.0::2.1</ids:DocumentIdentifier>" +
+           "<ProcessList><Process>" +
+           "<ids:ProcessIdentifier scheme=\"cenbii-procid-ubl\">urn:fdc:peppol.eu:2017:poacc:billing:01:1.0</ids:ProcessIdentifier>" +
+           "<ServiceEndpointList><Endpoint transportProfile=\"" +
+           sTransportProfile +
+           "\">" +
+           "<wsa:EndpointReference><wsa:Address>" +
+           sEndpointURL +
+           "</wsa:Address></wsa:EndpointReference>" +
+           "<RequireBusinessLevelSignature>false</RequireBusinessLevelSignature>" +
+           "<Certificate>" +
+           sCertificate +
+           "</Certificate>" +
+           "<ServiceDescription>Local SMP stand-in</ServiceDescription>" +
+           "<TechnicalContactUrl>http://localhost</TechnicalContactUrl>" +
+           "</Endpoint></ServiceEndpointList>" +
+           "</Process></ProcessList>" +
+           "</ServiceInformation></ServiceMetadata>" +
+           "<Signature xmlns=\"http://www.w3.org/2000/09/xmldsig#\"><SignedInfo>" +
+           "<CanonicalizationMethod Algorithm=\"http://www.w3.org/TR/2001/REC-xml-c14n-20010315\"/>" +
+           "<SignatureMethod Algorithm=\"http://www.w3.org/2001/04/xmldsig-more#rsa-sha256\"/>" +
+           "<Reference URI=\"\"><DigestMethod Algorithm=\"http://www.w3.org/2001/04/xmlenc#sha256\"/>" +
+           "<DigestValue>AA==</DigestValue></Reference>" +
+           "</SignedInfo><SignatureValue>AA==</SignatureValue></Signature>" +
+           "</SignedServiceMetadata>";
+  }
+
+  private void _handle (@Nonnull final HttpExchange aExchange) throws IOException
+  {
+    m_aRequests.increment ();
+    try
+    {
+      if (m_nLatencyMillis > 0)
+        TimeUnit.MILLISECONDS.sleep (m_nLatencyMillis);
+
+      if (m_dFaultRate > 0 && ThreadLocalRandom.current ().nextDouble () < m_dFaultRate)
+      {
+        m_aFaults.increment ();
+        aExchange.sendResponseHeaders (500, -1);
+        return;
+      }
+
+      aExchange.getResponseHeaders ().add ("Content-Type", "text/xml; charset=UTF-8");
+      aExchange.sendResponseHeaders (200, m_aResponse.length);
+      try (final OutputStream aOS = aExchange.getResponseBody ())
+      {
+        aOS.write (m_aResponse);
+      }
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+      aExchange.sendResponseHeaders (503, -1);
+    }
+    finally
+    {
+      aExchange.close ();
+    }
+  }
+
+  /**
+   * @return The base URL of this SMP, ending with a slash. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public String getBaseURL ()
+  {
+    final InetSocketAddress aAddress = m_aServer.getAddress ();
+    return "http://" + aAddress.getHostString () + ":" + aAddress.getPort () + "/";
+  }
+
+  @Nonnegative
+  public long getRequestCount ()
+  {
+    return m_aRequests.sum ();
+  }
+
+  @Nonnegative
+  public long getFaultCount ()
+  {
+    return m_aFaults.sum ();
+  }
+
+  public void close ()
+  {
+    m_aServer.stop (0);
+    ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aExecutor);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("BaseURL", getBaseURL ())
+                                       .append ("LatencyMillis", m_nLatencyMillis)
+                                       .append ("FaultRate", m_dFaultRate)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.unece.cefact.namespaces.sbdh.StandardBusinessDocument;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A single incoming Standard Business Document that passed all checks and is
+ * ready to be handed to the handlers. Detached objects must be closed when
+ * they are no longer needed.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class AS2IncomingSBD implements AutoCloseable
+{
+  /**
+   * Provides the raw bytes of the incoming document.
+   *
+   * @author Philip Helger
+   */
+  @FunctionalInterface
+  public interface IPayloadProvider
+  {
+    /**
+     * @return A new stream with the complete document. Never
+     *         <code>null</code>. Must be closed by the caller.
+     * @throws Exception
+     *         In case the stream cannot be opened.
+     */
+    @Nonnull
+    InputStream openStream () throws Exception;
+  }
+
+  private final HttpHeaderMap m_aHeaders;
+  private final PeppolSBDHHeader m_aSBDH;
+  private final StandardBusinessDocument m_aSBD;
+  private final IPayloadProvider m_aPayloadProvider;
+  private final String m_sTenantID;
+  private final boolean m_bDetached;
+  private final AtomicBoolean m_aClosed = new AtomicBoolean (false);
+
+  public AS2IncomingSBD (@Nonnull final HttpHeaderMap aHeaders,
+                         @Nonnull final PeppolSBDHHeader aSBDH,
+                         @Nullable final StandardBusinessDocument aSBD,
+                         @Nonnull final IPayloadProvider aPayloadProvider)
+  {
+    this (aHeaders, aSBDH, aSBD, aPayloadProvider, null);
+  }
+
+  public AS2IncomingSBD (@Nonnull final HttpHeaderMap aHeaders,
+                         @Nonnull final PeppolSBDHHeader aSBDH,
+                         @Nullable final StandardBusinessDocument aSBD,
+                         @Nonnull final IPayloadProvider aPayloadProvider,
+                         @Nullable final String sTenantID)
+  {
+    this (aHeaders, aSBDH, aSBD, aPayloadProvider, sTenantID, false);
+  }
+
+  private AS2IncomingSBD (@Nonnull final HttpHeaderMap aHeaders,
+                          @Nonnull final PeppolSBDHHeader aSBDH,
+                          @Nullable final StandardBusinessDocument aSBD,
+                          @Nonnull final IPayloadProvider aPayloadProvider,
+                          @Nullable final String sTenantID,
+                          final boolean bDetached)
+  {
+    ValueEnforcer.notNull (aHeaders, "Headers");
+    ValueEnforcer.notNull (aSBDH, "SBDH");
+    ValueEnforcer.notNull (aPayloadProvider, "PayloadProvider");
+    m_aHeaders = aHeaders;
+    m_aSBDH = aSBDH;
+    m_aSBD = aSBD;
+    m_aPayloadProvider = aPayloadProvider;
+    m_sTenantID = sTenantID;
+    m_bDetached = bDetached;
+  }
+
+  /**
+   * @return The HTTP headers of the incoming request. Never <code>null</code>.
+   *         The module passes a copy of the AS2 message headers that is shared
+   *         by all handlers of the document, so they must not be modified.
+   */
+  @Nonnull
+  public HttpHeaderMap getHeaders ()
+  {
+    return m_aHeaders;
+  }
+
+  /**
+   * @return The Peppol fields of the Standard Business Document Header. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public PeppolSBDHHeader getSBDH ()
+  {
+    return m_aSBDH;
+  }
+
+  /**
+   * @return The unmarshalled document. May be <code>null</code> if no handler
+   *         requires the unmarshalled document.
+   */
+  @Nullable
+  public StandardBusinessDocument getStandardBusinessDocument ()
+  {
+    return m_aSBD;
+  }
+
+  /**
+   * @return The ID of the tenant this document belongs to. May be
+   *         <code>null</code> if the document belongs to no tenant.
+   * @see AS2PeppolTenantRegistry
+   */
+  @Nullable
+  public String getTenantID ()
+  {
+    return m_sTenantID;
+  }
+
+  /**
+   * @return A new stream with the raw bytes of the complete document. Never
+   *         <code>null</code>. Must be closed by the caller.
+   * @throws Exception
+   *         In case the stream cannot be opened.
+   */
+  @Nonnull
+  public InputStream openPayloadStream () throws Exception
+  {
+    return m_aPayloadProvider.openStream ();
+  }
+
+  /**
+   * Get a copy of this object that holds its own copy of the raw bytes. This
+   * is required if the document is processed after the AS2 message was
+   * answered, because the original message data may no longer be available.
+   * Documents larger than
+   * {@link AS2PeppolServletConfiguration#getPayloadSpillThreshold()} are
+   * stored in a temporary file. The HTTP headers are copied as well. If this
+   * object is already detached, bytes and headers are shared and not copied
+   * again.
+   *
+   * @return A new object and never <code>null</code>. Must be closed by the
+   *         caller.
+   * @throws Exception
+   *         In case the payload cannot be read.
+   */
+  @Nonnull
+  public AS2IncomingSBD getDetached () throws Exception
+  {
+    final SBDPayloadBuffer aBuffer;
+    if (m_aPayloadProvider instanceof SBDPayloadBuffer)
+      aBuffer = ((SBDPayloadBuffer) m_aPayloadProvider).retain ();
+    else
+      try (final InputStream aIS = openPayloadStream ())
+      {
+        aBuffer = SBDPayloadBuffer.create (aIS,
+                                           AS2PeppolServletConfiguration.getPayloadSpillThreshold (),
+                                           AS2PeppolServletConfiguration.getPayloadSpillDirectory ());
+      }
+    final HttpHeaderMap aHeaders = m_bDetached ? m_aHeaders : m_aHeaders.getClone ();
+    return new AS2IncomingSBD (aHeaders, m_aSBDH, m_aSBD, aBuffer, m_sTenantID, true);
+  }
+
+  /**
+   * @return The payload buffer if this object holds one (e.g. because it is
+   *         detached), <code>null</code> if the payload is read from the AS2
+   *         message.
+   */
+  @Nullable
+  SBDPayloadBuffer getPayloadBuffer ()
+  {
+    return m_aPayloadProvider instanceof SBDPayloadBuffer ? (SBDPayloadBuffer) m_aPayloadProvider : null;
+  }
+
+  /**
+   * Release the raw bytes of a detached object. Calling this method more than
+   * once has no effect. Objects that are not detached are not affected.
+   */
+  public void close ()
+  {
+    if (m_aPayloadProvider instanceof SBDPayloadBuffer && m_aClosed.compareAndSet (false, true))
+      ((SBDPayloadBuffer) m_aPayloadProvider).close ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("Headers", m_aHeaders)
+                                       .append ("SBDH", m_aSBDH)
+                                       .append ("HasSBD", m_aSBD != null)
+                                       .appendIfNotNull ("TenantID", m_sTenantID)
+                                       .getToString ();
+  }
+}
@@ -16,26 +16,129 @@
  */
 package com.helger.peppol.as2servlet;
 
+import java.io.File;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
 
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
 
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
 import com.helger.smpclient.peppol.ISMPServiceMetadataProvider;
 
-@NotThreadSafe
+@ThreadSafe
 public final class AS2PeppolServletConfiguration
 {
   public static final boolean DEFAULT_RECEIVER_CHECK_ENABLED = false;
+  public static final boolean DEFAULT_ENDPOINT_CACHE_ENABLED = true;
+  public static final boolean DEFAULT_STALE_WHILE_REVALIDATE_ENABLED = true;
+  public static final Duration DEFAULT_SMP_LOOKUP_TIMEOUT = Duration.ofSeconds (10);
+  public static final int DEFAULT_HANDLER_FAN_OUT_THREADS = 0;
+  public static final boolean DEFAULT_SMP_LOOKUP_PIPELINING_ENABLED = true;
+  public static final long DEFAULT_PAYLOAD_SPILL_THRESHOLD = 4L * CGlobal.BYTES_PER_MEGABYTE;
 
-  private static boolean s_bReceiverCheckEnabled = DEFAULT_RECEIVER_CHECK_ENABLED;
-  private static ISMPServiceMetadataProvider s_aSMPClient;
-  private static String s_sAS2EndpointURL;
-  private static X509Certificate s_aAPCertificate;
+  private static final AtomicReference <AS2PeppolServletConfigurationSnapshot> s_aSnapshot = new AtomicReference <> (AS2PeppolServletConfigurationSnapshot.DEFAULT);
+  private static volatile boolean s_bEndpointCacheEnabled = DEFAULT_ENDPOINT_CACHE_ENABLED;
+  private static final SMPEndpointCache s_aEndpointCache = new SMPEndpointCache ();
+  private static volatile boolean s_bStaleWhileRevalidateEnabled = DEFAULT_STALE_WHILE_REVALIDATE_ENABLED;
+  private static volatile Duration s_aSMPLookupTimeout = DEFAULT_SMP_LOOKUP_TIMEOUT;
+  private static volatile int s_nSMPCircuitBreakerFailureThreshold = SMPCircuitBreaker.DEFAULT_FAILURE_THRESHOLD;
+  private static volatile Duration s_aSMPCircuitBreakerOpenDuration = SMPCircuitBreaker.DEFAULT_OPEN_DURATION;
+  private static volatile AsyncDispatchSettings s_aAsyncDispatchSettings;
+  private static volatile File s_aSpoolDirectory;
+  private static volatile int s_nHandlerFanOutThreads = DEFAULT_HANDLER_FAN_OUT_THREADS;
+  private static volatile boolean s_bSMPLookupPipeliningEnabled = DEFAULT_SMP_LOOKUP_PIPELINING_ENABLED;
+  private static volatile IAS2PeppolServletMetrics s_aMetrics = IAS2PeppolServletMetrics.NO_OP;
+  private static volatile SBDDuplicateDetector s_aDuplicateDetector;
+  private static volatile AdmissionControlSettings s_aAdmissionControlSettings;
+  private static volatile long s_nPayloadSpillThreshold = DEFAULT_PAYLOAD_SPILL_THRESHOLD;
+  private static volatile File s_aPayloadSpillDirectory;
+  private static final AS2PeppolTenantRegistry s_aTenantRegistry = new AS2PeppolTenantRegistry ();
+  private static volatile File s_aEndpointSnapshotFile;
+  private static volatile Duration s_aEndpointSnapshotInterval;
+  private static volatile File s_aEndpointWarmUpFile;
+  private static volatile SBDValidatorCache s_aValidatorCache;
 
   private AS2PeppolServletConfiguration ()
   {}
 
+  /**
+   * @return The current snapshot of the configuration values used for the
+   *         receiver checks. Never <code>null</code>. Read it once per message
+   *         to get a consistent view.
+   */
+  @Nonnull
+  public static AS2PeppolServletConfigurationSnapshot getSnapshot ()
+  {
+    return s_aSnapshot.get ();
+  }
+
+  private static void _onSnapshotChange (@Nonnull final AS2PeppolServletConfigurationSnapshot aOld,
+                                         @Nonnull final AS2PeppolServletConfigurationSnapshot aNew)
+  {
+    onSMPClientChange (aOld.getSMPClient (), aNew.getSMPClient ());
+  }
+
+  /**
+   * Remove the cached lookup results of the previous SMP client, if the SMP
+   * client of the global configuration or of a tenant changed.
+   *
+   * @param aOldSMPClient
+   *        The previous SMP client. May be <code>null</code>.
+   * @param aNewSMPClient
+   *        The new SMP client. May be <code>null</code>.
+   */
+  static void onSMPClientChange (@Nullable final ISMPServiceMetadataProvider aOldSMPClient,
+                                 @Nullable final ISMPServiceMetadataProvider aNewSMPClient)
+  {
+    // Lookup results of a different SMP are not valid any more
+    if (aOldSMPClient != null && aOldSMPClient != aNewSMPClient)
+      s_aEndpointCache.invalidateAllOfSMPHost (SMPEndpointResolver.getSMPHost (aOldSMPClient));
+  }
+
+  /**
+   * Atomically replace all configuration values used for the receiver checks.
+   * Messages that are currently processed continue to use the previous
+   * snapshot. This can be used to rotate the AP certificate or to switch the
+   * SMP client at runtime.
+   *
+   * @param aSnapshot
+   *        The new snapshot. May not be <code>null</code>.
+   */
+  public static void setSnapshot (@Nonnull final AS2PeppolServletConfigurationSnapshot aSnapshot)
+  {
+    ValueEnforcer.notNull (aSnapshot, "Snapshot");
+    _onSnapshotChange (s_aSnapshot.getAndSet (aSnapshot), aSnapshot);
+  }
+
+  /**
+   * Atomically modify the current snapshot.
+   *
+   * @param aModifier
+   *        The function to create the new snapshot from the current one. May be
+   *        invoked more than once and must be side effect free. May not be
+   *        <code>null</code>.
+   */
+  public static void updateSnapshot (@Nonnull final UnaryOperator <AS2PeppolServletConfigurationSnapshot> aModifier)
+  {
+    ValueEnforcer.notNull (aModifier, "Modifier");
+    AS2PeppolServletConfigurationSnapshot aOld;
+    AS2PeppolServletConfigurationSnapshot aNew;
+    do
+    {
+      aOld = s_aSnapshot.get ();
+      aNew = aModifier.apply (aOld);
+      ValueEnforcer.notNull (aNew, "NewSnapshot");
+    } while (!s_aSnapshot.compareAndSet (aOld, aNew));
+    _onSnapshotChange (aOld, aNew);
+  }
+
   /**
    * @return <code>true</code> if the checks for endpoint URL and endpoint
    *         certificate are enabled, <code>false</code> otherwise. By default
@@ -43,12 +146,12 @@ public final class AS2PeppolServletConfiguration
    */
   public static boolean isReceiverCheckEnabled ()
   {
-    return s_bReceiverCheckEnabled;
+    return getSnapshot ().isReceiverCheckEnabled ();
   }
 
   public static void setReceiverCheckEnabled (final boolean bReceiverCheckEnabled)
   {
-    s_bReceiverCheckEnabled = bReceiverCheckEnabled;
+    updateSnapshot (x -> x.getWithReceiverCheckEnabled (bReceiverCheckEnabled));
   }
 
   /**
@@ -60,12 +163,129 @@ public final class AS2PeppolServletConfiguration
   @Nullable
   public static ISMPServiceMetadataProvider getSMPClient ()
   {
-    return s_aSMPClient;
+    return getSnapshot ().getSMPClient ();
   }
 
+  /**
+   * Set the SMP client to be used. If the SMP client changes, the endpoint
+   * cache is cleared.
+   *
+   * @param aSMPClient
+   *        The SMP client to use. May be <code>null</code>.
+   */
   public static void setSMPClient (@Nullable final ISMPServiceMetadataProvider aSMPClient)
   {
-    s_aSMPClient = aSMPClient;
+    updateSnapshot (x -> x.getWithSMPClient (aSMPClient));
+  }
+
+  /**
+   * @return <code>true</code> if the results of SMP endpoint lookups are
+   *         cached, <code>false</code> if every receiver check performs a new
+   *         SMP lookup. By default the cache is enabled.
+   * @see #getEndpointCache()
+   */
+  public static boolean isEndpointCacheEnabled ()
+  {
+    return s_bEndpointCacheEnabled;
+  }
+
+  public static void setEndpointCacheEnabled (final boolean bEndpointCacheEnabled)
+  {
+    s_bEndpointCacheEnabled = bEndpointCacheEnabled;
+    if (!bEndpointCacheEnabled)
+      s_aEndpointCache.invalidateAll ();
+  }
+
+  /**
+   * @return The cache for the SMP endpoint lookups. Use this object to
+   *         customize size and time to live or to explicitly invalidate
+   *         entries. Never <code>null</code>.
+   * @see #isEndpointCacheEnabled()
+   */
+  @Nonnull
+  public static SMPEndpointCache getEndpointCache ()
+  {
+    return s_aEndpointCache;
+  }
+
+  /**
+   * @return <code>true</code> if expired (stale) endpoint cache entries should
+   *         be used while the entry is refreshed in the background,
+   *         <code>false</code> if stale entries should only be used if the SMP
+   *         lookup fails. By default this is enabled.
+   * @see SMPEndpointCache#getMaxStale()
+   */
+  public static boolean isStaleWhileRevalidateEnabled ()
+  {
+    return s_bStaleWhileRevalidateEnabled;
+  }
+
+  public static void setStaleWhileRevalidateEnabled (final boolean bStaleWhileRevalidateEnabled)
+  {
+    s_bStaleWhileRevalidateEnabled = bStaleWhileRevalidateEnabled;
+  }
+
+  /**
+   * @return The maximum duration to wait for the result of an SMP lookup.
+   *         Never <code>null</code>. Default is 10 seconds.
+   */
+  @Nonnull
+  public static Duration getSMPLookupTimeout ()
+  {
+    return s_aSMPLookupTimeout;
+  }
+
+  public static void setSMPLookupTimeout (@Nonnull final Duration aSMPLookupTimeout)
+  {
+    ValueEnforcer.notNull (aSMPLookupTimeout, "SMPLookupTimeout");
+    ValueEnforcer.isFalse (aSMPLookupTimeout.isNegative () || aSMPLookupTimeout.isZero (),
+                           "SMPLookupTimeout must be positive");
+    s_aSMPLookupTimeout = aSMPLookupTimeout;
+  }
+
+  /**
+   * @return The number of consecutive failed SMP lookups after which the
+   *         circuit breaker for an SMP opens. Always &gt; 0.
+   */
+  public static int getSMPCircuitBreakerFailureThreshold ()
+  {
+    return s_nSMPCircuitBreakerFailureThreshold;
+  }
+
+  /**
+   * Set the failure threshold of the SMP circuit breakers. Only affects circuit
+   * breakers created after the call.
+   *
+   * @param nSMPCircuitBreakerFailureThreshold
+   *        The number of consecutive failures. Must be &gt; 0.
+   */
+  public static void setSMPCircuitBreakerFailureThreshold (final int nSMPCircuitBreakerFailureThreshold)
+  {
+    ValueEnforcer.isGT0 (nSMPCircuitBreakerFailureThreshold, "SMPCircuitBreakerFailureThreshold");
+    s_nSMPCircuitBreakerFailureThreshold = nSMPCircuitBreakerFailureThreshold;
+  }
+
+  /**
+   * @return The duration for which an open SMP circuit breaker rejects all
+   *         calls before a trial call is permitted. Never <code>null</code>.
+   */
+  @Nonnull
+  public static Duration getSMPCircuitBreakerOpenDuration ()
+  {
+    return s_aSMPCircuitBreakerOpenDuration;
+  }
+
+  /**
+   * Set the open duration of the SMP circuit breakers. Only affects circuit
+   * breakers created after the call.
+   *
+   * @param aSMPCircuitBreakerOpenDuration
+   *        The open duration. May not be <code>null</code>.
+   */
+  public static void setSMPCircuitBreakerOpenDuration (@Nonnull final Duration aSMPCircuitBreakerOpenDuration)
+  {
+    ValueEnforcer.notNull (aSMPCircuitBreakerOpenDuration, "SMPCircuitBreakerOpenDuration");
+    s_aSMPCircuitBreakerOpenDuration = aSMPCircuitBreakerOpenDuration;
   }
 
   /**
@@ -75,12 +295,12 @@ public final class AS2PeppolServletConfiguration
   @Nullable
   public static String getAS2EndpointURL ()
   {
-    return s_sAS2EndpointURL;
+    return getSnapshot ().getAS2EndpointURL ();
   }
 
   public static void setAS2EndpointURL (@Nullable final String sAS2EndpointURL)
   {
-    s_sAS2EndpointURL = sAS2EndpointURL;
+    updateSnapshot (x -> x.getWithAS2EndpointURL (sAS2EndpointURL));
   }
 
   /**
@@ -90,11 +310,383 @@ public final class AS2PeppolServletConfiguration
   @Nullable
   public static X509Certificate getAPCertificate ()
   {
-    return s_aAPCertificate;
+    final FingerprintedCertificate aAPCert = getSnapshot ().getAPCertificate ();
+    return aAPCert == null ? null : aAPCert.getCertificate ();
+  }
+
+  /**
+   * @return The certificate of this AP together with its pre-computed
+   *         fingerprint. Is <code>null</code> by default.
+   * @see #getAPCertificate()
+   */
+  @Nullable
+  public static FingerprintedCertificate getAPCertificateWithFingerprint ()
+  {
+    return getSnapshot ().getAPCertificate ();
   }
 
   public static void setAPCertificate (@Nullable final X509Certificate aAPCertificate)
   {
-    s_aAPCertificate = aAPCertificate;
+    FingerprintedCertificate aCert = null;
+    if (aAPCertificate != null)
+    {
+      try
+      {
+        aCert = FingerprintedCertificate.create (aAPCertificate);
+      }
+      catch (final CertificateEncodingException ex)
+      {
+        throw new IllegalArgumentException ("Failed to encode the provided AP certificate", ex);
+      }
+    }
+    final FingerprintedCertificate aFinalCert = aCert;
+    updateSnapshot (x -> x.getWithAPFingerprintedCertificate (aFinalCert));
+  }
+
+  /**
+   * @return The settings for the asynchronous invocation of the handlers after
+   *         all receiver checks passed. May be <code>null</code> which means
+   *         that the handlers are invoked synchronously, before the AS2
+   *         response is sent. This is the default.
+   */
+  @Nullable
+  public static AsyncDispatchSettings getAsyncDispatchSettings ()
+  {
+    return s_aAsyncDispatchSettings;
+  }
+
+  /**
+   * Enable or disable asynchronous invocation of the handlers. Note: if
+   * enabled, the AS2 response is sent before the handlers are invoked, so
+   * handler errors cannot be reported back to the sender.
+   *
+   * @param aAsyncDispatchSettings
+   *        The settings to use. May be <code>null</code> to disable
+   *        asynchronous dispatch.
+   * @see AsyncDispatchSettings#createDefault()
+   */
+  public static void setAsyncDispatchSettings (@Nullable final AsyncDispatchSettings aAsyncDispatchSettings)
+  {
+    s_aAsyncDispatchSettings = aAsyncDispatchSettings;
+  }
+
+  /**
+   * @return The directory of the durable local spool. May be <code>null</code>
+   *         which means that no spool is used. This is the default.
+   */
+  @Nullable
+  public static File getSpoolDirectory ()
+  {
+    return s_aSpoolDirectory;
+  }
+
+  /**
+   * Enable or disable the durable local spool. If enabled, each incoming
+   * document is synced to disk before the AS2 response is sent and removed
+   * from the spool after all handlers succeeded. Documents that were not
+   * handled (e.g. because of a crash) are handled again on the next startup.
+   *
+   * @param aSpoolDirectory
+   *        The directory to use. May be <code>null</code> to disable the spool.
+   */
+  public static void setSpoolDirectory (@Nullable final File aSpoolDirectory)
+  {
+    s_aSpoolDirectory = aSpoolDirectory;
+  }
+
+  /**
+   * @return The number of threads used to invoke the handlers of a single
+   *         document in parallel. 0 means that the handlers are invoked one
+   *         after the other. This is the default.
+   */
+  @Nonnegative
+  public static int getHandlerFanOutThreads ()
+  {
+    return s_nHandlerFanOutThreads;
+  }
+
+  /**
+   * Set the number of threads used to invoke the handlers of a single document
+   * in parallel. See {@link SBDHandlerFanOut} for the ordering and failure
+   * semantics.
+   *
+   * @param nHandlerFanOutThreads
+   *        The number of threads. Must be &ge; 0. 0 disables the parallel
+   *        invocation.
+   * @see IAS2IncomingSBDHandlerPhaseAware
+   */
+  public static void setHandlerFanOutThreads (@Nonnegative final int nHandlerFanOutThreads)
+  {
+    ValueEnforcer.isGE0 (nHandlerFanOutThreads, "HandlerFanOutThreads");
+    s_nHandlerFanOutThreads = nHandlerFanOutThreads;
+  }
+
+  /**
+   * @return <code>true</code> if the SMP lookup for the receiver checks runs
+   *         while the incoming document is parsed, <code>false</code> if the
+   *         lookup is finished before the document is parsed. Default is
+   *         {@link #DEFAULT_SMP_LOOKUP_PIPELINING_ENABLED}.
+   */
+  public static boolean isSMPLookupPipeliningEnabled ()
+  {
+    return s_bSMPLookupPipeliningEnabled;
+  }
+
+  /**
+   * Enable or disable the overlapping of the SMP lookup with the parsing of
+   * the incoming document. In both cases no handler is invoked before the
+   * receiver checks passed.
+   *
+   * @param bSMPLookupPipeliningEnabled
+   *        <code>true</code> to enable, <code>false</code> to disable.
+   */
+  public static void setSMPLookupPipeliningEnabled (final boolean bSMPLookupPipeliningEnabled)
+  {
+    s_bSMPLookupPipeliningEnabled = bSMPLookupPipeliningEnabled;
+  }
+
+  /**
+   * @return The metrics to report the timings and counters to. Never
+   *         <code>null</code>. Defaults to
+   *         {@link IAS2PeppolServletMetrics#NO_OP}.
+   */
+  @Nonnull
+  public static IAS2PeppolServletMetrics getMetrics ()
+  {
+    return s_aMetrics;
+  }
+
+  /**
+   * Set the metrics to report the timings and counters to.
+   *
+   * @param aMetrics
+   *        The metrics to use. May be <code>null</code> to disable metrics.
+   * @see InMemoryAS2PeppolServletMetrics
+   */
+  public static void setMetrics (@Nullable final IAS2PeppolServletMetrics aMetrics)
+  {
+    s_aMetrics = aMetrics != null ? aMetrics : IAS2PeppolServletMetrics.NO_OP;
+  }
+
+  /**
+   * @return The duplicate detector for incoming documents. May be
+   *         <code>null</code> which means that no duplicate detection happens.
+   *         This is the default.
+   */
+  @Nullable
+  public static SBDDuplicateDetector getDuplicateDetector ()
+  {
+    return s_aDuplicateDetector;
+  }
+
+  /**
+   * Enable or disable the detection of duplicate incoming documents. A
+   * document is considered a duplicate if a document with the same sender and
+   * SBDH instance identifier was successfully handled before. Duplicates are
+   * acknowledged positively without invoking the handlers.
+   *
+   * @param aDuplicateDetector
+   *        The detector to use. May be <code>null</code> to disable the
+   *        duplicate detection.
+   */
+  public static void setDuplicateDetector (@Nullable final SBDDuplicateDetector aDuplicateDetector)
+  {
+    s_aDuplicateDetector = aDuplicateDetector;
+  }
+
+  /**
+   * @return The settings for the admission control of incoming documents. May
+   *         be <code>null</code> which means that all documents are admitted
+   *         immediately. This is the default.
+   */
+  @Nullable
+  public static AdmissionControlSettings getAdmissionControlSettings ()
+  {
+    return s_aAdmissionControlSettings;
+  }
+
+  /**
+   * Enable or disable the admission control. If enabled, the number of
+   * documents and payload bytes handled at the same time is limited. Documents
+   * that are not admitted in time are rejected with an AS2 error, so that the
+   * sender retries them later.
+   *
+   * @param aAdmissionControlSettings
+   *        The settings to use. May be <code>null</code> to disable the
+   *        admission control.
+   * @see AdmissionControlSettings#createDefault()
+   */
+  public static void setAdmissionControlSettings (@Nullable final AdmissionControlSettings aAdmissionControlSettings)
+  {
+    s_aAdmissionControlSettings = aAdmissionControlSettings;
+  }
+
+  /**
+   * @return The maximum size in bytes of a document copy that is kept in
+   *         memory. Larger copies are stored in a temporary file. Default is
+   *         {@link #DEFAULT_PAYLOAD_SPILL_THRESHOLD}.
+   * @see SBDPayloadBuffer
+   */
+  @Nonnegative
+  public static long getPayloadSpillThreshold ()
+  {
+    return s_nPayloadSpillThreshold;
+  }
+
+  /**
+   * Set the maximum size of a document copy that is kept in memory. Copies are
+   * needed for asynchronous dispatch, batch handlers and the spool.
+   *
+   * @param nPayloadSpillThreshold
+   *        The threshold in bytes. Must be &ge; 0. Use
+   *        {@link Long#MAX_VALUE} to keep all copies in memory.
+   */
+  public static void setPayloadSpillThreshold (@Nonnegative final long nPayloadSpillThreshold)
+  {
+    ValueEnforcer.isGE0 (nPayloadSpillThreshold, "PayloadSpillThreshold");
+    s_nPayloadSpillThreshold = nPayloadSpillThreshold;
+  }
+
+  /**
+   * @return The directory for the temporary files of large documents. May be
+   *         <code>null</code> to use the default temporary directory. This is
+   *         the default.
+   */
+  @Nullable
+  public static File getPayloadSpillDirectory ()
+  {
+    return s_aPayloadSpillDirectory;
+  }
+
+  /**
+   * Set the directory for the temporary files of large documents.
+   *
+   * @param aPayloadSpillDirectory
+   *        The directory to use. May be <code>null</code> to use the default
+   *        temporary directory.
+   */
+  public static void setPayloadSpillDirectory (@Nullable final File aPayloadSpillDirectory)
+  {
+    s_aPayloadSpillDirectory = aPayloadSpillDirectory;
+  }
+
+  /**
+   * @return The registry of the tenants of a multi-tenant AP. Documents for a
+   *         registered tenant are checked against the configuration of that
+   *         tenant instead of {@link #getSnapshot()}. By default no tenant is
+   *         registered. Never <code>null</code>.
+   */
+  @Nonnull
+  public static AS2PeppolTenantRegistry getTenantRegistry ()
+  {
+    return s_aTenantRegistry;
+  }
+
+  /**
+   * @return The file the SMP endpoint cache is persisted to. May be
+   *         <code>null</code> which means that the cache is not persisted.
+   *         This is the default.
+   * @see SMPEndpointSnapshot
+   */
+  @Nullable
+  public static File getEndpointSnapshotFile ()
+  {
+    return s_aEndpointSnapshotFile;
+  }
+
+  /**
+   * Set the file the SMP endpoint cache is persisted to. The file is written
+   * when the module is shut down and optionally in the interval from
+   * {@link #getEndpointSnapshotInterval()}. When a module is created, the
+   * entries contained in the file are restored and revalidated in the
+   * background. Must be set before the module is created.
+   *
+   * @param aEndpointSnapshotFile
+   *        The file to use. May be <code>null</code> to disable the
+   *        persistence.
+   */
+  public static void setEndpointSnapshotFile (@Nullable final File aEndpointSnapshotFile)
+  {
+    s_aEndpointSnapshotFile = aEndpointSnapshotFile;
+  }
+
+  /**
+   * @return The interval in which the SMP endpoint cache is persisted in
+   *         addition to the shutdown. May be <code>null</code> which means it
+   *         is only persisted on shutdown. This is the default.
+   */
+  @Nullable
+  public static Duration getEndpointSnapshotInterval ()
+  {
+    return s_aEndpointSnapshotInterval;
+  }
+
+  /**
+   * Set the interval in which the SMP endpoint cache is persisted. Must be set
+   * before the module is created.
+   *
+   * @param aEndpointSnapshotInterval
+   *        The interval to use. May be <code>null</code> to only persist the
+   *        cache on shutdown. Must be positive if not <code>null</code>.
+   */
+  public static void setEndpointSnapshotInterval (@Nullable final Duration aEndpointSnapshotInterval)
+  {
+    if (aEndpointSnapshotInterval != null)
+      ValueEnforcer.isFalse (aEndpointSnapshotInterval.isNegative () || aEndpointSnapshotInterval.isZero (),
+                             "EndpointSnapshotInterval must be positive");
+    s_aEndpointSnapshotInterval = aEndpointSnapshotInterval;
+  }
+
+  /**
+   * @return A file with SMP lookups to be performed in the background when the
+   *         module is created. May be <code>null</code>. This is the default.
+   * @see SMPEndpointSnapshot#readLookupList(File,
+   *      com.helger.peppol.smp.ISMPTransportProfile,
+   *      java.util.function.Function)
+   */
+  @Nullable
+  public static File getEndpointWarmUpFile ()
+  {
+    return s_aEndpointWarmUpFile;
+  }
+
+  /**
+   * Set a file with SMP lookups to be performed in the background when the
+   * module is created, e.g. the list of participants served by this AP. Each
+   * line contains the URI encoded participant identifier, document type
+   * identifier and process identifier separated by whitespace. Must be set
+   * before the module is created.
+   *
+   * @param aEndpointWarmUpFile
+   *        The file to use. May be <code>null</code>.
+   */
+  public static void setEndpointWarmUpFile (@Nullable final File aEndpointWarmUpFile)
+  {
+    s_aEndpointWarmUpFile = aEndpointWarmUpFile;
+  }
+
+  /**
+   * @return The validators for incoming documents. May be <code>null</code>
+   *         which means that no validation happens. This is the default.
+   */
+  @Nullable
+  public static SBDValidatorCache getValidatorCache ()
+  {
+    return s_aValidatorCache;
+  }
+
+  /**
+   * Enable or disable the validation of incoming documents. If a validator is
+   * available for the document type of an incoming document, the document is
+   * validated after it was parsed and before any handler is invoked. Invalid
+   * documents are rejected with an AS2 error.
+   *
+   * @param aValidatorCache
+   *        The validators to use. May be <code>null</code> to disable the
+   *        validation.
+   */
+  public static void setValidatorCache (@Nullable final SBDValidatorCache aValidatorCache)
+  {
+    s_aValidatorCache = aValidatorCache;
   }
 }
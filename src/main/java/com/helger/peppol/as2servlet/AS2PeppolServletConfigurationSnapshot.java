@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.smpclient.peppol.ISMPServiceMetadataProvider;
+
+/**
+ * An immutable snapshot of the configuration values that are used for the
+ * receiver checks of a single message. A snapshot is read once per message, so
+ * that a concurrent reconfiguration (e.g. a certificate rotation or a change of
+ * the SMP client) is either completely visible to a message or not at all.
+ *
+ * @author Philip Helger
+ * @see AS2PeppolServletConfiguration#getSnapshot()
+ * @see AS2PeppolServletConfiguration#setSnapshot(AS2PeppolServletConfigurationSnapshot)
+ */
+@Immutable
+public final class AS2PeppolServletConfigurationSnapshot
+{
+  /** The default configuration with disabled receiver checks. */
+  public static final AS2PeppolServletConfigurationSnapshot DEFAULT = new AS2PeppolServletConfigurationSnapshot (AS2PeppolServletConfiguration.DEFAULT_RECEIVER_CHECK_ENABLED,
+                                                                                                                 null,
+                                                                                                                 null,
+                                                                                                                 null);
+
+  private final boolean m_bReceiverCheckEnabled;
+  private final ISMPServiceMetadataProvider m_aSMPClient;
+  private final String m_sAS2EndpointURL;
+  private final FingerprintedCertificate m_aAPCertificate;
+
+  /**
+   * Constructor
+   *
+   * @param bReceiverCheckEnabled
+   *        <code>true</code> if the checks for endpoint URL and endpoint
+   *        certificate are enabled.
+   * @param aSMPClient
+   *        The SMP client to use for the receiver checks. May be
+   *        <code>null</code>.
+   * @param sAS2EndpointURL
+   *        The URL of this AP. May be <code>null</code>.
+   * @param aAPCertificate
+   *        The certificate of this AP. May be <code>null</code>.
+   */
+  public AS2PeppolServletConfigurationSnapshot (final boolean bReceiverCheckEnabled,
+                                                @Nullable final ISMPServiceMetadataProvider aSMPClient,
+                                                @Nullable final String sAS2EndpointURL,
+                                                @Nullable final FingerprintedCertificate aAPCertificate)
+  {
+    m_bReceiverCheckEnabled = bReceiverCheckEnabled;
+    m_aSMPClient = aSMPClient;
+    m_sAS2EndpointURL = sAS2EndpointURL;
+    m_aAPCertificate = aAPCertificate;
+  }
+
+  public boolean isReceiverCheckEnabled ()
+  {
+    return m_bReceiverCheckEnabled;
+  }
+
+  @Nullable
+  public ISMPServiceMetadataProvider getSMPClient ()
+  {
+    return m_aSMPClient;
+  }
+
+  @Nullable
+  public String getAS2EndpointURL ()
+  {
+    return m_sAS2EndpointURL;
+  }
+
+  @Nullable
+  public FingerprintedCertificate getAPCertificate ()
+  {
+    return m_aAPCertificate;
+  }
+
+  @Nonnull
+  public AS2PeppolServletConfigurationSnapshot getWithReceiverCheckEnabled (final boolean bReceiverCheckEnabled)
+  {
+    if (bReceiverCheckEnabled == m_bReceiverCheckEnabled)
+      return this;
+    return new AS2PeppolServletConfigurationSnapshot (bReceiverCheckEnabled,
+                                                      m_aSMPClient,
+                                                      m_sAS2EndpointURL,
+                                                      m_aAPCertificate);
+  }
+
+  @Nonnull
+  public AS2PeppolServletConfigurationSnapshot getWithSMPClient (@Nullable final ISMPServiceMetadataProvider aSMPClient)
+  {
+    if (aSMPClient == m_aSMPClient)
+      return this;
+    return new AS2PeppolServletConfigurationSnapshot (m_bReceiverCheckEnabled,
+                                                      aSMPClient,
+                                                      m_sAS2EndpointURL,
+                                                      m_aAPCertificate);
+  }
+
+  @Nonnull
+  public AS2PeppolServletConfigurationSnapshot getWithAS2EndpointURL (@Nullable final String sAS2EndpointURL)
+  {
+    return new AS2PeppolServletConfigurationSnapshot (m_bReceiverCheckEnabled,
+                                                      m_aSMPClient,
+                                                      sAS2EndpointURL,
+                                                      m_aAPCertificate);
+  }
+
+  /**
+   * Get a copy of this snapshot with a different AP certificate.
+   *
+   * @param aAPCertificate
+   *        The new certificate incl. its fingerprint. May be
+   *        <code>null</code>.
+   * @return A new snapshot. Never <code>null</code>.
+   */
+  @Nonnull
+  public AS2PeppolServletConfigurationSnapshot getWithAPFingerprintedCertificate (@Nullable final FingerprintedCertificate aAPCertificate)
+  {
+    return new AS2PeppolServletConfigurationSnapshot (m_bReceiverCheckEnabled,
+                                                      m_aSMPClient,
+                                                      m_sAS2EndpointURL,
+                                                      aAPCertificate);
+  }
+
+  /**
+   * Get a copy of this snapshot with a different AP certificate.
+   *
+   * @param aAPCertificate
+   *        The new certificate. May be <code>null</code>.
+   * @return A new snapshot. Never <code>null</code>.
+   * @throws IllegalArgumentException
+   *         If the certificate cannot be encoded.
+   */
+  @Nonnull
+  public AS2PeppolServletConfigurationSnapshot getWithAPCertificate (@Nullable final X509Certificate aAPCertificate)
+  {
+    if (aAPCertificate == null)
+      return getWithAPFingerprintedCertificate (null);
+    try
+    {
+      return getWithAPFingerprintedCertificate (FingerprintedCertificate.create (aAPCertificate));
+    }
+    catch (final CertificateEncodingException ex)
+    {
+      throw new IllegalArgumentException ("Failed to encode the provided AP certificate", ex);
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("ReceiverCheckEnabled", m_bReceiverCheckEnabled)
+                                       .append ("SMPClient", m_aSMPClient)
+                                       .append ("AS2EndpointURL", m_sAS2EndpointURL)
+                                       .append ("APCertificate", m_aAPCertificate)
+                                       .getToString ();
+  }
+}
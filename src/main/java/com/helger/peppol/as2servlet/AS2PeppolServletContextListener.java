@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shuts down all {@link AS2ServletSBDModule} instances when the web
+ * application is stopped, because the AS2 processor does not stop its modules.
+ * Only then are the queued documents and pending batches handled and the SMP
+ * endpoint snapshot written. The listener is picked up automatically by
+ * Servlet 3.0 containers that scan the web application for annotations.
+ * Otherwise it must be registered in the <code>web.xml</code>:
+ *
+ * <pre>
+ * &lt;listener&gt;
+ *   &lt;listener-class&gt;com.helger.peppol.as2servlet.AS2PeppolServletContextListener&lt;/listener-class&gt;
+ * &lt;/listener&gt;
+ * </pre>
+ *
+ * @author Philip Helger
+ */
+@WebListener
+public class AS2PeppolServletContextListener implements ServletContextListener
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS2PeppolServletContextListener.class);
+
+  public void contextInitialized (final ServletContextEvent aSCE)
+  {}
+
+  public void contextDestroyed (final ServletContextEvent aSCE)
+  {
+    LOGGER.info ("Shutting down the AS2 Peppol servlet modules");
+    AS2ServletSBDModule.shutdownAll ();
+  }
+}
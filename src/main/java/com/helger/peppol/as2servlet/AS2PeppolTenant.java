@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsHashSet;
+import com.helger.commons.collection.impl.ICommonsSet;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A single tenant of a multi-tenant AP. Each tenant has its own receiver
+ * check configuration (endpoint URL, AP certificate and SMP client) and is
+ * identified by the Peppol participant identifiers it receives documents for
+ * and/or by the AS2 IDs its partnerships use. Handlers can restrict
+ * themselves to certain tenants via
+ * {@link IAS2IncomingSBDRoutingAware#getAcceptedTenantIDs()}.
+ *
+ * @author Philip Helger
+ * @see AS2PeppolTenantRegistry
+ */
+@Immutable
+public final class AS2PeppolTenant
+{
+  private final String m_sID;
+  private final AS2PeppolServletConfigurationSnapshot m_aConfiguration;
+  private final ICommonsSet <String> m_aReceiverIDs;
+  private final ICommonsSet <String> m_aAS2IDs;
+
+  /**
+   * Constructor
+   *
+   * @param sID
+   *        The unique ID of the tenant. May neither be <code>null</code> nor
+   *        empty.
+   * @param aConfiguration
+   *        The receiver check configuration of this tenant. May not be
+   *        <code>null</code>.
+   * @param aReceiverIDs
+   *        The URI encoded participant identifiers (e.g.
+   *        <code>iso6523-actorid-upis::9915:test</code>) this tenant receives
+   *        documents for. May be <code>null</code>.
+   * @param aAS2IDs
+   *        The AS2 IDs of the receiving side of the partnerships of this
+   *        tenant. May be <code>null</code>.
+   */
+  public AS2PeppolTenant (@Nonnull @Nonempty final String sID,
+                          @Nonnull final AS2PeppolServletConfigurationSnapshot aConfiguration,
+                          @Nullable final ICommonsSet <String> aReceiverIDs,
+                          @Nullable final ICommonsSet <String> aAS2IDs)
+  {
+    ValueEnforcer.notEmpty (sID, "ID");
+    ValueEnforcer.notNull (aConfiguration, "Configuration");
+    m_sID = sID;
+    m_aConfiguration = aConfiguration;
+    m_aReceiverIDs = aReceiverIDs == null ? new CommonsHashSet <> () : new CommonsHashSet <> (aReceiverIDs);
+    m_aAS2IDs = aAS2IDs == null ? new CommonsHashSet <> () : new CommonsHashSet <> (aAS2IDs);
+    ValueEnforcer.isFalse (m_aReceiverIDs.isEmpty () && m_aAS2IDs.isEmpty (),
+                           "At least one receiver ID or AS2 ID must be provided");
+  }
+
+  /**
+   * @return The unique ID of the tenant. Neither <code>null</code> nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+
+  /**
+   * @return The receiver check configuration of this tenant. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public AS2PeppolServletConfigurationSnapshot getConfiguration ()
+  {
+    return m_aConfiguration;
+  }
+
+  /**
+   * @return The URI encoded participant identifiers of this tenant. Never
+   *         <code>null</code> but maybe empty.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsSet <String> getReceiverIDs ()
+  {
+    return m_aReceiverIDs.getClone ();
+  }
+
+  /**
+   * @return The AS2 IDs of this tenant. Never <code>null</code> but maybe
+   *         empty.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsSet <String> getAS2IDs ()
+  {
+    return m_aAS2IDs.getClone ();
+  }
+
+  /**
+   * Get a copy of this tenant with a different configuration.
+   *
+   * @param aConfiguration
+   *        The new configuration. May not be <code>null</code>.
+   * @return A new tenant or this if the configuration is unchanged. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public AS2PeppolTenant getWithConfiguration (@Nonnull final AS2PeppolServletConfigurationSnapshot aConfiguration)
+  {
+    if (aConfiguration == m_aConfiguration)
+      return this;
+    return new AS2PeppolTenant (m_sID, aConfiguration, m_aReceiverIDs, m_aAS2IDs);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("ID", m_sID)
+                                       .append ("Configuration", m_aConfiguration)
+                                       .append ("ReceiverIDs", m_aReceiverIDs)
+                                       .append ("AS2IDs", m_aAS2IDs)
+                                       .getToString ();
+  }
+}
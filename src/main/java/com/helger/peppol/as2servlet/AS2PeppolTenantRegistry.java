@@ -0,0 +1,279 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.CommonsLinkedHashMap;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.collection.impl.ICommonsOrderedMap;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.state.EChange;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * The registry of all tenants of a multi-tenant AP. Incoming documents are
+ * assigned to a tenant by the receiver participant identifier of the SBDH or,
+ * if that is not registered, by the AS2 ID of the receiving side of the AS2
+ * partnership. Lookups are a single hash map access on an immutable state and
+ * never block. Modifications copy the state and are expected to be rare.
+ * Documents that belong to no tenant use the global configuration.
+ *
+ * @author Philip Helger
+ * @see AS2PeppolServletConfiguration#getTenantRegistry()
+ */
+@ThreadSafe
+public class AS2PeppolTenantRegistry
+{
+  @Immutable
+  private static final class State
+  {
+    static final State EMPTY = new State (new CommonsLinkedHashMap <> ());
+
+    private final ICommonsOrderedMap <String, AS2PeppolTenant> m_aByID;
+    private final ICommonsMap <String, AS2PeppolTenant> m_aByReceiverID = new CommonsHashMap <> ();
+    private final ICommonsMap <String, AS2PeppolTenant> m_aByAS2ID = new CommonsHashMap <> ();
+
+    State (@Nonnull final ICommonsOrderedMap <String, AS2PeppolTenant> aByID)
+    {
+      m_aByID = aByID;
+      for (final AS2PeppolTenant aTenant : aByID.values ())
+      {
+        for (final String sReceiverID : aTenant.getReceiverIDs ())
+        {
+          final AS2PeppolTenant aOld = m_aByReceiverID.put (sReceiverID, aTenant);
+          if (aOld != null)
+            throw new IllegalArgumentException ("The receiver ID '" +
+                                                sReceiverID +
+                                                "' is used by the tenants '" +
+                                                aOld.getID () +
+                                                "' and '" +
+                                                aTenant.getID () +
+                                                "'");
+        }
+        for (final String sAS2ID : aTenant.getAS2IDs ())
+        {
+          final AS2PeppolTenant aOld = m_aByAS2ID.put (sAS2ID, aTenant);
+          if (aOld != null)
+            throw new IllegalArgumentException ("The AS2 ID '" +
+                                                sAS2ID +
+                                                "' is used by the tenants '" +
+                                                aOld.getID () +
+                                                "' and '" +
+                                                aTenant.getID () +
+                                                "'");
+        }
+      }
+    }
+  }
+
+  private final SimpleLock m_aLock = new SimpleLock ();
+  // Only modified while holding the lock, read without locking
+  private volatile State m_aState = State.EMPTY;
+
+  public AS2PeppolTenantRegistry ()
+  {}
+
+  /**
+   * Register a tenant. A previously registered tenant with the same ID is
+   * replaced.
+   *
+   * @param aTenant
+   *        The tenant to register. May not be <code>null</code>.
+   * @throws IllegalArgumentException
+   *         If a receiver ID or AS2 ID of the tenant is already used by another
+   *         tenant.
+   */
+  public void registerTenant (@Nonnull final AS2PeppolTenant aTenant)
+  {
+    ValueEnforcer.notNull (aTenant, "Tenant");
+
+    m_aLock.locked ( () -> {
+      final ICommonsOrderedMap <String, AS2PeppolTenant> aByID = m_aState.m_aByID.getClone ();
+      final AS2PeppolTenant aOld = aByID.put (aTenant.getID (), aTenant);
+      m_aState = new State (aByID);
+      if (aOld != null)
+        AS2PeppolServletConfiguration.onSMPClientChange (aOld.getConfiguration ().getSMPClient (),
+                                                         aTenant.getConfiguration ().getSMPClient ());
+    });
+  }
+
+  /**
+   * Unregister the tenant with the provided ID.
+   *
+   * @param sTenantID
+   *        The ID of the tenant to remove. May be <code>null</code>.
+   * @return {@link EChange#CHANGED} if the tenant was removed.
+   */
+  @Nonnull
+  public EChange unregisterTenant (@Nullable final String sTenantID)
+  {
+    return m_aLock.lockedGet ( () -> {
+      if (!m_aState.m_aByID.containsKey (sTenantID))
+        return EChange.UNCHANGED;
+      final ICommonsOrderedMap <String, AS2PeppolTenant> aByID = m_aState.m_aByID.getClone ();
+      final AS2PeppolTenant aOld = aByID.remove (sTenantID);
+      m_aState = new State (aByID);
+      AS2PeppolServletConfiguration.onSMPClientChange (aOld.getConfiguration ().getSMPClient (), null);
+      return EChange.CHANGED;
+    });
+  }
+
+  /**
+   * Remove all tenants.
+   *
+   * @return {@link EChange#CHANGED} if at least one tenant was removed.
+   */
+  @Nonnull
+  public EChange unregisterAllTenants ()
+  {
+    return m_aLock.lockedGet ( () -> {
+      if (m_aState.m_aByID.isEmpty ())
+        return EChange.UNCHANGED;
+      final State aOldState = m_aState;
+      m_aState = State.EMPTY;
+      for (final AS2PeppolTenant aOld : aOldState.m_aByID.values ())
+        AS2PeppolServletConfiguration.onSMPClientChange (aOld.getConfiguration ().getSMPClient (), null);
+      return EChange.CHANGED;
+    });
+  }
+
+  /**
+   * @return <code>true</code> if no tenant is registered. This is the default.
+   */
+  public boolean isEmpty ()
+  {
+    return m_aState.m_aByID.isEmpty ();
+  }
+
+  /**
+   * @return All registered tenants in registration order. Never
+   *         <code>null</code> but maybe empty.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <AS2PeppolTenant> getAllTenants ()
+  {
+    return m_aState.m_aByID.copyOfValues ();
+  }
+
+  @Nullable
+  public AS2PeppolTenant getTenantOfID (@Nullable final String sTenantID)
+  {
+    return sTenantID == null ? null : m_aState.m_aByID.get (sTenantID);
+  }
+
+  /**
+   * @param sReceiverID
+   *        The URI encoded participant identifier. May be <code>null</code>.
+   * @return The tenant that receives documents for the provided participant or
+   *         <code>null</code> if there is none.
+   */
+  @Nullable
+  public AS2PeppolTenant getTenantOfReceiverID (@Nullable final String sReceiverID)
+  {
+    return sReceiverID == null ? null : m_aState.m_aByReceiverID.get (sReceiverID);
+  }
+
+  /**
+   * @param sAS2ID
+   *        The AS2 ID of the receiving side of a partnership. May be
+   *        <code>null</code>.
+   * @return The tenant with the provided AS2 ID or <code>null</code> if there
+   *         is none.
+   */
+  @Nullable
+  public AS2PeppolTenant getTenantOfAS2ID (@Nullable final String sAS2ID)
+  {
+    return sAS2ID == null ? null : m_aState.m_aByAS2ID.get (sAS2ID);
+  }
+
+  /**
+   * Determine the tenant of an incoming document. The receiver participant
+   * identifier takes precedence over the AS2 ID.
+   *
+   * @param aSBDH
+   *        The header of the incoming document. May not be <code>null</code>.
+   * @param sAS2ReceiverID
+   *        The AS2 ID of the receiving side of the AS2 message. May be
+   *        <code>null</code>.
+   * @return The tenant of the document or <code>null</code> if the document
+   *         belongs to no tenant.
+   */
+  @Nullable
+  public AS2PeppolTenant resolveTenant (@Nonnull final PeppolSBDHHeader aSBDH, @Nullable final String sAS2ReceiverID)
+  {
+    final State aState = m_aState;
+    if (aState.m_aByID.isEmpty ())
+    {
+      // Fast path - single tenant AP
+      return null;
+    }
+
+    AS2PeppolTenant ret = aState.m_aByReceiverID.get (aSBDH.getReceiverAsIdentifier ().getURIEncoded ());
+    if (ret == null && StringHelper.hasText (sAS2ReceiverID))
+      ret = aState.m_aByAS2ID.get (sAS2ReceiverID);
+    return ret;
+  }
+
+  /**
+   * Update the configuration of an existing tenant, e.g. for a certificate
+   * rotation. If the SMP client changed, the cached lookup results of the
+   * previous SMP are removed.
+   *
+   * @param sTenantID
+   *        The ID of the tenant to update. May neither be <code>null</code>
+   *        nor empty.
+   * @param aConfiguration
+   *        The new configuration. May not be <code>null</code>.
+   * @return {@link EChange#UNCHANGED} if no such tenant is registered.
+   */
+  @Nonnull
+  public EChange updateTenantConfiguration (@Nonnull @Nonempty final String sTenantID,
+                                            @Nonnull final AS2PeppolServletConfigurationSnapshot aConfiguration)
+  {
+    ValueEnforcer.notEmpty (sTenantID, "TenantID");
+    ValueEnforcer.notNull (aConfiguration, "Configuration");
+
+    return m_aLock.lockedGet ( () -> {
+      final AS2PeppolTenant aOld = m_aState.m_aByID.get (sTenantID);
+      if (aOld == null)
+        return EChange.UNCHANGED;
+      final ICommonsOrderedMap <String, AS2PeppolTenant> aByID = m_aState.m_aByID.getClone ();
+      aByID.put (sTenantID, aOld.getWithConfiguration (aConfiguration));
+      m_aState = new State (aByID);
+      AS2PeppolServletConfiguration.onSMPClientChange (aOld.getConfiguration ().getSMPClient (),
+                                                       aConfiguration.getSMPClient ());
+      return EChange.CHANGED;
+    });
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Tenants", m_aState.m_aByID.values ()).getToString ();
+  }
+}
@@ -16,12 +16,17 @@
  */
 package com.helger.peppol.as2servlet;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,18 +39,19 @@ import com.helger.as2lib.message.IMessage;
 import com.helger.as2lib.processor.module.AbstractProcessorModule;
 import com.helger.as2lib.processor.storage.IProcessorStorageModule;
 import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsHashSet;
+import com.helger.commons.collection.impl.CommonsLinkedHashSet;
 import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsOrderedSet;
+import com.helger.commons.collection.impl.ICommonsSet;
+import com.helger.commons.collection.impl.ICommonsSortedMap;
+import com.helger.commons.concurrent.SimpleLock;
 import com.helger.commons.http.HttpHeaderMap;
 import com.helger.commons.lang.ServiceLoaderHelper;
 import com.helger.commons.state.ETriState;
 import com.helger.commons.string.StringHelper;
-import com.helger.peppol.sbdh.PeppolSBDHDocument;
-import com.helger.peppol.sbdh.read.PeppolSBDHDocumentReader;
-import com.helger.peppolid.IDocumentTypeIdentifier;
 import com.helger.peppolid.IParticipantIdentifier;
-import com.helger.peppolid.IProcessIdentifier;
-import com.helger.sbdh.SBDMarshaller;
-import com.helger.security.certificate.CertificateHelper;
 import com.helger.smpclient.peppol.ISMPServiceMetadataProvider;
 import com.helger.smpclient.peppol.SMPClientReadOnly;
 import com.helger.smpclient.peppol.jaxb.EndpointType;
@@ -59,9 +65,73 @@ import com.helger.smpclient.peppol.jaxb.EndpointType;
 public class AS2ServletSBDModule extends AbstractProcessorModule
 {
   private static final Logger LOGGER = LoggerFactory.getLogger (AS2ServletSBDModule.class);
+  private static final String HTTP_HEADER_AS2_TO = "AS2-To";
+  // The maximum number of validation errors contained in the error message
+  private static final int MAX_VALIDATION_ERRORS_IN_MESSAGE = 10;
+  // All instances that were not shut down yet
+  private static final SimpleLock INSTANCES_LOCK = new SimpleLock ();
+  @GuardedBy ("INSTANCES_LOCK")
+  private static final ICommonsSet <AS2ServletSBDModule> s_aInstances = new CommonsHashSet <> ();
+
+  /**
+   * Measures the stages of a single incoming document. Only one stage is
+   * active at a time.
+   */
+  private static final class StageTimer
+  {
+    private final IAS2PeppolServletMetrics m_aMetrics;
+    private final long m_nStartNanos = System.nanoTime ();
+    private EAS2ReceiveStage m_eStage;
+    private long m_nStageStartNanos;
+
+    StageTimer (@Nonnull final IAS2PeppolServletMetrics aMetrics)
+    {
+      m_aMetrics = aMetrics;
+    }
+
+    void start (@Nonnull final EAS2ReceiveStage eStage)
+    {
+      m_eStage = eStage;
+      m_nStageStartNanos = System.nanoTime ();
+    }
+
+    void end (final boolean bSuccess)
+    {
+      if (m_eStage != null)
+      {
+        m_aMetrics.onStage (m_eStage, System.nanoTime () - m_nStageStartNanos, bSuccess);
+        m_eStage = null;
+      }
+    }
+
+    void endTotal (final boolean bSuccess)
+    {
+      end (bSuccess);
+      m_aMetrics.onStage (EAS2ReceiveStage.TOTAL, System.nanoTime () - m_nStartNanos, bSuccess);
+    }
+  }
 
   private EPeppolAS2Version m_eAS2Version;
   private final ICommonsList <IAS2IncomingSBDHandlerSPI> m_aHandlers;
+  private final ICommonsList <IAS2IncomingSBDStreamHandlerSPI> m_aStreamHandlers;
+  private final ICommonsList <SBDBatchAccumulator> m_aBatchAccumulators;
+  private final SBDHandlerRoutingIndex <IAS2IncomingSBDHandlerSPI> m_aHandlerIndex;
+  private final SBDHandlerRoutingIndex <IAS2IncomingSBDStreamHandlerSPI> m_aStreamHandlerIndex;
+  private final SBDHandlerRoutingIndex <SBDBatchAccumulator> m_aBatchAccumulatorIndex;
+  private final SMPEndpointResolver m_aEndpointResolver = new SMPEndpointResolver ();
+  private final SMPEndpointWarmUp m_aEndpointWarmUp = new SMPEndpointWarmUp (m_aEndpointResolver,
+                                                                           AS2ServletSBDModule::_getRevalidationSMPClient,
+                                                                           SMPEndpointWarmUp.DEFAULT_PARALLEL_LOOKUPS);
+  private final SMPCertificateCache m_aCertificateCache = new SMPCertificateCache ();
+  private final PeppolSBDHHeaderReader m_aHeaderReader = new PeppolSBDHHeaderReader ();
+  private final SBDUnmarshallerPool m_aSBDReader = new SBDUnmarshallerPool ();
+  private volatile AsyncSBDDispatcher m_aAsyncDispatcher;
+  private volatile SBDSpool m_aSpool;
+  private volatile SBDHandlerFanOut m_aFanOut;
+  private volatile SBDAdmissionController m_aAdmissionController;
+  private boolean m_bEndpointSnapshotRegistered;
+  private final AtomicBoolean m_aReceiverChecksDisabledNoticed = new AtomicBoolean (false);
+  private final AtomicBoolean m_aShutdown = new AtomicBoolean (false);
 
   /**
    * No-argument constructor is needed because it is referenced from the server
@@ -76,20 +146,83 @@ public class AS2ServletSBDModule extends AbstractProcessorModule
 
   public AS2ServletSBDModule (@Nonnull final EPeppolAS2Version eAS2Version)
   {
+    this (eAS2Version,
+          ServiceLoaderHelper.getAllSPIImplementations (IAS2IncomingSBDHandlerSPI.class),
+          ServiceLoaderHelper.getAllSPIImplementations (IAS2IncomingSBDStreamHandlerSPI.class),
+          ServiceLoaderHelper.getAllSPIImplementations (IAS2IncomingSBDBatchHandlerSPI.class));
+  }
+
+  /**
+   * Constructor with explicit handlers instead of the ones registered via SPI.
+   * Mainly for testing.
+   *
+   * @param eAS2Version
+   *        The Peppol AS2 version to use. May not be <code>null</code>.
+   * @param aHandlers
+   *        The handlers for unmarshalled documents. May not be
+   *        <code>null</code>.
+   * @param aStreamHandlers
+   *        The handlers for raw documents. May not be <code>null</code>.
+   * @param aBatchHandlers
+   *        The batch handlers. May not be <code>null</code>.
+   */
+  AS2ServletSBDModule (@Nonnull final EPeppolAS2Version eAS2Version,
+                       @Nonnull final ICommonsList <IAS2IncomingSBDHandlerSPI> aHandlers,
+                       @Nonnull final ICommonsList <IAS2IncomingSBDStreamHandlerSPI> aStreamHandlers,
+                       @Nonnull final ICommonsList <IAS2IncomingSBDBatchHandlerSPI> aBatchHandlers)
+  {
+    ValueEnforcer.notNull (aHandlers, "Handlers");
+    ValueEnforcer.notNull (aStreamHandlers, "StreamHandlers");
+    ValueEnforcer.notNull (aBatchHandlers, "BatchHandlers");
     setPeppolAS2Version (eAS2Version);
 
-    m_aHandlers = ServiceLoaderHelper.getAllSPIImplementations (IAS2IncomingSBDHandlerSPI.class);
-    if (m_aHandlers.isEmpty ())
+    m_aHandlers = aHandlers;
+    m_aStreamHandlers = aStreamHandlers;
+    m_aBatchAccumulators = aBatchHandlers.getAllMapped (SBDBatchAccumulator::new);
+    m_aHandlerIndex = new SBDHandlerRoutingIndex <> (m_aHandlers);
+    m_aStreamHandlerIndex = new SBDHandlerRoutingIndex <> (m_aStreamHandlers);
+    m_aBatchAccumulatorIndex = new SBDHandlerRoutingIndex <> (m_aBatchAccumulators, SBDBatchAccumulator::getHandler);
+    if (_hasNoHandlers ())
     {
       LOGGER.warn ("No SPI handler of type " +
                    IAS2IncomingSBDHandlerSPI.class.getName () +
+                   ", " +
+                   IAS2IncomingSBDStreamHandlerSPI.class.getName () +
+                   " or " +
+                   IAS2IncomingSBDBatchHandlerSPI.class.getName () +
                    " for incoming SBD documents is registered. Therefore incoming documents will NOT be handled and maybe discarded if no other processors are active!");
     }
     else
     {
       if (LOGGER.isDebugEnabled ())
-        LOGGER.debug ("Loaded " + m_aHandlers.size () + " IAS2IncomingSBDHandlerSPI implementations");
+        LOGGER.debug ("Loaded " +
+                      m_aHandlers.size () +
+                      " IAS2IncomingSBDHandlerSPI implementations and " +
+                      m_aStreamHandlers.size () +
+                      " IAS2IncomingSBDStreamHandlerSPI implementations and " +
+                      m_aBatchAccumulators.size () +
+                      " IAS2IncomingSBDBatchHandlerSPI implementations");
     }
+    if (m_aBatchAccumulators.isNotEmpty () && AS2PeppolServletConfiguration.getSpoolDirectory () == null)
+      LOGGER.warn ("IAS2IncomingSBDBatchHandlerSPI implementations are used without a spool directory - documents of failed batches are lost unless the handlers save them in onBatchFailed");
+
+    // Don't let the first message pay for the JAXB initialization
+    SBDParserWarmUp.warmUp (m_aSBDReader, m_aHeaderReader);
+
+    // Don't let the first messages after a restart wait for the SMP
+    _restoreEndpointCache ();
+
+    // The endpoints are written periodically and on shutdown
+    SMPEndpointSnapshotScheduler.register ();
+    m_bEndpointSnapshotRegistered = true;
+
+    // Shut down with the web application
+    INSTANCES_LOCK.locked ( () -> s_aInstances.add (this));
+  }
+
+  private boolean _hasNoHandlers ()
+  {
+    return m_aHandlers.isEmpty () && m_aStreamHandlers.isEmpty () && m_aBatchAccumulators.isEmpty ();
   }
 
   @Nonnull
@@ -114,76 +247,89 @@ public class AS2ServletSBDModule extends AbstractProcessorModule
   }
 
   /**
-   * @param sLogPrefix
-   *        Log prefix
-   * @param aRecipientID
-   *        PEPPOL Recipient ID
-   * @param aDocTypeID
-   *        PEPPOL document type ID
-   * @param aProcessID
-   *        PEPPOL process ID
-   * @return The access point URL to be used or <code>null</code>
+   * Start the SMP lookup of the receiver endpoint.
+   *
+   * @param aConfig
+   *        The configuration snapshot of the current message
+   * @param aHeader
+   *        The header of the incoming document
+   * @return The pending lookup. Never <code>null</code>.
    * @throws AS2Exception
-   *         In case the endpoint address could not be resolved.
+   *         In case no SMP client is configured.
    */
-  @Nullable
-  private EndpointType _getReceiverEndpoint (@Nonnull final String sLogPrefix,
-                                             @Nullable final IParticipantIdentifier aRecipientID,
-                                             @Nullable final IDocumentTypeIdentifier aDocTypeID,
-                                             @Nullable final IProcessIdentifier aProcessID) throws AS2Exception
+  @Nonnull
+  private SMPEndpointResolver.PendingLookup _startReceiverEndpointLookup (@Nonnull final AS2PeppolServletConfigurationSnapshot aConfig,
+                                                                         @Nonnull final PeppolSBDHHeader aHeader) throws AS2Exception
   {
     // Get configured client
-    final ISMPServiceMetadataProvider aSMPClient = AS2PeppolServletConfiguration.getSMPClient ();
+    final ISMPServiceMetadataProvider aSMPClient = aConfig.getSMPClient ();
     if (aSMPClient == null)
-      throw new AS2Exception (sLogPrefix + "No SMP client configured!");
+      throw new AS2Exception (aHeader.getLogPrefix () + "No SMP client configured!");
 
-    if (aRecipientID == null || aDocTypeID == null || aProcessID == null)
-      return null;
+    // Use cache, coalescing, timeout and circuit breaker
+    return m_aEndpointResolver.startLookup (aHeader::getLogPrefix,
+                                            aSMPClient,
+                                            new SMPEndpointCacheKey (aHeader.getReceiverAsIdentifier (),
+                                                                     aHeader.getDocumentTypeAsIdentifier (),
+                                                                     aHeader.getProcessAsIdentifier (),
+                                                                     m_eAS2Version.getTransportProfile (),
+                                                                     SMPEndpointResolver.getSMPHost (aSMPClient)));
+  }
 
-    try
-    {
-      if (LOGGER.isDebugEnabled ())
-      {
-        LOGGER.debug (sLogPrefix +
-                      "Looking up the endpoint of recipient " +
-                      aRecipientID.getURIEncoded () +
-                      " for " +
-                      aDocTypeID.getURIEncoded () +
-                      " and " +
-                      aProcessID.getURIEncoded () +
-                      " and " +
-                      m_eAS2Version.getTransportProfile ());
-      }
+  /**
+   * Wait for the SMP lookup and check if the document is for this AP.
+   *
+   * @param aHeader
+   *        The header of the incoming document
+   * @param aConfig
+   *        The configuration snapshot of the current message
+   * @param aPendingLookup
+   *        The pending SMP lookup
+   * @param aTimer
+   *        The stage timer to use
+   * @throws AS2Exception
+   *         In case the lookup failed or the document is not for this AP.
+   */
+  private void _checkReceiverEndpoint (@Nonnull final PeppolSBDHHeader aHeader,
+                                       @Nonnull final AS2PeppolServletConfigurationSnapshot aConfig,
+                                       @Nonnull final SMPEndpointResolver.PendingLookup aPendingLookup,
+                                       @Nonnull final StageTimer aTimer) throws AS2Exception
+  {
+    aTimer.start (EAS2ReceiveStage.SMP_LOOKUP_WAIT);
+    final EndpointType aReceiverEndpoint = aPendingLookup.get ();
+    aTimer.end (true);
 
-      // Query the SMP
-      return aSMPClient.getEndpoint (aRecipientID, aDocTypeID, aProcessID, m_eAS2Version.getTransportProfile ());
-    }
-    catch (final Throwable t)
+    aTimer.start (EAS2ReceiveStage.ENDPOINT_CHECK);
+    if (aReceiverEndpoint == null)
     {
-      throw new AS2Exception (sLogPrefix + "Failed to retrieve endpoint of recipient " + aRecipientID.getURIEncoded (),
-                              t);
+      throw new AS2Exception (aHeader.getLogPrefix () +
+                              "Failed to resolve endpoint for provided receiver/documentType/process - not handling document");
     }
+    // Check if the message is for us
+    _checkIfReceiverEndpointURLMatches (aHeader, aConfig, aReceiverEndpoint);
+
+    // Get the recipient certificate from the SMP
+    _checkIfEndpointCertificateMatches (aHeader, aConfig, aReceiverEndpoint);
+    aTimer.end (true);
   }
 
-  private static void _checkIfReceiverEndpointURLMatches (@Nonnull final String sLogPrefix,
+  private static void _checkIfReceiverEndpointURLMatches (@Nonnull final PeppolSBDHHeader aHeader,
+                                                          @Nonnull final AS2PeppolServletConfigurationSnapshot aConfig,
                                                           @Nonnull final EndpointType aRecipientEndpoint) throws AS2Exception
   {
     // Get our public endpoint address from the configuration
-    final String sOwnAPUrl = AS2PeppolServletConfiguration.getAS2EndpointURL ();
+    final String sOwnAPUrl = aConfig.getAS2EndpointURL ();
     if (StringHelper.hasNoText (sOwnAPUrl))
-      throw new AS2Exception (sLogPrefix + "The endpoint URL of this AP is not configured!");
-
-    if (LOGGER.isDebugEnabled ())
-      LOGGER.debug (sLogPrefix + "Our AP URL is " + sOwnAPUrl);
+      throw new AS2Exception (aHeader.getLogPrefix () + "The endpoint URL of this AP is not configured!");
 
     final String sRecipientAPUrl = SMPClientReadOnly.getEndpointAddress (aRecipientEndpoint);
     if (LOGGER.isDebugEnabled ())
-      LOGGER.debug (sLogPrefix + "Recipient AP URL is " + sRecipientAPUrl);
+      LOGGER.debug (aHeader.getLogPrefix () + "Our AP URL is " + sOwnAPUrl + ", recipient AP URL is " + sRecipientAPUrl);
 
     // Is it for us?
     if (sRecipientAPUrl == null || !sRecipientAPUrl.contains (sOwnAPUrl))
     {
-      final String sErrorMsg = sLogPrefix +
+      final String sErrorMsg = aHeader.getLogPrefix () +
                                " Internal error: The request is targeted for '" +
                                sRecipientAPUrl +
                                "' and is not for us (" +
@@ -194,22 +340,24 @@ public class AS2ServletSBDModule extends AbstractProcessorModule
     }
   }
 
-  private static void _checkIfEndpointCertificateMatches (@Nonnull final String sLogPrefix,
-                                                          @Nonnull final EndpointType aRecipientEndpoint) throws AS2Exception
+  private void _checkIfEndpointCertificateMatches (@Nonnull final PeppolSBDHHeader aHeader,
+                                                   @Nonnull final AS2PeppolServletConfigurationSnapshot aConfig,
+                                                   @Nonnull final EndpointType aRecipientEndpoint) throws AS2Exception
   {
-    final X509Certificate aOurCert = AS2PeppolServletConfiguration.getAPCertificate ();
+    final FingerprintedCertificate aOurCert = aConfig.getAPCertificate ();
     if (aOurCert == null)
-      throw new AS2Exception (sLogPrefix + "The certificate of this AP is not configured!");
+      throw new AS2Exception (aHeader.getLogPrefix () + "The certificate of this AP is not configured!");
 
     final String sRecipientCertString = aRecipientEndpoint.getCertificate ();
-    X509Certificate aRecipientCert = null;
+    FingerprintedCertificate aRecipientCert = null;
     try
     {
-      aRecipientCert = CertificateHelper.convertStringToCertficate (sRecipientCertString);
+      // Parsed certificates are cached
+      aRecipientCert = m_aCertificateCache.getOrParse (sRecipientCertString);
     }
     catch (final CertificateException t)
     {
-      throw new AS2Exception (sLogPrefix +
+      throw new AS2Exception (aHeader.getLogPrefix () +
                               "Internal error: Failed to convert looked up endpoint certificate string '" +
                               sRecipientCertString +
                               "' to an X.509 certificate!",
@@ -219,35 +367,684 @@ public class AS2ServletSBDModule extends AbstractProcessorModule
     if (aRecipientCert == null)
     {
       // No certificate found - most likely because of invalid SMP entry
-      throw new AS2Exception (sLogPrefix +
+      throw new AS2Exception (aHeader.getLogPrefix () +
                               "No certificate found in looked up endpoint! Is this AP maybe NOT contained in an SMP?");
     }
 
     // Certificate found
     if (LOGGER.isDebugEnabled ())
-      LOGGER.debug (sLogPrefix + "Conformant recipient certificate present: " + aRecipientCert.toString ());
+      LOGGER.debug (aHeader.getLogPrefix () + "Conformant recipient certificate present: " + aRecipientCert);
 
-    // Compare serial numbers
-    if (!aOurCert.getSerialNumber ().equals (aRecipientCert.getSerialNumber ()))
+    // Compare the fingerprints
+    if (!aOurCert.matches (aRecipientCert))
     {
-      final String sErrorMsg = sLogPrefix +
+      // Only subject, issuer, serial number and fingerprint - not the whole
+      // certificate
+      final String sErrorMsg = aHeader.getLogPrefix () +
                                "Certificate retrieved from SMP lookup (" +
                                aRecipientCert +
                                ") does not match this APs configured Certificate (" +
                                aOurCert +
-                               ") - different serial numbers - ignoring document";
+                               ") - different fingerprints - ignoring document";
       LOGGER.error (sErrorMsg);
       throw new AS2Exception (sErrorMsg);
     }
 
     if (LOGGER.isDebugEnabled ())
-      LOGGER.debug (sLogPrefix + "The certificate of the SMP lookup matches our certificate");
+      LOGGER.debug (aHeader.getLogPrefix () + "The certificate of the SMP lookup matches our certificate");
+  }
+
+  /**
+   * Determine the SMP client to query for a receiver.
+   *
+   * @param aParticipantID
+   *        The receiver participant identifier. May not be <code>null</code>.
+   * @return <code>null</code> if the receiver checks of the receiver are
+   *         disabled.
+   */
+  @Nullable
+  private static ISMPServiceMetadataProvider _getSMPClientOfReceiver (@Nonnull final IParticipantIdentifier aParticipantID)
+  {
+    final AS2PeppolTenant aTenant = AS2PeppolServletConfiguration.getTenantRegistry ()
+                                                                 .getTenantOfReceiverID (aParticipantID.getURIEncoded ());
+    final AS2PeppolServletConfigurationSnapshot aConfig = aTenant != null ? aTenant.getConfiguration ()
+                                                                          : AS2PeppolServletConfiguration.getSnapshot ();
+    return aConfig.isReceiverCheckEnabled () ? aConfig.getSMPClient () : null;
+  }
+
+  /**
+   * Determine the SMP client to revalidate a restored endpoint cache entry
+   * with. This is the client of the global configuration or of a tenant that
+   * queries the SMP of the key.
+   *
+   * @param aKey
+   *        The cache key. May not be <code>null</code>.
+   * @return <code>null</code> if no configuration with enabled receiver checks
+   *         uses the SMP of the key any more.
+   */
+  @Nullable
+  private static ISMPServiceMetadataProvider _getRevalidationSMPClient (@Nonnull final SMPEndpointCacheKey aKey)
+  {
+    final ICommonsList <AS2PeppolServletConfigurationSnapshot> aConfigs = new CommonsArrayList <> (AS2PeppolServletConfiguration.getSnapshot ());
+    for (final AS2PeppolTenant aTenant : AS2PeppolServletConfiguration.getTenantRegistry ().getAllTenants ())
+      aConfigs.add (aTenant.getConfiguration ());
+    for (final AS2PeppolServletConfigurationSnapshot aConfig : aConfigs)
+    {
+      final ISMPServiceMetadataProvider aSMPClient = aConfig.getSMPClient ();
+      if (aConfig.isReceiverCheckEnabled () &&
+          aSMPClient != null &&
+          SMPEndpointResolver.getSMPHost (aSMPClient).equals (aKey.getSMPHost ()))
+        return aSMPClient;
+    }
+    return null;
+  }
+
+  /**
+   * Fill the endpoint cache from the configured snapshot file and revalidate
+   * the restored entries and the configured warm up lookups in the
+   * background. Entries that are already cached, e.g. by another module
+   * instance, are not replaced.
+   */
+  private void _restoreEndpointCache ()
+  {
+    if (!AS2PeppolServletConfiguration.isEndpointCacheEnabled ())
+      return;
+
+    final ICommonsOrderedSet <SMPEndpointCacheKey> aKeys = new CommonsLinkedHashSet <> ();
+    final File aSnapshotFile = AS2PeppolServletConfiguration.getEndpointSnapshotFile ();
+    if (aSnapshotFile != null && aSnapshotFile.isFile ())
+    {
+      try
+      {
+        aKeys.addAll (SMPEndpointSnapshot.restore (aSnapshotFile, AS2PeppolServletConfiguration.getEndpointCache ()));
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.error ("Failed to read the SMP endpoint snapshot " + aSnapshotFile.getAbsolutePath (), ex);
+      }
+    }
+
+    final File aWarmUpFile = AS2PeppolServletConfiguration.getEndpointWarmUpFile ();
+    if (aWarmUpFile != null)
+    {
+      try
+      {
+        aKeys.addAll (SMPEndpointSnapshot.readLookupList (aWarmUpFile, m_eAS2Version.getTransportProfile (), x -> {
+          final ISMPServiceMetadataProvider aSMPClient = _getSMPClientOfReceiver (x);
+          return aSMPClient == null ? null : SMPEndpointResolver.getSMPHost (aSMPClient);
+        }));
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.error ("Failed to read the SMP lookup list " + aWarmUpFile.getAbsolutePath (), ex);
+      }
+    }
+
+    if (aKeys.isNotEmpty ())
+    {
+      LOGGER.info ("Revalidating " + aKeys.size () + " SMP endpoints in the background");
+      m_aEndpointWarmUp.start (aKeys.getCopyAsList ());
+    }
+  }
+
+  /**
+   * Read only the Standard Business Document Header from the message, without
+   * materializing the payload.
+   *
+   * @param aMsg
+   *        The message to read from. May not be <code>null</code>.
+   * @return The read header. Never <code>null</code>.
+   * @throws Exception
+   *         In case the content cannot be read or is not a valid SBDH.
+   */
+  @Nonnull
+  private PeppolSBDHHeader _readHeader (@Nonnull final IMessage aMsg) throws Exception
+  {
+    try (final InputStream aIS = aMsg.getData ().getInputStream ())
+    {
+      return m_aHeaderReader.readHeader (aIS);
+    }
+  }
+
+  /**
+   * Read the complete message as a Standard Business Document.
+   *
+   * @param aMsg
+   *        The message to read from. May not be <code>null</code>.
+   * @param aTimer
+   *        The timer of the current message. May not be <code>null</code>.
+   * @return The read document. Never <code>null</code>.
+   * @throws Exception
+   *         In case the content cannot be read or is not a valid SBD.
+   */
+  @Nonnull
+  private StandardBusinessDocument _readSBD (@Nonnull final IMessage aMsg, @Nonnull final StageTimer aTimer) throws Exception
+  {
+    aTimer.start (EAS2ReceiveStage.PARSE_SBD);
+    final StandardBusinessDocument ret;
+    try (final InputStream aIS = aMsg.getData ().getInputStream ())
+    {
+      ret = m_aSBDReader.read (aIS);
+    }
+    if (ret == null)
+      throw new IllegalArgumentException ("Failed to interpret the passed document as a Standard Business Document!");
+    aTimer.end (true);
+    return ret;
+  }
+
+  /**
+   * Get the asynchronous dispatcher matching the current configuration. If the
+   * configuration changed, the previous dispatcher finishes the queued
+   * documents in the background.
+   *
+   * @return <code>null</code> if asynchronous dispatch is disabled.
+   */
+  @Nullable
+  private AsyncSBDDispatcher _getAsyncDispatcher ()
+  {
+    final AsyncDispatchSettings aSettings = AS2PeppolServletConfiguration.getAsyncDispatchSettings ();
+    AsyncSBDDispatcher ret = m_aAsyncDispatcher;
+    if (ret == null ? aSettings == null : ret.getSettings () == aSettings)
+      return ret;
+
+    synchronized (this)
+    {
+      ret = m_aAsyncDispatcher;
+      if (ret != null && ret.getSettings () != aSettings)
+      {
+        ret.shutdown ();
+        ret = null;
+      }
+      if (ret == null && aSettings != null)
+      {
+        LOGGER.info ("Using asynchronous dispatch of incoming documents with " + aSettings);
+        ret = new AsyncSBDDispatcher (aSettings);
+      }
+      m_aAsyncDispatcher = ret;
+    }
+    return ret;
+  }
+
+  /**
+   * Get the admission controller matching the current configuration. If the
+   * configuration changed, documents admitted by the previous controller are
+   * released there.
+   *
+   * @return <code>null</code> if admission control is disabled.
+   */
+  @Nullable
+  private SBDAdmissionController _getAdmissionController ()
+  {
+    final AdmissionControlSettings aSettings = AS2PeppolServletConfiguration.getAdmissionControlSettings ();
+    SBDAdmissionController ret = m_aAdmissionController;
+    if (ret == null ? aSettings == null : ret.getSettings () == aSettings)
+      return ret;
+
+    synchronized (this)
+    {
+      ret = m_aAdmissionController;
+      if (ret == null ? aSettings != null : ret.getSettings () != aSettings)
+      {
+        if (aSettings != null)
+        {
+          LOGGER.info ("Using admission control for incoming documents with " + aSettings);
+          ret = new SBDAdmissionController (aSettings);
+        }
+        else
+          ret = null;
+        m_aAdmissionController = ret;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Get the spool matching the current configuration. The spool is shared with
+   * all module instances. The first instance that uses it handles all pending
+   * documents contained in it in a background thread.
+   *
+   * @return <code>null</code> if no spool is configured.
+   * @throws IOException
+   *         If the spool cannot be opened.
+   */
+  @Nullable
+  private SBDSpool _getSpool () throws IOException
+  {
+    final File aDirectory = AS2PeppolServletConfiguration.getSpoolDirectory ();
+    SBDSpool ret = m_aSpool;
+    if (ret == null ? aDirectory == null : ret.getDirectory ().equals (aDirectory))
+      return ret;
+
+    synchronized (this)
+    {
+      ret = m_aSpool;
+      if (ret != null && !ret.getDirectory ().equals (aDirectory))
+      {
+        SBDSpoolRegistry.release (ret);
+        ret = null;
+      }
+      boolean bReplay = false;
+      if (ret == null && aDirectory != null)
+      {
+        LOGGER.info ("Using the spool in " + aDirectory.getAbsolutePath ());
+        // Shared with the other module instances
+        ret = SBDSpoolRegistry.acquire (aDirectory);
+        bReplay = ret.claimReplay () && ret.getPendingRecordCount () > 0;
+      }
+      m_aSpool = ret;
+
+      if (bReplay)
+      {
+        // Don't block the caller while the pending documents are handled
+        final SBDSpool aSpool = ret;
+        final Thread aReplayThread = new Thread ( () -> _replaySpool (aSpool), "as2-peppol-spool-replay");
+        aReplayThread.setDaemon (true);
+        aReplayThread.start ();
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Handle all documents that are pending in the provided spool. The documents
+   * are read back from disk one at a time. Documents whose handling fails
+   * remain in the spool and are retried on the next startup.
+   *
+   * @param aSpool
+   *        The spool to use. May not be <code>null</code>.
+   */
+  private void _replaySpool (@Nonnull final SBDSpool aSpool)
+  {
+    for (final Long aRecordID : aSpool.getAllPendingRecordIDs ())
+    {
+      if (m_aSpool != aSpool)
+      {
+        // Closed or replaced in the meantime
+        LOGGER.info ("Stopping the replay of spool " + aSpool.getDirectory ());
+        break;
+      }
+
+      final long nRecordID = aRecordID.longValue ();
+      SBDPayloadBuffer aPayload = null;
+      try
+      {
+        final SBDSpoolRecord aRecord = aSpool.readPendingRecord (nRecordID,
+                                                                 AS2PeppolServletConfiguration.getPayloadSpillThreshold (),
+                                                                 AS2PeppolServletConfiguration.getPayloadSpillDirectory ());
+        if (aRecord == null)
+        {
+          // Already acknowledged
+          continue;
+        }
+        aPayload = aRecord.getPayload ();
+
+        final PeppolSBDHHeader aHeader;
+        try (final InputStream aIS = aPayload.openStream ())
+        {
+          aHeader = m_aHeaderReader.readHeader (aIS);
+        }
+        LOGGER.info ("[" + aHeader.getInstanceIdentifier () + "] Replaying spooled document " + nRecordID);
+
+        // The AS2 partnership is not available anymore
+        final String sAS2ReceiverID = StringHelper.trimStartAndEnd (aRecord.getHeaders ()
+                                                                           .getFirstHeaderValue (HTTP_HEADER_AS2_TO),
+                                                                    '"');
+        final AS2PeppolTenant aTenant = AS2PeppolServletConfiguration.getTenantRegistry ()
+                                                                     .resolveTenant (aHeader, sAS2ReceiverID);
+        final String sTenantID = aTenant == null ? null : aTenant.getID ();
+
+        StandardBusinessDocument aSBD = null;
+        if (m_aHandlerIndex.getAllMatching (aHeader, sTenantID).isNotEmpty ())
+        {
+          try (final InputStream aIS = aPayload.openStream ())
+          {
+            aSBD = m_aSBDReader.read (aIS);
+          }
+          if (aSBD == null)
+            throw new IllegalArgumentException ("Failed to interpret the spooled document as a Standard Business Document!");
+        }
+
+        final AS2IncomingSBD aIncoming = new AS2IncomingSBD (aRecord.getHeaders (), aHeader, aSBD, aPayload, sTenantID);
+        // Now owned by the incoming document
+        aPayload = null;
+        final AsyncSBDDispatcher aDispatcher = _getAsyncDispatcher ();
+        if (aDispatcher != null)
+          _dispatch (aDispatcher, aIncoming, () -> aSpool.acknowledge (nRecordID), null);
+        else
+          _invokeHandlersAndClose (aIncoming, () -> aSpool.acknowledge (nRecordID), null);
+      }
+      catch (final Exception ex)
+      {
+        LOGGER.error ("Failed to replay spooled document " + nRecordID + " - keeping it in the spool", ex);
+      }
+      finally
+      {
+        if (aPayload != null)
+          aPayload.close ();
+      }
+    }
+  }
+
+  /**
+   * Get the parallel handler invocation matching the current configuration.
+   *
+   * @return <code>null</code> if the handlers are invoked one after the other.
+   */
+  @Nullable
+  private SBDHandlerFanOut _getFanOut ()
+  {
+    final int nThreads = AS2PeppolServletConfiguration.getHandlerFanOutThreads ();
+    SBDHandlerFanOut ret = m_aFanOut;
+    if (ret == null ? nThreads == 0 : ret.getThreads () == nThreads)
+      return ret;
+
+    synchronized (this)
+    {
+      ret = m_aFanOut;
+      if (ret != null && ret.getThreads () != nThreads)
+      {
+        // Other requests may still be inside the old one
+        ret.retire ();
+        ret = null;
+      }
+      if (ret == null && nThreads > 0)
+      {
+        LOGGER.info ("Invoking the handlers in parallel with " + nThreads + " threads");
+        ret = new SBDHandlerFanOut (nThreads);
+      }
+      m_aFanOut = ret;
+    }
+    return ret;
+  }
+
+  /**
+   * Invoke a single handler and report the duration to the metrics.
+   *
+   * @param aMetrics
+   *        Metrics to use. May not be <code>null</code>.
+   * @param aHandler
+   *        The handler that is invoked. May not be <code>null</code>.
+   * @param aInvocation
+   *        The invocation of the handler. May not be <code>null</code>.
+   * @throws Exception
+   *         If the handler fails.
+   */
+  private static void _invokeTimed (@Nonnull final IAS2PeppolServletMetrics aMetrics,
+                                    @Nonnull final Object aHandler,
+                                    @Nonnull final SBDHandlerFanOut.IHandlerInvocation aInvocation) throws Exception
+  {
+    final long nStart = System.nanoTime ();
+    boolean bSuccess = false;
+    try
+    {
+      aInvocation.invoke ();
+      bSuccess = true;
+    }
+    finally
+    {
+      aMetrics.onHandler (aHandler.getClass ().getName (), System.nanoTime () - nStart, bSuccess);
+    }
+  }
+
+  /**
+   * Invoke all handlers for the provided document.
+   *
+   * @param aIncoming
+   *        The document to handle. May not be <code>null</code>.
+   * @param aOnHandled
+   *        Optional callback to be invoked after all handlers, including the
+   *        batch handlers, successfully handled the document. May be
+   *        <code>null</code>.
+   * @param aPermit
+   *        The admission of the document that is kept until the batch handlers
+   *        are done with it. May be <code>null</code>.
+   * @throws Exception
+   *         If a handler fails.
+   */
+  private void _invokeHandlers (@Nonnull final AS2IncomingSBD aIncoming,
+                                @Nullable final Runnable aOnHandled,
+                                @Nullable final SBDAdmissionPermit aPermit) throws Exception
+  {
+    final HttpHeaderMap aHeaders = aIncoming.getHeaders ();
+
+    final PeppolSBDHHeader aSBDH = aIncoming.getSBDH ();
+    final String sTenantID = aIncoming.getTenantID ();
+    final IAS2PeppolServletMetrics aMetrics = AS2PeppolServletConfiguration.getMetrics ();
+    final SBDHandlerFanOut aFanOut = _getFanOut ();
+    if (aFanOut == null)
+    {
+      // Handle incoming document via SPI
+      for (final IAS2IncomingSBDHandlerSPI aHandler : m_aHandlerIndex.getAllMatching (aSBDH, sTenantID))
+        _invokeTimed (aMetrics,
+                      aHandler,
+                      () -> aHandler.handleIncomingSBD (aHeaders, aSBDH, aIncoming.getStandardBusinessDocument ()));
+
+      // No unmarshalling needed - pass the raw bytes
+      for (final IAS2IncomingSBDStreamHandlerSPI aHandler : m_aStreamHandlerIndex.getAllMatching (aSBDH, sTenantID))
+        _invokeTimed (aMetrics, aHandler, () -> {
+          try (final InputStream aIS = aIncoming.openPayloadStream ())
+          {
+            aHandler.handleIncomingSBD (aHeaders, aSBDH, aIS);
+          }
+        });
+    }
+    else
+    {
+      // Invoke all handlers in parallel, phase by phase
+      final ICommonsSortedMap <Integer, ICommonsList <SBDHandlerFanOut.IHandlerInvocation>> aPhases = SBDHandlerFanOut.createPhaseMap ();
+      for (final IAS2IncomingSBDHandlerSPI aHandler : m_aHandlerIndex.getAllMatching (aSBDH, sTenantID))
+        SBDHandlerFanOut.addInvocation (aPhases,
+                                        aHandler,
+                                        () -> _invokeTimed (aMetrics,
+                                                            aHandler,
+                                                            () -> aHandler.handleIncomingSBD (aHeaders,
+                                                                                              aSBDH,
+                                                                                              aIncoming.getStandardBusinessDocument ())));
+      for (final IAS2IncomingSBDStreamHandlerSPI aHandler : m_aStreamHandlerIndex.getAllMatching (aSBDH, sTenantID))
+        SBDHandlerFanOut.addInvocation (aPhases, aHandler, () -> _invokeTimed (aMetrics, aHandler, () -> {
+          try (final InputStream aIS = aIncoming.openPayloadStream ())
+          {
+            aHandler.handleIncomingSBD (aHeaders, aSBDH, aIS);
+          }
+        }));
+      aFanOut.invokeAll (aPhases);
+    }
+
+    final ICommonsList <SBDBatchAccumulator> aBatchAccumulators = m_aBatchAccumulatorIndex.getAllMatching (aSBDH, sTenantID);
+    if (aBatchAccumulators.isEmpty ())
+    {
+      if (aOnHandled != null)
+        aOnHandled.run ();
+    }
+    else
+    {
+      // Batches are handled later, so the payload must be kept - all
+      // accumulators share the same copy
+      try (final AS2IncomingSBD aDetached = aIncoming.getDetached ())
+      {
+        if (aPermit != null)
+        {
+          // The admission ends when the last batch handler is done
+          aPermit.retain ();
+          aDetached.getPayloadBuffer ().addReleaseCallback (aPermit::release);
+        }
+        final AtomicInteger aOutstanding = new AtomicInteger (aBatchAccumulators.size ());
+        final Runnable aOnBatchHandled = aOnHandled == null ? null : () -> {
+          if (aOutstanding.decrementAndGet () == 0)
+            aOnHandled.run ();
+        };
+        for (final SBDBatchAccumulator aAccumulator : aBatchAccumulators)
+          aAccumulator.add (aDetached.getDetached (), aOnBatchHandled);
+      }
+    }
+  }
+
+  /**
+   * Invoke all handlers for the provided document and close it afterwards.
+   *
+   * @param aIncoming
+   *        The document to handle. May not be <code>null</code>.
+   * @param aOnHandled
+   *        Optional callback to be invoked after all handlers successfully
+   *        handled the document. May be <code>null</code>.
+   * @param aPermit
+   *        The admission of the document. May be <code>null</code>.
+   * @throws Exception
+   *         If a handler fails.
+   */
+  private void _invokeHandlersAndClose (@Nonnull final AS2IncomingSBD aIncoming,
+                                        @Nullable final Runnable aOnHandled,
+                                        @Nullable final SBDAdmissionPermit aPermit) throws Exception
+  {
+    try
+    {
+      _invokeHandlers (aIncoming, aOnHandled, aPermit);
+    }
+    finally
+    {
+      aIncoming.close ();
+    }
+  }
+
+  /**
+   * Hand a detached document to the asynchronous dispatcher, which takes
+   * ownership of it.
+   *
+   * @param aDispatcher
+   *        The dispatcher to use. May not be <code>null</code>.
+   * @param aDetached
+   *        The detached document. May not be <code>null</code>.
+   * @param aOnHandled
+   *        Optional callback to be invoked after all handlers successfully
+   *        handled the document. May be <code>null</code>.
+   * @param aPermit
+   *        The admission of the document that is kept until the document was
+   *        handled. May be <code>null</code>.
+   * @throws Exception
+   *         If the document was rejected.
+   */
+  private void _dispatch (@Nonnull final AsyncSBDDispatcher aDispatcher,
+                          @Nonnull final AS2IncomingSBD aDetached,
+                          @Nullable final Runnable aOnHandled,
+                          @Nullable final SBDAdmissionPermit aPermit) throws Exception
+  {
+    // Queued documents count against the admission limits. Released exactly
+    // once, also if the dispatcher runs the handlers in this thread.
+    final AtomicBoolean aPermitReleased = new AtomicBoolean (false);
+    final Runnable aReleasePermit = () -> {
+      if (aPermit != null && aPermitReleased.compareAndSet (false, true))
+        aPermit.release ();
+    };
+    if (aPermit != null)
+      aPermit.retain ();
+    try
+    {
+      aDispatcher.dispatch (aDetached, x -> {
+        try
+        {
+          _invokeHandlersAndClose (x, aOnHandled, aPermit);
+        }
+        finally
+        {
+          aReleasePermit.run ();
+        }
+      });
+    }
+    catch (final Exception ex)
+    {
+      aDetached.close ();
+      aReleasePermit.run ();
+      throw ex;
+    }
+  }
+
+  /**
+   * Stop all background threads of this module. Documents that are already
+   * queued for asynchronous handling and pending batches are still handled and
+   * the SMP endpoint snapshot is written. Calling it more than once has no
+   * effect.
+   *
+   * @see #shutdownAll()
+   * @see AS2PeppolServletContextListener
+   */
+  public void shutdown ()
+  {
+    if (m_aShutdown.getAndSet (true))
+      return;
+    INSTANCES_LOCK.locked ( () -> s_aInstances.remove (this));
+
+    m_aEndpointWarmUp.close ();
+
+    final AsyncSBDDispatcher aDispatcher;
+    synchronized (this)
+    {
+      aDispatcher = m_aAsyncDispatcher;
+      m_aAsyncDispatcher = null;
+    }
+    if (aDispatcher != null)
+      aDispatcher.close ();
+
+    final SBDSpool aSpool;
+    synchronized (this)
+    {
+      aSpool = m_aSpool;
+      m_aSpool = null;
+    }
+    final SBDHandlerFanOut aFanOut;
+    synchronized (this)
+    {
+      aFanOut = m_aFanOut;
+      m_aFanOut = null;
+    }
+    if (aFanOut != null)
+    {
+      // Messages may still be in flight
+      aFanOut.retire ();
+    }
+
+    // Handle the remaining batches before the spool is closed
+    for (final SBDBatchAccumulator aAccumulator : m_aBatchAccumulators)
+      aAccumulator.close ();
+    if (aSpool != null)
+      SBDSpoolRegistry.release (aSpool);
+    m_aEndpointResolver.close ();
+
+    // The last module persists the endpoints for the next startup
+    final boolean bEndpointSnapshotRegistered;
+    synchronized (this)
+    {
+      bEndpointSnapshotRegistered = m_bEndpointSnapshotRegistered;
+      m_bEndpointSnapshotRegistered = false;
+    }
+    if (bEndpointSnapshotRegistered)
+      SMPEndpointSnapshotScheduler.unregister ();
+  }
+
+  /**
+   * Shut down all module instances that were not shut down yet. The AS2
+   * processor has no lifecycle for its modules, so this must be called when
+   * the web application is stopped - {@link AS2PeppolServletContextListener}
+   * does that.
+   */
+  public static void shutdownAll ()
+  {
+    final ICommonsList <AS2ServletSBDModule> aInstances = INSTANCES_LOCK.lockedGet (s_aInstances::getCopyAsList);
+    for (final AS2ServletSBDModule aModule : aInstances)
+      aModule.shutdown ();
   }
 
   public void handle (@Nonnull final String sAction,
                       @Nonnull final IMessage aMsg,
                       @Nullable final Map <String, Object> aOptions) throws AS2Exception
   {
+    // Use a consistent configuration for the whole message
+    final AS2PeppolServletConfigurationSnapshot aGlobalConfig = AS2PeppolServletConfiguration.getSnapshot ();
+    final IAS2PeppolServletMetrics aMetrics = AS2PeppolServletConfiguration.getMetrics ();
+    final StageTimer aTimer = new StageTimer (aMetrics);
+    boolean bSuccess = false;
+    SBDAdmissionPermit aPermit = null;
+    SBDDuplicateDetector aClaimDetector = null;
+    PeppolSBDHHeader aClaimedHeader = null;
     try
     {
       // Set the signing algorithm, so that the MIC calculation is done
@@ -255,47 +1052,243 @@ public class AS2ServletSBDModule extends AbstractProcessorModule
       aMsg.partnership ().setSigningAlgorithm (m_eAS2Version.getCryptoAlgorithmSign ());
       aMsg.partnership ().setVerifyUseCertificateInBodyPart (ETriState.TRUE);
 
-      // Interpret content as SBD
-      final StandardBusinessDocument aSBD = new SBDMarshaller ().read (aMsg.getData ().getInputStream ());
-      if (aSBD == null)
-        throw new IllegalArgumentException ("Failed to interpret the passed document as a Standard Business Document!");
+      // Opening the spool replays the documents that were not handled before
+      // the last shutdown. Not done in the constructor, so that the replay
+      // thread never sees a partially constructed module.
+      final SBDSpool aSpool = _hasNoHandlers () ? null : _getSpool ();
 
-      if (AS2PeppolServletConfiguration.isReceiverCheckEnabled ())
+      final long nSize = aMsg.getData ().getSize ();
+      if (nSize >= 0)
+        aMetrics.onDocumentSize (nSize);
+
+      // Limit the work in progress under load
+      final SBDAdmissionController aAdmissionController = _getAdmissionController ();
+      if (aAdmissionController != null)
       {
-        final PeppolSBDHDocument aDD = new PeppolSBDHDocumentReader ().extractData (aSBD);
-        final String sLogPrefix = "[" + aDD.getInstanceIdentifier () + "] ";
+        aTimer.start (EAS2ReceiveStage.ADMISSION);
+        aPermit = new SBDAdmissionPermit (aAdmissionController, aAdmissionController.acquire (nSize));
+        aTimer.end (true);
+      }
 
-        // Get the endpoint information required from the recipient
-        final EndpointType aReceiverEndpoint = _getReceiverEndpoint (sLogPrefix,
-                                                                     aDD.getReceiverAsIdentifier (),
-                                                                     aDD.getDocumentTypeAsIdentifier (),
-                                                                     aDD.getProcessAsIdentifier ());
+      // Only the header is needed for the checks
+      aTimer.start (EAS2ReceiveStage.READ_HEADER);
+      final PeppolSBDHHeader aHeader = _readHeader (aMsg);
+      aTimer.end (true);
 
-        if (aReceiverEndpoint == null)
+      // Acknowledge retransmissions without any further work
+      final SBDDuplicateDetector aDuplicateDetector = AS2PeppolServletConfiguration.getDuplicateDetector ();
+      if (aDuplicateDetector != null)
+      {
+        final EDuplicateClaim eClaim = aDuplicateDetector.tryClaim (aHeader);
+        if (eClaim == EDuplicateClaim.DUPLICATE)
         {
-          throw new AS2Exception (sLogPrefix +
-                                  "Failed to resolve endpoint for provided receiver/documentType/process - not handling document");
+          LOGGER.info (aHeader.getLogPrefix () +
+                       "Ignoring duplicate document from '" +
+                       aHeader.getSenderAsIdentifier ().getURIEncoded () +
+                       "'");
+          aMetrics.onDuplicateDocument ();
+          bSuccess = true;
+          return;
         }
-        // Check if the message is for us
-        _checkIfReceiverEndpointURLMatches (sLogPrefix, aReceiverEndpoint);
+        if (eClaim == EDuplicateClaim.IN_PROGRESS)
+        {
+          // The other one may still fail, so the sender must retry
+          throw new AS2Exception (aHeader.getLogPrefix () +
+                                  "The same document from '" +
+                                  aHeader.getSenderAsIdentifier ().getURIEncoded () +
+                                  "' is currently being handled - please retry later");
+        }
+        aClaimDetector = aDuplicateDetector;
+        aClaimedHeader = aHeader;
+      }
 
-        // Get the recipient certificate from the SMP
-        _checkIfEndpointCertificateMatches (sLogPrefix, aReceiverEndpoint);
+      // Documents of a tenant are checked against the tenant configuration
+      final AS2PeppolTenant aTenant = AS2PeppolServletConfiguration.getTenantRegistry ()
+                                                                   .resolveTenant (aHeader,
+                                                                                   aMsg.partnership ().getReceiverAS2ID ());
+      final String sTenantID = aTenant == null ? null : aTenant.getID ();
+      final AS2PeppolServletConfigurationSnapshot aConfig = aTenant == null ? aGlobalConfig : aTenant.getConfiguration ();
+      if (aTenant != null && LOGGER.isDebugEnabled ())
+        LOGGER.debug (aHeader.getLogPrefix () + "Document belongs to tenant '" + sTenantID + "'");
+
+      final boolean bPipelined = AS2PeppolServletConfiguration.isSMPLookupPipeliningEnabled ();
+      SMPEndpointResolver.PendingLookup aPendingLookup = null;
+      if (aConfig.isReceiverCheckEnabled ())
+      {
+        // Get the endpoint information required from the recipient
+        aPendingLookup = _startReceiverEndpointLookup (aConfig, aHeader);
+        if (!bPipelined)
+          _checkReceiverEndpoint (aHeader, aConfig, aPendingLookup, aTimer);
       }
       else
       {
-        LOGGER.info ("Endpoint checks for the AS2 AP are disabled");
+        // Notify only once and not for every message
+        if (!m_aReceiverChecksDisabledNoticed.get () && m_aReceiverChecksDisabledNoticed.compareAndSet (false, true))
+          LOGGER.info ("Endpoint checks for the AS2 AP are disabled");
       }
 
-      // Handle incoming document via SPI
-      final HttpHeaderMap aHeaders = aMsg.headers ().getClone ();
-      for (final IAS2IncomingSBDHandlerSPI aHandler : m_aHandlers)
-        aHandler.handleIncomingSBD (aHeaders, aSBD);
+      final boolean bHasSBDHandler = m_aHandlerIndex.getAllMatching (aHeader, sTenantID).isNotEmpty ();
+      final boolean bHasHandler = bHasSBDHandler ||
+                                  m_aStreamHandlerIndex.getAllMatching (aHeader, sTenantID).isNotEmpty () ||
+                                  m_aBatchAccumulatorIndex.getAllMatching (aHeader, sTenantID).isNotEmpty ();
+
+      // Interpret content as SBD - only if a handler is interested. This
+      // overlaps with a running SMP lookup.
+      StandardBusinessDocument aSBD = bHasSBDHandler ? _readSBD (aMsg, aTimer) : null;
+
+      if (aPendingLookup != null && bPipelined)
+      {
+        // Join the SMP lookup before anything is validated or handled
+        _checkReceiverEndpoint (aHeader, aConfig, aPendingLookup, aTimer);
+      }
+
+      // The validator is selected by the document type and created only once.
+      // Only documents for this AP that are handled are validated, so that
+      // senders cannot make us create validators for arbitrary document types.
+      final SBDValidatorCache aValidatorCache = AS2PeppolServletConfiguration.getValidatorCache ();
+      final ISBDValidator aValidator = aValidatorCache == null || !bHasHandler ? null
+                                                                               : aValidatorCache.getValidator (aHeader.getDocumentTypeAsIdentifier ());
+      if (aValidator != null)
+      {
+        if (aSBD == null)
+          aSBD = _readSBD (aMsg, aTimer);
+
+        // Invalid documents never reach the handlers
+        aTimer.start (EAS2ReceiveStage.VALIDATE);
+        final ICommonsList <String> aErrors = aValidator.validate (aHeader, aSBD);
+        if (aErrors.isNotEmpty ())
+        {
+          final int nErrors = aErrors.size ();
+          String sErrors = StringHelper.getImploded ("; ",
+                                                     aErrors.subList (0,
+                                                                      Math.min (nErrors,
+                                                                                MAX_VALIDATION_ERRORS_IN_MESSAGE)));
+          if (nErrors > MAX_VALIDATION_ERRORS_IN_MESSAGE)
+            sErrors += "; and " + (nErrors - MAX_VALIDATION_ERRORS_IN_MESSAGE) + " more error(s)";
+          throw new AS2Exception (aHeader.getLogPrefix () +
+                                  "The document of type '" +
+                                  aHeader.getDocumentTypeAsIdentifier ().getURIEncoded () +
+                                  "' is invalid: " +
+                                  sErrors);
+        }
+        aTimer.end (true);
+      }
+
+      if (!_hasNoHandlers ())
+      {
+        // Handlers never get the mutable headers of the message itself, but a
+        // copy that is shared by all handlers of this document
+        final HttpHeaderMap aHeaders = aMsg.headers ();
+        final AsyncSBDDispatcher aDispatcher = _getAsyncDispatcher ();
+        if (aSpool == null)
+        {
+          aTimer.start (EAS2ReceiveStage.HANDLERS);
+          // The message may no longer be available after the response was
+          // sent. Detaching also copies the headers, so the object that is
+          // only used for detaching doesn't need a copy.
+          final boolean bDetach = aDispatcher != null &&
+                                  (m_aStreamHandlers.isNotEmpty () || m_aBatchAccumulators.isNotEmpty ());
+          final HttpHeaderMap aIncomingHeaders = bDetach ? aHeaders : aHeaders.getClone ();
+          final AS2IncomingSBD aIncoming = new AS2IncomingSBD (aIncomingHeaders,
+                                                               aHeader,
+                                                               aSBD,
+                                                               () -> aMsg.getData ().getInputStream (),
+                                                               sTenantID);
+          if (aDispatcher != null)
+            _dispatch (aDispatcher, bDetach ? aIncoming.getDetached () : aIncoming, null, aPermit);
+          else
+            _invokeHandlers (aIncoming, null, aPermit);
+        }
+        else
+        {
+          // Make the document durable before the AS2 response is sent
+          aTimer.start (EAS2ReceiveStage.SPOOL_APPEND);
+          final SBDPayloadBuffer aPayload;
+          try (final InputStream aIS = aMsg.getData ().getInputStream ())
+          {
+            // Large documents are spilled to a temporary file
+            aPayload = SBDPayloadBuffer.create (aIS,
+                                                AS2PeppolServletConfiguration.getPayloadSpillThreshold (),
+                                                AS2PeppolServletConfiguration.getPayloadSpillDirectory ());
+          }
+          final long nRecordID;
+          try
+          {
+            nRecordID = aSpool.append (aHeaders, aPayload);
+          }
+          catch (final IOException ex)
+          {
+            aPayload.close ();
+            throw ex;
+          }
+          aTimer.end (true);
+
+          aTimer.start (EAS2ReceiveStage.HANDLERS);
+          if (aDispatcher != null)
+          {
+            try
+            {
+              // Only remove it from the spool if all handlers succeeded. The
+              // payload is already detached, only the headers are copied.
+              final AS2IncomingSBD aIncoming = new AS2IncomingSBD (aHeaders.getClone (),
+                                                                   aHeader,
+                                                                   aSBD,
+                                                                   aPayload,
+                                                                   sTenantID);
+              _dispatch (aDispatcher, aIncoming, () -> aSpool.acknowledge (nRecordID), aPermit);
+            }
+            catch (final Exception ex)
+            {
+              // The sender receives an error and will retry
+              aSpool.acknowledge (nRecordID);
+              throw ex;
+            }
+          }
+          else
+          {
+            boolean bHandled = false;
+            try
+            {
+              // Batch handlers may still be pending after this call
+              _invokeHandlersAndClose (new AS2IncomingSBD (aHeaders.getClone (), aHeader, aSBD, aPayload, sTenantID),
+                                       () -> aSpool.acknowledge (nRecordID),
+                                       aPermit);
+              bHandled = true;
+            }
+            finally
+            {
+              // In case of an error, the sender receives it and will retry
+              if (!bHandled)
+                aSpool.acknowledge (nRecordID);
+            }
+          }
+        }
+        aTimer.end (true);
+      }
+
+      // Only remember documents that were accepted, so that a retry after an
+      // error is handled again
+      if (aDuplicateDetector != null)
+      {
+        aDuplicateDetector.register (aHeader);
+        aClaimedHeader = null;
+      }
+      bSuccess = true;
     }
     catch (final Exception ex)
     {
       // Something went wrong
       throw WrappedAS2Exception.wrap (ex);
     }
+    finally
+    {
+      if (aClaimedHeader != null)
+        aClaimDetector.release (aClaimedHeader);
+      // Documents that are still handled keep their own reference
+      if (aPermit != null)
+        aPermit.release ();
+      // Also ends the stage that failed
+      aTimer.endTotal (bSuccess);
+    }
   }
 }
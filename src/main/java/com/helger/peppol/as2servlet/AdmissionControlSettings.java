@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.time.Duration;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * The settings for the admission control of incoming documents.
+ *
+ * @author Philip Helger
+ * @see AS2PeppolServletConfiguration#setAdmissionControlSettings(AdmissionControlSettings)
+ * @see SBDAdmissionController
+ */
+@Immutable
+public final class AdmissionControlSettings
+{
+  public static final int DEFAULT_MAX_CONCURRENT_DOCUMENTS = 64;
+  public static final long DEFAULT_MAX_IN_FLIGHT_BYTES = 256L * CGlobal.BYTES_PER_MEGABYTE;
+  public static final int DEFAULT_MAX_QUEUED_DOCUMENTS = 256;
+  public static final Duration DEFAULT_MAX_WAIT = Duration.ofSeconds (5);
+
+  private final int m_nMaxConcurrentDocuments;
+  private final long m_nMaxInFlightBytes;
+  private final int m_nMaxQueuedDocuments;
+  private final Duration m_aMaxWait;
+
+  /**
+   * Constructor
+   *
+   * @param nMaxConcurrentDocuments
+   *        The maximum number of documents handled at the same time. Must be
+   *        &gt; 0.
+   * @param nMaxInFlightBytes
+   *        The maximum total size of all documents handled at the same time.
+   *        Must be &gt; 0. A single document that is larger is admitted if no
+   *        other document is handled.
+   * @param nMaxQueuedDocuments
+   *        The maximum number of documents waiting for admission. Must be
+   *        &ge; 0. 0 means that documents are rejected immediately if the
+   *        limits are reached.
+   * @param aMaxWait
+   *        The maximum time a document waits for admission before it is
+   *        rejected. May not be <code>null</code> or negative.
+   */
+  public AdmissionControlSettings (@Nonnegative final int nMaxConcurrentDocuments,
+                                   @Nonnegative final long nMaxInFlightBytes,
+                                   @Nonnegative final int nMaxQueuedDocuments,
+                                   @Nonnull final Duration aMaxWait)
+  {
+    ValueEnforcer.isGT0 (nMaxConcurrentDocuments, "MaxConcurrentDocuments");
+    ValueEnforcer.isGT0 (nMaxInFlightBytes, "MaxInFlightBytes");
+    ValueEnforcer.isGE0 (nMaxQueuedDocuments, "MaxQueuedDocuments");
+    ValueEnforcer.notNull (aMaxWait, "MaxWait");
+    ValueEnforcer.isFalse (aMaxWait.isNegative (), "MaxWait may not be negative");
+    m_nMaxConcurrentDocuments = nMaxConcurrentDocuments;
+    m_nMaxInFlightBytes = nMaxInFlightBytes;
+    m_nMaxQueuedDocuments = nMaxQueuedDocuments;
+    m_aMaxWait = aMaxWait;
+  }
+
+  @Nonnegative
+  public int getMaxConcurrentDocuments ()
+  {
+    return m_nMaxConcurrentDocuments;
+  }
+
+  @Nonnegative
+  public long getMaxInFlightBytes ()
+  {
+    return m_nMaxInFlightBytes;
+  }
+
+  @Nonnegative
+  public int getMaxQueuedDocuments ()
+  {
+    return m_nMaxQueuedDocuments;
+  }
+
+  @Nonnull
+  public Duration getMaxWait ()
+  {
+    return m_aMaxWait;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("MaxConcurrentDocuments", m_nMaxConcurrentDocuments)
+                                       .append ("MaxInFlightBytes", m_nMaxInFlightBytes)
+                                       .append ("MaxQueuedDocuments", m_nMaxQueuedDocuments)
+                                       .append ("MaxWait", m_aMaxWait)
+                                       .getToString ();
+  }
+
+  /**
+   * @return Settings with the default values. Never <code>null</code>.
+   */
+  @Nonnull
+  public static AdmissionControlSettings createDefault ()
+  {
+    return new AdmissionControlSettings (DEFAULT_MAX_CONCURRENT_DOCUMENTS,
+                                         DEFAULT_MAX_IN_FLIGHT_BYTES,
+                                         DEFAULT_MAX_QUEUED_DOCUMENTS,
+                                         DEFAULT_MAX_WAIT);
+  }
+}
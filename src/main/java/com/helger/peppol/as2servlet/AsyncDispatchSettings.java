@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.util.concurrent.ThreadFactory;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * The settings for the asynchronous dispatch of incoming documents to the
+ * handlers.
+ *
+ * @author Philip Helger
+ * @see AS2PeppolServletConfiguration#setAsyncDispatchSettings(AsyncDispatchSettings)
+ */
+@Immutable
+public final class AsyncDispatchSettings
+{
+  public static final int DEFAULT_THREADS = 8;
+  public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+  public static final EAsyncDispatchRejectionPolicy DEFAULT_REJECTION_POLICY = EAsyncDispatchRejectionPolicy.REJECT;
+
+  private final int m_nThreads;
+  private final int m_nQueueCapacity;
+  private final EAsyncDispatchRejectionPolicy m_eRejectionPolicy;
+  private final ThreadFactory m_aThreadFactory;
+
+  /**
+   * Constructor
+   *
+   * @param nThreads
+   *        The number of threads to invoke the handlers. Must be &gt; 0.
+   * @param nQueueCapacity
+   *        The maximum number of documents waiting for a free thread. Must be
+   *        &gt; 0.
+   * @param eRejectionPolicy
+   *        What to do if the queue is full. May not be <code>null</code>.
+   * @param aThreadFactory
+   *        The thread factory to use. May be <code>null</code> to use daemon
+   *        platform threads. On Java 21 or later
+   *        <code>Thread.ofVirtual ().factory ()</code> can be used to run the
+   *        handlers in virtual threads.
+   */
+  public AsyncDispatchSettings (@Nonnegative final int nThreads,
+                                @Nonnegative final int nQueueCapacity,
+                                @Nonnull final EAsyncDispatchRejectionPolicy eRejectionPolicy,
+                                @Nullable final ThreadFactory aThreadFactory)
+  {
+    ValueEnforcer.isGT0 (nThreads, "Threads");
+    ValueEnforcer.isGT0 (nQueueCapacity, "QueueCapacity");
+    ValueEnforcer.notNull (eRejectionPolicy, "RejectionPolicy");
+    m_nThreads = nThreads;
+    m_nQueueCapacity = nQueueCapacity;
+    m_eRejectionPolicy = eRejectionPolicy;
+    m_aThreadFactory = aThreadFactory;
+  }
+
+  @Nonnegative
+  public int getThreads ()
+  {
+    return m_nThreads;
+  }
+
+  @Nonnegative
+  public int getQueueCapacity ()
+  {
+    return m_nQueueCapacity;
+  }
+
+  @Nonnull
+  public EAsyncDispatchRejectionPolicy getRejectionPolicy ()
+  {
+    return m_eRejectionPolicy;
+  }
+
+  @Nullable
+  public ThreadFactory getThreadFactory ()
+  {
+    return m_aThreadFactory;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Threads", m_nThreads)
+                                       .append ("QueueCapacity", m_nQueueCapacity)
+                                       .append ("RejectionPolicy", m_eRejectionPolicy)
+                                       .append ("ThreadFactory", m_aThreadFactory)
+                                       .getToString ();
+  }
+
+  /**
+   * @return Settings with the default values. Never <code>null</code>.
+   */
+  @Nonnull
+  public static AsyncDispatchSettings createDefault ()
+  {
+    return new AsyncDispatchSettings (DEFAULT_THREADS, DEFAULT_QUEUE_CAPACITY, DEFAULT_REJECTION_POLICY, null);
+  }
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as2lib.exception.AS2Exception;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+
+/**
+ * Invokes the handlers for incoming documents in a bounded thread pool, so
+ * that the AS2 response can be sent before the handlers are finished.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AsyncSBDDispatcher implements AutoCloseable
+{
+  /**
+   * Callback to process a single document.
+   *
+   * @author Philip Helger
+   */
+  @FunctionalInterface
+  public interface ISBDConsumer
+  {
+    void accept (@Nonnull AS2IncomingSBD aIncoming) throws Exception;
+  }
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AsyncSBDDispatcher.class);
+
+  private final AsyncDispatchSettings m_aSettings;
+  private final ThreadPoolExecutor m_aExecutor;
+
+  public AsyncSBDDispatcher (@Nonnull final AsyncDispatchSettings aSettings)
+  {
+    ValueEnforcer.notNull (aSettings, "Settings");
+    m_aSettings = aSettings;
+
+    ThreadFactory aThreadFactory = aSettings.getThreadFactory ();
+    if (aThreadFactory == null)
+      aThreadFactory = new BasicThreadFactory.Builder ().setNamingPattern ("as2-peppol-dispatch-%d")
+                                                        .setDaemon (true)
+                                                        .build ();
+    m_aExecutor = new ThreadPoolExecutor (aSettings.getThreads (),
+                                          aSettings.getThreads (),
+                                          60,
+                                          TimeUnit.SECONDS,
+                                          new LinkedBlockingQueue <> (aSettings.getQueueCapacity ()),
+                                          aThreadFactory,
+                                          new ThreadPoolExecutor.AbortPolicy ());
+    m_aExecutor.allowCoreThreadTimeOut (true);
+  }
+
+  /**
+   * @return The settings this dispatcher was created with. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public AsyncDispatchSettings getSettings ()
+  {
+    return m_aSettings;
+  }
+
+  /**
+   * @return The number of documents waiting for a free thread.
+   */
+  @Nonnegative
+  public int getQueueDepth ()
+  {
+    return m_aExecutor.getQueue ().size ();
+  }
+
+  /**
+   * @return The approximate number of documents currently being handled.
+   */
+  @Nonnegative
+  public int getActiveCount ()
+  {
+    return m_aExecutor.getActiveCount ();
+  }
+
+  /**
+   * Dispatch the provided document. The passed object must be usable after
+   * this method returned - see {@link AS2IncomingSBD#getDetached()}.
+   *
+   * @param aIncoming
+   *        The document to dispatch. May not be <code>null</code>.
+   * @param aConsumer
+   *        The consumer that invokes the handlers. May not be
+   *        <code>null</code>.
+   * @throws Exception
+   *         If the queue is full and the rejection policy is
+   *         {@link EAsyncDispatchRejectionPolicy#REJECT} an {@link AS2Exception}
+   *         is thrown. If the rejection policy is
+   *         {@link EAsyncDispatchRejectionPolicy#CALLER_RUNS} the exceptions of
+   *         the consumer are propagated.
+   */
+  public void dispatch (@Nonnull final AS2IncomingSBD aIncoming, @Nonnull final ISBDConsumer aConsumer) throws Exception
+  {
+    ValueEnforcer.notNull (aIncoming, "Incoming");
+    ValueEnforcer.notNull (aConsumer, "Consumer");
+
+    try
+    {
+      m_aExecutor.execute ( () -> {
+        try
+        {
+          aConsumer.accept (aIncoming);
+        }
+        catch (final Exception ex)
+        {
+          // The sender already got a positive response
+          LOGGER.error ("[" +
+                        aIncoming.getSBDH ().getInstanceIdentifier () +
+                        "] Failed to asynchronously handle incoming SBD",
+                        ex);
+        }
+      });
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      if (m_aSettings.getRejectionPolicy () == EAsyncDispatchRejectionPolicy.CALLER_RUNS)
+      {
+        if (LOGGER.isDebugEnabled ())
+          LOGGER.debug ("Async dispatch queue is full - handling the incoming SBD synchronously");
+        aConsumer.accept (aIncoming);
+      }
+      else
+        throw new AS2Exception ("[" +
+                                aIncoming.getSBDH ().getInstanceIdentifier () +
+                                "] The queue for incoming documents is full - please retry later",
+                                ex);
+    }
+  }
+
+  /**
+   * Stop accepting new documents. Queued documents are still handled.
+   */
+  public void shutdown ()
+  {
+    m_aExecutor.shutdown ();
+  }
+
+  /**
+   * Stop accepting new documents and wait until all queued documents are
+   * handled.
+   */
+  public void close ()
+  {
+    ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aExecutor);
+  }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.id.IHasID;
+import com.helger.commons.lang.EnumHelper;
+
+/**
+ * The stages of receiving an incoming document that are measured via
+ * {@link IAS2PeppolServletMetrics}.
+ *
+ * @author Philip Helger
+ */
+public enum EAS2ReceiveStage implements IHasID <String>
+{
+  /** Waiting for the admission control */
+  ADMISSION ("admission"),
+  /** Reading the Standard Business Document Header */
+  READ_HEADER ("read-header"),
+  /** The SMP query itself - runs in the background */
+  SMP_QUERY ("smp-query"),
+  /** Waiting for the result of the SMP lookup */
+  SMP_LOOKUP_WAIT ("smp-lookup-wait"),
+  /** Checking the endpoint URL and the certificate */
+  ENDPOINT_CHECK ("endpoint-check"),
+  /** Unmarshalling the complete Standard Business Document */
+  PARSE_SBD ("parse-sbd"),
+  /** Validating the business document */
+  VALIDATE ("validate"),
+  /** Writing the document to the durable spool */
+  SPOOL_APPEND ("spool-append"),
+  /** Invoking all handlers or handing the document to the async dispatcher */
+  HANDLERS ("handlers"),
+  /** The complete handling of an incoming document */
+  TOTAL ("total");
+
+  private final String m_sID;
+
+  private EAS2ReceiveStage (@Nonnull @Nonempty final String sID)
+  {
+    m_sID = sID;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+
+  @Nullable
+  public static EAS2ReceiveStage getFromIDOrNull (@Nullable final String sID)
+  {
+    return EnumHelper.getFromIDOrNull (EAS2ReceiveStage.class, sID);
+  }
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+/**
+ * Defines what happens with an incoming document if the asynchronous dispatch
+ * queue is full.
+ *
+ * @author Philip Helger
+ */
+public enum EAsyncDispatchRejectionPolicy
+{
+  /**
+   * The AS2 message is rejected with an error, so that the sender retries it
+   * later.
+   */
+  REJECT,
+  /**
+   * The handlers are invoked synchronously in the thread that received the AS2
+   * message.
+   */
+  CALLER_RUNS;
+}
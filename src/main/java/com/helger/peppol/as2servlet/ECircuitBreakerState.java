@@ -0,0 +1,32 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+/**
+ * The states of an {@link SMPCircuitBreaker}.
+ *
+ * @author Philip Helger
+ */
+public enum ECircuitBreakerState
+{
+  /** Calls are permitted - the normal state */
+  CLOSED,
+  /** Calls are rejected because of too many previous failures */
+  OPEN,
+  /** A single trial call is permitted to check if the SMP recovered */
+  HALF_OPEN;
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.security.MessageDigest;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.security.messagedigest.EMessageDigestAlgorithm;
+
+/**
+ * An X.509 certificate together with its pre-computed SHA-256 fingerprint.
+ * Two certificates are considered to match, if their fingerprints are
+ * identical, which means they have the same DER encoding.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class FingerprintedCertificate
+{
+  private final X509Certificate m_aCertificate;
+  private final byte [] m_aFingerprint;
+
+  private FingerprintedCertificate (@Nonnull final X509Certificate aCertificate, @Nonnull final byte [] aFingerprint)
+  {
+    m_aCertificate = aCertificate;
+    m_aFingerprint = aFingerprint;
+  }
+
+  /**
+   * @return The certificate. Never <code>null</code>.
+   */
+  @Nonnull
+  public X509Certificate getCertificate ()
+  {
+    return m_aCertificate;
+  }
+
+  /**
+   * @return A copy of the SHA-256 fingerprint of the certificate. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public byte [] getFingerprint ()
+  {
+    return m_aFingerprint.clone ();
+  }
+
+  /**
+   * @return The SHA-256 fingerprint of the certificate as lower case hex
+   *         string. Never <code>null</code>.
+   */
+  @Nonnull
+  public String getFingerprintHex ()
+  {
+    return StringHelper.getHexEncoded (m_aFingerprint);
+  }
+
+  /**
+   * Check if this certificate matches the passed one.
+   *
+   * @param aOther
+   *        The certificate to compare to. May be <code>null</code>.
+   * @return <code>true</code> if both fingerprints are identical.
+   */
+  public boolean matches (@Nullable final FingerprintedCertificate aOther)
+  {
+    return aOther != null && MessageDigest.isEqual (m_aFingerprint, aOther.m_aFingerprint);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("Subject", m_aCertificate.getSubjectX500Principal ().getName ())
+                                       .append ("Issuer", m_aCertificate.getIssuerX500Principal ().getName ())
+                                       .append ("SerialNumber", m_aCertificate.getSerialNumber ())
+                                       .append ("Fingerprint", getFingerprintHex ())
+                                       .getToString ();
+  }
+
+  /**
+   * Create a new object and calculate the fingerprint.
+   *
+   * @param aCertificate
+   *        The certificate to use. May not be <code>null</code>.
+   * @return The new object and never <code>null</code>.
+   * @throws CertificateEncodingException
+   *         If the certificate cannot be encoded
+   */
+  @Nonnull
+  public static FingerprintedCertificate create (@Nonnull final X509Certificate aCertificate) throws CertificateEncodingException
+  {
+    ValueEnforcer.notNull (aCertificate, "Certificate");
+    final byte [] aFingerprint = EMessageDigestAlgorithm.SHA_256.createMessageDigest ()
+                                                                .digest (aCertificate.getEncoded ());
+    return new FingerprintedCertificate (aCertificate, aFingerprint);
+  }
+}
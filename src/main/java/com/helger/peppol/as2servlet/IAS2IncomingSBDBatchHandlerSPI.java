@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.time.Duration;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import com.helger.commons.annotation.IsSPIInterface;
+import com.helger.commons.collection.impl.ICommonsList;
+
+/**
+ * This is an alternative SPI interface to {@link IAS2IncomingSBDHandlerSPI}
+ * for handlers that can process many documents at once, e.g. with JDBC batch
+ * inserts or bulk publishes to a queue. Incoming documents are accumulated
+ * until either {@link #getMaxBatchSize()} documents are available or
+ * {@link #getMaxBatchDelay()} passed since the first document of the batch
+ * arrived.<br>
+ * Note: the batches are handled after the AS2 response was sent, so errors
+ * cannot be reported back to the sender. Batches of the same handler are
+ * handled one after the other in arrival order.<br>
+ * <b>Warning:</b> if no spool directory is configured (see
+ * {@link AS2PeppolServletConfiguration#setSpoolDirectory(java.io.File)}), the
+ * documents of a batch that cannot be handled are lost, because the senders
+ * already received a positive response. Either configure a spool, in which
+ * case failed documents are handed out again on the next start, or persist
+ * them elsewhere in {@link #onBatchFailed(ICommonsList, Exception)}. The
+ * pending batches are only handled on undeploy if the modules are shut down,
+ * e.g. by {@link AS2PeppolServletContextListener}.
+ *
+ * @author Philip Helger
+ */
+@IsSPIInterface
+public interface IAS2IncomingSBDBatchHandlerSPI
+{
+  int DEFAULT_MAX_BATCH_SIZE = 500;
+  Duration DEFAULT_MAX_BATCH_DELAY = Duration.ofMillis (200);
+
+  /**
+   * @return The maximum number of documents per batch. Must be &gt; 0.
+   *         Defaults to {@link #DEFAULT_MAX_BATCH_SIZE}.
+   */
+  @Nonnegative
+  default int getMaxBatchSize ()
+  {
+    return DEFAULT_MAX_BATCH_SIZE;
+  }
+
+  /**
+   * @return The maximum time a document waits for other documents before the
+   *         batch is handled. Must be positive. Defaults to
+   *         {@link #DEFAULT_MAX_BATCH_DELAY}.
+   */
+  @Nonnull
+  default Duration getMaxBatchDelay ()
+  {
+    return DEFAULT_MAX_BATCH_DELAY;
+  }
+
+  /**
+   * Handle the provided incoming Standard Business Documents.
+   *
+   * @param aDocuments
+   *        The documents in arrival order. Never <code>null</code> nor empty.
+   *        Small payloads are held in memory, larger ones in temporary files
+   *        (see
+   *        {@link AS2PeppolServletConfiguration#setPayloadSpillThreshold(long)}).
+   *        The documents are closed after this method returned, so they may
+   *        not be used afterwards.
+   * @throws Exception
+   *         In case they cannot be processed. In that case none of the
+   *         documents is considered handled and
+   *         {@link #onBatchFailed(ICommonsList, Exception)} is invoked.
+   */
+  void handleIncomingSBDs (@Nonnull ICommonsList <AS2IncomingSBD> aDocuments) throws Exception;
+
+  /**
+   * Called if {@link #handleIncomingSBDs(ICommonsList)} threw an exception.
+   * Without a spool this is the last chance to save the documents, e.g. into
+   * a dead letter store, before they are dropped. The documents are still
+   * readable during this call. Exceptions thrown by this method are logged
+   * and otherwise ignored. The default implementation does nothing.
+   *
+   * @param aDocuments
+   *        The documents of the failed batch in arrival order. Never
+   *        <code>null</code> nor empty.
+   * @param aException
+   *        The exception thrown by the handler. Never <code>null</code>.
+   */
+  default void onBatchFailed (@Nonnull final ICommonsList <AS2IncomingSBD> aDocuments,
+                              @Nonnull final Exception aException)
+  {}
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+/**
+ * Optional interface for {@link IAS2IncomingSBDHandlerSPI} and
+ * {@link IAS2IncomingSBDStreamHandlerSPI} implementations to declare ordering
+ * constraints when the handlers are invoked in parallel (see
+ * {@link AS2PeppolServletConfiguration#setHandlerFanOutThreads(int)}). All
+ * handlers with the same phase are invoked concurrently. The phases are
+ * executed in ascending order, and a phase is only started if all handlers of
+ * the previous phases succeeded. Handlers not implementing this interface are
+ * in phase {@link #DEFAULT_PHASE}.
+ *
+ * @author Philip Helger
+ */
+public interface IAS2IncomingSBDHandlerPhaseAware
+{
+  int DEFAULT_PHASE = 0;
+
+  /**
+   * @return The phase of this handler. Lower phases are executed first.
+   */
+  default int getHandlerPhase ()
+  {
+    return DEFAULT_PHASE;
+  }
+}
@@ -25,7 +25,10 @@ import com.helger.commons.http.HttpHeaderMap;
 
 /**
  * This is the SPI interface that must be implemented to handle incoming SBD
- * documents.
+ * documents. Handlers that need the Peppol fields of the header (sender,
+ * receiver, document type, process etc.) should override
+ * {@link #handleIncomingSBD(HttpHeaderMap, PeppolSBDHHeader, StandardBusinessDocument)}
+ * instead of extracting them from the document again.
  *
  * @author Philip Helger
  */
@@ -41,6 +44,34 @@ public interface IAS2IncomingSBDHandlerSPI
    *        The incoming document that is never <code>null</code>.
    * @throws Exception
    *         In case it cannot be processed.
+   * @see AS2IncomingSBD#getHeaders()
    */
   void handleIncomingSBD (@Nonnull HttpHeaderMap aHeaders, @Nonnull StandardBusinessDocument aSBD) throws Exception;
+
+  /**
+   * Handle the provided incoming StandardBusinessDocument together with the
+   * Peppol fields that were already extracted from its header. This is the
+   * method invoked by {@link AS2ServletSBDModule}. By default
+   * {@link #handleIncomingSBD(HttpHeaderMap, StandardBusinessDocument)} is
+   * invoked.
+   *
+   * @param aHeaders
+   *        The HTTP headers of the incoming request. Never <code>null</code>.
+   * @param aSBDH
+   *        The Peppol fields of the Standard Business Document Header. Never
+   *        <code>null</code>. The same object is passed to all handlers of the
+   *        document.
+   * @param aSBD
+   *        The incoming document that is never <code>null</code>.
+   * @throws Exception
+   *         In case it cannot be processed.
+   * @see AS2IncomingSBD#getHeaders()
+   * @since 5.4.0
+   */
+  default void handleIncomingSBD (@Nonnull final HttpHeaderMap aHeaders,
+                                  @Nonnull final PeppolSBDHHeader aSBDH,
+                                  @Nonnull final StandardBusinessDocument aSBD) throws Exception
+  {
+    handleIncomingSBD (aHeaders, aSBD);
+  }
 }
@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import javax.annotation.Nullable;
+
+import com.helger.commons.collection.impl.ICommonsSet;
+
+/**
+ * Optional interface for all incoming SBD handlers
+ * ({@link IAS2IncomingSBDHandlerSPI}, {@link IAS2IncomingSBDStreamHandlerSPI}
+ * and {@link IAS2IncomingSBDBatchHandlerSPI}) to declare the documents they are
+ * interested in. The module only invokes a handler for documents that match all
+ * non-<code>null</code> restrictions. Handlers not implementing this interface
+ * receive all documents.<br>
+ * All identifiers must be provided in their URI encoded form (e.g.
+ * <code>iso6523-actorid-upis::9915:test</code>) - only for receivers the
+ * default scheme may be omitted. The returned sets are read only once when the
+ * module is created.
+ *
+ * @author Philip Helger
+ */
+public interface IAS2IncomingSBDRoutingAware
+{
+  /**
+   * @return The URI encoded document type identifiers this handler accepts.
+   *         May be <code>null</code> to accept all document types.
+   */
+  @Nullable
+  default ICommonsSet <String> getAcceptedDocumentTypeIDs ()
+  {
+    return null;
+  }
+
+  /**
+   * @return The URI encoded process identifiers this handler accepts. May be
+   *         <code>null</code> to accept all processes.
+   */
+  @Nullable
+  default ICommonsSet <String> getAcceptedProcessIDs ()
+  {
+    return null;
+  }
+
+  /**
+   * @return The URI encoded receiver participant identifiers this handler
+   *         accepts. The scheme may be omitted for the default Peppol scheme
+   *         (e.g. <code>9915:test</code>) and the value is matched case
+   *         insensitive. May be <code>null</code> to accept all receivers.
+   */
+  @Nullable
+  default ICommonsSet <String> getAcceptedReceiverIDs ()
+  {
+    return null;
+  }
+
+  /**
+   * @return The IDs of the tenants this handler accepts. May be
+   *         <code>null</code> to accept the documents of all tenants as well as
+   *         documents that belong to no tenant.
+   * @see AS2PeppolTenant#getID()
+   */
+  @Nullable
+  default ICommonsSet <String> getAcceptedTenantIDs ()
+  {
+    return null;
+  }
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.io.InputStream;
+
+import javax.annotation.Nonnull;
+
+import com.helger.commons.annotation.IsSPIInterface;
+import com.helger.commons.http.HttpHeaderMap;
+
+/**
+ * This is an alternative SPI interface to {@link IAS2IncomingSBDHandlerSPI}
+ * for handlers that don't need the unmarshalled document, e.g. because they
+ * only store or forward it. The handler receives the extracted Peppol header
+ * fields and the raw bytes of the incoming Standard Business Document as a
+ * stream. If only handlers of this type are registered, the document is never
+ * unmarshalled.
+ *
+ * @author Philip Helger
+ */
+@IsSPIInterface
+public interface IAS2IncomingSBDStreamHandlerSPI
+{
+  /**
+   * Handle the provided incoming Standard Business Document
+   *
+   * @param aHeaders
+   *        The HTTP headers of the incoming request. Never <code>null</code>.
+   * @param aSBDH
+   *        The Peppol fields of the Standard Business Document Header. Never
+   *        <code>null</code>.
+   * @param aSBDStream
+   *        The stream with the complete incoming Standard Business Document
+   *        (header and payload). Never <code>null</code>. The stream is closed
+   *        by the caller after this method returns. Use
+   *        {@link java.nio.channels.Channels#newChannel(InputStream)} if a
+   *        channel is needed.
+   * @throws Exception
+   *         In case it cannot be processed.
+   * @see AS2IncomingSBD#getHeaders()
+   */
+  void handleIncomingSBD (@Nonnull HttpHeaderMap aHeaders,
+                          @Nonnull PeppolSBDHHeader aSBDH,
+                          @Nonnull InputStream aSBDStream) throws Exception;
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * Receives timings and counters of the handling of incoming documents. All
+ * methods are invoked synchronously on the hot path, so implementations must
+ * be thread-safe and cheap. All methods have an empty default implementation.
+ * Use {@link AS2PeppolServletConfiguration#setMetrics(IAS2PeppolServletMetrics)}
+ * to register an implementation.
+ *
+ * @author Philip Helger
+ * @see InMemoryAS2PeppolServletMetrics
+ */
+public interface IAS2PeppolServletMetrics
+{
+  /**
+   * The implementation that ignores everything.
+   */
+  IAS2PeppolServletMetrics NO_OP = new IAS2PeppolServletMetrics ()
+  {};
+
+  /**
+   * Called after a stage finished.
+   *
+   * @param eStage
+   *        The stage. Never <code>null</code>.
+   * @param nDurationNanos
+   *        The duration in nanoseconds.
+   * @param bSuccess
+   *        <code>true</code> if the stage succeeded, <code>false</code> if it
+   *        failed.
+   */
+  default void onStage (@Nonnull final EAS2ReceiveStage eStage,
+                        @Nonnegative final long nDurationNanos,
+                        final boolean bSuccess)
+  {}
+
+  /**
+   * Called after a single handler was invoked.
+   *
+   * @param sHandlerName
+   *        The name of the handler (the class name). Never <code>null</code>.
+   * @param nDurationNanos
+   *        The duration in nanoseconds.
+   * @param bSuccess
+   *        <code>true</code> if the handler succeeded, <code>false</code> if
+   *        it failed.
+   */
+  default void onHandler (@Nonnull final String sHandlerName,
+                          @Nonnegative final long nDurationNanos,
+                          final boolean bSuccess)
+  {}
+
+  /**
+   * Called for each incoming document with a known size.
+   *
+   * @param nBytes
+   *        The size of the Standard Business Document in bytes.
+   */
+  default void onDocumentSize (@Nonnegative final long nBytes)
+  {}
+
+  /**
+   * Called for each SMP endpoint cache access.
+   *
+   * @param bHit
+   *        <code>true</code> if a fresh entry was found, <code>false</code>
+   *        otherwise.
+   */
+  default void onEndpointCacheAccess (final boolean bHit)
+  {}
+
+  /**
+   * Called for each incoming document that was ignored as a duplicate.
+   *
+   * @see SBDDuplicateDetector
+   */
+  default void onDuplicateDocument ()
+  {}
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import javax.annotation.Nonnull;
+
+import org.unece.cefact.namespaces.sbdh.StandardBusinessDocument;
+
+import com.helger.commons.collection.impl.ICommonsList;
+
+/**
+ * A validator for incoming Standard Business Documents of a single document
+ * type. Instances contain the compiled validation artefacts and are shared
+ * between all threads, so implementations must be thread-safe.
+ *
+ * @author Philip Helger
+ * @see ISBDValidatorFactory
+ * @see SBDValidatorCache
+ */
+@FunctionalInterface
+public interface ISBDValidator
+{
+  /**
+   * Validate the provided document.
+   *
+   * @param aSBDH
+   *        The Peppol fields of the Standard Business Document Header. Never
+   *        <code>null</code>.
+   * @param aSBD
+   *        The unmarshalled document to validate. Never <code>null</code>.
+   * @return The validation errors. Never <code>null</code> but empty if the
+   *         document is valid.
+   * @throws Exception
+   *         In case validation failed for technical reasons.
+   */
+  @Nonnull
+  ICommonsList <String> validate (@Nonnull PeppolSBDHHeader aSBDH, @Nonnull StandardBusinessDocument aSBD) throws Exception;
+}
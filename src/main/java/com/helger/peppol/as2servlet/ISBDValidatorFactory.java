@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.peppolid.IDocumentTypeIdentifier;
+
+/**
+ * Creates the validator for a document type, e.g. by compiling the XML Schemas
+ * or Schematrons of a Peppol BIS. The created validators are cached in
+ * {@link SBDValidatorCache}, so this is usually only invoked once per document
+ * type.
+ *
+ * @author Philip Helger
+ */
+@FunctionalInterface
+public interface ISBDValidatorFactory
+{
+  /**
+   * Create the validator for the provided document type.
+   *
+   * @param aDocTypeID
+   *        The document type identifier from the Standard Business Document
+   *        Header. Never <code>null</code>.
+   * @return The validator to use or <code>null</code> if documents of this
+   *         type are not validated.
+   * @throws Exception
+   *         In case the validation artefacts cannot be compiled.
+   */
+  @Nullable
+  ISBDValidator createValidator (@Nonnull IDocumentTypeIdentifier aDocTypeID) throws Exception;
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsTreeSet;
+import com.helger.commons.collection.impl.ICommonsSortedSet;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A simple {@link IAS2PeppolServletMetrics} implementation that keeps all
+ * values in memory. Each stage and each handler has a
+ * {@link LatencyHistogram} and a failure counter.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class InMemoryAS2PeppolServletMetrics implements IAS2PeppolServletMetrics
+{
+  private final Map <EAS2ReceiveStage, LatencyHistogram> m_aStageLatencies = new EnumMap <> (EAS2ReceiveStage.class);
+  private final Map <EAS2ReceiveStage, LongAdder> m_aStageFailures = new EnumMap <> (EAS2ReceiveStage.class);
+  private final ConcurrentHashMap <String, LatencyHistogram> m_aHandlerLatencies = new ConcurrentHashMap <> ();
+  private final ConcurrentHashMap <String, LongAdder> m_aHandlerFailures = new ConcurrentHashMap <> ();
+  private final LatencyHistogram m_aNone = new LatencyHistogram ();
+  private final LongAdder m_aDocumentCount = new LongAdder ();
+  private final LongAdder m_aDocumentBytes = new LongAdder ();
+  private final LongAdder m_aCacheHits = new LongAdder ();
+  private final LongAdder m_aCacheMisses = new LongAdder ();
+  private final LongAdder m_aDuplicates = new LongAdder ();
+
+  public InMemoryAS2PeppolServletMetrics ()
+  {
+    // The maps are never modified afterwards, so they can be read lock-free
+    for (final EAS2ReceiveStage eStage : EAS2ReceiveStage.values ())
+    {
+      m_aStageLatencies.put (eStage, new LatencyHistogram ());
+      m_aStageFailures.put (eStage, new LongAdder ());
+    }
+  }
+
+  public void onStage (@Nonnull final EAS2ReceiveStage eStage,
+                       @Nonnegative final long nDurationNanos,
+                       final boolean bSuccess)
+  {
+    m_aStageLatencies.get (eStage).record (nDurationNanos);
+    if (!bSuccess)
+      m_aStageFailures.get (eStage).increment ();
+  }
+
+  public void onHandler (@Nonnull final String sHandlerName,
+                         @Nonnegative final long nDurationNanos,
+                         final boolean bSuccess)
+  {
+    m_aHandlerLatencies.computeIfAbsent (sHandlerName, k -> new LatencyHistogram ()).record (nDurationNanos);
+    if (!bSuccess)
+      m_aHandlerFailures.computeIfAbsent (sHandlerName, k -> new LongAdder ()).increment ();
+  }
+
+  public void onDocumentSize (@Nonnegative final long nBytes)
+  {
+    m_aDocumentCount.increment ();
+    m_aDocumentBytes.add (nBytes);
+  }
+
+  public void onEndpointCacheAccess (final boolean bHit)
+  {
+    if (bHit)
+      m_aCacheHits.increment ();
+    else
+      m_aCacheMisses.increment ();
+  }
+
+  public void onDuplicateDocument ()
+  {
+    m_aDuplicates.increment ();
+  }
+
+  /**
+   * @param eStage
+   *        The stage to query. May not be <code>null</code>.
+   * @return The latencies of the provided stage. Never <code>null</code>.
+   */
+  @Nonnull
+  public LatencyHistogram getStageLatency (@Nonnull final EAS2ReceiveStage eStage)
+  {
+    ValueEnforcer.notNull (eStage, "Stage");
+    return m_aStageLatencies.get (eStage);
+  }
+
+  /**
+   * @param eStage
+   *        The stage to query. May not be <code>null</code>.
+   * @return The number of failures of the provided stage.
+   */
+  @Nonnegative
+  public long getStageFailureCount (@Nonnull final EAS2ReceiveStage eStage)
+  {
+    ValueEnforcer.notNull (eStage, "Stage");
+    return m_aStageFailures.get (eStage).sum ();
+  }
+
+  /**
+   * @return The names of all handlers that were invoked at least once. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsSortedSet <String> getAllHandlerNames ()
+  {
+    return new CommonsTreeSet <> (m_aHandlerLatencies.keySet ());
+  }
+
+  /**
+   * @param sHandlerName
+   *        The handler name to query. May be <code>null</code>.
+   * @return The latencies of the provided handler. Never <code>null</code>
+   *         but empty if the handler is unknown.
+   */
+  @Nonnull
+  public LatencyHistogram getHandlerLatency (@Nullable final String sHandlerName)
+  {
+    final LatencyHistogram ret = sHandlerName == null ? null : m_aHandlerLatencies.get (sHandlerName);
+    return ret != null ? ret : m_aNone;
+  }
+
+  /**
+   * @param sHandlerName
+   *        The handler name to query. May be <code>null</code>.
+   * @return The number of failures of the provided handler.
+   */
+  @Nonnegative
+  public long getHandlerFailureCount (@Nullable final String sHandlerName)
+  {
+    final LongAdder ret = sHandlerName == null ? null : m_aHandlerFailures.get (sHandlerName);
+    return ret != null ? ret.sum () : 0;
+  }
+
+  /**
+   * @return The number of documents with a known size.
+   */
+  @Nonnegative
+  public long getDocumentCount ()
+  {
+    return m_aDocumentCount.sum ();
+  }
+
+  /**
+   * @return The total size of all documents with a known size in bytes.
+   */
+  @Nonnegative
+  public long getDocumentBytes ()
+  {
+    return m_aDocumentBytes.sum ();
+  }
+
+  /**
+   * @return The number of SMP endpoint cache hits.
+   */
+  @Nonnegative
+  public long getEndpointCacheHitCount ()
+  {
+    return m_aCacheHits.sum ();
+  }
+
+  /**
+   * @return The number of SMP endpoint cache misses.
+   */
+  @Nonnegative
+  public long getEndpointCacheMissCount ()
+  {
+    return m_aCacheMisses.sum ();
+  }
+
+  /**
+   * @return The number of incoming documents ignored as duplicates.
+   */
+  @Nonnegative
+  public long getDuplicateDocumentCount ()
+  {
+    return m_aDuplicates.sum ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("StageLatencies", m_aStageLatencies)
+                                       .append ("HandlerLatencies", m_aHandlerLatencies)
+                                       .append ("DocumentCount", getDocumentCount ())
+                                       .append ("DocumentBytes", getDocumentBytes ())
+                                       .append ("CacheHits", getEndpointCacheHitCount ())
+                                       .append ("CacheMisses", getEndpointCacheMissCount ())
+                                       .append ("Duplicates", getDuplicateDocumentCount ())
+                                       .getToString ();
+  }
+}
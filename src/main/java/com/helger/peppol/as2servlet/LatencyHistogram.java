@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A lock-free latency histogram with exponential buckets. Bucket
+ * <code>i</code> contains all values &lt; 2<sup>i</sup> microseconds, so the
+ * percentiles are upper bounds with a maximum error factor of 2. Recording a
+ * value does not allocate.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class LatencyHistogram
+{
+  /** 2^36 microseconds are roughly 19 hours */
+  public static final int BUCKET_COUNT = 37;
+
+  private final AtomicLongArray m_aBuckets = new AtomicLongArray (BUCKET_COUNT);
+  private final LongAdder m_aCount = new LongAdder ();
+  private final LongAdder m_aSumNanos = new LongAdder ();
+  private final LongAccumulator m_aMaxNanos = new LongAccumulator (Math::max, 0);
+
+  public LatencyHistogram ()
+  {}
+
+  private static int _getBucketIndex (final long nMicros)
+  {
+    if (nMicros <= 0)
+      return 0;
+    // Number of bits needed to represent the value
+    final int ret = 64 - Long.numberOfLeadingZeros (nMicros);
+    return Math.min (ret, BUCKET_COUNT - 1);
+  }
+
+  /**
+   * Record a single duration.
+   *
+   * @param nDurationNanos
+   *        The duration in nanoseconds. Negative values are treated as 0.
+   */
+  public void record (final long nDurationNanos)
+  {
+    final long nNanos = Math.max (nDurationNanos, 0);
+    m_aBuckets.incrementAndGet (_getBucketIndex (nNanos / 1000));
+    m_aCount.increment ();
+    m_aSumNanos.add (nNanos);
+    m_aMaxNanos.accumulate (nNanos);
+  }
+
+  /**
+   * @return The number of recorded values.
+   */
+  @Nonnegative
+  public long getCount ()
+  {
+    return m_aCount.sum ();
+  }
+
+  /**
+   * @return The sum of all recorded durations in nanoseconds.
+   */
+  @Nonnegative
+  public long getSumNanos ()
+  {
+    return m_aSumNanos.sum ();
+  }
+
+  /**
+   * @return The maximum recorded duration in nanoseconds.
+   */
+  @Nonnegative
+  public long getMaxNanos ()
+  {
+    return m_aMaxNanos.get ();
+  }
+
+  /**
+   * @return The average duration in nanoseconds or 0 if nothing was recorded.
+   */
+  @Nonnegative
+  public long getAverageNanos ()
+  {
+    final long nCount = getCount ();
+    return nCount == 0 ? 0 : getSumNanos () / nCount;
+  }
+
+  /**
+   * Get the upper bound of the provided percentile.
+   *
+   * @param dPercentile
+   *        The percentile between 0 and 100, e.g. 99.9.
+   * @return The upper bound in microseconds or 0 if nothing was recorded.
+   */
+  @Nonnegative
+  public long getPercentileMicros (final double dPercentile)
+  {
+    ValueEnforcer.isBetweenInclusive (dPercentile, "Percentile", 0, 100);
+
+    final long [] aCounts = new long [BUCKET_COUNT];
+    long nTotal = 0;
+    for (int i = 0; i < BUCKET_COUNT; ++i)
+    {
+      aCounts[i] = m_aBuckets.get (i);
+      nTotal += aCounts[i];
+    }
+    if (nTotal == 0)
+      return 0;
+
+    final long nThreshold = (long) Math.ceil (nTotal * dPercentile / 100d);
+    long nSum = 0;
+    for (int i = 0; i < BUCKET_COUNT; ++i)
+    {
+      nSum += aCounts[i];
+      if (nSum >= nThreshold && nSum > 0)
+        return 1L << i;
+    }
+    return 1L << (BUCKET_COUNT - 1);
+  }
+
+  /**
+   * Remove all recorded values.
+   */
+  public void reset ()
+  {
+    for (int i = 0; i < BUCKET_COUNT; ++i)
+      m_aBuckets.set (i, 0);
+    m_aCount.reset ();
+    m_aSumNanos.reset ();
+    m_aMaxNanos.reset ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Count", getCount ())
+                                       .append ("AvgNanos", getAverageNanos ())
+                                       .append ("MaxNanos", getMaxNanos ())
+                                       .append ("P50Micros", getPercentileMicros (50))
+                                       .append ("P99Micros", getPercentileMicros (99))
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+
+/**
+ * The Peppol relevant fields of a Standard Business Document Header, without
+ * the business payload. This is the result of
+ * {@link PeppolSBDHHeaderReader#readHeader(java.io.InputStream)}.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class PeppolSBDHHeader
+{
+  private final IParticipantIdentifier m_aSender;
+  private final IParticipantIdentifier m_aReceiver;
+  private final IDocumentTypeIdentifier m_aDocumentType;
+  private final IProcessIdentifier m_aProcess;
+  private final String m_sStandard;
+  private final String m_sTypeVersion;
+  private final String m_sType;
+  private final String m_sInstanceIdentifier;
+  private final String m_sCreationDateAndTime;
+  // Status vars
+  private String m_sLogPrefix;
+
+  public PeppolSBDHHeader (@Nonnull final IParticipantIdentifier aSender,
+                           @Nonnull final IParticipantIdentifier aReceiver,
+                           @Nonnull final IDocumentTypeIdentifier aDocumentType,
+                           @Nonnull final IProcessIdentifier aProcess,
+                           @Nullable final String sStandard,
+                           @Nullable final String sTypeVersion,
+                           @Nullable final String sType,
+                           @Nonnull final String sInstanceIdentifier,
+                           @Nullable final String sCreationDateAndTime)
+  {
+    ValueEnforcer.notNull (aSender, "Sender");
+    ValueEnforcer.notNull (aReceiver, "Receiver");
+    ValueEnforcer.notNull (aDocumentType, "DocumentType");
+    ValueEnforcer.notNull (aProcess, "Process");
+    ValueEnforcer.notNull (sInstanceIdentifier, "InstanceIdentifier");
+    m_aSender = aSender;
+    m_aReceiver = aReceiver;
+    m_aDocumentType = aDocumentType;
+    m_aProcess = aProcess;
+    m_sStandard = sStandard;
+    m_sTypeVersion = sTypeVersion;
+    m_sType = sType;
+    m_sInstanceIdentifier = sInstanceIdentifier;
+    m_sCreationDateAndTime = sCreationDateAndTime;
+  }
+
+  @Nonnull
+  public IParticipantIdentifier getSenderAsIdentifier ()
+  {
+    return m_aSender;
+  }
+
+  @Nonnull
+  public IParticipantIdentifier getReceiverAsIdentifier ()
+  {
+    return m_aReceiver;
+  }
+
+  @Nonnull
+  public IDocumentTypeIdentifier getDocumentTypeAsIdentifier ()
+  {
+    return m_aDocumentType;
+  }
+
+  @Nonnull
+  public IProcessIdentifier getProcessAsIdentifier ()
+  {
+    return m_aProcess;
+  }
+
+  @Nullable
+  public String getStandard ()
+  {
+    return m_sStandard;
+  }
+
+  @Nullable
+  public String getTypeVersion ()
+  {
+    return m_sTypeVersion;
+  }
+
+  @Nullable
+  public String getType ()
+  {
+    return m_sType;
+  }
+
+  @Nonnull
+  public String getInstanceIdentifier ()
+  {
+    return m_sInstanceIdentifier;
+  }
+
+  /**
+   * @return The prefix for log messages and error texts concerning this
+   *         document in the form <code>[instance identifier] </code>. It is
+   *         only created when it is needed for the first time. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public String getLogPrefix ()
+  {
+    String ret = m_sLogPrefix;
+    if (ret == null)
+      ret = m_sLogPrefix = "[" + m_sInstanceIdentifier + "] ";
+    return ret;
+  }
+
+  /**
+   * @return The creation date and time as contained in the document (in XML
+   *         Schema dateTime format) without any interpretation. May be
+   *         <code>null</code>.
+   */
+  @Nullable
+  public String getCreationDateAndTime ()
+  {
+    return m_sCreationDateAndTime;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("Sender", m_aSender.getURIEncoded ())
+                                       .append ("Receiver", m_aReceiver.getURIEncoded ())
+                                       .append ("DocumentType", m_aDocumentType.getURIEncoded ())
+                                       .append ("Process", m_aProcess.getURIEncoded ())
+                                       .append ("Standard", m_sStandard)
+                                       .append ("TypeVersion", m_sTypeVersion)
+                                       .append ("Type", m_sType)
+                                       .append ("InstanceIdentifier", m_sInstanceIdentifier)
+                                       .append ("CreationDateAndTime", m_sCreationDateAndTime)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,377 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.io.InputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.string.StringHelper;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.peppolid.factory.IIdentifierFactory;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+
+/**
+ * A streaming (StAX) reader for the Peppol relevant fields of a Standard
+ * Business Document Header. Only the header is read - reading stops as soon as
+ * the end of the header element is reached. The business payload is never
+ * materialized, so the memory consumption is independent of the document
+ * size.<br>
+ * The Peppol rules of the JAXB based <code>PeppolSBDHDocumentReader</code> are
+ * enforced: the header version must be {@value #HEADER_VERSION}, there must
+ * be exactly one sender and one receiver, all identifiers and the document
+ * identification fields must be present and valid, the document type and
+ * process must each be declared in exactly one business scope and the root
+ * element of the business message must match the standard and type of the
+ * header. Contrary to that reader no XML Schema validation of the header is
+ * performed, so unknown elements are ignored.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public class PeppolSBDHHeaderReader
+{
+  public static final String NS_SBDH = "http://www.unece.org/cefact/namespaces/StandardBusinessDocumentHeader";
+  public static final String SCOPE_DOCUMENT_TYPE_ID = "DOCUMENTID";
+  public static final String SCOPE_PROCESS_ID = "PROCESSID";
+  public static final String HEADER_VERSION = "1.0";
+
+  private static final String PATH_HEADER = "StandardBusinessDocument/StandardBusinessDocumentHeader";
+
+  // Shared with the SBD unmarshalling
+  static final XMLInputFactory XML_INPUT_FACTORY;
+
+  static
+  {
+    XML_INPUT_FACTORY = XMLInputFactory.newInstance ();
+    XML_INPUT_FACTORY.setProperty (XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+    XML_INPUT_FACTORY.setProperty (XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    // Avoid XXE
+    XML_INPUT_FACTORY.setProperty (XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    XML_INPUT_FACTORY.setProperty (XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+  }
+
+  private final IIdentifierFactory m_aIdentifierFactory;
+
+  public PeppolSBDHHeaderReader ()
+  {
+    this (PeppolIdentifierFactory.INSTANCE);
+  }
+
+  public PeppolSBDHHeaderReader (@Nonnull final IIdentifierFactory aIdentifierFactory)
+  {
+    ValueEnforcer.notNull (aIdentifierFactory, "IdentifierFactory");
+    m_aIdentifierFactory = aIdentifierFactory;
+  }
+
+  @Nonnull
+  public final IIdentifierFactory getIdentifierFactory ()
+  {
+    return m_aIdentifierFactory;
+  }
+
+  @Nonnull
+  private static String _getPath (@Nonnull final ICommonsList <String> aPath)
+  {
+    return StringHelper.getImploded ('/', aPath);
+  }
+
+  @Nonnull
+  private static XMLStreamException _missing (@Nonnull final String sWhat)
+  {
+    return new XMLStreamException ("The Standard Business Document Header is missing the " + sWhat);
+  }
+
+  @Nonnull
+  private static XMLStreamException _invalid (@Nonnull final String sWhat)
+  {
+    return new XMLStreamException ("The Standard Business Document Header " + sWhat);
+  }
+
+  /**
+   * Read the Peppol SBDH fields from the provided stream. The stream is not
+   * closed by this method and is only consumed until the start of the
+   * business message.
+   *
+   * @param aIS
+   *        The input stream to read from. May not be <code>null</code>.
+   * @return The extracted header and never <code>null</code>.
+   * @throws XMLStreamException
+   *         If the document is not well-formed XML, is not a Standard Business
+   *         Document or violates one of the Peppol SBDH rules.
+   */
+  @Nonnull
+  public PeppolSBDHHeader readHeader (@Nonnull final InputStream aIS) throws XMLStreamException
+  {
+    ValueEnforcer.notNull (aIS, "InputStream");
+
+    String sSenderScheme = null;
+    String sSenderValue = null;
+    String sReceiverScheme = null;
+    String sReceiverValue = null;
+    String sDocTypeScheme = null;
+    String sDocTypeValue = null;
+    String sProcessScheme = null;
+    String sProcessValue = null;
+    String sStandard = null;
+    String sTypeVersion = null;
+    String sType = null;
+    String sInstanceIdentifier = null;
+    String sCreationDateAndTime = null;
+    String sScopeType = null;
+    String sScopeInstanceIdentifier = null;
+    String sScopeIdentifier = null;
+    String sHeaderVersion = null;
+    int nSenderCount = 0;
+    int nReceiverCount = 0;
+    String sPayloadNamespaceURI = null;
+    String sPayloadLocalName = null;
+    boolean bHeaderComplete = false;
+
+    // The local names of the currently open elements
+    final ICommonsList <String> aPath = new CommonsArrayList <> (8);
+    final XMLStreamReader aReader = XML_INPUT_FACTORY.createXMLStreamReader (aIS);
+    try
+    {
+      while (aReader.hasNext ())
+      {
+        final int nEvent = aReader.next ();
+        if (nEvent == XMLStreamConstants.START_ELEMENT)
+        {
+          if (bHeaderComplete)
+          {
+            // The business message follows the header - nothing more is read
+            sPayloadNamespaceURI = aReader.getNamespaceURI ();
+            sPayloadLocalName = aReader.getLocalName ();
+            break;
+          }
+
+          final String sLocalName = aReader.getLocalName ();
+          final int nDepth = aPath.size ();
+          if (nDepth < 2 && !NS_SBDH.equals (aReader.getNamespaceURI ()))
+            throw new XMLStreamException ("Unexpected element {" +
+                                          aReader.getNamespaceURI () +
+                                          "}" +
+                                          sLocalName +
+                                          " - expected a Standard Business Document Header");
+          if (nDepth == 0 && !"StandardBusinessDocument".equals (sLocalName))
+            throw new XMLStreamException ("The root element is not a StandardBusinessDocument but " + sLocalName);
+          if (nDepth == 1 && !"StandardBusinessDocumentHeader".equals (sLocalName))
+            throw new XMLStreamException ("The first child element is not a StandardBusinessDocumentHeader but " +
+                                          sLocalName);
+
+          final String sParentPath = _getPath (aPath);
+          boolean bTextRead = true;
+          switch (sParentPath + "/" + sLocalName)
+          {
+            case PATH_HEADER + "/HeaderVersion":
+              sHeaderVersion = aReader.getElementText ();
+              break;
+            case PATH_HEADER + "/Sender":
+              // Otherwise the last one would silently win
+              if (++nSenderCount > 1)
+                throw _invalid ("contains more than one sender");
+              bTextRead = false;
+              break;
+            case PATH_HEADER + "/Receiver":
+              if (++nReceiverCount > 1)
+                throw _invalid ("contains more than one receiver");
+              bTextRead = false;
+              break;
+            case PATH_HEADER + "/Sender/Identifier":
+              if (sSenderValue != null)
+                throw _invalid ("contains more than one sender identifier");
+              sSenderScheme = aReader.getAttributeValue (null, "Authority");
+              sSenderValue = aReader.getElementText ();
+              break;
+            case PATH_HEADER + "/Receiver/Identifier":
+              if (sReceiverValue != null)
+                throw _invalid ("contains more than one receiver identifier");
+              sReceiverScheme = aReader.getAttributeValue (null, "Authority");
+              sReceiverValue = aReader.getElementText ();
+              break;
+            case PATH_HEADER + "/DocumentIdentification/Standard":
+              sStandard = aReader.getElementText ();
+              break;
+            case PATH_HEADER + "/DocumentIdentification/TypeVersion":
+              sTypeVersion = aReader.getElementText ();
+              break;
+            case PATH_HEADER + "/DocumentIdentification/InstanceIdentifier":
+              sInstanceIdentifier = aReader.getElementText ();
+              break;
+            case PATH_HEADER + "/DocumentIdentification/Type":
+              sType = aReader.getElementText ();
+              break;
+            case PATH_HEADER + "/DocumentIdentification/CreationDateAndTime":
+              sCreationDateAndTime = aReader.getElementText ();
+              break;
+            case PATH_HEADER + "/BusinessScope/Scope/Type":
+              sScopeType = aReader.getElementText ();
+              break;
+            case PATH_HEADER + "/BusinessScope/Scope/InstanceIdentifier":
+              sScopeInstanceIdentifier = aReader.getElementText ();
+              break;
+            case PATH_HEADER + "/BusinessScope/Scope/Identifier":
+              sScopeIdentifier = aReader.getElementText ();
+              break;
+            default:
+              bTextRead = false;
+              break;
+          }
+          // getElementText already consumed the end element
+          if (!bTextRead)
+            aPath.add (sLocalName);
+        }
+        else
+          if (nEvent == XMLStreamConstants.END_ELEMENT)
+          {
+            final String sLocalName = aPath.removeLast ();
+            if (aPath.size () == 3 && "Scope".equals (sLocalName))
+            {
+              if (SCOPE_DOCUMENT_TYPE_ID.equals (sScopeType))
+              {
+                if (sDocTypeValue != null)
+                  throw _invalid ("contains more than one document type identifier");
+                sDocTypeScheme = sScopeIdentifier;
+                sDocTypeValue = StringHelper.getNotNull (sScopeInstanceIdentifier);
+              }
+              else
+                if (SCOPE_PROCESS_ID.equals (sScopeType))
+                {
+                  if (sProcessValue != null)
+                    throw _invalid ("contains more than one process identifier");
+                  sProcessScheme = sScopeIdentifier;
+                  sProcessValue = StringHelper.getNotNull (sScopeInstanceIdentifier);
+                }
+              sScopeType = null;
+              sScopeInstanceIdentifier = null;
+              sScopeIdentifier = null;
+            }
+            else
+              if (aPath.size () == 1)
+              {
+                // End of StandardBusinessDocumentHeader
+                bHeaderComplete = true;
+              }
+          }
+      }
+    }
+    finally
+    {
+      aReader.close ();
+    }
+
+    if (!bHeaderComplete)
+      throw new XMLStreamException ("The Standard Business Document Header is incomplete");
+
+    if (sHeaderVersion == null)
+      throw _missing ("header version");
+    if (!HEADER_VERSION.equals (sHeaderVersion.trim ()))
+      throw _invalid ("has the unsupported version '" + sHeaderVersion.trim () + "'");
+
+    final IParticipantIdentifier aSender = _createParticipantID (sSenderScheme, sSenderValue);
+    if (aSender == null)
+      throw sSenderValue == null ? _missing ("sender identifier") : _invalid ("has an invalid sender identifier");
+    final IParticipantIdentifier aReceiver = _createParticipantID (sReceiverScheme, sReceiverValue);
+    if (aReceiver == null)
+      throw sReceiverValue == null ? _missing ("receiver identifier") : _invalid ("has an invalid receiver identifier");
+    final IDocumentTypeIdentifier aDocType = _createDocTypeID (sDocTypeScheme, sDocTypeValue);
+    if (aDocType == null)
+      throw sDocTypeValue == null ? _missing ("document type identifier")
+                                  : _invalid ("has an invalid document type identifier");
+    final IProcessIdentifier aProcess = _createProcessID (sProcessScheme, sProcessValue);
+    if (aProcess == null)
+      throw sProcessValue == null ? _missing ("process identifier") : _invalid ("has an invalid process identifier");
+    if (StringHelper.hasNoText (sStandard))
+      throw _missing ("standard");
+    if (StringHelper.hasNoText (sTypeVersion))
+      throw _missing ("type version");
+    if (StringHelper.hasNoText (sType))
+      throw _missing ("type");
+    if (StringHelper.hasNoText (sInstanceIdentifier))
+      throw _missing ("instance identifier");
+    if (StringHelper.hasNoText (sCreationDateAndTime))
+      throw _missing ("creation date and time");
+
+    // The business message must be what the header announces
+    if (sPayloadLocalName == null)
+      throw new XMLStreamException ("The Standard Business Document contains no business message");
+    if (!sStandard.trim ().equals (sPayloadNamespaceURI))
+      throw new XMLStreamException ("The namespace URI '" +
+                                    sPayloadNamespaceURI +
+                                    "' of the business message does not match the SBDH standard '" +
+                                    sStandard.trim () +
+                                    "'");
+    if (!sType.trim ().equals (sPayloadLocalName))
+      throw new XMLStreamException ("The root element '" +
+                                    sPayloadLocalName +
+                                    "' of the business message does not match the SBDH type '" +
+                                    sType.trim () +
+                                    "'");
+
+    return new PeppolSBDHHeader (aSender,
+                                 aReceiver,
+                                 aDocType,
+                                 aProcess,
+                                 StringHelper.trim (sStandard),
+                                 StringHelper.trim (sTypeVersion),
+                                 StringHelper.trim (sType),
+                                 sInstanceIdentifier.trim (),
+                                 StringHelper.trim (sCreationDateAndTime));
+  }
+
+  @Nullable
+  private IParticipantIdentifier _createParticipantID (@Nullable final String sScheme, @Nullable final String sValue)
+  {
+    if (StringHelper.hasNoText (sScheme) || StringHelper.hasNoText (sValue))
+      return null;
+    return m_aIdentifierFactory.createParticipantIdentifier (sScheme.trim (), sValue.trim ());
+  }
+
+  @Nullable
+  private IDocumentTypeIdentifier _createDocTypeID (@Nullable final String sScheme, @Nullable final String sValue)
+  {
+    if (StringHelper.hasNoText (sValue))
+      return null;
+    // The scheme is optional
+    if (StringHelper.hasNoText (sScheme))
+      return m_aIdentifierFactory.createDocumentTypeIdentifierWithDefaultScheme (sValue.trim ());
+    return m_aIdentifierFactory.createDocumentTypeIdentifier (sScheme.trim (), sValue.trim ());
+  }
+
+  @Nullable
+  private IProcessIdentifier _createProcessID (@Nullable final String sScheme, @Nullable final String sValue)
+  {
+    if (StringHelper.hasNoText (sValue))
+      return null;
+    // The scheme is optional
+    if (StringHelper.hasNoText (sScheme))
+      return m_aIdentifierFactory.createProcessIdentifierWithDefaultScheme (sValue.trim ());
+    return m_aIdentifierFactory.createProcessIdentifier (sScheme.trim (), sValue.trim ());
+  }
+}
@@ -0,0 +1,213 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.as2lib.exception.AS2Exception;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Limits the number of documents and the number of payload bytes that are
+ * handled at the same time. Documents that exceed the limits wait in FIFO
+ * order for up to the configured time. If the waiting queue is full or the
+ * time elapsed, an {@link AS2Exception} is thrown so that the sender retries
+ * later.<br>
+ * Each successful {@link #acquire(long)} must be followed by exactly one
+ * {@link #release(long)} with the returned value. Documents that are handled
+ * after the AS2 response was sent keep their admission until they are handled
+ * - see {@link SBDAdmissionPermit}.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class SBDAdmissionController
+{
+  private final AdmissionControlSettings m_aSettings;
+  private final SimpleLock m_aLock = new SimpleLock ();
+  private final Condition m_aChanged = m_aLock.newCondition ();
+  @GuardedBy ("m_aLock")
+  private final ArrayDeque <Object> m_aWaiters = new ArrayDeque <> ();
+  @GuardedBy ("m_aLock")
+  private int m_nInFlightDocuments;
+  @GuardedBy ("m_aLock")
+  private long m_nInFlightBytes;
+  @GuardedBy ("m_aLock")
+  private long m_nRejected;
+
+  public SBDAdmissionController (@Nonnull final AdmissionControlSettings aSettings)
+  {
+    ValueEnforcer.notNull (aSettings, "Settings");
+    m_aSettings = aSettings;
+  }
+
+  /**
+   * @return The settings this controller was created with. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public AdmissionControlSettings getSettings ()
+  {
+    return m_aSettings;
+  }
+
+  @GuardedBy ("m_aLock")
+  private boolean _fits (final long nBytes)
+  {
+    return m_nInFlightDocuments < m_aSettings.getMaxConcurrentDocuments () &&
+           m_nInFlightBytes + nBytes <= m_aSettings.getMaxInFlightBytes ();
+  }
+
+  @GuardedBy ("m_aLock")
+  private void _admit (final long nBytes)
+  {
+    m_nInFlightDocuments++;
+    m_nInFlightBytes += nBytes;
+  }
+
+  /**
+   * Wait until a document of the provided size may be handled.
+   *
+   * @param nBytes
+   *        The size of the document in bytes. A negative value means the size
+   *        is unknown, in which case only the number of documents is limited.
+   * @return The number of bytes that were accounted and that must be passed to
+   *         {@link #release(long)}.
+   * @throws AS2Exception
+   *         If the document was not admitted.
+   */
+  @Nonnegative
+  public long acquire (final long nBytes) throws AS2Exception
+  {
+    // Oversized documents are admitted if nothing else is in flight
+    final long nAccounted = Math.min (Math.max (nBytes, 0), m_aSettings.getMaxInFlightBytes ());
+
+    m_aLock.lock ();
+    try
+    {
+      if (m_aWaiters.isEmpty () && _fits (nAccounted))
+      {
+        _admit (nAccounted);
+        return nAccounted;
+      }
+
+      if (m_aWaiters.size () >= m_aSettings.getMaxQueuedDocuments ())
+      {
+        m_nRejected++;
+        throw new AS2Exception ("Too many incoming documents are currently being handled - please retry later");
+      }
+
+      final Object aWaiter = new Object ();
+      m_aWaiters.addLast (aWaiter);
+      try
+      {
+        long nRemainingNanos = m_aSettings.getMaxWait ().toNanos ();
+        while (m_aWaiters.peekFirst () != aWaiter || !_fits (nAccounted))
+        {
+          if (nRemainingNanos <= 0)
+          {
+            m_nRejected++;
+            throw new AS2Exception ("Timed out waiting for the admission of the incoming document - please retry later");
+          }
+          nRemainingNanos = m_aChanged.awaitNanos (nRemainingNanos);
+        }
+        _admit (nAccounted);
+        return nAccounted;
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+        throw new AS2Exception ("Interrupted while waiting for the admission of the incoming document", ex);
+      }
+      finally
+      {
+        // Let the next waiter check
+        m_aWaiters.remove (aWaiter);
+        m_aChanged.signalAll ();
+      }
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * Mark a document as handled.
+   *
+   * @param nAccountedBytes
+   *        The value returned by {@link #acquire(long)}.
+   */
+  public void release (@Nonnegative final long nAccountedBytes)
+  {
+    m_aLock.locked ( () -> {
+      m_nInFlightDocuments--;
+      m_nInFlightBytes -= nAccountedBytes;
+      m_aChanged.signalAll ();
+    });
+  }
+
+  /**
+   * @return The number of documents currently admitted.
+   */
+  @Nonnegative
+  public int getInFlightDocuments ()
+  {
+    return m_aLock.lockedInt ( () -> m_nInFlightDocuments);
+  }
+
+  /**
+   * @return The accounted bytes of all documents currently admitted.
+   */
+  @Nonnegative
+  public long getInFlightBytes ()
+  {
+    return m_aLock.lockedLong ( () -> m_nInFlightBytes);
+  }
+
+  /**
+   * @return The number of documents currently waiting for admission.
+   */
+  @Nonnegative
+  public int getQueuedDocuments ()
+  {
+    return m_aLock.lockedInt (m_aWaiters::size);
+  }
+
+  /**
+   * @return The number of documents rejected so far.
+   */
+  @Nonnegative
+  public long getRejectedCount ()
+  {
+    return m_aLock.lockedLong ( () -> m_nRejected);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Settings", m_aSettings).getToString ();
+  }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A document admitted by an {@link SBDAdmissionController}. The permit is
+ * reference counted, so that copies of the document that are handled after the
+ * AS2 response was sent (asynchronous dispatch, batch handlers) keep counting
+ * against the limits. The admission is released with the last reference.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+final class SBDAdmissionPermit
+{
+  private final SBDAdmissionController m_aController;
+  private final long m_nAccountedBytes;
+  private final AtomicInteger m_aRefCount = new AtomicInteger (1);
+
+  /**
+   * Constructor
+   *
+   * @param aController
+   *        The controller that admitted the document. May not be
+   *        <code>null</code>.
+   * @param nAccountedBytes
+   *        The value returned by {@link SBDAdmissionController#acquire(long)}.
+   */
+  SBDAdmissionPermit (@Nonnull final SBDAdmissionController aController, @Nonnegative final long nAccountedBytes)
+  {
+    ValueEnforcer.notNull (aController, "Controller");
+    ValueEnforcer.isGE0 (nAccountedBytes, "AccountedBytes");
+    m_aController = aController;
+    m_nAccountedBytes = nAccountedBytes;
+  }
+
+  /**
+   * Add a reference. May only be called by someone already holding a
+   * reference.
+   *
+   * @return this for chaining
+   */
+  @Nonnull
+  SBDAdmissionPermit retain ()
+  {
+    if (m_aRefCount.getAndIncrement () <= 0)
+      throw new IllegalStateException ("The admission permit was already released");
+    return this;
+  }
+
+  /**
+   * Remove a reference. The admission is released with the last reference.
+   */
+  void release ()
+  {
+    if (m_aRefCount.decrementAndGet () == 0)
+      m_aController.release (m_nAccountedBytes);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("AccountedBytes", m_nAccountedBytes)
+                                       .append ("RefCount", m_aRefCount.get ())
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,308 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as2lib.exception.AS2Exception;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Accumulates incoming documents for a single
+ * {@link IAS2IncomingSBDBatchHandlerSPI}. A batch is handed to the handler when
+ * it reaches the maximum size or when the maximum delay since its first
+ * document elapsed. All batches are handled by a single background thread, so
+ * the handler is never invoked concurrently.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class SBDBatchAccumulator implements AutoCloseable
+{
+  /**
+   * The maximum number of documents that may wait for handling, as a multiple
+   * of the maximum batch size.
+   */
+  public static final int MAX_PENDING_BATCHES = 10;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (SBDBatchAccumulator.class);
+
+  private static final class Entry
+  {
+    private final AS2IncomingSBD m_aDocument;
+    private final Runnable m_aOnHandled;
+
+    Entry (@Nonnull final AS2IncomingSBD aDocument, @Nullable final Runnable aOnHandled)
+    {
+      m_aDocument = aDocument;
+      m_aOnHandled = aOnHandled;
+    }
+  }
+
+  private final IAS2IncomingSBDBatchHandlerSPI m_aHandler;
+  private final int m_nMaxBatchSize;
+  private final long m_nMaxBatchDelayNanos;
+  private final int m_nMaxPending;
+  private final ScheduledExecutorService m_aExecutor;
+  private final AtomicInteger m_aPending = new AtomicInteger (0);
+
+  private final SimpleLock m_aLock = new SimpleLock ();
+  @GuardedBy ("m_aLock")
+  private ICommonsList <Entry> m_aCurrent = new CommonsArrayList <> ();
+  @GuardedBy ("m_aLock")
+  private ScheduledFuture <?> m_aTimer;
+  @GuardedBy ("m_aLock")
+  private boolean m_bClosed = false;
+
+  public SBDBatchAccumulator (@Nonnull final IAS2IncomingSBDBatchHandlerSPI aHandler)
+  {
+    ValueEnforcer.notNull (aHandler, "Handler");
+    ValueEnforcer.isGT0 (aHandler.getMaxBatchSize (), "MaxBatchSize");
+    ValueEnforcer.notNull (aHandler.getMaxBatchDelay (), "MaxBatchDelay");
+    ValueEnforcer.isFalse (aHandler.getMaxBatchDelay ().isNegative () || aHandler.getMaxBatchDelay ().isZero (),
+                           "MaxBatchDelay must be positive");
+    m_aHandler = aHandler;
+    m_nMaxBatchSize = aHandler.getMaxBatchSize ();
+    m_nMaxBatchDelayNanos = aHandler.getMaxBatchDelay ().toNanos ();
+    m_nMaxPending = m_nMaxBatchSize * MAX_PENDING_BATCHES;
+    m_aExecutor = new ScheduledThreadPoolExecutor (1,
+                                                   new BasicThreadFactory.Builder ().setNamingPattern ("as2-peppol-batch-%d")
+                                                                                    .setDaemon (true)
+                                                                                    .build ());
+  }
+
+  /**
+   * @return The handler of this accumulator. Never <code>null</code>.
+   */
+  @Nonnull
+  public IAS2IncomingSBDBatchHandlerSPI getHandler ()
+  {
+    return m_aHandler;
+  }
+
+  /**
+   * @return The number of documents that were added but are not yet handled.
+   */
+  @Nonnegative
+  public int getPendingCount ()
+  {
+    return m_aPending.get ();
+  }
+
+  /**
+   * Add a document to the current batch.
+   *
+   * @param aDocument
+   *        The document to add. Must be usable after this method returned -
+   *        see {@link AS2IncomingSBD#getDetached()}. May not be
+   *        <code>null</code>. The accumulator takes ownership and closes it
+   *        after it was handled or rejected.
+   * @param aOnHandled
+   *        Optional callback that is invoked after the batch containing this
+   *        document was successfully handled. May be <code>null</code>.
+   * @throws AS2Exception
+   *         If too many documents are waiting for handling or if the
+   *         accumulator was already closed.
+   */
+  public void add (@Nonnull final AS2IncomingSBD aDocument, @Nullable final Runnable aOnHandled) throws AS2Exception
+  {
+    ValueEnforcer.notNull (aDocument, "Document");
+
+    if (m_aPending.incrementAndGet () > m_nMaxPending)
+    {
+      m_aPending.decrementAndGet ();
+      aDocument.close ();
+      throw new AS2Exception ("[" +
+                              aDocument.getSBDH ().getInstanceIdentifier () +
+                              "] Too many documents are waiting for batch handling - please retry later");
+    }
+
+    final AtomicBoolean aClosed = new AtomicBoolean (false);
+    final ICommonsList <Entry> aFullBatch = m_aLock.lockedGet ( () -> {
+      if (m_bClosed)
+      {
+        // The executor no longer accepts the timer
+        aClosed.set (true);
+        return null;
+      }
+      m_aCurrent.add (new Entry (aDocument, aOnHandled));
+      if (m_aCurrent.size () >= m_nMaxBatchSize)
+        return _swapCurrent ();
+      if (m_aCurrent.size () == 1)
+      {
+        // First document of a new batch
+        m_aTimer = m_aExecutor.schedule (this::_flushCurrent, m_nMaxBatchDelayNanos, TimeUnit.NANOSECONDS);
+      }
+      return null;
+    });
+
+    if (aClosed.get ())
+    {
+      m_aPending.decrementAndGet ();
+      aDocument.close ();
+      throw new AS2Exception ("[" +
+                              aDocument.getSBDH ().getInstanceIdentifier () +
+                              "] The batch handling is shut down - please retry later");
+    }
+
+    if (aFullBatch != null)
+      _execute ( () -> _handleBatch (aFullBatch));
+  }
+
+  /**
+   * Run the provided task in the background thread or, if it was already
+   * stopped by a concurrent {@link #close()}, in the calling thread.
+   */
+  private void _execute (@Nonnull final Runnable aTask)
+  {
+    try
+    {
+      m_aExecutor.execute (aTask);
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      aTask.run ();
+    }
+  }
+
+  @GuardedBy ("m_aLock")
+  @Nonnull
+  private ICommonsList <Entry> _swapCurrent ()
+  {
+    final ICommonsList <Entry> ret = m_aCurrent;
+    m_aCurrent = new CommonsArrayList <> (m_nMaxBatchSize);
+    if (m_aTimer != null)
+    {
+      m_aTimer.cancel (false);
+      m_aTimer = null;
+    }
+    return ret;
+  }
+
+  private void _flushCurrent ()
+  {
+    final ICommonsList <Entry> aBatch = m_aLock.lockedGet (this::_swapCurrent);
+    if (aBatch.isNotEmpty ())
+      _handleBatch (aBatch);
+  }
+
+  private void _handleBatch (@Nonnull final ICommonsList <Entry> aBatch)
+  {
+    final long nStart = System.nanoTime ();
+    final ICommonsList <AS2IncomingSBD> aDocuments = aBatch.getAllMapped (x -> x.m_aDocument);
+    try
+    {
+      m_aHandler.handleIncomingSBDs (aDocuments);
+      AS2PeppolServletConfiguration.getMetrics ()
+                                   .onHandler (m_aHandler.getClass ().getName (), System.nanoTime () - nStart, true);
+      for (final Entry aEntry : aBatch)
+        if (aEntry.m_aOnHandled != null)
+          aEntry.m_aOnHandled.run ();
+    }
+    catch (final Exception ex)
+    {
+      AS2PeppolServletConfiguration.getMetrics ()
+                                   .onHandler (m_aHandler.getClass ().getName (), System.nanoTime () - nStart, false);
+      // The senders already got a positive response. Documents without an
+      // acknowledgement callback are not spooled and cannot be replayed.
+      final int nLost = aBatch.getCount (x -> x.m_aOnHandled == null);
+      if (nLost > 0)
+        LOGGER.error ("Failed to handle a batch of " +
+                      aBatch.size () +
+                      " incoming SBDs with " +
+                      m_aHandler +
+                      " - " +
+                      nLost +
+                      " of them are not spooled and will be lost unless saved by the handler",
+                      ex);
+      else
+        LOGGER.error ("Failed to handle a batch of " +
+                      aBatch.size () +
+                      " incoming SBDs with " +
+                      m_aHandler +
+                      " - they remain in the spool and are handled again on the next start",
+                      ex);
+      try
+      {
+        m_aHandler.onBatchFailed (aDocuments, ex);
+      }
+      catch (final Exception ex2)
+      {
+        LOGGER.error ("Failed to notify " + m_aHandler + " about the failed batch", ex2);
+      }
+    }
+    finally
+    {
+      for (final Entry aEntry : aBatch)
+        aEntry.m_aDocument.close ();
+      m_aPending.addAndGet (-aBatch.size ());
+    }
+  }
+
+  /**
+   * Hand the current batch to the handler, independent of its size.
+   */
+  public void flush ()
+  {
+    _execute (this::_flushCurrent);
+  }
+
+  /**
+   * Handle all remaining documents and stop the background thread. Documents
+   * added afterwards are rejected.
+   */
+  public void close ()
+  {
+    final ICommonsList <Entry> aBatch = m_aLock.lockedGet ( () -> {
+      m_bClosed = true;
+      return _swapCurrent ();
+    });
+    if (aBatch.isNotEmpty ())
+      _execute ( () -> _handleBatch (aBatch));
+    ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aExecutor);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Handler", m_aHandler)
+                                       .append ("MaxBatchSize", m_nMaxBatchSize)
+                                       .append ("MaxBatchDelayNanos", m_nMaxBatchDelayNanos)
+                                       .getToString ();
+  }
+}
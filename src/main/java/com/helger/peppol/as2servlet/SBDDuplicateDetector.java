@@ -0,0 +1,335 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Detects retransmissions of already handled documents, based on the SBDH
+ * instance identifier and the sender. Two rotating Bloom filters answer the
+ * common "never seen" case without locking. Only if a filter reports a
+ * potential match, a bounded exact store is consulted to confirm the duplicate,
+ * so false positives of the filters never reject a document.<br>
+ * A document is remembered for at least the configured retention. The exact
+ * store keeps at most the configured number of entries, evicting the oldest
+ * first.<br>
+ * To prevent that concurrent retransmissions are both handled, a document is
+ * claimed via {@link #tryClaim(PeppolSBDHHeader)} before it is handled. The
+ * claim ends with {@link #register(PeppolSBDHHeader)} if the document was
+ * accepted or with {@link #release(PeppolSBDHHeader)} if it failed.
+ *
+ * @author Philip Helger
+ * @see AS2PeppolServletConfiguration#setDuplicateDetector(SBDDuplicateDetector)
+ */
+@ThreadSafe
+public class SBDDuplicateDetector
+{
+  public static final Duration DEFAULT_RETENTION = Duration.ofHours (24);
+  public static final int DEFAULT_MAX_ENTRIES = 100_000;
+
+  /** Bits per entry for a false positive probability of roughly 1% */
+  private static final int BITS_PER_ENTRY = 10;
+  private static final int HASH_FUNCTIONS = 7;
+
+  /**
+   * A simple lock-free Bloom filter with double hashing.
+   */
+  private static final class BloomFilter
+  {
+    private final AtomicLongArray m_aBits;
+    private final int m_nBitCount;
+
+    BloomFilter (@Nonnegative final int nExpectedEntries)
+    {
+      final long nBits = Math.max ((long) nExpectedEntries * BITS_PER_ENTRY, 64);
+      final int nWords = (int) Math.min ((nBits + 63) / 64, Integer.MAX_VALUE / 64);
+      m_aBits = new AtomicLongArray (nWords);
+      m_nBitCount = nWords * 64;
+    }
+
+    private static long _hash (@Nonnull final String sKey)
+    {
+      // 64 bit FNV-1a
+      long ret = 0xcbf29ce484222325L;
+      for (final byte b : sKey.getBytes (StandardCharsets.UTF_8))
+      {
+        ret ^= b & 0xff;
+        ret *= 0x100000001b3L;
+      }
+      return ret;
+    }
+
+    private int _getBitIndex (final long nHash, final int nFunction)
+    {
+      final int nHash1 = (int) nHash;
+      final int nHash2 = (int) (nHash >>> 32);
+      final int nCombined = nHash1 + nFunction * nHash2;
+      return (nCombined & Integer.MAX_VALUE) % m_nBitCount;
+    }
+
+    void put (@Nonnull final String sKey)
+    {
+      final long nHash = _hash (sKey);
+      for (int i = 1; i <= HASH_FUNCTIONS; ++i)
+      {
+        final int nBit = _getBitIndex (nHash, i);
+        final int nWord = nBit >>> 6;
+        final long nMask = 1L << (nBit & 63);
+        long nOld;
+        do
+        {
+          nOld = m_aBits.get (nWord);
+          if ((nOld & nMask) != 0)
+            break;
+        } while (!m_aBits.compareAndSet (nWord, nOld, nOld | nMask));
+      }
+    }
+
+    boolean mightContain (@Nonnull final String sKey)
+    {
+      final long nHash = _hash (sKey);
+      for (int i = 1; i <= HASH_FUNCTIONS; ++i)
+      {
+        final int nBit = _getBitIndex (nHash, i);
+        if ((m_aBits.get (nBit >>> 6) & (1L << (nBit & 63))) == 0)
+          return false;
+      }
+      return true;
+    }
+  }
+
+  private final Duration m_aRetention;
+  private final long m_nRetentionNanos;
+  private final int m_nMaxEntries;
+
+  private final SimpleLock m_aLock = new SimpleLock ();
+  private volatile BloomFilter m_aCurrentFilter;
+  private volatile BloomFilter m_aPreviousFilter;
+  @GuardedBy ("m_aLock")
+  private long m_nLastRotationNanos;
+  // Insertion order = time order
+  @GuardedBy ("m_aLock")
+  private final LinkedHashMap <String, Long> m_aExact = new LinkedHashMap <> ();
+  // The documents that are currently handled
+  private final Set <String> m_aInProgress = ConcurrentHashMap.newKeySet ();
+
+  public SBDDuplicateDetector ()
+  {
+    this (DEFAULT_RETENTION, DEFAULT_MAX_ENTRIES);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aRetention
+   *        The minimum time a document is remembered. May not be
+   *        <code>null</code> and must be positive.
+   * @param nMaxEntries
+   *        The maximum number of documents to remember. Must be &gt; 0.
+   */
+  public SBDDuplicateDetector (@Nonnull final Duration aRetention, @Nonnegative final int nMaxEntries)
+  {
+    ValueEnforcer.notNull (aRetention, "Retention");
+    ValueEnforcer.isFalse (aRetention.isNegative () || aRetention.isZero (), "Retention must be positive");
+    ValueEnforcer.isGT0 (nMaxEntries, "MaxEntries");
+    m_aRetention = aRetention;
+    m_nRetentionNanos = aRetention.toNanos ();
+    m_nMaxEntries = nMaxEntries;
+    m_aCurrentFilter = new BloomFilter (nMaxEntries);
+    m_aPreviousFilter = new BloomFilter (1);
+    m_nLastRotationNanos = System.nanoTime ();
+  }
+
+  @Nonnull
+  public Duration getRetention ()
+  {
+    return m_aRetention;
+  }
+
+  @Nonnegative
+  public int getMaxEntries ()
+  {
+    return m_nMaxEntries;
+  }
+
+  @Nonnull
+  private static String _getKey (@Nonnull final PeppolSBDHHeader aSBDH)
+  {
+    return aSBDH.getSenderAsIdentifier ().getURIEncoded () + ' ' + aSBDH.getInstanceIdentifier ();
+  }
+
+  @GuardedBy ("m_aLock")
+  private void _expire (final long nNow)
+  {
+    // The filters must cover at least the retention
+    if (nNow - m_nLastRotationNanos >= m_nRetentionNanos)
+    {
+      m_aPreviousFilter = m_aCurrentFilter;
+      m_aCurrentFilter = new BloomFilter (m_nMaxEntries);
+      m_nLastRotationNanos = nNow;
+    }
+
+    final Iterator <Map.Entry <String, Long>> it = m_aExact.entrySet ().iterator ();
+    while (it.hasNext ())
+    {
+      final Map.Entry <String, Long> aEntry = it.next ();
+      if (m_aExact.size () <= m_nMaxEntries && nNow - aEntry.getValue ().longValue () < m_nRetentionNanos)
+        break;
+      it.remove ();
+    }
+  }
+
+  /**
+   * Check if a document with the same sender and instance identifier was
+   * already registered within the retention.
+   *
+   * @param aSBDH
+   *        The header of the document. May not be <code>null</code>.
+   * @return <code>true</code> if it is a duplicate.
+   */
+  public boolean isDuplicate (@Nonnull final PeppolSBDHHeader aSBDH)
+  {
+    ValueEnforcer.notNull (aSBDH, "SBDH");
+
+    return _isDuplicate (_getKey (aSBDH));
+  }
+
+  private boolean _isDuplicate (@Nonnull final String sKey)
+  {
+    if (!m_aCurrentFilter.mightContain (sKey) && !m_aPreviousFilter.mightContain (sKey))
+    {
+      // Definitely not seen before
+      return false;
+    }
+
+    final long nNow = System.nanoTime ();
+    return m_aLock.lockedBoolean ( () -> {
+      final Long aRegistered = m_aExact.get (sKey);
+      return aRegistered != null && nNow - aRegistered.longValue () < m_nRetentionNanos;
+    });
+  }
+
+  /**
+   * Atomically check if the document is a duplicate and, if not, claim it for
+   * handling. A successful claim must be ended with either
+   * {@link #register(PeppolSBDHHeader)} or {@link #release(PeppolSBDHHeader)}.
+   *
+   * @param aSBDH
+   *        The header of the document. May not be <code>null</code>.
+   * @return {@link EDuplicateClaim#CLAIMED} if the caller may handle the
+   *         document. Never <code>null</code>.
+   */
+  @Nonnull
+  public EDuplicateClaim tryClaim (@Nonnull final PeppolSBDHHeader aSBDH)
+  {
+    ValueEnforcer.notNull (aSBDH, "SBDH");
+
+    final String sKey = _getKey (aSBDH);
+    if (!m_aInProgress.add (sKey))
+      return EDuplicateClaim.IN_PROGRESS;
+
+    // A concurrent register call finishes before the claim is released, so
+    // this check sees it
+    if (_isDuplicate (sKey))
+    {
+      m_aInProgress.remove (sKey);
+      return EDuplicateClaim.DUPLICATE;
+    }
+    return EDuplicateClaim.CLAIMED;
+  }
+
+  /**
+   * End the claim of a document that failed to be handled, so that a
+   * retransmission is handled again. If the document was not claimed, nothing
+   * happens.
+   *
+   * @param aSBDH
+   *        The header of the document. May not be <code>null</code>.
+   */
+  public void release (@Nonnull final PeppolSBDHHeader aSBDH)
+  {
+    ValueEnforcer.notNull (aSBDH, "SBDH");
+
+    m_aInProgress.remove (_getKey (aSBDH));
+  }
+
+  /**
+   * Remember the provided document as handled. This also ends the claim of the
+   * document, if it was claimed.
+   *
+   * @param aSBDH
+   *        The header of the document. May not be <code>null</code>.
+   */
+  public void register (@Nonnull final PeppolSBDHHeader aSBDH)
+  {
+    ValueEnforcer.notNull (aSBDH, "SBDH");
+
+    final String sKey = _getKey (aSBDH);
+    final long nNow = System.nanoTime ();
+    m_aLock.locked ( () -> {
+      // Re-insert so that the insertion order stays the time order
+      m_aExact.remove (sKey);
+      m_aExact.put (sKey, Long.valueOf (nNow));
+      _expire (nNow);
+      m_aCurrentFilter.put (sKey);
+    });
+    // Only after the document is visible as duplicate
+    m_aInProgress.remove (sKey);
+  }
+
+  /**
+   * @return The number of documents that are currently claimed.
+   */
+  @Nonnegative
+  public int getClaimCount ()
+  {
+    return m_aInProgress.size ();
+  }
+
+  /**
+   * @return The number of documents currently remembered exactly.
+   */
+  @Nonnegative
+  public int getEntryCount ()
+  {
+    return m_aLock.lockedInt (m_aExact::size);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Retention", m_aRetention)
+                                       .append ("MaxEntries", m_nMaxEntries)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,258 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsTreeMap;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsSortedMap;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Invokes the handlers of a single document concurrently, so that the overall
+ * latency is the one of the slowest handler and not the sum of all handlers.
+ * <ul>
+ * <li>Ordering: handlers are grouped by their phase (see
+ * {@link IAS2IncomingSBDHandlerPhaseAware}). The handlers of one phase run
+ * concurrently, the phases run one after the other in ascending order.</li>
+ * <li>Partial failure: all handlers of a phase are always awaited - running
+ * handlers are never interrupted. If at least one handler of a phase failed,
+ * the exception of the first failed handler (in registration order) is thrown
+ * with the other exceptions added as suppressed exceptions, and no further
+ * phase is started. Because the sender receives an error and resends the
+ * document, handlers that already succeeded may see the same document again
+ * and should be idempotent.</li>
+ * </ul>
+ * If all threads are busy or the threads were already stopped, the handlers are
+ * run in the calling thread.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class SBDHandlerFanOut implements AutoCloseable
+{
+  /**
+   * A single handler invocation.
+   *
+   * @author Philip Helger
+   */
+  @FunctionalInterface
+  public interface IHandlerInvocation
+  {
+    void invoke () throws Exception;
+  }
+
+  private final int m_nThreads;
+  private final ThreadPoolExecutor m_aExecutor;
+  private final AtomicInteger m_aInvocations = new AtomicInteger (0);
+  private volatile boolean m_bRetired = false;
+
+  public SBDHandlerFanOut (@Nonnegative final int nThreads)
+  {
+    ValueEnforcer.isGT0 (nThreads, "Threads");
+    m_nThreads = nThreads;
+    m_aExecutor = new ThreadPoolExecutor (nThreads,
+                                          nThreads,
+                                          60,
+                                          TimeUnit.SECONDS,
+                                          new LinkedBlockingQueue <> (nThreads),
+                                          new BasicThreadFactory.Builder ().setNamingPattern ("as2-peppol-fanout-%d")
+                                                                           .setDaemon (true)
+                                                                           .build (),
+                                          // Unlike CallerRunsPolicy also after
+                                          // shutdown, so that no Future is left
+                                          // incomplete
+                                          (aTask, aExecutor) -> aTask.run ());
+    m_aExecutor.allowCoreThreadTimeOut (true);
+  }
+
+  /**
+   * @return The number of threads. Always &gt; 0.
+   */
+  @Nonnegative
+  public int getThreads ()
+  {
+    return m_nThreads;
+  }
+
+  /**
+   * Get the phase of the provided handler.
+   *
+   * @param aHandler
+   *        The handler to check. May not be <code>null</code>.
+   * @return The phase to use.
+   */
+  public static int getPhase (@Nonnull final Object aHandler)
+  {
+    return aHandler instanceof IAS2IncomingSBDHandlerPhaseAware ? ((IAS2IncomingSBDHandlerPhaseAware) aHandler).getHandlerPhase ()
+                                                                : IAS2IncomingSBDHandlerPhaseAware.DEFAULT_PHASE;
+  }
+
+  /**
+   * Create an empty container for the invocations, sorted by phase.
+   *
+   * @return A new map. Never <code>null</code>.
+   */
+  @Nonnull
+  public static ICommonsSortedMap <Integer, ICommonsList <IHandlerInvocation>> createPhaseMap ()
+  {
+    return new CommonsTreeMap <> ();
+  }
+
+  /**
+   * Add an invocation to the provided phase map.
+   *
+   * @param aPhases
+   *        The phase map to add to. May not be <code>null</code>.
+   * @param aHandler
+   *        The handler to determine the phase from. May not be
+   *        <code>null</code>.
+   * @param aInvocation
+   *        The invocation of the handler. May not be <code>null</code>.
+   */
+  public static void addInvocation (@Nonnull final ICommonsSortedMap <Integer, ICommonsList <IHandlerInvocation>> aPhases,
+                                    @Nonnull final Object aHandler,
+                                    @Nonnull final IHandlerInvocation aInvocation)
+  {
+    aPhases.computeIfAbsent (Integer.valueOf (getPhase (aHandler)), k -> new CommonsArrayList <> ()).add (aInvocation);
+  }
+
+  /**
+   * Invoke all provided handlers, phase by phase.
+   *
+   * @param aPhases
+   *        The invocations per phase. May not be <code>null</code>.
+   * @throws Exception
+   *         The exception of the first failed handler of the first failed
+   *         phase.
+   */
+  public void invokeAll (@Nonnull final ICommonsSortedMap <Integer, ICommonsList <IHandlerInvocation>> aPhases) throws Exception
+  {
+    ValueEnforcer.notNull (aPhases, "Phases");
+
+    m_aInvocations.incrementAndGet ();
+    try
+    {
+      for (final Map.Entry <Integer, ICommonsList <IHandlerInvocation>> aEntry : aPhases.entrySet ())
+        _invokePhase (aEntry.getValue ());
+    }
+    finally
+    {
+      // The last running invocation stops a retired instance
+      if (m_aInvocations.decrementAndGet () == 0 && m_bRetired)
+        m_aExecutor.shutdown ();
+    }
+  }
+
+  private void _invokePhase (@Nonnull final ICommonsList <IHandlerInvocation> aInvocations) throws Exception
+  {
+    if (aInvocations.size () == 1)
+    {
+      // Nothing to parallelize
+      aInvocations.getFirst ().invoke ();
+      return;
+    }
+
+    // Run all but the first in the background
+    final ICommonsList <Future <?>> aFutures = new CommonsArrayList <> (aInvocations.size () - 1);
+    for (final IHandlerInvocation aInvocation : aInvocations.subList (1, aInvocations.size ()))
+      aFutures.add (m_aExecutor.submit ( () -> {
+        aInvocation.invoke ();
+        return null;
+      }));
+
+    Exception aFirstEx = null;
+    try
+    {
+      aInvocations.getFirst ().invoke ();
+    }
+    catch (final Exception ex)
+    {
+      aFirstEx = ex;
+    }
+
+    // Always wait for all handlers
+    for (final Future <?> aFuture : aFutures)
+    {
+      Exception aEx = null;
+      try
+      {
+        aFuture.get ();
+      }
+      catch (final ExecutionException ex)
+      {
+        aEx = ex.getCause () instanceof Exception ? (Exception) ex.getCause () : ex;
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+        aEx = ex;
+      }
+      if (aEx != null)
+      {
+        if (aFirstEx == null)
+          aFirstEx = aEx;
+        else
+          aFirstEx.addSuppressed (aEx);
+      }
+    }
+    if (aFirstEx != null)
+      throw aFirstEx;
+  }
+
+  /**
+   * Stop the background threads as soon as all running invocations are done,
+   * without waiting for them. To be used if the instance is replaced while
+   * other threads may still use it.
+   */
+  public void retire ()
+  {
+    m_bRetired = true;
+    if (m_aInvocations.get () == 0)
+      m_aExecutor.shutdown ();
+  }
+
+  /**
+   * Stop the background threads and wait until the running handlers are
+   * finished.
+   */
+  public void close ()
+  {
+    ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aExecutor);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Threads", m_nThreads).getToString ();
+  }
+}
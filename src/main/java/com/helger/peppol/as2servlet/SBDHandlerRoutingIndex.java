@@ -0,0 +1,294 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.util.function.Function;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsImmutableObject;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.CommonsHashSet;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.collection.impl.ICommonsSet;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+
+/**
+ * A precomputed index that determines the handlers interested in a document
+ * based on the restrictions declared via {@link IAS2IncomingSBDRoutingAware}.
+ * Each restricted handler is indexed by the most selective restriction it
+ * declares (document type, then process, then receiver, then tenant), so
+ * that a lookup only requires a few hash map accesses, independent of the
+ * number of registered handlers. Handlers without restrictions are
+ * "catch-all" handlers and match all documents. The resulting handlers are
+ * always in registration order.
+ *
+ * @author Philip Helger
+ * @param <T>
+ *        Handler type
+ */
+@Immutable
+public final class SBDHandlerRoutingIndex <T>
+{
+  private static final class Route <T>
+  {
+    private final int m_nIndex;
+    private final T m_aHandler;
+    private final ICommonsSet <String> m_aDocTypeIDs;
+    private final ICommonsSet <String> m_aProcessIDs;
+    private final ICommonsSet <String> m_aReceiverIDs;
+    private final ICommonsSet <String> m_aTenantIDs;
+
+    Route (final int nIndex,
+           @Nonnull final T aHandler,
+           @Nullable final ICommonsSet <String> aDocTypeIDs,
+           @Nullable final ICommonsSet <String> aProcessIDs,
+           @Nullable final ICommonsSet <String> aReceiverIDs,
+           @Nullable final ICommonsSet <String> aTenantIDs)
+    {
+      m_nIndex = nIndex;
+      m_aHandler = aHandler;
+      m_aDocTypeIDs = aDocTypeIDs;
+      m_aProcessIDs = aProcessIDs;
+      m_aReceiverIDs = aReceiverIDs;
+      m_aTenantIDs = aTenantIDs;
+    }
+
+    boolean matches (@Nonnull final String sDocTypeID,
+                     @Nonnull final String sProcessID,
+                     @Nonnull final String sReceiverID,
+                     @Nullable final String sTenantID)
+    {
+      return (m_aDocTypeIDs == null || m_aDocTypeIDs.contains (sDocTypeID)) &&
+             (m_aProcessIDs == null || m_aProcessIDs.contains (sProcessID)) &&
+             (m_aReceiverIDs == null || m_aReceiverIDs.contains (sReceiverID)) &&
+             (m_aTenantIDs == null || (sTenantID != null && m_aTenantIDs.contains (sTenantID)));
+    }
+  }
+
+  private final ICommonsList <T> m_aAllHandlers;
+  private final boolean m_bHasRestrictions;
+  private final ICommonsList <Route <T>> m_aCatchAll = new CommonsArrayList <> ();
+  private final ICommonsMap <String, ICommonsList <Route <T>>> m_aByDocTypeID = new CommonsHashMap <> ();
+  private final ICommonsMap <String, ICommonsList <Route <T>>> m_aByProcessID = new CommonsHashMap <> ();
+  private final ICommonsMap <String, ICommonsList <Route <T>>> m_aByReceiverID = new CommonsHashMap <> ();
+  private final ICommonsMap <String, ICommonsList <Route <T>>> m_aByTenantID = new CommonsHashMap <> ();
+
+  /**
+   * Constructor for handlers that may implement
+   * {@link IAS2IncomingSBDRoutingAware} themselves.
+   *
+   * @param aHandlers
+   *        The handlers in registration order. May not be <code>null</code>.
+   */
+  public SBDHandlerRoutingIndex (@Nonnull final ICommonsList <T> aHandlers)
+  {
+    this (aHandlers, Function.identity ());
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aHandlers
+   *        The handlers in registration order. May not be <code>null</code>.
+   * @param aRoutingSourceMapper
+   *        Function to get the object that may implement
+   *        {@link IAS2IncomingSBDRoutingAware} from a handler. May not be
+   *        <code>null</code>.
+   */
+  public SBDHandlerRoutingIndex (@Nonnull final ICommonsList <T> aHandlers,
+                                 @Nonnull final Function <? super T, ?> aRoutingSourceMapper)
+  {
+    ValueEnforcer.notNull (aHandlers, "Handlers");
+    ValueEnforcer.notNull (aRoutingSourceMapper, "RoutingSourceMapper");
+
+    m_aAllHandlers = aHandlers.getClone ();
+    boolean bHasRestrictions = false;
+    int nIndex = 0;
+    for (final T aHandler : aHandlers)
+    {
+      final Object aSource = aRoutingSourceMapper.apply (aHandler);
+      ICommonsSet <String> aDocTypeIDs = null;
+      ICommonsSet <String> aProcessIDs = null;
+      ICommonsSet <String> aReceiverIDs = null;
+      ICommonsSet <String> aTenantIDs = null;
+      if (aSource instanceof IAS2IncomingSBDRoutingAware)
+      {
+        final IAS2IncomingSBDRoutingAware aRouting = (IAS2IncomingSBDRoutingAware) aSource;
+        aDocTypeIDs = _copy (aRouting.getAcceptedDocumentTypeIDs ());
+        aProcessIDs = _copy (aRouting.getAcceptedProcessIDs ());
+        aReceiverIDs = _normalizeParticipantIDs (aRouting.getAcceptedReceiverIDs ());
+        aTenantIDs = _copy (aRouting.getAcceptedTenantIDs ());
+      }
+
+      final Route <T> aRoute = new Route <> (nIndex++, aHandler, aDocTypeIDs, aProcessIDs, aReceiverIDs, aTenantIDs);
+      if (aDocTypeIDs != null)
+        _addAll (m_aByDocTypeID, aDocTypeIDs, aRoute);
+      else
+        if (aProcessIDs != null)
+          _addAll (m_aByProcessID, aProcessIDs, aRoute);
+        else
+          if (aReceiverIDs != null)
+            _addAll (m_aByReceiverID, aReceiverIDs, aRoute);
+          else
+            if (aTenantIDs != null)
+              _addAll (m_aByTenantID, aTenantIDs, aRoute);
+            else
+              m_aCatchAll.add (aRoute);
+      if (aDocTypeIDs != null || aProcessIDs != null || aReceiverIDs != null || aTenantIDs != null)
+        bHasRestrictions = true;
+    }
+    m_bHasRestrictions = bHasRestrictions;
+  }
+
+  @Nullable
+  private static ICommonsSet <String> _copy (@Nullable final ICommonsSet <String> aSet)
+  {
+    return aSet == null ? null : new CommonsHashSet <> (aSet);
+  }
+
+  /**
+   * Participant identifiers are case insensitive and may be declared without
+   * the scheme, so they are normalized to the URI encoded form the SBDH
+   * receiver is compared with.
+   */
+  @Nullable
+  private static ICommonsSet <String> _normalizeParticipantIDs (@Nullable final ICommonsSet <String> aSet)
+  {
+    if (aSet == null)
+      return null;
+
+    final PeppolIdentifierFactory aIF = PeppolIdentifierFactory.INSTANCE;
+    final ICommonsSet <String> ret = new CommonsHashSet <> (aSet.size ());
+    for (final String sParticipantID : aSet)
+    {
+      IParticipantIdentifier aParticipantID = aIF.parseParticipantIdentifier (sParticipantID);
+      if (aParticipantID == null)
+        aParticipantID = aIF.createParticipantIdentifierWithDefaultScheme (sParticipantID);
+      if (aParticipantID == null)
+        throw new IllegalArgumentException ("The accepted receiver ID '" + sParticipantID + "' is invalid");
+      ret.add (aParticipantID.getURIEncoded ());
+    }
+    return ret;
+  }
+
+  private static <T> void _addAll (@Nonnull final ICommonsMap <String, ICommonsList <Route <T>>> aMap,
+                                   @Nonnull final ICommonsSet <String> aKeys,
+                                   @Nonnull final Route <T> aRoute)
+  {
+    for (final String sKey : aKeys)
+      aMap.computeIfAbsent (sKey, k -> new CommonsArrayList <> ()).add (aRoute);
+  }
+
+  /**
+   * @return <code>true</code> if no handler is contained.
+   */
+  public boolean isEmpty ()
+  {
+    return m_aAllHandlers.isEmpty ();
+  }
+
+  /**
+   * @return All handlers in registration order. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsImmutableObject
+  public ICommonsList <T> getAllHandlers ()
+  {
+    return m_aAllHandlers;
+  }
+
+  private static <T> void _addMatching (@Nullable final ICommonsList <Route <T>> aRoutes,
+                                        @Nonnull final String sDocTypeID,
+                                        @Nonnull final String sProcessID,
+                                        @Nonnull final String sReceiverID,
+                                        @Nullable final String sTenantID,
+                                        @Nonnull final ICommonsList <Route <T>> aTarget)
+  {
+    if (aRoutes != null)
+      for (final Route <T> aRoute : aRoutes)
+        if (aRoute.matches (sDocTypeID, sProcessID, sReceiverID, sTenantID))
+          aTarget.add (aRoute);
+  }
+
+  /**
+   * Get all handlers interested in the document with the provided header,
+   * that belongs to no tenant.
+   *
+   * @param aSBDH
+   *        The header of the document. May not be <code>null</code>.
+   * @return The matching handlers in registration order. Never
+   *         <code>null</code> but maybe empty. Must not be modified.
+   */
+  @Nonnull
+  @ReturnsImmutableObject
+  public ICommonsList <T> getAllMatching (@Nonnull final PeppolSBDHHeader aSBDH)
+  {
+    return getAllMatching (aSBDH, null);
+  }
+
+  /**
+   * Get all handlers interested in the document with the provided header.
+   *
+   * @param aSBDH
+   *        The header of the document. May not be <code>null</code>.
+   * @param sTenantID
+   *        The ID of the tenant the document belongs to. May be
+   *        <code>null</code> if the document belongs to no tenant.
+   * @return The matching handlers in registration order. Never
+   *         <code>null</code> but maybe empty. Must not be modified.
+   */
+  @Nonnull
+  @ReturnsImmutableObject
+  public ICommonsList <T> getAllMatching (@Nonnull final PeppolSBDHHeader aSBDH, @Nullable final String sTenantID)
+  {
+    if (!m_bHasRestrictions)
+    {
+      // Fast path - all handlers are catch-all
+      return m_aAllHandlers;
+    }
+
+    final String sDocTypeID = aSBDH.getDocumentTypeAsIdentifier ().getURIEncoded ();
+    final String sProcessID = aSBDH.getProcessAsIdentifier ().getURIEncoded ();
+    final String sReceiverID = aSBDH.getReceiverAsIdentifier ().getURIEncoded ();
+
+    final ICommonsList <Route <T>> aRoutes = new CommonsArrayList <> (m_aCatchAll);
+    _addMatching (m_aByDocTypeID.get (sDocTypeID), sDocTypeID, sProcessID, sReceiverID, sTenantID, aRoutes);
+    _addMatching (m_aByProcessID.get (sProcessID), sDocTypeID, sProcessID, sReceiverID, sTenantID, aRoutes);
+    _addMatching (m_aByReceiverID.get (sReceiverID), sDocTypeID, sProcessID, sReceiverID, sTenantID, aRoutes);
+    if (sTenantID != null)
+      _addMatching (m_aByTenantID.get (sTenantID), sDocTypeID, sProcessID, sReceiverID, sTenantID, aRoutes);
+    // Keep the registration order
+    aRoutes.sort ( (x, y) -> Integer.compare (x.m_nIndex, y.m_nIndex));
+    return aRoutes.getAllMapped (x -> x.m_aHandler);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("AllHandlers", m_aAllHandlers)
+                                       .append ("HasRestrictions", m_bHasRestrictions)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.io.InputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.io.resource.ClassPathResource;
+
+/**
+ * Eagerly initializes the parsers for incoming Standard Business Documents, so
+ * that the first real message does not have to pay the initialization costs.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+final class SBDParserWarmUp
+{
+  /** The synthetic document used for warming up */
+  static final ClassPathResource WARMUP_SBD = new ClassPathResource ("as2-peppol-servlet/warmup-sbd.xml",
+                                                                            SBDParserWarmUp.class.getClassLoader ());
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (SBDParserWarmUp.class);
+
+  private SBDParserWarmUp ()
+  {}
+
+  /**
+   * Initialize the JAXB context, the validation schema and the StAX parser by
+   * reading a synthetic Standard Business Document. Errors are logged but not
+   * propagated.
+   *
+   * @param aSBDReader
+   *        The unmarshaller pool to warm up. May not be <code>null</code>.
+   * @param aHeaderReader
+   *        The header reader to warm up as well. May be <code>null</code>.
+   * @return <code>true</code> if the document was read successfully.
+   */
+  static boolean warmUp (@Nonnull final SBDUnmarshallerPool aSBDReader,
+                         @Nullable final PeppolSBDHHeaderReader aHeaderReader)
+  {
+    final long nStart = System.nanoTime ();
+    try
+    {
+      try (final InputStream aIS = WARMUP_SBD.getInputStream ())
+      {
+        if (aSBDReader.read (aIS) == null)
+        {
+          LOGGER.warn ("Failed to read the warm-up Standard Business Document");
+          return false;
+        }
+      }
+      if (aHeaderReader != null)
+        try (final InputStream aIS = WARMUP_SBD.getInputStream ())
+        {
+          aHeaderReader.readHeader (aIS);
+        }
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Warm-up of the SBD parsers took " + (System.nanoTime () - nStart) / 1_000_000L + " ms");
+      return true;
+    }
+    catch (final Exception ex)
+    {
+      LOGGER.warn ("Failed to warm-up the SBD parsers", ex);
+      return false;
+    }
+  }
+}
@@ -0,0 +1,281 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.io.stream.NonBlockingBufferedInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * The raw bytes of an incoming document that must outlive the AS2 message.
+ * Small documents are kept in memory, documents larger than a threshold are
+ * spilled to a temporary file and read back via a file channel, so that the
+ * heap usage does not depend on the document size.<br>
+ * The buffer is reference counted: each {@link #retain()} must be followed by
+ * a {@link #close()}. The temporary file is deleted when the last reference is
+ * closed.
+ *
+ * @author Philip Helger
+ * @see AS2PeppolServletConfiguration#setPayloadSpillThreshold(long)
+ */
+@ThreadSafe
+public final class SBDPayloadBuffer implements AS2IncomingSBD.IPayloadProvider, AutoCloseable
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (SBDPayloadBuffer.class);
+  private static final int COPY_BUFFER_SIZE = 16 * 1024;
+
+  private final byte [] m_aBytes;
+  private final File m_aFile;
+  private final long m_nSize;
+  private final AtomicInteger m_aRefCount = new AtomicInteger (1);
+  private final Queue <Runnable> m_aReleaseCallbacks = new ConcurrentLinkedQueue <> ();
+
+  private SBDPayloadBuffer (@Nullable final byte [] aBytes, @Nullable final File aFile, @Nonnegative final long nSize)
+  {
+    m_aBytes = aBytes;
+    m_aFile = aFile;
+    m_nSize = nSize;
+  }
+
+  /**
+   * @return <code>true</code> if the bytes are stored in a temporary file,
+   *         <code>false</code> if they are kept in memory.
+   */
+  public boolean isSpilled ()
+  {
+    return m_aFile != null;
+  }
+
+  /**
+   * @return The size of the document in bytes.
+   */
+  @Nonnegative
+  public long getSize ()
+  {
+    return m_nSize;
+  }
+
+  private void _checkOpen ()
+  {
+    if (m_aRefCount.get () <= 0)
+      throw new IllegalStateException ("The payload buffer was already closed");
+  }
+
+  @Nonnull
+  public InputStream openStream () throws IOException
+  {
+    _checkOpen ();
+    if (m_aFile == null)
+      return new NonBlockingByteArrayInputStream (m_aBytes);
+    return new NonBlockingBufferedInputStream (Channels.newInputStream (FileChannel.open (m_aFile.toPath (),
+                                                                                          StandardOpenOption.READ)),
+                                               COPY_BUFFER_SIZE);
+  }
+
+  /**
+   * Write all bytes to the provided channel. Spilled documents are
+   * transferred without copying them to the heap.
+   *
+   * @param aChannel
+   *        The channel to write to. May not be <code>null</code>.
+   * @return The number of bytes written.
+   * @throws IOException
+   *         In case of an error
+   */
+  @Nonnegative
+  public long writeTo (@Nonnull final WritableByteChannel aChannel) throws IOException
+  {
+    ValueEnforcer.notNull (aChannel, "Channel");
+    _checkOpen ();
+    if (m_aFile == null)
+    {
+      final ByteBuffer aBB = ByteBuffer.wrap (m_aBytes);
+      while (aBB.hasRemaining ())
+        aChannel.write (aBB);
+    }
+    else
+    {
+      try (final FileChannel aSrc = FileChannel.open (m_aFile.toPath (), StandardOpenOption.READ))
+      {
+        long nPos = 0;
+        while (nPos < m_nSize)
+          nPos += aSrc.transferTo (nPos, m_nSize - nPos, aChannel);
+      }
+    }
+    return m_nSize;
+  }
+
+  /**
+   * Add a reference to this buffer.
+   *
+   * @return this for chaining
+   * @throws IllegalStateException
+   *         If the buffer was already closed.
+   */
+  @Nonnull
+  public SBDPayloadBuffer retain ()
+  {
+    int nOld;
+    do
+    {
+      nOld = m_aRefCount.get ();
+      if (nOld <= 0)
+        throw new IllegalStateException ("The payload buffer was already closed");
+    } while (!m_aRefCount.compareAndSet (nOld, nOld + 1));
+    return this;
+  }
+
+  /**
+   * Register a callback that is invoked when the last reference to this buffer
+   * is closed. May only be called while holding a reference.
+   *
+   * @param aCallback
+   *        The callback to invoke. May not be <code>null</code>.
+   * @throws IllegalStateException
+   *         If the buffer was already closed.
+   */
+  public void addReleaseCallback (@Nonnull final Runnable aCallback)
+  {
+    ValueEnforcer.notNull (aCallback, "Callback");
+    _checkOpen ();
+    m_aReleaseCallbacks.add (aCallback);
+  }
+
+  /**
+   * Remove a reference from this buffer. The temporary file is deleted and the
+   * release callbacks are invoked with the last reference.
+   */
+  public void close ()
+  {
+    if (m_aRefCount.decrementAndGet () == 0)
+    {
+      if (m_aFile != null)
+        try
+        {
+          Files.deleteIfExists (m_aFile.toPath ());
+        }
+        catch (final IOException ex)
+        {
+          LOGGER.warn ("Failed to delete the temporary payload file " + m_aFile.getAbsolutePath (), ex);
+        }
+
+      Runnable aCallback;
+      while ((aCallback = m_aReleaseCallbacks.poll ()) != null)
+        aCallback.run ();
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Size", m_nSize).appendIfNotNull ("File", m_aFile).getToString ();
+  }
+
+  /**
+   * Create a buffer that keeps the provided bytes in memory.
+   *
+   * @param aBytes
+   *        The bytes to use. May not be <code>null</code>. The array is not
+   *        copied.
+   * @return The new buffer. Never <code>null</code>.
+   */
+  @Nonnull
+  public static SBDPayloadBuffer wrap (@Nonnull final byte [] aBytes)
+  {
+    ValueEnforcer.notNull (aBytes, "Bytes");
+    return new SBDPayloadBuffer (aBytes, null, aBytes.length);
+  }
+
+  /**
+   * Read the complete stream into a new buffer. The stream is not closed.
+   *
+   * @param aIS
+   *        The stream to read. May not be <code>null</code>.
+   * @param nSpillThreshold
+   *        The maximum number of bytes to keep in memory. Must be &ge; 0.
+   * @param aTempDirectory
+   *        The directory for the temporary file. May be <code>null</code> to
+   *        use the default temporary directory.
+   * @return The new buffer. Never <code>null</code>.
+   * @throws IOException
+   *         In case of an error
+   */
+  @Nonnull
+  public static SBDPayloadBuffer create (@Nonnull final InputStream aIS,
+                                         @Nonnegative final long nSpillThreshold,
+                                         @Nullable final File aTempDirectory) throws IOException
+  {
+    ValueEnforcer.notNull (aIS, "InputStream");
+    ValueEnforcer.isGE0 (nSpillThreshold, "SpillThreshold");
+
+    final byte [] aBuf = new byte [COPY_BUFFER_SIZE];
+    final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ((int) Math.min (nSpillThreshold,
+                                                                                                       COPY_BUFFER_SIZE));
+    long nTotal = 0;
+    int nRead;
+    while ((nRead = aIS.read (aBuf)) >= 0)
+    {
+      if (nTotal + nRead > nSpillThreshold)
+      {
+        // Too large for the heap - continue in a temporary file
+        final File aFile = File.createTempFile ("as2-peppol-", ".payload", aTempDirectory);
+        try (final OutputStream aOS = Files.newOutputStream (aFile.toPath ()))
+        {
+          aBAOS.writeTo (aOS);
+          do
+          {
+            aOS.write (aBuf, 0, nRead);
+            nTotal += nRead;
+          } while ((nRead = aIS.read (aBuf)) >= 0);
+        }
+        catch (final IOException | RuntimeException ex)
+        {
+          Files.deleteIfExists (aFile.toPath ());
+          throw ex;
+        }
+        return new SBDPayloadBuffer (null, aFile, nTotal);
+      }
+      aBAOS.write (aBuf, 0, nRead);
+      nTotal += nRead;
+    }
+    return new SBDPayloadBuffer (aBAOS.toByteArray (), null, nTotal);
+  }
+}
@@ -0,0 +1,1110 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.CommonsHashSet;
+import com.helger.commons.collection.impl.CommonsTreeMap;
+import com.helger.commons.collection.impl.CommonsTreeSet;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.collection.impl.ICommonsSet;
+import com.helger.commons.collection.impl.ICommonsSortedMap;
+import com.helger.commons.collection.impl.ICommonsSortedSet;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.stream.NonBlockingBufferedInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A durable, append-only local journal for accepted documents. Each document
+ * is appended to the current segment file and the caller waits until the data
+ * is synced to disk. Concurrent appends are synced together by a single
+ * background thread ("group commit"), so that the number of
+ * {@link FileChannel#force(boolean)} calls is much smaller than the number of
+ * documents.<br>
+ * After a document was handled, it must be acknowledged. Acknowledgements are
+ * journaled as well, but without waiting for the disk sync. Segment files are
+ * deleted once all their documents are acknowledged and all older segments
+ * with documents they hold acknowledgements for are deleted. When a spool is
+ * opened, the IDs of all documents that were not acknowledged are available
+ * via {@link #getAllPendingRecordIDs()}. Each document is read back from disk
+ * via {@link #readPendingRecord(long, long, File)} when it is replayed, so the
+ * heap usage does not depend on the number and size of pending documents.
+ * Delivery is therefore "at least once".<br>
+ * The directory is locked while the spool is open, so only a single instance
+ * can use it. Module instances share the instance via {@link SBDSpoolRegistry}.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class SBDSpool implements AutoCloseable
+{
+  public static final long DEFAULT_MAX_SEGMENT_SIZE = 64 * CGlobal.BYTES_PER_MEGABYTE;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (SBDSpool.class);
+  private static final String SEGMENT_PREFIX = "spool-";
+  private static final String SEGMENT_SUFFIX = ".journal";
+  private static final byte RECORD_TYPE_DATA = 1;
+  private static final byte RECORD_TYPE_ACK = 2;
+  private static final String LOCK_FILENAME = "spool.lock";
+  private static final AtomicBoolean s_aDirectorySyncUnsupportedLogged = new AtomicBoolean (false);
+
+  private final File m_aDirectory;
+  private final long m_nMaxSegmentSize;
+  private final FileChannel m_aLockChannel;
+  private final AtomicBoolean m_aReplayClaimed = new AtomicBoolean (false);
+  private final AtomicLong m_aNextRecordID = new AtomicLong (1);
+  // Record ID to the offset of the record body in its segment, for all records
+  // that were found unacknowledged when the spool was opened
+  private final NavigableMap <Long, Long> m_aPendingOffsets = new ConcurrentSkipListMap <> ();
+  // Record ID to segment number of all unacknowledged records
+  private final Map <Long, Long> m_aRecordSegments = new ConcurrentHashMap <> ();
+  // Segment number to the number of unacknowledged records
+  private final Map <Long, AtomicInteger> m_aSegmentOutstanding = new ConcurrentHashMap <> ();
+
+  private final ReentrantLock m_aWriteLock = new ReentrantLock ();
+  // All existing segment numbers, including the current one
+  @GuardedBy ("m_aWriteLock")
+  private final ICommonsSortedSet <Long> m_aSegments = new CommonsTreeSet <> ();
+  // Segment number to the numbers of the older segments it contains
+  // acknowledgements for. A segment must not be deleted before these segments,
+  // otherwise the acknowledged records would be replayed.
+  @GuardedBy ("m_aWriteLock")
+  private final ICommonsMap <Long, ICommonsSet <Long>> m_aAckedSegments = new CommonsHashMap <> ();
+  @GuardedBy ("m_aWriteLock")
+  private long m_nSegmentNumber;
+  // Only modified while holding the write lock
+  private volatile FileChannel m_aChannel;
+  // Set if writing to the current segment failed. A partially written record
+  // would hide all later records of the segment on recovery.
+  @GuardedBy ("m_aWriteLock")
+  private boolean m_bSegmentBroken = false;
+  @GuardedBy ("m_aWriteLock")
+  private long m_nWrittenBytes = 0;
+
+  private final ReentrantLock m_aSyncLock = new ReentrantLock ();
+  private final Condition m_aSyncCondition = m_aSyncLock.newCondition ();
+  @GuardedBy ("m_aSyncLock")
+  private long m_nPublishedBytes = 0;
+  @GuardedBy ("m_aSyncLock")
+  private long m_nSyncedBytes = 0;
+  // All records up to this position failed to sync
+  @GuardedBy ("m_aSyncLock")
+  private long m_nFailedBytes = 0;
+  @GuardedBy ("m_aSyncLock")
+  private IOException m_aLastSyncError;
+  @GuardedBy ("m_aSyncLock")
+  private boolean m_bClosed = false;
+
+  private final Thread m_aFlusherThread;
+
+  /**
+   * Open the spool in the provided directory. All existing segment files are
+   * scanned, and the IDs of the unacknowledged records are made available via
+   * {@link #getAllPendingRecordIDs()}. New records are always written to a new
+   * segment file.
+   *
+   * @param aDirectory
+   *        The directory to use. Is created if it does not exist. May not be
+   *        <code>null</code>.
+   * @param nMaxSegmentSize
+   *        The size in bytes after which a new segment file is started. Must be
+   *        &gt; 0.
+   * @throws IOException
+   *         If the directory cannot be created, read or locked
+   */
+  public SBDSpool (@Nonnull final File aDirectory, @Nonnegative final long nMaxSegmentSize) throws IOException
+  {
+    ValueEnforcer.notNull (aDirectory, "Directory");
+    ValueEnforcer.isGT0 (nMaxSegmentSize, "MaxSegmentSize");
+    m_aDirectory = aDirectory;
+    m_nMaxSegmentSize = nMaxSegmentSize;
+
+    Files.createDirectories (aDirectory.toPath ());
+    m_aLockChannel = _lockDirectory (aDirectory);
+    m_aWriteLock.lock ();
+    try
+    {
+      m_nSegmentNumber = _recover () + 1;
+      m_aChannel = _openSegment (m_nSegmentNumber);
+      m_aSegments.add (Long.valueOf (m_nSegmentNumber));
+
+      // Delete all segments without pending records
+      _deleteObsoleteSegments ();
+    }
+    catch (final IOException | RuntimeException ex)
+    {
+      m_aLockChannel.close ();
+      throw ex;
+    }
+    finally
+    {
+      m_aWriteLock.unlock ();
+    }
+
+    m_aFlusherThread = new Thread (this::_flushLoop, "as2-peppol-spool-flusher");
+    m_aFlusherThread.setDaemon (true);
+    m_aFlusherThread.start ();
+  }
+
+  /**
+   * Lock the spool directory, so that no other spool instance, in this or
+   * another process, writes to the same segments or replays the same records.
+   *
+   * @return The channel holding the lock. Never <code>null</code>.
+   * @throws IOException
+   *         If the directory is already locked
+   */
+  @Nonnull
+  private static FileChannel _lockDirectory (@Nonnull final File aDirectory) throws IOException
+  {
+    final FileChannel ret = FileChannel.open (new File (aDirectory, LOCK_FILENAME).toPath (),
+                                              StandardOpenOption.CREATE,
+                                              StandardOpenOption.WRITE);
+    FileLock aLock;
+    try
+    {
+      aLock = ret.tryLock ();
+    }
+    catch (final OverlappingFileLockException ex)
+    {
+      // Already locked in this JVM
+      aLock = null;
+    }
+    catch (final IOException ex)
+    {
+      ret.close ();
+      throw ex;
+    }
+    if (aLock == null)
+    {
+      ret.close ();
+      throw new IOException ("The spool directory " + aDirectory + " is already in use by another spool");
+    }
+    // The lock is released when the channel is closed
+    return ret;
+  }
+
+  @Nonnull
+  private File _getSegmentFile (final long nSegmentNumber)
+  {
+    return new File (m_aDirectory, String.format (Locale.ROOT, "%s%019d%s", SEGMENT_PREFIX, nSegmentNumber, SEGMENT_SUFFIX));
+  }
+
+  /**
+   * Create a new segment file. The directory is synced before the first record
+   * is written, so that the directory entry of the segment survives a crash
+   * together with its synced records.
+   */
+  @Nonnull
+  private FileChannel _openSegment (final long nSegmentNumber) throws IOException
+  {
+    final FileChannel ret = FileChannel.open (_getSegmentFile (nSegmentNumber).toPath (),
+                                              StandardOpenOption.CREATE_NEW,
+                                              StandardOpenOption.WRITE);
+    try
+    {
+      _syncDirectory ();
+    }
+    catch (final IOException ex)
+    {
+      ret.close ();
+      throw ex;
+    }
+    return ret;
+  }
+
+  /**
+   * Sync the directory entries of the spool directory.
+   *
+   * @throws IOException
+   *         If the sync failed
+   */
+  private void _syncDirectory () throws IOException
+  {
+    final FileChannel aDirChannel;
+    try
+    {
+      aDirChannel = FileChannel.open (m_aDirectory.toPath (), StandardOpenOption.READ);
+    }
+    catch (final IOException ex)
+    {
+      // Directories cannot be opened on all platforms (e.g. Windows), where
+      // the file system takes care of the directory entries
+      if (!s_aDirectorySyncUnsupportedLogged.getAndSet (true))
+        LOGGER.info ("The spool directory " + m_aDirectory + " cannot be synced on this platform: " + ex.getMessage ());
+      return;
+    }
+    try
+    {
+      aDirChannel.force (true);
+    }
+    finally
+    {
+      aDirChannel.close ();
+    }
+  }
+
+  /**
+   * Read all existing segments.
+   *
+   * @return The highest existing segment number or 0.
+   */
+  private long _recover () throws IOException
+  {
+    final ICommonsSortedMap <Long, File> aSegments = new CommonsTreeMap <> ();
+    final File [] aFiles = m_aDirectory.listFiles ();
+    if (aFiles != null)
+      for (final File aFile : aFiles)
+      {
+        final String sName = aFile.getName ();
+        if (aFile.isFile () && sName.startsWith (SEGMENT_PREFIX) && sName.endsWith (SEGMENT_SUFFIX))
+          try
+          {
+            aSegments.put (Long.valueOf (sName.substring (SEGMENT_PREFIX.length (),
+                                                          sName.length () - SEGMENT_SUFFIX.length ())),
+                           aFile);
+          }
+          catch (final NumberFormatException ex)
+          {
+            LOGGER.warn ("Ignoring unexpected file '" + aFile.getAbsolutePath () + "' in the spool directory");
+          }
+      }
+
+    // Only the record type and ID are kept - the rest is only read to verify
+    // the checksum
+    final byte [] aTypeAndID = new byte [1 + 8];
+    final byte [] aBuf = new byte [16 * 1024];
+    long nMaxRecordID = 0;
+    for (final Map.Entry <Long, File> aEntry : aSegments.entrySet ())
+    {
+      final Long aSegmentNumber = aEntry.getKey ();
+      m_aSegments.add (aSegmentNumber);
+      try (final DataInputStream aDIS = new DataInputStream (new NonBlockingBufferedInputStream (Files.newInputStream (aEntry.getValue ()
+                                                                                                                            .toPath ()))))
+      {
+        long nPos = 0;
+        while (true)
+        {
+          final int nLength = _scanRecord (aDIS, aEntry.getValue (), aTypeAndID, aBuf);
+          if (nLength < 0)
+            break;
+
+          final ByteBuffer aTypeAndIDBuffer = ByteBuffer.wrap (aTypeAndID);
+          final byte nType = aTypeAndIDBuffer.get ();
+          final long nRecordID = aTypeAndIDBuffer.getLong ();
+          nMaxRecordID = Math.max (nMaxRecordID, nRecordID);
+          if (nType == RECORD_TYPE_DATA)
+          {
+            // The body starts after the length
+            m_aPendingOffsets.put (Long.valueOf (nRecordID), Long.valueOf (nPos + 4));
+            m_aRecordSegments.put (Long.valueOf (nRecordID), aSegmentNumber);
+            m_aSegmentOutstanding.computeIfAbsent (aSegmentNumber, k -> new AtomicInteger ()).incrementAndGet ();
+          }
+          else
+            if (nType == RECORD_TYPE_ACK)
+            {
+              m_aPendingOffsets.remove (Long.valueOf (nRecordID));
+              final Long aDataSegment = m_aRecordSegments.remove (Long.valueOf (nRecordID));
+              if (aDataSegment != null)
+              {
+                m_aSegmentOutstanding.get (aDataSegment).decrementAndGet ();
+                if (!aDataSegment.equals (aSegmentNumber))
+                  m_aAckedSegments.computeIfAbsent (aSegmentNumber, k -> new CommonsHashSet <> ()).add (aDataSegment);
+              }
+            }
+          nPos += 4L + nLength + 4L;
+        }
+      }
+    }
+
+    m_aNextRecordID.set (nMaxRecordID + 1);
+    if (!m_aPendingOffsets.isEmpty ())
+      LOGGER.info ("Found " + m_aPendingOffsets.size () + " unacknowledged documents in spool " + m_aDirectory);
+    return aSegments.isEmpty () ? 0 : aSegments.lastKey ().longValue ();
+  }
+
+  /**
+   * Read a single record, verifying its checksum. The record body is streamed
+   * and only the record type and ID are kept.
+   *
+   * @return The length of the record body or -1 at the end of the segment or
+   *         if the remaining data is incomplete (torn write).
+   */
+  private static int _scanRecord (@Nonnull final DataInputStream aDIS,
+                                  @Nonnull final File aFile,
+                                  @Nonnull final byte [] aTypeAndID,
+                                  @Nonnull final byte [] aBuf) throws IOException
+  {
+    try
+    {
+      final int nLength = aDIS.readInt ();
+      if (nLength < aTypeAndID.length)
+      {
+        LOGGER.warn ("Invalid record length in spool segment '" + aFile.getAbsolutePath () + "' - ignoring rest");
+        return -1;
+      }
+      final CRC32 aCRC = new CRC32 ();
+      aDIS.readFully (aTypeAndID);
+      aCRC.update (aTypeAndID, 0, aTypeAndID.length);
+      int nRemaining = nLength - aTypeAndID.length;
+      while (nRemaining > 0)
+      {
+        final int nRead = Math.min (nRemaining, aBuf.length);
+        aDIS.readFully (aBuf, 0, nRead);
+        aCRC.update (aBuf, 0, nRead);
+        nRemaining -= nRead;
+      }
+      final int nExpectedCRC = aDIS.readInt ();
+      if ((int) aCRC.getValue () != nExpectedCRC)
+      {
+        LOGGER.warn ("Checksum error in spool segment '" + aFile.getAbsolutePath () + "' - ignoring rest");
+        return -1;
+      }
+      return nLength;
+    }
+    catch (final EOFException ex)
+    {
+      // End of file or incomplete last record
+      return -1;
+    }
+  }
+
+  @Nonnull
+  private static HttpHeaderMap _readHeaders (@Nonnull final DataInputStream aDIS) throws IOException
+  {
+    final HttpHeaderMap ret = new HttpHeaderMap ();
+    final int nCount = aDIS.readInt ();
+    for (int i = 0; i < nCount; ++i)
+    {
+      final String sName = aDIS.readUTF ();
+      final String sValue = aDIS.readUTF ();
+      ret.addHeader (sName, sValue);
+    }
+    return ret;
+  }
+
+  @Nonnull
+  private static ByteBuffer _createRecord (@Nonnull final byte [] aBody)
+  {
+    final CRC32 aCRC = new CRC32 ();
+    aCRC.update (aBody, 0, aBody.length);
+    final ByteBuffer ret = ByteBuffer.allocate (4 + aBody.length + 4);
+    ret.putInt (aBody.length).put (aBody).putInt ((int) aCRC.getValue ());
+    ret.flip ();
+    return ret;
+  }
+
+  /**
+   * @return The directory of this spool. Never <code>null</code>.
+   */
+  @Nonnull
+  public File getDirectory ()
+  {
+    return m_aDirectory;
+  }
+
+  /**
+   * @return The IDs of all records that were found unacknowledged when this
+   *         spool was opened and that were not acknowledged since, in the
+   *         order they were appended. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <Long> getAllPendingRecordIDs ()
+  {
+    return new CommonsArrayList <> (m_aPendingOffsets.keySet ());
+  }
+
+  /**
+   * Claim the replay of the pending records. Only the first caller gets
+   * <code>true</code>, so that the records of a shared spool are replayed
+   * only once.
+   *
+   * @return <code>true</code> if the caller must replay the pending records.
+   */
+  public boolean claimReplay ()
+  {
+    return !m_aReplayClaimed.getAndSet (true);
+  }
+
+  /**
+   * @return The number of records that were found unacknowledged when this
+   *         spool was opened and that were not acknowledged since.
+   */
+  @Nonnegative
+  public int getPendingRecordCount ()
+  {
+    return m_aPendingOffsets.size ();
+  }
+
+  /**
+   * Read a record that was found unacknowledged when this spool was opened
+   * back from disk. The record must be acknowledged after it was handled.
+   *
+   * @param nRecordID
+   *        The record ID as returned by {@link #getAllPendingRecordIDs()}.
+   * @param nSpillThreshold
+   *        The maximum number of payload bytes to keep in memory. Must be
+   *        &ge; 0.
+   * @param aTempDirectory
+   *        The directory for the temporary file of large payloads. May be
+   *        <code>null</code> to use the default temporary directory.
+   * @return <code>null</code> if the record is unknown or was already
+   *         acknowledged. The caller is responsible for closing the payload of
+   *         the returned record.
+   * @throws IOException
+   *         If the record cannot be read
+   */
+  @Nullable
+  public SBDSpoolRecord readPendingRecord (final long nRecordID,
+                                           @Nonnegative final long nSpillThreshold,
+                                           @Nullable final File aTempDirectory) throws IOException
+  {
+    final Long aOffset = m_aPendingOffsets.get (Long.valueOf (nRecordID));
+    final Long aSegmentNumber = m_aRecordSegments.get (Long.valueOf (nRecordID));
+    if (aOffset == null || aSegmentNumber == null)
+      return null;
+
+    try (final FileChannel aChannel = FileChannel.open (_getSegmentFile (aSegmentNumber.longValue ()).toPath (),
+                                                        StandardOpenOption.READ))
+    {
+      // Skip the record type and ID
+      aChannel.position (aOffset.longValue () + 1 + 8);
+
+      // Not buffered, so that the payload starts at the current channel
+      // position after the headers were read
+      final DataInputStream aDIS = new DataInputStream (Channels.newInputStream (aChannel));
+      final HttpHeaderMap aHeaders = _readHeaders (aDIS);
+      final int nPayloadLength = aDIS.readInt ();
+      final SBDPayloadBuffer aPayload = SBDPayloadBuffer.create (new BoundedInputStream (aDIS, nPayloadLength),
+                                                                 nSpillThreshold,
+                                                                 aTempDirectory);
+      if (aPayload.getSize () != nPayloadLength)
+      {
+        aPayload.close ();
+        throw new EOFException ("The payload of spool record " + nRecordID + " is incomplete");
+      }
+      return new SBDSpoolRecord (nRecordID, aHeaders, aPayload);
+    }
+  }
+
+  /**
+   * Write the record to the current segment.
+   *
+   * @return The logical end position of the written record.
+   */
+  private long _write (@Nonnull final ByteBuffer aHead,
+                       @Nullable final SBDPayloadBuffer aPayload,
+                       @Nullable final ByteBuffer aTail,
+                       final long nDataRecordID,
+                       @Nullable final Long aAckedSegmentNumber) throws IOException
+  {
+    m_aWriteLock.lock ();
+    try
+    {
+      if (m_bSegmentBroken)
+        _startNewSegment ();
+
+      final FileChannel aChannel = m_aChannel;
+      long nWritten = aHead.limit ();
+      try
+      {
+        while (aHead.hasRemaining ())
+          aChannel.write (aHead);
+        if (aPayload != null)
+          nWritten += aPayload.writeTo (aChannel);
+        if (aTail != null)
+        {
+          nWritten += aTail.limit ();
+          while (aTail.hasRemaining ())
+            aChannel.write (aTail);
+        }
+      }
+      catch (final IOException ex)
+      {
+        m_bSegmentBroken = true;
+        throw ex;
+      }
+      m_nWrittenBytes += nWritten;
+      if (nDataRecordID > 0)
+      {
+        final Long aSegmentNumber = Long.valueOf (m_nSegmentNumber);
+        m_aRecordSegments.put (Long.valueOf (nDataRecordID), aSegmentNumber);
+        m_aSegmentOutstanding.computeIfAbsent (aSegmentNumber, k -> new AtomicInteger ()).incrementAndGet ();
+      }
+      if (aAckedSegmentNumber != null && aAckedSegmentNumber.longValue () != m_nSegmentNumber)
+        m_aAckedSegments.computeIfAbsent (Long.valueOf (m_nSegmentNumber), k -> new CommonsHashSet <> ())
+                        .add (aAckedSegmentNumber);
+      return m_nWrittenBytes;
+    }
+    finally
+    {
+      m_aWriteLock.unlock ();
+    }
+  }
+
+  /**
+   * Append a new document to the spool and wait until it is synced to disk.
+   *
+   * @param aHeaders
+   *        The HTTP headers of the request. May not be <code>null</code>.
+   * @param aPayload
+   *        The raw Standard Business Document bytes. May not be
+   *        <code>null</code>.
+   * @return The ID of the new record, to be used for
+   *         {@link #acknowledge(long)}.
+   * @throws IOException
+   *         If writing or syncing failed
+   */
+  public long append (@Nonnull final HttpHeaderMap aHeaders, @Nonnull final byte [] aPayload) throws IOException
+  {
+    ValueEnforcer.notNull (aPayload, "Payload");
+    return append (aHeaders, SBDPayloadBuffer.wrap (aPayload));
+  }
+
+  /**
+   * Append a new document to the spool and wait until it is synced to disk.
+   * Spilled payloads are transferred from their file without copying them to
+   * the heap.
+   *
+   * @param aHeaders
+   *        The HTTP headers of the request. May not be <code>null</code>.
+   * @param aPayload
+   *        The raw Standard Business Document bytes. May not be
+   *        <code>null</code>. Is not closed by this method.
+   * @return The ID of the new record, to be used for
+   *         {@link #acknowledge(long)}.
+   * @throws IOException
+   *         If writing or syncing failed
+   */
+  public long append (@Nonnull final HttpHeaderMap aHeaders, @Nonnull final SBDPayloadBuffer aPayload) throws IOException
+  {
+    ValueEnforcer.notNull (aHeaders, "Headers");
+    ValueEnforcer.notNull (aPayload, "Payload");
+
+    final long nRecordID = m_aNextRecordID.getAndIncrement ();
+    final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream (1024);
+    try (final DataOutputStream aDOS = new DataOutputStream (aBAOS))
+    {
+      aDOS.writeByte (RECORD_TYPE_DATA);
+      aDOS.writeLong (nRecordID);
+      final ICommonsList <String []> aHeaderList = new CommonsArrayList <> ();
+      for (final Map.Entry <String, ICommonsList <String>> aEntry : aHeaders)
+        for (final String sValue : aEntry.getValue ())
+          aHeaderList.add (new String [] { aEntry.getKey (), sValue });
+      aDOS.writeInt (aHeaderList.size ());
+      for (final String [] aHeader : aHeaderList)
+      {
+        aDOS.writeUTF (aHeader[0]);
+        aDOS.writeUTF (aHeader[1]);
+      }
+      aDOS.writeInt ((int) aPayload.getSize ());
+    }
+    final byte [] aPrefix = aBAOS.toByteArray ();
+    final long nBodyLength = aPrefix.length + aPayload.getSize ();
+    if (nBodyLength > Integer.MAX_VALUE)
+      throw new IOException ("The document is too large for the spool: " + aPayload.getSize () + " bytes");
+
+    // The record is streamed, so the CRC is calculated upfront
+    final CRC32 aCRC = new CRC32 ();
+    aCRC.update (aPrefix, 0, aPrefix.length);
+    try (final InputStream aIS = aPayload.openStream ())
+    {
+      final byte [] aBuf = new byte [16 * 1024];
+      int nRead;
+      while ((nRead = aIS.read (aBuf)) >= 0)
+        aCRC.update (aBuf, 0, nRead);
+    }
+
+    final ByteBuffer aHead = ByteBuffer.allocate (4 + aPrefix.length);
+    aHead.putInt ((int) nBodyLength).put (aPrefix);
+    aHead.flip ();
+    final ByteBuffer aTail = ByteBuffer.allocate (4);
+    aTail.putInt ((int) aCRC.getValue ());
+    aTail.flip ();
+    final long nEndPos = _write (aHead, aPayload, aTail, nRecordID, null);
+
+    // Group commit: wait for the flusher thread
+    IOException aSyncError = null;
+    m_aSyncLock.lock ();
+    try
+    {
+      if (nEndPos > m_nPublishedBytes)
+        m_nPublishedBytes = nEndPos;
+      m_aSyncCondition.signalAll ();
+      while (true)
+      {
+        // A failure takes precedence, as the failed records are in a segment
+        // that is not synced any more
+        if (m_nFailedBytes >= nEndPos)
+        {
+          aSyncError = m_aLastSyncError;
+          break;
+        }
+        if (m_nSyncedBytes >= nEndPos)
+          break;
+        if (m_bClosed)
+        {
+          aSyncError = new IOException ("The spool " + m_aDirectory + " was closed");
+          break;
+        }
+        m_aSyncCondition.awaitUninterruptibly ();
+      }
+    }
+    finally
+    {
+      m_aSyncLock.unlock ();
+    }
+
+    if (aSyncError != null)
+    {
+      // The caller rejects the document, so it must not be replayed
+      acknowledge (nRecordID);
+      throw new IOException ("Failed to sync spool " + m_aDirectory, aSyncError);
+    }
+    return nRecordID;
+  }
+
+  /**
+   * Mark the record with the provided ID as handled. The acknowledgement is
+   * journaled but not synced immediately, so in case of a crash the record may
+   * be replayed.
+   *
+   * @param nRecordID
+   *        The record ID as returned by
+   *        {@link #append(HttpHeaderMap, SBDPayloadBuffer)} or
+   *        {@link #getAllPendingRecordIDs()}.
+   */
+  public void acknowledge (final long nRecordID)
+  {
+    m_aPendingOffsets.remove (Long.valueOf (nRecordID));
+    final Long aSegmentNumber = m_aRecordSegments.remove (Long.valueOf (nRecordID));
+    if (aSegmentNumber == null)
+    {
+      // Unknown or already acknowledged
+      return;
+    }
+
+    try
+    {
+      final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream (9);
+      try (final DataOutputStream aDOS = new DataOutputStream (aBAOS))
+      {
+        aDOS.writeByte (RECORD_TYPE_ACK);
+        aDOS.writeLong (nRecordID);
+      }
+      final long nEndPos = _write (_createRecord (aBAOS.toByteArray ()), null, null, -1, aSegmentNumber);
+      m_aSyncLock.lock ();
+      try
+      {
+        if (nEndPos > m_nPublishedBytes)
+          m_nPublishedBytes = nEndPos;
+        m_aSyncCondition.signalAll ();
+      }
+      finally
+      {
+        m_aSyncLock.unlock ();
+      }
+    }
+    catch (final IOException ex)
+    {
+      // The record will be replayed
+      LOGGER.warn ("Failed to journal the acknowledgement of spool record " + nRecordID, ex);
+    }
+
+    final AtomicInteger aOutstanding = m_aSegmentOutstanding.get (aSegmentNumber);
+    if (aOutstanding != null && aOutstanding.decrementAndGet () <= 0)
+    {
+      m_aWriteLock.lock ();
+      try
+      {
+        _deleteObsoleteSegments ();
+      }
+      finally
+      {
+        m_aWriteLock.unlock ();
+      }
+    }
+  }
+
+  /**
+   * Delete all segments, except the current one, that have no unacknowledged
+   * records and that contain no acknowledgements for records of an existing
+   * segment. Must be called while holding the write lock.
+   */
+  private void _deleteObsoleteSegments ()
+  {
+    // Acknowledgements always refer to older segments, so a single pass in
+    // ascending order is sufficient
+    for (final Long aSegmentNumber : m_aSegments.getClone ())
+    {
+      if (aSegmentNumber.longValue () == m_nSegmentNumber)
+        break;
+
+      final AtomicInteger aOutstanding = m_aSegmentOutstanding.get (aSegmentNumber);
+      if (aOutstanding != null && aOutstanding.get () > 0)
+        continue;
+
+      final ICommonsSet <Long> aAckedSegments = m_aAckedSegments.get (aSegmentNumber);
+      if (aAckedSegments != null)
+      {
+        aAckedSegments.removeIf (x -> !m_aSegments.contains (x));
+        if (aAckedSegments.isNotEmpty ())
+          continue;
+      }
+      _deleteSegment (aSegmentNumber);
+    }
+  }
+
+  private void _deleteSegment (@Nonnull final Long aSegmentNumber)
+  {
+    m_aSegments.remove (aSegmentNumber);
+    m_aSegmentOutstanding.remove (aSegmentNumber);
+    m_aAckedSegments.remove (aSegmentNumber);
+    final File aFile = _getSegmentFile (aSegmentNumber.longValue ());
+    try
+    {
+      Files.deleteIfExists (aFile.toPath ());
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Deleted fully acknowledged spool segment " + aFile.getAbsolutePath ());
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.warn ("Failed to delete spool segment " + aFile.getAbsolutePath (), ex);
+    }
+  }
+
+  /**
+   * Remember that all records up to the provided position failed to sync and
+   * wake up the waiting threads.
+   */
+  private void _onSyncFailed (final long nFailedBytes, @Nonnull final IOException aError)
+  {
+    m_aSyncLock.lock ();
+    try
+    {
+      if (nFailedBytes > m_nFailedBytes)
+        m_nFailedBytes = nFailedBytes;
+      m_aLastSyncError = aError;
+      m_aSyncCondition.signalAll ();
+    }
+    finally
+    {
+      m_aSyncLock.unlock ();
+    }
+  }
+
+  /**
+   * Close the current segment and continue in a new one. Everything written to
+   * the current segment is synced first - if that fails, all records written so
+   * far are reported as failed. Must be called while holding the write lock.
+   *
+   * @throws IOException
+   *         If the new segment cannot be created. The next write tries again.
+   */
+  private void _startNewSegment () throws IOException
+  {
+    final FileChannel aOldChannel = m_aChannel;
+    if (aOldChannel.isOpen ())
+    {
+      try
+      {
+        aOldChannel.force (false);
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.error ("Failed to sync spool segment " + m_nSegmentNumber + " of " + m_aDirectory, ex);
+        _onSyncFailed (m_nWrittenBytes, ex);
+      }
+      try
+      {
+        aOldChannel.close ();
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.warn ("Failed to close spool segment " + m_nSegmentNumber + " of " + m_aDirectory, ex);
+      }
+    }
+
+    m_bSegmentBroken = true;
+    m_aChannel = _openSegment (m_nSegmentNumber + 1);
+    m_nSegmentNumber++;
+    m_aSegments.add (Long.valueOf (m_nSegmentNumber));
+    m_bSegmentBroken = false;
+
+    _deleteObsoleteSegments ();
+  }
+
+  /**
+   * Start a new segment if the current one is too large or if syncing it
+   * failed. Must only be called from the flusher thread.
+   */
+  private void _rotateIfNeeded (final boolean bSyncFailed) throws IOException
+  {
+    m_aWriteLock.lock ();
+    try
+    {
+      if (bSyncFailed || m_aChannel.size () >= m_nMaxSegmentSize)
+        _startNewSegment ();
+    }
+    finally
+    {
+      m_aWriteLock.unlock ();
+    }
+  }
+
+  private void _flushLoop ()
+  {
+    while (true)
+    {
+      m_aSyncLock.lock ();
+      try
+      {
+        while (!m_bClosed && m_nPublishedBytes <= Math.max (m_nSyncedBytes, m_nFailedBytes))
+          m_aSyncCondition.awaitUninterruptibly ();
+        if (m_nPublishedBytes <= Math.max (m_nSyncedBytes, m_nFailedBytes))
+        {
+          // Closed and nothing left to sync
+          return;
+        }
+      }
+      finally
+      {
+        m_aSyncLock.unlock ();
+      }
+
+      // Take the channel together with the bytes written to it, so that a
+      // concurrent segment switch cannot swap it. All bytes of older segments
+      // were synced by the switch.
+      final FileChannel aChannel;
+      final long nTarget;
+      m_aWriteLock.lock ();
+      try
+      {
+        aChannel = m_aChannel;
+        nTarget = m_nWrittenBytes;
+      }
+      finally
+      {
+        m_aWriteLock.unlock ();
+      }
+
+      // Sync all bytes written so far - this includes all records of all
+      // threads that are waiting. Writers are not blocked meanwhile.
+      IOException aError = null;
+      try
+      {
+        aChannel.force (false);
+      }
+      catch (final ClosedChannelException ex)
+      {
+        // Closed by a segment switch, that synced the segment before or
+        // reported the failure itself
+        if (LOGGER.isDebugEnabled ())
+          LOGGER.debug ("Spool segment of " + m_aDirectory + " was switched while syncing");
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.error ("Failed to sync spool " + m_aDirectory, ex);
+        aError = ex;
+      }
+
+      // Only the waiting threads of this batch fail
+      if (aError != null)
+        _onSyncFailed (nTarget, aError);
+      else
+      {
+        m_aSyncLock.lock ();
+        try
+        {
+          if (nTarget > m_nSyncedBytes)
+            m_nSyncedBytes = nTarget;
+          m_aSyncCondition.signalAll ();
+        }
+        finally
+        {
+          m_aSyncLock.unlock ();
+        }
+      }
+
+      // The segment may be broken after a failed sync, so continue with a new
+      // one
+      try
+      {
+        _rotateIfNeeded (aError != null);
+      }
+      catch (final IOException ex)
+      {
+        // The next write tries again
+        LOGGER.error ("Failed to start a new segment in spool " + m_aDirectory, ex);
+      }
+    }
+  }
+
+  /**
+   * Close the spool. Pending syncs are finished, but no more records can be
+   * appended.
+   */
+  public void close ()
+  {
+    m_aSyncLock.lock ();
+    try
+    {
+      m_bClosed = true;
+      m_aSyncCondition.signalAll ();
+    }
+    finally
+    {
+      m_aSyncLock.unlock ();
+    }
+
+    try
+    {
+      m_aFlusherThread.join ();
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+
+    m_aWriteLock.lock ();
+    try
+    {
+      m_aChannel.force (false);
+      m_aChannel.close ();
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.warn ("Failed to close spool " + m_aDirectory, ex);
+    }
+    finally
+    {
+      m_aWriteLock.unlock ();
+    }
+
+    try
+    {
+      // Releases the directory lock
+      m_aLockChannel.close ();
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.warn ("Failed to unlock spool " + m_aDirectory, ex);
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Directory", m_aDirectory)
+                                       .append ("MaxSegmentSize", m_nMaxSegmentSize)
+                                       .getToString ();
+  }
+
+  /**
+   * An input stream that ends after a fixed number of bytes.
+   */
+  private static final class BoundedInputStream extends FilterInputStream
+  {
+    private long m_nRemaining;
+
+    BoundedInputStream (@Nonnull final InputStream aIS, @Nonnegative final long nLimit)
+    {
+      super (aIS);
+      m_nRemaining = nLimit;
+    }
+
+    @Override
+    public int read () throws IOException
+    {
+      if (m_nRemaining <= 0)
+        return -1;
+      final int ret = super.read ();
+      if (ret >= 0)
+        m_nRemaining--;
+      return ret;
+    }
+
+    @Override
+    public int read (@Nonnull final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+    {
+      if (m_nRemaining <= 0)
+        return -1;
+      final int ret = super.read (aBuf, nOfs, (int) Math.min (nLen, m_nRemaining));
+      if (ret > 0)
+        m_nRemaining -= ret;
+      return ret;
+    }
+  }
+
+  /**
+   * Open a spool with the default maximum segment size.
+   *
+   * @param aDirectory
+   *        The directory to use. May not be <code>null</code>.
+   * @return The opened spool. Never <code>null</code>.
+   * @throws IOException
+   *         If the directory cannot be created, read or locked
+   */
+  @Nonnull
+  public static SBDSpool open (@Nonnull final File aDirectory) throws IOException
+  {
+    return new SBDSpool (aDirectory, DEFAULT_MAX_SEGMENT_SIZE);
+  }
+}
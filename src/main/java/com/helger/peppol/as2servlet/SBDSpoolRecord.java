@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A single document that was read from an {@link SBDSpool} and that was not
+ * yet acknowledged.
+ *
+ * @see SBDSpool#readPendingRecord(long, long, java.io.File)
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class SBDSpoolRecord
+{
+  private final long m_nRecordID;
+  private final HttpHeaderMap m_aHeaders;
+  private final SBDPayloadBuffer m_aPayload;
+
+  public SBDSpoolRecord (final long nRecordID,
+                         @Nonnull final HttpHeaderMap aHeaders,
+                         @Nonnull final SBDPayloadBuffer aPayload)
+  {
+    ValueEnforcer.notNull (aHeaders, "Headers");
+    ValueEnforcer.notNull (aPayload, "Payload");
+    m_nRecordID = nRecordID;
+    m_aHeaders = aHeaders;
+    m_aPayload = aPayload;
+  }
+
+  /**
+   * @return The ID of the record, to be used for
+   *         {@link SBDSpool#acknowledge(long)}.
+   */
+  public long getRecordID ()
+  {
+    return m_nRecordID;
+  }
+
+  /**
+   * @return The HTTP headers of the original request. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public HttpHeaderMap getHeaders ()
+  {
+    return m_aHeaders;
+  }
+
+  /**
+   * @return The raw bytes of the Standard Business Document. Never
+   *         <code>null</code>. Large documents are kept in a temporary file.
+   *         The caller is responsible for closing it.
+   */
+  @Nonnull
+  public SBDPayloadBuffer getPayload ()
+  {
+    return m_aPayload;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("RecordID", m_nRecordID)
+                                       .append ("Headers", m_aHeaders)
+                                       .append ("Payload", m_aPayload)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.concurrent.SimpleLock;
+
+/**
+ * Shares a single {@link SBDSpool} per directory between all module
+ * instances. The spool is opened when the first module acquires it and closed
+ * when the last module releases it.
+ *
+ * @author Philip Helger
+ * @see AS2PeppolServletConfiguration#setSpoolDirectory(File)
+ */
+@ThreadSafe
+final class SBDSpoolRegistry
+{
+  private static final class SpoolUsage
+  {
+    private final SBDSpool m_aSpool;
+    private int m_nUsers = 0;
+
+    SpoolUsage (@Nonnull final SBDSpool aSpool)
+    {
+      m_aSpool = aSpool;
+    }
+  }
+
+  private static final SimpleLock LOCK = new SimpleLock ();
+  @GuardedBy ("LOCK")
+  private static final ICommonsMap <File, SpoolUsage> s_aSpools = new CommonsHashMap <> ();
+
+  private SBDSpoolRegistry ()
+  {}
+
+  /**
+   * Get the spool of the provided directory and open it, if it is not yet
+   * open. Each call must be followed by a call to {@link #release(SBDSpool)}.
+   *
+   * @param aDirectory
+   *        The spool directory. May not be <code>null</code>.
+   * @return The shared spool. Never <code>null</code>.
+   * @throws IOException
+   *         If the spool cannot be opened
+   */
+  @Nonnull
+  static SBDSpool acquire (@Nonnull final File aDirectory) throws IOException
+  {
+    ValueEnforcer.notNull (aDirectory, "Directory");
+
+    final File aKey = aDirectory.getAbsoluteFile ();
+    LOCK.lock ();
+    try
+    {
+      SpoolUsage aUsage = s_aSpools.get (aKey);
+      if (aUsage == null)
+      {
+        aUsage = new SpoolUsage (SBDSpool.open (aDirectory));
+        s_aSpools.put (aKey, aUsage);
+      }
+      aUsage.m_nUsers++;
+      return aUsage.m_aSpool;
+    }
+    finally
+    {
+      LOCK.unlock ();
+    }
+  }
+
+  /**
+   * Release a spool that was acquired before. The last release closes it.
+   *
+   * @param aSpool
+   *        The spool returned by {@link #acquire(File)}. May not be
+   *        <code>null</code>.
+   */
+  static void release (@Nonnull final SBDSpool aSpool)
+  {
+    ValueEnforcer.notNull (aSpool, "Spool");
+
+    final File aKey = aSpool.getDirectory ().getAbsoluteFile ();
+    LOCK.locked ( () -> {
+      final SpoolUsage aUsage = s_aSpools.get (aKey);
+      if (aUsage != null && aUsage.m_aSpool == aSpool)
+      {
+        aUsage.m_nUsers--;
+        if (aUsage.m_nUsers == 0)
+        {
+          s_aSpools.remove (aKey);
+          // Within the lock, so that the directory is unlocked before the
+          // next acquire opens it again
+          aSpool.close ();
+        }
+      }
+    });
+  }
+}
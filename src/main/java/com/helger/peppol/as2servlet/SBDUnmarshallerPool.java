@@ -0,0 +1,146 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.validation.Schema;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.unece.cefact.namespaces.sbdh.StandardBusinessDocument;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.jaxb.JAXBContextCache;
+import com.helger.sbdh.SBDMarshaller;
+import com.helger.xml.schema.XMLSchemaCache;
+
+/**
+ * A bounded pool of {@link Unmarshaller} objects for Standard Business
+ * Documents. Creating an unmarshaller and setting its validation schema is
+ * much more expensive than the lookup of the cached JAXB context, so the
+ * unmarshallers are re-used across messages instead of being created for every
+ * message like {@link SBDMarshaller#read(InputStream)} does. A pool is used
+ * instead of a {@link ThreadLocal} to avoid class loader leaks in servlet
+ * container threads.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+final class SBDUnmarshallerPool
+{
+  static final int DEFAULT_MAX_SIZE = 64;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (SBDUnmarshallerPool.class);
+
+  private final JAXBContext m_aJAXBContext;
+  private final Schema m_aSchema;
+  private final BlockingQueue <Unmarshaller> m_aPool;
+
+  SBDUnmarshallerPool ()
+  {
+    this (DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param nMaxSize
+   *        The maximum number of idle unmarshallers kept in the pool. Must be
+   *        &gt; 0.
+   */
+  SBDUnmarshallerPool (@Nonnegative final int nMaxSize)
+  {
+    ValueEnforcer.isGT0 (nMaxSize, "MaxSize");
+    // The same context and schema as used by SBDMarshaller
+    m_aJAXBContext = JAXBContextCache.getInstance ().getFromCache (StandardBusinessDocument.class);
+    m_aSchema = XMLSchemaCache.getInstance ().getSchema (new SBDMarshaller ().getOriginalXSDs ());
+    m_aPool = new ArrayBlockingQueue <> (nMaxSize);
+  }
+
+  @Nonnull
+  private Unmarshaller _createUnmarshaller () throws JAXBException
+  {
+    final Unmarshaller ret = m_aJAXBContext.createUnmarshaller ();
+    ret.setSchema (m_aSchema);
+    return ret;
+  }
+
+  /**
+   * Read the provided stream as a Standard Business Document, using a pooled
+   * unmarshaller.
+   *
+   * @param aIS
+   *        The input stream to read from. May not be <code>null</code>.
+   * @return <code>null</code> if the content could not be read or is invalid.
+   */
+  @Nullable
+  StandardBusinessDocument read (@Nonnull final InputStream aIS)
+  {
+    ValueEnforcer.notNull (aIS, "InputStream");
+
+    try
+    {
+      Unmarshaller aUnmarshaller = m_aPool.poll ();
+      if (aUnmarshaller == null)
+        aUnmarshaller = _createUnmarshaller ();
+
+      // Secure against XXE
+      final XMLStreamReader aReader = PeppolSBDHHeaderReader.XML_INPUT_FACTORY.createXMLStreamReader (aIS);
+      final StandardBusinessDocument ret;
+      try
+      {
+        ret = aUnmarshaller.unmarshal (aReader, StandardBusinessDocument.class).getValue ();
+      }
+      finally
+      {
+        aReader.close ();
+      }
+
+      // Only unmarshallers without a failure are re-used. If the pool is
+      // full, the unmarshaller is simply discarded.
+      m_aPool.offer (aUnmarshaller);
+      return ret;
+    }
+    catch (final JAXBException | XMLStreamException ex)
+    {
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Failed to read the Standard Business Document", ex);
+      return null;
+    }
+  }
+
+  /**
+   * @return The number of idle unmarshallers in the pool.
+   */
+  @Nonnegative
+  int getIdleCount ()
+  {
+    return m_aPool.size ();
+  }
+}
@@ -0,0 +1,262 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.state.EChange;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+
+/**
+ * A bounded cache for the validators of the different document types. The
+ * validator of a document type is created only once, even if many documents of
+ * that type arrive concurrently - all of them wait for the same creation. If
+ * the cache is full, the validator of the least recently used document type is
+ * evicted. Failed creations are not cached, so the next document of that type
+ * tries again.<br>
+ * Document types without a validator are remembered in a separate set of the
+ * same maximum size, so that many different document types without a
+ * validator cannot evict the existing validators.
+ *
+ * @author Philip Helger
+ * @see AS2PeppolServletConfiguration#setValidatorCache(SBDValidatorCache)
+ */
+@ThreadSafe
+public class SBDValidatorCache
+{
+  public static final int DEFAULT_MAX_SIZE = 100;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (SBDValidatorCache.class);
+
+  /**
+   * Special {@link LinkedHashMap} in access order with a fixed maximum size.
+   */
+  private static final class LRUMap <V> extends LinkedHashMap <String, V>
+  {
+    private final int m_nMaxSize;
+
+    LRUMap (@Nonnegative final int nMaxSize)
+    {
+      super (16, 0.75f, true);
+      m_nMaxSize = nMaxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry (final Map.Entry <String, V> aEldest)
+    {
+      return size () > m_nMaxSize;
+    }
+  }
+
+  private final ISBDValidatorFactory m_aFactory;
+  private final SimpleLock m_aLock = new SimpleLock ();
+  @GuardedBy ("m_aLock")
+  private final LRUMap <CompletableFuture <ISBDValidator>> m_aMap;
+  @GuardedBy ("m_aLock")
+  private final LRUMap <Boolean> m_aNoValidator;
+
+  public SBDValidatorCache (@Nonnull final ISBDValidatorFactory aFactory)
+  {
+    this (aFactory, DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aFactory
+   *        The factory to create the validators. May not be <code>null</code>.
+   * @param nMaxSize
+   *        The maximum number of cached document types. Must be &gt; 0.
+   */
+  public SBDValidatorCache (@Nonnull final ISBDValidatorFactory aFactory, @Nonnegative final int nMaxSize)
+  {
+    ValueEnforcer.notNull (aFactory, "Factory");
+    ValueEnforcer.isGT0 (nMaxSize, "MaxSize");
+    m_aFactory = aFactory;
+    m_aMap = new LRUMap <> (nMaxSize);
+    m_aNoValidator = new LRUMap <> (nMaxSize);
+  }
+
+  /**
+   * @return The factory used to create the validators. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public ISBDValidatorFactory getFactory ()
+  {
+    return m_aFactory;
+  }
+
+  /**
+   * @return The maximum number of cached document types. Always &gt; 0.
+   */
+  @Nonnegative
+  public int getMaxSize ()
+  {
+    return m_aMap.m_nMaxSize;
+  }
+
+  /**
+   * @return The number of currently cached document types, including the ones
+   *         without a validator.
+   */
+  @Nonnegative
+  public int size ()
+  {
+    return m_aLock.lockedInt ( () -> m_aMap.size () + m_aNoValidator.size ());
+  }
+
+  /**
+   * Get the validator for the provided document type, creating it if
+   * necessary.
+   *
+   * @param aDocTypeID
+   *        The document type identifier. May not be <code>null</code>.
+   * @return The validator to use or <code>null</code> if documents of this
+   *         type are not validated.
+   * @throws Exception
+   *         If the validator cannot be created.
+   */
+  @Nullable
+  public ISBDValidator getValidator (@Nonnull final IDocumentTypeIdentifier aDocTypeID) throws Exception
+  {
+    ValueEnforcer.notNull (aDocTypeID, "DocTypeID");
+
+    final String sKey = aDocTypeID.getURIEncoded ();
+    CompletableFuture <ISBDValidator> aFuture;
+    CompletableFuture <ISBDValidator> aNew = null;
+    m_aLock.lock ();
+    try
+    {
+      // Also updates the access order
+      if (m_aNoValidator.get (sKey) != null)
+        return null;
+
+      aFuture = m_aMap.get (sKey);
+      if (aFuture == null)
+      {
+        aNew = new CompletableFuture <> ();
+        m_aMap.put (sKey, aNew);
+        aFuture = aNew;
+      }
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+
+    if (aNew != null)
+    {
+      // Create outside of the lock, as this may take a while
+      final ISBDValidator aValidator;
+      try
+      {
+        aValidator = m_aFactory.createValidator (aDocTypeID);
+      }
+      catch (final Throwable t)
+      {
+        // Also for errors, as otherwise all waiting callers would block forever
+        final CompletableFuture <ISBDValidator> aFailed = aNew;
+        m_aLock.locked ( () -> m_aMap.remove (sKey, aFailed));
+        aNew.completeExceptionally (t);
+        throw t;
+      }
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ((aValidator == null ? "No validator" : "Created validator") +
+                      " for document type '" +
+                      sKey +
+                      "'");
+      if (aValidator == null)
+      {
+        // Don't let document types without validator evict real validators
+        final CompletableFuture <ISBDValidator> aNone = aNew;
+        m_aLock.locked ( () -> {
+          if (m_aMap.remove (sKey, aNone))
+            m_aNoValidator.put (sKey, Boolean.TRUE);
+        });
+      }
+      aNew.complete (aValidator);
+      return aValidator;
+    }
+
+    try
+    {
+      return aFuture.get ();
+    }
+    catch (final ExecutionException ex)
+    {
+      final Throwable aCause = ex.getCause ();
+      if (aCause instanceof Exception)
+        throw (Exception) aCause;
+      if (aCause instanceof Error)
+        throw (Error) aCause;
+      throw ex;
+    }
+  }
+
+  /**
+   * Remove the validator of the provided document type, so that it is created
+   * again for the next document of that type.
+   *
+   * @param aDocTypeID
+   *        The document type identifier. May not be <code>null</code>.
+   * @return {@link EChange}
+   */
+  @Nonnull
+  public EChange invalidate (@Nonnull final IDocumentTypeIdentifier aDocTypeID)
+  {
+    ValueEnforcer.notNull (aDocTypeID, "DocTypeID");
+    final String sKey = aDocTypeID.getURIEncoded ();
+    return m_aLock.lockedGet ( () -> {
+      final boolean bRemovedValidator = m_aMap.remove (sKey) != null;
+      final boolean bRemovedNoValidator = m_aNoValidator.remove (sKey) != null;
+      return EChange.valueOf (bRemovedValidator || bRemovedNoValidator);
+    });
+  }
+
+  /**
+   * Remove all validators.
+   */
+  public void invalidateAll ()
+  {
+    m_aLock.locked ( () -> {
+      m_aMap.clear ();
+      m_aNoValidator.clear ();
+    });
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Factory", m_aFactory).append ("MaxSize", getMaxSize ()).getToString ();
+  }
+}
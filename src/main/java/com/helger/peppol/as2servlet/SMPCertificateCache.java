@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.security.certificate.CertificateHelper;
+
+/**
+ * A bounded cache that maps the certificate strings contained in SMP endpoints
+ * to the parsed certificate incl. its fingerprint. This avoids Base64 decoding
+ * and ASN.1 parsing for every incoming message. If the cache is full, the least
+ * recently used entry is evicted.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class SMPCertificateCache
+{
+  public static final int DEFAULT_MAX_SIZE = 100;
+
+  private final SimpleLock m_aLock = new SimpleLock ();
+  @GuardedBy ("m_aLock")
+  private final Map <String, FingerprintedCertificate> m_aMap;
+
+  public SMPCertificateCache ()
+  {
+    this (DEFAULT_MAX_SIZE);
+  }
+
+  public SMPCertificateCache (@Nonnegative final int nMaxSize)
+  {
+    ValueEnforcer.isGT0 (nMaxSize, "MaxSize");
+    m_aMap = new LinkedHashMap <String, FingerprintedCertificate> (16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry (final Map.Entry <String, FingerprintedCertificate> aEldest)
+      {
+        return size () > nMaxSize;
+      }
+    };
+  }
+
+  /**
+   * Get the parsed certificate for the passed certificate string. The string
+   * is only parsed, if it is not yet in the cache.
+   *
+   * @param sCertString
+   *        The certificate string as contained in the SMP endpoint. May be
+   *        <code>null</code>.
+   * @return <code>null</code> if the passed string is <code>null</code> or
+   *         empty.
+   * @throws CertificateException
+   *         If the string cannot be converted to a certificate
+   */
+  @Nullable
+  public FingerprintedCertificate getOrParse (@Nullable final String sCertString) throws CertificateException
+  {
+    if (sCertString == null)
+      return null;
+
+    FingerprintedCertificate ret = m_aLock.lockedGet ( () -> m_aMap.get (sCertString));
+    if (ret == null)
+    {
+      // Parse outside of the lock - parsing the same string twice is harmless
+      final X509Certificate aCert = CertificateHelper.convertStringToCertficate (sCertString);
+      if (aCert == null)
+        return null;
+
+      ret = FingerprintedCertificate.create (aCert);
+      final FingerprintedCertificate aFinalRet = ret;
+      m_aLock.locked ( () -> m_aMap.put (sCertString, aFinalRet));
+    }
+    return ret;
+  }
+
+  /**
+   * Remove all entries from the cache.
+   */
+  public void clear ()
+  {
+    m_aLock.locked (m_aMap::clear);
+  }
+
+  /**
+   * @return The number of cached certificates.
+   */
+  @Nonnegative
+  public int size ()
+  {
+    return m_aLock.lockedInt (m_aMap::size);
+  }
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.time.Duration;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A simple circuit breaker for a single SMP host. After a number of
+ * consecutive failures the breaker opens and no more calls are permitted. After
+ * the open duration elapsed, a single trial call is permitted. If it succeeds
+ * the breaker closes again, otherwise it is re-opened.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class SMPCircuitBreaker
+{
+  public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+  public static final Duration DEFAULT_OPEN_DURATION = Duration.ofSeconds (30);
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (SMPCircuitBreaker.class);
+
+  private final String m_sHost;
+  private final int m_nFailureThreshold;
+  private final long m_nOpenDurationNanos;
+
+  @GuardedBy ("this")
+  private ECircuitBreakerState m_eState = ECircuitBreakerState.CLOSED;
+  @GuardedBy ("this")
+  private int m_nConsecutiveFailures = 0;
+  @GuardedBy ("this")
+  private long m_nOpenedNanos;
+
+  public SMPCircuitBreaker (@Nonnull @Nonempty final String sHost,
+                            @Nonnegative final int nFailureThreshold,
+                            @Nonnull final Duration aOpenDuration)
+  {
+    ValueEnforcer.notEmpty (sHost, "Host");
+    ValueEnforcer.isGT0 (nFailureThreshold, "FailureThreshold");
+    ValueEnforcer.notNull (aOpenDuration, "OpenDuration");
+    ValueEnforcer.isFalse (aOpenDuration.isNegative (), "OpenDuration may not be negative");
+    m_sHost = sHost;
+    m_nFailureThreshold = nFailureThreshold;
+    m_nOpenDurationNanos = aOpenDuration.toNanos ();
+  }
+
+  /**
+   * @return The SMP host this circuit breaker is responsible for. Neither
+   *         <code>null</code> nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  public String getHost ()
+  {
+    return m_sHost;
+  }
+
+  /**
+   * @return The current state. Never <code>null</code>.
+   */
+  @Nonnull
+  public synchronized ECircuitBreakerState getState ()
+  {
+    return m_eState;
+  }
+
+  /**
+   * Check if a call is currently permitted. If the breaker is open and the
+   * open duration elapsed, this method switches to half-open and permits
+   * exactly one trial call. The outcome of every permitted call must be
+   * reported via {@link #onSuccess()} or {@link #onFailure()}.
+   *
+   * @return <code>true</code> if the SMP may be called, <code>false</code> if
+   *         the call should fail fast.
+   */
+  public synchronized boolean isCallPermitted ()
+  {
+    switch (m_eState)
+    {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (System.nanoTime () - m_nOpenedNanos >= m_nOpenDurationNanos)
+        {
+          m_eState = ECircuitBreakerState.HALF_OPEN;
+          if (LOGGER.isDebugEnabled ())
+            LOGGER.debug ("Circuit breaker for SMP '" + m_sHost + "' is now half-open");
+          return true;
+        }
+        return false;
+      default:
+        // Half-open: the trial call is already in progress
+        return false;
+    }
+  }
+
+  /**
+   * Report a successful call.
+   */
+  public synchronized void onSuccess ()
+  {
+    if (m_eState != ECircuitBreakerState.CLOSED)
+      LOGGER.info ("Circuit breaker for SMP '" + m_sHost + "' is closed again");
+    m_eState = ECircuitBreakerState.CLOSED;
+    m_nConsecutiveFailures = 0;
+  }
+
+  /**
+   * Report a failed call. This includes calls that took longer than the
+   * configured lookup timeout.
+   */
+  public synchronized void onFailure ()
+  {
+    m_nConsecutiveFailures++;
+    if (m_eState == ECircuitBreakerState.HALF_OPEN ||
+        (m_eState == ECircuitBreakerState.CLOSED && m_nConsecutiveFailures >= m_nFailureThreshold))
+    {
+      LOGGER.warn ("Circuit breaker for SMP '" +
+                   m_sHost +
+                   "' is now open after " +
+                   m_nConsecutiveFailures +
+                   " consecutive failures");
+      m_eState = ECircuitBreakerState.OPEN;
+      m_nOpenedNanos = System.nanoTime ();
+    }
+  }
+
+  @Override
+  public synchronized String toString ()
+  {
+    return new ToStringGenerator (this).append ("Host", m_sHost)
+                                       .append ("FailureThreshold", m_nFailureThreshold)
+                                       .append ("OpenDurationNanos", m_nOpenDurationNanos)
+                                       .append ("State", m_eState)
+                                       .append ("ConsecutiveFailures", m_nConsecutiveFailures)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,417 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsLinkedHashMap;
+import com.helger.commons.collection.impl.ICommonsOrderedMap;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.state.EChange;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.smpclient.peppol.jaxb.EndpointType;
+
+/**
+ * A bounded cache for the results of SMP endpoint lookups. Each entry has a
+ * time to live after which it is no longer returned. If the cache is full, the
+ * least recently used entry is evicted. Lookups that did not find an endpoint
+ * are cached as well ("negative caching") but with a separate time to live.
+ * Expired entries with an endpoint are kept for an additional "max stale"
+ * period so that they can be used as a fallback if the SMP is not reachable.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class SMPEndpointCache
+{
+  public static final int DEFAULT_MAX_SIZE = 1000;
+  public static final Duration DEFAULT_TTL = Duration.ofMinutes (10);
+  public static final Duration DEFAULT_NEGATIVE_TTL = Duration.ofMinutes (1);
+  public static final Duration DEFAULT_MAX_STALE = Duration.ofHours (1);
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (SMPEndpointCache.class);
+
+  /**
+   * Special {@link LinkedHashMap} in access order with a variable maximum
+   * size.
+   */
+  private static final class LRUMap extends LinkedHashMap <SMPEndpointCacheKey, SMPEndpointCacheEntry>
+  {
+    private int m_nMaxSize;
+
+    LRUMap (@Nonnegative final int nMaxSize)
+    {
+      super (16, 0.75f, true);
+      m_nMaxSize = nMaxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry (final Map.Entry <SMPEndpointCacheKey, SMPEndpointCacheEntry> aEldest)
+    {
+      return size () > m_nMaxSize;
+    }
+  }
+
+  private final SimpleLock m_aLock = new SimpleLock ();
+  @GuardedBy ("m_aLock")
+  private final LRUMap m_aMap = new LRUMap (DEFAULT_MAX_SIZE);
+  private volatile Duration m_aTTL = DEFAULT_TTL;
+  private volatile Duration m_aNegativeTTL = DEFAULT_NEGATIVE_TTL;
+  private volatile Duration m_aMaxStale = DEFAULT_MAX_STALE;
+
+  public SMPEndpointCache ()
+  {}
+
+  /**
+   * @return The maximum number of entries in this cache. Always &gt; 0.
+   */
+  @Nonnegative
+  public int getMaxSize ()
+  {
+    return m_aLock.lockedInt ( () -> m_aMap.m_nMaxSize);
+  }
+
+  /**
+   * Set the maximum number of entries. If the cache currently contains more
+   * entries, the least recently used ones are evicted.
+   *
+   * @param nMaxSize
+   *        The maximum number of entries. Must be &gt; 0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public SMPEndpointCache setMaxSize (@Nonnegative final int nMaxSize)
+  {
+    ValueEnforcer.isGT0 (nMaxSize, "MaxSize");
+    m_aLock.locked ( () -> {
+      m_aMap.m_nMaxSize = nMaxSize;
+      // Shrink if necessary - the iterator is in LRU order
+      while (m_aMap.size () > nMaxSize)
+      {
+        m_aMap.remove (m_aMap.keySet ().iterator ().next ());
+      }
+    });
+    return this;
+  }
+
+  /**
+   * @return The time to live for positive entries. Never <code>null</code>.
+   */
+  @Nonnull
+  public Duration getTTL ()
+  {
+    return m_aTTL;
+  }
+
+  /**
+   * Set the time to live for entries with an endpoint. Only affects entries
+   * added after the call.
+   *
+   * @param aTTL
+   *        The time to live. May not be <code>null</code> and must be
+   *        positive.
+   * @return this for chaining
+   */
+  @Nonnull
+  public SMPEndpointCache setTTL (@Nonnull final Duration aTTL)
+  {
+    ValueEnforcer.notNull (aTTL, "TTL");
+    ValueEnforcer.isFalse (aTTL.isNegative () || aTTL.isZero (), "TTL must be positive");
+    m_aTTL = aTTL;
+    return this;
+  }
+
+  /**
+   * @return The time to live for negative entries. Never <code>null</code>.
+   */
+  @Nonnull
+  public Duration getNegativeTTL ()
+  {
+    return m_aNegativeTTL;
+  }
+
+  /**
+   * Set the time to live for entries without an endpoint. Only affects entries
+   * added after the call. Use {@link Duration#ZERO} to disable negative
+   * caching.
+   *
+   * @param aNegativeTTL
+   *        The time to live. May not be <code>null</code> and may not be
+   *        negative.
+   * @return this for chaining
+   */
+  @Nonnull
+  public SMPEndpointCache setNegativeTTL (@Nonnull final Duration aNegativeTTL)
+  {
+    ValueEnforcer.notNull (aNegativeTTL, "NegativeTTL");
+    ValueEnforcer.isFalse (aNegativeTTL.isNegative (), "NegativeTTL may not be negative");
+    m_aNegativeTTL = aNegativeTTL;
+    return this;
+  }
+
+  /**
+   * @return The duration for which expired entries are kept as fallback. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public Duration getMaxStale ()
+  {
+    return m_aMaxStale;
+  }
+
+  /**
+   * Set the duration after expiration for which entries with an endpoint are
+   * still available via {@link #getStaleIfPresent(SMPEndpointCacheKey)}. Use
+   * {@link Duration#ZERO} to disable stale entries.
+   *
+   * @param aMaxStale
+   *        The maximum staleness. May not be <code>null</code> and may not be
+   *        negative.
+   * @return this for chaining
+   */
+  @Nonnull
+  public SMPEndpointCache setMaxStale (@Nonnull final Duration aMaxStale)
+  {
+    ValueEnforcer.notNull (aMaxStale, "MaxStale");
+    ValueEnforcer.isFalse (aMaxStale.isNegative (), "MaxStale may not be negative");
+    m_aMaxStale = aMaxStale;
+    return this;
+  }
+
+  private boolean _isBeyondMaxStale (@Nonnull final SMPEndpointCacheEntry aEntry, final long nNow)
+  {
+    return aEntry.isNegative () || nNow - aEntry.getExpirationNanos () >= m_aMaxStale.toNanos ();
+  }
+
+  /**
+   * Get the non-expired cache entry for the provided key.
+   *
+   * @param aKey
+   *        The key to search. May not be <code>null</code>.
+   * @return <code>null</code> if no such entry is present or if the entry is
+   *         expired.
+   */
+  @Nullable
+  public SMPEndpointCacheEntry getIfPresent (@Nonnull final SMPEndpointCacheKey aKey)
+  {
+    ValueEnforcer.notNull (aKey, "Key");
+
+    final long nNow = System.nanoTime ();
+    return m_aLock.lockedGet ( () -> {
+      final SMPEndpointCacheEntry aEntry = m_aMap.get (aKey);
+      if (aEntry == null)
+        return null;
+      if (aEntry.isExpired (nNow))
+      {
+        // Keep it as a fallback as long as possible
+        if (_isBeyondMaxStale (aEntry, nNow))
+          m_aMap.remove (aKey);
+        return null;
+      }
+      return aEntry;
+    });
+  }
+
+  /**
+   * Get an expired cache entry with an endpoint for the provided key, as long
+   * as it is not older than the configured maximum staleness. This is meant to
+   * be used as a fallback if the SMP cannot be queried.
+   *
+   * @param aKey
+   *        The key to search. May not be <code>null</code>.
+   * @return <code>null</code> if no such entry is present, if the entry is not
+   *         yet expired, if it is a negative entry or if it is too old.
+   * @see #getIfPresent(SMPEndpointCacheKey)
+   */
+  @Nullable
+  public SMPEndpointCacheEntry getStaleIfPresent (@Nonnull final SMPEndpointCacheKey aKey)
+  {
+    ValueEnforcer.notNull (aKey, "Key");
+
+    final long nNow = System.nanoTime ();
+    return m_aLock.lockedGet ( () -> {
+      final SMPEndpointCacheEntry aEntry = m_aMap.get (aKey);
+      if (aEntry == null || !aEntry.isExpired (nNow))
+        return null;
+      if (_isBeyondMaxStale (aEntry, nNow))
+      {
+        m_aMap.remove (aKey);
+        return null;
+      }
+      return aEntry;
+    });
+  }
+
+  /**
+   * Add a new lookup result to the cache.
+   *
+   * @param aKey
+   *        The key to use. May not be <code>null</code>.
+   * @param aEndpoint
+   *        The endpoint to be cached. May be <code>null</code> to indicate
+   *        that no endpoint was found.
+   */
+  public void put (@Nonnull final SMPEndpointCacheKey aKey, @Nullable final EndpointType aEndpoint)
+  {
+    ValueEnforcer.notNull (aKey, "Key");
+
+    final Duration aTTL = aEndpoint != null ? m_aTTL : m_aNegativeTTL;
+    if (aTTL.isZero ())
+      return;
+
+    final SMPEndpointCacheEntry aEntry = new SMPEndpointCacheEntry (aEndpoint, System.nanoTime () + aTTL.toNanos ());
+    m_aLock.locked ( () -> m_aMap.put (aKey, aEntry));
+  }
+
+  /**
+   * Add an existing entry to the cache, keeping its expiration, unless the
+   * cache already contains an entry for the key. This is meant to restore
+   * entries from a snapshot without replacing fresher lookup results.
+   *
+   * @param aKey
+   *        The key to use. May not be <code>null</code>.
+   * @param aEntry
+   *        The entry to be cached. May not be <code>null</code>.
+   * @return {@link EChange#UNCHANGED} if the cache already contains an entry
+   *         for the key.
+   * @see SMPEndpointSnapshot
+   */
+  @Nonnull
+  public EChange putEntryIfAbsent (@Nonnull final SMPEndpointCacheKey aKey, @Nonnull final SMPEndpointCacheEntry aEntry)
+  {
+    ValueEnforcer.notNull (aKey, "Key");
+    ValueEnforcer.notNull (aEntry, "Entry");
+
+    return EChange.valueOf (m_aLock.lockedGet ( () -> m_aMap.putIfAbsent (aKey, aEntry)) == null);
+  }
+
+  /**
+   * @return A copy of all entries with an endpoint, including expired entries
+   *         that are still usable as a fallback, from the least to the most
+   *         recently used one. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsOrderedMap <SMPEndpointCacheKey, SMPEndpointCacheEntry> getAllPositiveEntries ()
+  {
+    final long nNow = System.nanoTime ();
+    return m_aLock.lockedGet ( () -> {
+      final ICommonsOrderedMap <SMPEndpointCacheKey, SMPEndpointCacheEntry> ret = new CommonsLinkedHashMap <> ();
+      for (final Map.Entry <SMPEndpointCacheKey, SMPEndpointCacheEntry> aEntry : m_aMap.entrySet ())
+        if (!_isBeyondMaxStale (aEntry.getValue (), nNow))
+          ret.put (aEntry.getKey (), aEntry.getValue ());
+      return ret;
+    });
+  }
+
+  /**
+   * Remove a single entry from the cache.
+   *
+   * @param aKey
+   *        The key to be removed. May be <code>null</code>.
+   * @return {@link EChange}
+   */
+  @Nonnull
+  public EChange invalidate (@Nullable final SMPEndpointCacheKey aKey)
+  {
+    if (aKey == null)
+      return EChange.UNCHANGED;
+    return EChange.valueOf (m_aLock.lockedGet ( () -> m_aMap.remove (aKey)) != null);
+  }
+
+  /**
+   * Remove all entries of the provided SMP from the cache, e.g. because a
+   * different SMP client is used from now on.
+   *
+   * @param sSMPHost
+   *        The SMP host as used in {@link SMPEndpointCacheKey#getSMPHost()}.
+   *        May be <code>null</code>.
+   * @return {@link EChange}
+   */
+  @Nonnull
+  public EChange invalidateAllOfSMPHost (@Nullable final String sSMPHost)
+  {
+    if (sSMPHost == null)
+      return EChange.UNCHANGED;
+    final int nRemoved = m_aLock.lockedInt ( () -> {
+      int ret = 0;
+      final Iterator <SMPEndpointCacheKey> it = m_aMap.keySet ().iterator ();
+      while (it.hasNext ())
+        if (it.next ().getSMPHost ().equals (sSMPHost))
+        {
+          it.remove ();
+          ret++;
+        }
+      return ret;
+    });
+    if (nRemoved > 0 && LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Removed " + nRemoved + " entries of SMP '" + sSMPHost + "' from the SMP endpoint cache");
+    return EChange.valueOf (nRemoved > 0);
+  }
+
+  /**
+   * Remove all entries from the cache.
+   *
+   * @return {@link EChange}
+   */
+  @Nonnull
+  public EChange invalidateAll ()
+  {
+    final int nRemoved = m_aLock.lockedInt ( () -> {
+      final int ret = m_aMap.size ();
+      m_aMap.clear ();
+      return ret;
+    });
+    if (nRemoved > 0 && LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Removed " + nRemoved + " entries from the SMP endpoint cache");
+    return EChange.valueOf (nRemoved > 0);
+  }
+
+  /**
+   * @return The number of entries currently in the cache, including expired
+   *         entries that were not yet removed.
+   */
+  @Nonnegative
+  public int size ()
+  {
+    return m_aLock.lockedInt (m_aMap::size);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("MaxSize", getMaxSize ())
+                                       .append ("TTL", m_aTTL)
+                                       .append ("NegativeTTL", m_aNegativeTTL)
+                                       .append ("MaxStale", m_aMaxStale)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.smpclient.peppol.jaxb.EndpointType;
+
+/**
+ * A single entry of the {@link SMPEndpointCache}. An entry without an endpoint
+ * is a "negative" entry, meaning that the SMP lookup was successful but no
+ * matching endpoint was found.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class SMPEndpointCacheEntry
+{
+  private final EndpointType m_aEndpoint;
+  private final long m_nExpirationNanos;
+
+  public SMPEndpointCacheEntry (@Nullable final EndpointType aEndpoint, final long nExpirationNanos)
+  {
+    m_aEndpoint = aEndpoint;
+    m_nExpirationNanos = nExpirationNanos;
+  }
+
+  /**
+   * @return The cached endpoint. May be <code>null</code> for negative
+   *         entries.
+   */
+  @Nullable
+  public EndpointType getEndpoint ()
+  {
+    return m_aEndpoint;
+  }
+
+  /**
+   * @return <code>true</code> if this entry represents a lookup without a
+   *         result, <code>false</code> if an endpoint is present.
+   */
+  public boolean isNegative ()
+  {
+    return m_aEndpoint == null;
+  }
+
+  /**
+   * @return The point in time (as in {@link System#nanoTime()}) after which
+   *         this entry is expired.
+   */
+  public long getExpirationNanos ()
+  {
+    return m_nExpirationNanos;
+  }
+
+  /**
+   * @param nNowNanos
+   *        The current point in time as in {@link System#nanoTime()}.
+   * @return <code>true</code> if this entry is expired at the provided point in
+   *         time.
+   */
+  public boolean isExpired (final long nNowNanos)
+  {
+    return nNowNanos - m_nExpirationNanos >= 0;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("Negative", isNegative ())
+                                       .append ("ExpirationNanos", m_nExpirationNanos)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.hashcode.HashCodeGenerator;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.peppol.smp.ISMPTransportProfile;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+
+/**
+ * The key of an {@link SMPEndpointCache} entry. It consists of all the
+ * parameters that are relevant for an SMP endpoint lookup, including the SMP
+ * that is queried, so that results of different SMPs (e.g. of different
+ * tenants) are never mixed up. Equality is based on the URI encoded identifier
+ * values so that different identifier implementations with the same content
+ * are considered equal.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class SMPEndpointCacheKey
+{
+  private final IParticipantIdentifier m_aParticipantID;
+  private final IDocumentTypeIdentifier m_aDocTypeID;
+  private final IProcessIdentifier m_aProcessID;
+  private final ISMPTransportProfile m_aTransportProfile;
+  private final String m_sSMPHost;
+  // Status vars
+  private final String m_sParticipantID;
+  private final String m_sDocTypeID;
+  private final String m_sProcessID;
+  private int m_nHashCode = HashCodeGenerator.ILLEGAL_HASHCODE;
+
+  /**
+   * Constructor
+   *
+   * @param aParticipantID
+   *        The participant to look up. May not be <code>null</code>.
+   * @param aDocTypeID
+   *        The document type to look up. May not be <code>null</code>.
+   * @param aProcessID
+   *        The process to look up. May not be <code>null</code>.
+   * @param aTransportProfile
+   *        The transport profile to look up. May not be <code>null</code>.
+   * @param sSMPHost
+   *        The SMP that is queried. May neither be <code>null</code> nor
+   *        empty.
+   * @see SMPEndpointResolver#getSMPHost(com.helger.smpclient.peppol.ISMPServiceMetadataProvider)
+   */
+  public SMPEndpointCacheKey (@Nonnull final IParticipantIdentifier aParticipantID,
+                              @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                              @Nonnull final IProcessIdentifier aProcessID,
+                              @Nonnull final ISMPTransportProfile aTransportProfile,
+                              @Nonnull @Nonempty final String sSMPHost)
+  {
+    ValueEnforcer.notNull (aParticipantID, "ParticipantID");
+    ValueEnforcer.notNull (aDocTypeID, "DocTypeID");
+    ValueEnforcer.notNull (aProcessID, "ProcessID");
+    ValueEnforcer.notNull (aTransportProfile, "TransportProfile");
+    ValueEnforcer.notEmpty (sSMPHost, "SMPHost");
+    m_aParticipantID = aParticipantID;
+    m_aDocTypeID = aDocTypeID;
+    m_aProcessID = aProcessID;
+    m_aTransportProfile = aTransportProfile;
+    m_sSMPHost = sSMPHost;
+    m_sParticipantID = aParticipantID.getURIEncoded ();
+    m_sDocTypeID = aDocTypeID.getURIEncoded ();
+    m_sProcessID = aProcessID.getURIEncoded ();
+  }
+
+  @Nonnull
+  public IParticipantIdentifier getParticipantID ()
+  {
+    return m_aParticipantID;
+  }
+
+  @Nonnull
+  public IDocumentTypeIdentifier getDocTypeID ()
+  {
+    return m_aDocTypeID;
+  }
+
+  @Nonnull
+  public IProcessIdentifier getProcessID ()
+  {
+    return m_aProcessID;
+  }
+
+  @Nonnull
+  public ISMPTransportProfile getTransportProfile ()
+  {
+    return m_aTransportProfile;
+  }
+
+  /**
+   * @return The SMP that is queried. Neither <code>null</code> nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  public String getSMPHost ()
+  {
+    return m_sSMPHost;
+  }
+
+  @Override
+  public boolean equals (final Object o)
+  {
+    if (o == this)
+      return true;
+    if (o == null || !getClass ().equals (o.getClass ()))
+      return false;
+    final SMPEndpointCacheKey rhs = (SMPEndpointCacheKey) o;
+    return m_sParticipantID.equals (rhs.m_sParticipantID) &&
+           m_sDocTypeID.equals (rhs.m_sDocTypeID) &&
+           m_sProcessID.equals (rhs.m_sProcessID) &&
+           m_aTransportProfile.getID ().equals (rhs.m_aTransportProfile.getID ()) &&
+           m_sSMPHost.equals (rhs.m_sSMPHost);
+  }
+
+  @Override
+  public int hashCode ()
+  {
+    int ret = m_nHashCode;
+    if (ret == HashCodeGenerator.ILLEGAL_HASHCODE)
+      ret = m_nHashCode = new HashCodeGenerator (this).append (m_sParticipantID)
+                                                      .append (m_sDocTypeID)
+                                                      .append (m_sProcessID)
+                                                      .append (m_aTransportProfile.getID ())
+                                                      .append (m_sSMPHost)
+                                                      .getHashCode ();
+    return ret;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("ParticipantID", m_sParticipantID)
+                                       .append ("DocTypeID", m_sDocTypeID)
+                                       .append ("ProcessID", m_sProcessID)
+                                       .append ("TransportProfile", m_aTransportProfile.getID ())
+                                       .append ("SMPHost", m_sSMPHost)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,514 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as2lib.exception.AS2Exception;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.smpclient.peppol.ISMPServiceMetadataProvider;
+import com.helger.smpclient.peppol.SMPClientReadOnly;
+import com.helger.smpclient.peppol.jaxb.EndpointType;
+
+/**
+ * The resilience layer in front of {@link ISMPServiceMetadataProvider} used for
+ * the receiver checks. It combines the following aspects:
+ * <ul>
+ * <li>The {@link SMPEndpointCache} from
+ * {@link AS2PeppolServletConfiguration#getEndpointCache()}</li>
+ * <li>Coalescing of concurrent identical lookups</li>
+ * <li>Serving stale cache entries while they are refreshed in the
+ * background</li>
+ * <li>A deadline for each lookup, so that slow SMPs don't block the calling
+ * thread for the full HTTP timeout</li>
+ * <li>A circuit breaker per SMP host that fails fast (or falls back to stale
+ * data) if the SMP is degraded</li>
+ * </ul>
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class SMPEndpointResolver implements AutoCloseable
+{
+  public static final int DEFAULT_LOOKUP_THREADS = 8;
+  public static final int DEFAULT_LOOKUP_QUEUE_SIZE = 256;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (SMPEndpointResolver.class);
+
+  private final SMPLookupCoalescer m_aCoalescer = new SMPLookupCoalescer ();
+  private final ConcurrentMap <String, SMPCircuitBreaker> m_aCircuitBreakers = new ConcurrentHashMap <> ();
+  private final ExecutorService m_aLookupExecutor;
+
+  public SMPEndpointResolver ()
+  {
+    this (DEFAULT_LOOKUP_THREADS, DEFAULT_LOOKUP_QUEUE_SIZE);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param nLookupThreads
+   *        The maximum number of SMP lookups that run in parallel. Must be
+   *        &gt; 0.
+   * @param nLookupQueueSize
+   *        The maximum number of SMP lookups that wait for execution. If the
+   *        queue is full, new lookups fail immediately. Must be &gt; 0.
+   */
+  public SMPEndpointResolver (@Nonnegative final int nLookupThreads, @Nonnegative final int nLookupQueueSize)
+  {
+    this (_createLookupExecutor (nLookupThreads, nLookupQueueSize));
+  }
+
+  /**
+   * Constructor with a custom executor for testing.
+   *
+   * @param aLookupExecutor
+   *        The executor to run the SMP lookups in. May not be
+   *        <code>null</code>.
+   */
+  SMPEndpointResolver (@Nonnull final ExecutorService aLookupExecutor)
+  {
+    ValueEnforcer.notNull (aLookupExecutor, "LookupExecutor");
+    m_aLookupExecutor = aLookupExecutor;
+  }
+
+  @Nonnull
+  private static ExecutorService _createLookupExecutor (@Nonnegative final int nLookupThreads,
+                                                        @Nonnegative final int nLookupQueueSize)
+  {
+    ValueEnforcer.isGT0 (nLookupThreads, "LookupThreads");
+    ValueEnforcer.isGT0 (nLookupQueueSize, "LookupQueueSize");
+    final ThreadPoolExecutor aExecutor = new ThreadPoolExecutor (nLookupThreads,
+                                                                 nLookupThreads,
+                                                                 60,
+                                                                 TimeUnit.SECONDS,
+                                                                 new LinkedBlockingQueue <> (nLookupQueueSize),
+                                                                 new BasicThreadFactory.Builder ().setNamingPattern ("as2-peppol-smp-lookup-%d")
+                                                                                                  .setDaemon (true)
+                                                                                                  .build (),
+                                                                 new ThreadPoolExecutor.AbortPolicy ());
+    aExecutor.allowCoreThreadTimeOut (true);
+    return aExecutor;
+  }
+
+  /**
+   * Get the identifier of the SMP host queried by the provided client. This is
+   * used as the key for the circuit breakers and is part of the
+   * {@link SMPEndpointCacheKey}.
+   *
+   * @param aSMPClient
+   *        The SMP client. May not be <code>null</code>.
+   * @return The SMP host URI or, if the host is unknown, the class name and
+   *         identity of the client instance. Neither <code>null</code> nor
+   *         empty.
+   */
+  @Nonnull
+  @Nonempty
+  public static String getSMPHost (@Nonnull final ISMPServiceMetadataProvider aSMPClient)
+  {
+    if (aSMPClient instanceof SMPClientReadOnly)
+      return ((SMPClientReadOnly) aSMPClient).getSMPHostURI ();
+    // Different instances may query different SMPs
+    return aSMPClient.getClass ().getName () + "@" + Integer.toHexString (System.identityHashCode (aSMPClient));
+  }
+
+  /**
+   * Get or create the circuit breaker for the SMP queried by the provided
+   * client.
+   *
+   * @param aSMPClient
+   *        The SMP client. May not be <code>null</code>.
+   * @return The circuit breaker. Never <code>null</code>.
+   */
+  @Nonnull
+  public SMPCircuitBreaker getCircuitBreaker (@Nonnull final ISMPServiceMetadataProvider aSMPClient)
+  {
+    ValueEnforcer.notNull (aSMPClient, "SMPClient");
+    return m_aCircuitBreakers.computeIfAbsent (getSMPHost (aSMPClient),
+                                               k -> new SMPCircuitBreaker (k,
+                                                                           AS2PeppolServletConfiguration.getSMPCircuitBreakerFailureThreshold (),
+                                                                           AS2PeppolServletConfiguration.getSMPCircuitBreakerOpenDuration ()));
+  }
+
+  @Nonnull
+  private CompletableFuture <EndpointType> _lookupAsync (@Nonnull final Supplier <String> aLogPrefix,
+                                                         @Nonnull final ISMPServiceMetadataProvider aSMPClient,
+                                                         @Nonnull final SMPEndpointCacheKey aKey,
+                                                         @Nonnull final SMPCircuitBreaker aCircuitBreaker,
+                                                         final boolean bUseCache)
+  {
+    final long nTimeoutNanos = AS2PeppolServletConfiguration.getSMPLookupTimeout ().toNanos ();
+
+    // Only the caller that starts the lookup submits it to the executor, so a
+    // rejection is reported once and not by every caller that joined the
+    // lookup. It must be reported, as the permit may be the half-open trial
+    // call.
+    final Executor aExecutor = aTask -> {
+      try
+      {
+        m_aLookupExecutor.execute (aTask);
+      }
+      catch (final RejectedExecutionException ex)
+      {
+        LOGGER.warn (aLogPrefix.get () + "The SMP lookup of " + aKey + " was rejected - too many pending lookups");
+        aCircuitBreaker.onFailure ();
+        throw ex;
+      }
+    };
+    return m_aCoalescer.lookupAsync (aKey, () -> {
+      if (LOGGER.isDebugEnabled ())
+      {
+        LOGGER.debug (aLogPrefix.get () +
+                      "Looking up the endpoint of recipient " +
+                      aKey.getParticipantID ().getURIEncoded () +
+                      " for " +
+                      aKey.getDocTypeID ().getURIEncoded () +
+                      " and " +
+                      aKey.getProcessID ().getURIEncoded () +
+                      " and " +
+                      aKey.getTransportProfile ());
+      }
+
+      final long nStart = System.nanoTime ();
+      try
+      {
+        // Query the SMP
+        final EndpointType aEndpoint = aSMPClient.getEndpoint (aKey.getParticipantID (),
+                                                               aKey.getDocTypeID (),
+                                                               aKey.getProcessID (),
+                                                               aKey.getTransportProfile ());
+
+        // Remember positive and negative results before the waiting callers
+        // are released
+        if (bUseCache)
+          AS2PeppolServletConfiguration.getEndpointCache ().put (aKey, aEndpoint);
+
+        final long nDuration = System.nanoTime () - nStart;
+        AS2PeppolServletConfiguration.getMetrics ().onStage (EAS2ReceiveStage.SMP_QUERY, nDuration, true);
+
+        // A successful answer that took too long is still a failure for the
+        // circuit breaker
+        if (nDuration > nTimeoutNanos)
+          aCircuitBreaker.onFailure ();
+        else
+          aCircuitBreaker.onSuccess ();
+        return aEndpoint;
+      }
+      catch (final Exception ex)
+      {
+        AS2PeppolServletConfiguration.getMetrics ()
+                                     .onStage (EAS2ReceiveStage.SMP_QUERY, System.nanoTime () - nStart, false);
+        aCircuitBreaker.onFailure ();
+        throw ex;
+      }
+    }, aExecutor);
+  }
+
+  @Nonnull
+  private static EndpointType _useStale (@Nonnull final Supplier <String> aLogPrefix,
+                                         @Nonnull final SMPEndpointCacheEntry aStaleEntry,
+                                         @Nonnull final String sReason)
+  {
+    LOGGER.warn (aLogPrefix.get () + sReason + " - using the last known SMP endpoint instead");
+    return aStaleEntry.getEndpoint ();
+  }
+
+  /**
+   * A started endpoint lookup. The result is retrieved via {@link #get()}. The
+   * lookup deadline starts when the lookup is started, so that work done by
+   * the caller in between is not added to the deadline. The log prefix is
+   * only evaluated if a message is logged or an error occurs.
+   *
+   * @author Philip Helger
+   */
+  public static final class PendingLookup
+  {
+    private final Supplier <String> m_aLogPrefix;
+    private final SMPEndpointCacheKey m_aKey;
+    private final EndpointType m_aResult;
+    private final AS2Exception m_aError;
+    private final CompletableFuture <EndpointType> m_aFuture;
+    private final SMPEndpointCacheEntry m_aStaleEntry;
+    private final long m_nStartNanos;
+    private final Duration m_aTimeout;
+
+    private PendingLookup (@Nonnull final Supplier <String> aLogPrefix,
+                           @Nonnull final SMPEndpointCacheKey aKey,
+                           @Nullable final EndpointType aResult,
+                           @Nullable final AS2Exception aError,
+                           @Nullable final CompletableFuture <EndpointType> aFuture,
+                           @Nullable final SMPEndpointCacheEntry aStaleEntry,
+                           @Nullable final Duration aTimeout)
+    {
+      m_aLogPrefix = aLogPrefix;
+      m_aKey = aKey;
+      m_aResult = aResult;
+      m_aError = aError;
+      m_aFuture = aFuture;
+      m_aStaleEntry = aStaleEntry;
+      m_nStartNanos = System.nanoTime ();
+      m_aTimeout = aTimeout;
+    }
+
+    @Nonnull
+    static PendingLookup createDone (@Nonnull final Supplier <String> aLogPrefix,
+                                     @Nonnull final SMPEndpointCacheKey aKey,
+                                     @Nullable final EndpointType aResult)
+    {
+      return new PendingLookup (aLogPrefix, aKey, aResult, null, null, null, null);
+    }
+
+    @Nonnull
+    static PendingLookup createFailed (@Nonnull final Supplier <String> aLogPrefix,
+                                       @Nonnull final SMPEndpointCacheKey aKey,
+                                       @Nonnull final AS2Exception aError)
+    {
+      return new PendingLookup (aLogPrefix, aKey, null, aError, null, null, null);
+    }
+
+    @Nonnull
+    static PendingLookup createRunning (@Nonnull final Supplier <String> aLogPrefix,
+                                        @Nonnull final SMPEndpointCacheKey aKey,
+                                        @Nonnull final CompletableFuture <EndpointType> aFuture,
+                                        @Nullable final SMPEndpointCacheEntry aStaleEntry,
+                                        @Nonnull final Duration aTimeout)
+    {
+      return new PendingLookup (aLogPrefix, aKey, null, null, aFuture, aStaleEntry, aTimeout);
+    }
+
+    /**
+     * Wait for the result of the lookup.
+     *
+     * @return The resolved endpoint or <code>null</code> if the SMP has no
+     *         matching endpoint.
+     * @throws AS2Exception
+     *         If the SMP could not be queried within the deadline and no stale
+     *         entry is available.
+     */
+    @Nullable
+    public EndpointType get () throws AS2Exception
+    {
+      if (m_aError != null)
+        throw m_aError;
+      if (m_aFuture == null)
+        return m_aResult;
+
+      try
+      {
+        final long nRemainingNanos = m_aTimeout.toNanos () - (System.nanoTime () - m_nStartNanos);
+        return m_aFuture.get (Math.max (nRemainingNanos, 0), TimeUnit.NANOSECONDS);
+      }
+      catch (final TimeoutException ex)
+      {
+        final String sMsg = "The SMP lookup did not finish within " + m_aTimeout.toMillis () + " milliseconds";
+        if (m_aStaleEntry != null)
+          return _useStale (m_aLogPrefix, m_aStaleEntry, sMsg);
+        throw new AS2Exception (m_aLogPrefix.get () + sMsg, ex);
+      }
+      catch (final ExecutionException ex)
+      {
+        if (m_aStaleEntry != null)
+          return _useStale (m_aLogPrefix, m_aStaleEntry, "The SMP lookup failed");
+        throw new AS2Exception (m_aLogPrefix.get () +
+                                "Failed to retrieve endpoint of recipient " +
+                                m_aKey.getParticipantID ().getURIEncoded (),
+                                ex.getCause ());
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+        throw new AS2Exception (m_aLogPrefix.get () + "Interrupted while waiting for the SMP lookup", ex);
+      }
+    }
+  }
+
+  /**
+   * Start resolving the endpoint for the provided key without waiting for the
+   * result. This allows the caller to do other work (e.g. parsing the payload)
+   * while the SMP is queried.
+   *
+   * @param sLogPrefix
+   *        Log prefix. May not be <code>null</code>.
+   * @param aSMPClient
+   *        The SMP client to use. May not be <code>null</code>.
+   * @param aKey
+   *        The lookup key. May not be <code>null</code>.
+   * @return The pending lookup. Never <code>null</code>.
+   */
+  @Nonnull
+  public PendingLookup startLookup (@Nonnull final String sLogPrefix,
+                                    @Nonnull final ISMPServiceMetadataProvider aSMPClient,
+                                    @Nonnull final SMPEndpointCacheKey aKey)
+  {
+    return startLookup ( () -> sLogPrefix, aSMPClient, aKey);
+  }
+
+  /**
+   * Start resolving the endpoint for the provided key without waiting for the
+   * result.
+   *
+   * @param aLogPrefix
+   *        Supplier for the log prefix. It is only invoked if a message is
+   *        logged or an error occurs. May not be <code>null</code>.
+   * @param aSMPClient
+   *        The SMP client to use. May not be <code>null</code>.
+   * @param aKey
+   *        The lookup key. May not be <code>null</code>.
+   * @return The pending lookup. Never <code>null</code>.
+   */
+  @Nonnull
+  public PendingLookup startLookup (@Nonnull final Supplier <String> aLogPrefix,
+                                    @Nonnull final ISMPServiceMetadataProvider aSMPClient,
+                                    @Nonnull final SMPEndpointCacheKey aKey)
+  {
+    final boolean bUseCache = AS2PeppolServletConfiguration.isEndpointCacheEnabled ();
+    SMPEndpointCacheEntry aStaleEntry = null;
+    if (bUseCache)
+    {
+      final SMPEndpointCache aCache = AS2PeppolServletConfiguration.getEndpointCache ();
+      final SMPEndpointCacheEntry aEntry = aCache.getIfPresent (aKey);
+      AS2PeppolServletConfiguration.getMetrics ().onEndpointCacheAccess (aEntry != null);
+      if (aEntry != null)
+      {
+        if (LOGGER.isDebugEnabled ())
+          LOGGER.debug (aLogPrefix.get () + "Using cached SMP endpoint lookup result for " + aKey);
+        return PendingLookup.createDone (aLogPrefix, aKey, aEntry.getEndpoint ());
+      }
+      aStaleEntry = aCache.getStaleIfPresent (aKey);
+    }
+
+    final SMPCircuitBreaker aCircuitBreaker = getCircuitBreaker (aSMPClient);
+    if (aStaleEntry != null && AS2PeppolServletConfiguration.isStaleWhileRevalidateEnabled ())
+    {
+      // Serve the stale entry and refresh in the background
+      if (aCircuitBreaker.isCallPermitted ())
+      {
+        if (LOGGER.isDebugEnabled ())
+          LOGGER.debug (aLogPrefix.get () + "Using stale SMP endpoint for " + aKey + " while refreshing it");
+        _lookupAsync (aLogPrefix, aSMPClient, aKey, aCircuitBreaker, true);
+      }
+      return PendingLookup.createDone (aLogPrefix, aKey, aStaleEntry.getEndpoint ());
+    }
+
+    if (!aCircuitBreaker.isCallPermitted ())
+    {
+      final String sMsg = "The circuit breaker for SMP '" + aCircuitBreaker.getHost () + "' is open";
+      if (aStaleEntry != null)
+        return PendingLookup.createDone (aLogPrefix, aKey, _useStale (aLogPrefix, aStaleEntry, sMsg));
+      return PendingLookup.createFailed (aLogPrefix,
+                                         aKey,
+                                         new AS2Exception (aLogPrefix.get () + sMsg + " - not querying the SMP"));
+    }
+
+    final CompletableFuture <EndpointType> aFuture = _lookupAsync (aLogPrefix,
+                                                                   aSMPClient,
+                                                                   aKey,
+                                                                   aCircuitBreaker,
+                                                                   bUseCache);
+    return PendingLookup.createRunning (aLogPrefix,
+                                        aKey,
+                                        aFuture,
+                                        aStaleEntry,
+                                        AS2PeppolServletConfiguration.getSMPLookupTimeout ());
+  }
+
+  /**
+   * Resolve the endpoint for the provided key.
+   *
+   * @param sLogPrefix
+   *        Log prefix. May not be <code>null</code>.
+   * @param aSMPClient
+   *        The SMP client to use. May not be <code>null</code>.
+   * @param aKey
+   *        The lookup key. May not be <code>null</code>.
+   * @return The resolved endpoint or <code>null</code> if the SMP has no
+   *         matching endpoint.
+   * @throws AS2Exception
+   *         If the SMP could not be queried within the deadline and no stale
+   *         entry is available.
+   */
+  @Nullable
+  public EndpointType getEndpoint (@Nonnull final String sLogPrefix,
+                                   @Nonnull final ISMPServiceMetadataProvider aSMPClient,
+                                   @Nonnull final SMPEndpointCacheKey aKey) throws AS2Exception
+  {
+    return startLookup (sLogPrefix, aSMPClient, aKey).get ();
+  }
+
+  /**
+   * Query the SMP for the provided key in the background and store the result
+   * in the endpoint cache, independent of a cached value. This is meant to
+   * revalidate restored cache entries.
+   *
+   * @param aSMPClient
+   *        The SMP client to use. May not be <code>null</code>.
+   * @param aKey
+   *        The lookup key. May not be <code>null</code>.
+   * @return The future with the resolved endpoint. Never <code>null</code>. If
+   *         the circuit breaker of the SMP is open, the future is completed
+   *         exceptionally.
+   */
+  @Nonnull
+  public CompletableFuture <EndpointType> refreshAsync (@Nonnull final ISMPServiceMetadataProvider aSMPClient,
+                                                        @Nonnull final SMPEndpointCacheKey aKey)
+  {
+    ValueEnforcer.notNull (aSMPClient, "SMPClient");
+    ValueEnforcer.notNull (aKey, "Key");
+
+    final SMPCircuitBreaker aCircuitBreaker = getCircuitBreaker (aSMPClient);
+    if (!aCircuitBreaker.isCallPermitted ())
+    {
+      final CompletableFuture <EndpointType> ret = new CompletableFuture <> ();
+      ret.completeExceptionally (new AS2Exception ("The circuit breaker for SMP '" +
+                                                   aCircuitBreaker.getHost () +
+                                                   "' is open"));
+      return ret;
+    }
+    return _lookupAsync ( () -> "", aSMPClient, aKey, aCircuitBreaker, AS2PeppolServletConfiguration.isEndpointCacheEnabled ());
+  }
+
+  /**
+   * Stop the lookup threads.
+   */
+  public void close ()
+  {
+    ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aLookupExecutor);
+  }
+}
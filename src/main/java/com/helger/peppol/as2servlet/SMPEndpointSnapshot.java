@@ -0,0 +1,366 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsOrderedMap;
+import com.helger.commons.string.StringHelper;
+import com.helger.peppol.smp.ISMPTransportProfile;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+import com.helger.smpclient.peppol.SMPClientReadOnly;
+import com.helger.smpclient.peppol.jaxb.EndpointType;
+import com.helger.smpclient.peppol.utils.W3CEndpointReferenceHelper;
+
+/**
+ * Reads and writes snapshots of the {@link SMPEndpointCache}, so that a
+ * restarted node does not need to query the SMP for every receiver before the
+ * first documents can be checked. The snapshot is a GZip compressed binary
+ * file that contains the cache keys (including the queried SMP) together with
+ * the endpoint fields that
+ * are relevant for the receiver checks (URL, certificate, transport profile,
+ * authentication level, business level signature flag, description and
+ * contact URLs). Only entries with an endpoint are contained. Files are
+ * written to a temporary file first and then atomically moved into place.
+ *
+ * @author Philip Helger
+ * @see AS2PeppolServletConfiguration#setEndpointSnapshotFile(File)
+ */
+@Immutable
+public final class SMPEndpointSnapshot
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (SMPEndpointSnapshot.class);
+
+  // "PSMP"
+  private static final int MAGIC = 0x50534d50;
+  // Version 2 added the SMP host
+  private static final int VERSION = 2;
+  private static final int MAX_STRING_BYTES = 1024 * 1024;
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  private SMPEndpointSnapshot ()
+  {}
+
+  private static void _writeString (@Nonnull final DataOutputStream aDOS, @Nullable final String s) throws IOException
+  {
+    if (s == null)
+      aDOS.writeInt (-1);
+    else
+    {
+      final byte [] aBytes = s.getBytes (StandardCharsets.UTF_8);
+      aDOS.writeInt (aBytes.length);
+      aDOS.write (aBytes);
+    }
+  }
+
+  @Nullable
+  private static String _readString (@Nonnull final DataInputStream aDIS) throws IOException
+  {
+    final int nLength = aDIS.readInt ();
+    if (nLength < 0)
+      return null;
+    if (nLength > MAX_STRING_BYTES)
+      throw new IOException ("Invalid string length " + nLength + " in SMP endpoint snapshot");
+    final byte [] aBytes = new byte [nLength];
+    aDIS.readFully (aBytes);
+    return new String (aBytes, StandardCharsets.UTF_8);
+  }
+
+  @Nullable
+  private static ISMPTransportProfile _getTransportProfile (@Nullable final String sID)
+  {
+    for (final EPeppolAS2Version eVersion : EPeppolAS2Version.values ())
+      if (eVersion.getTransportProfile ().getID ().equals (sID))
+        return eVersion.getTransportProfile ();
+    return null;
+  }
+
+  /**
+   * Write all entries with an endpoint of the provided cache to a file.
+   *
+   * @param aCache
+   *        The cache to write. May not be <code>null</code>.
+   * @param aFile
+   *        The file to write to. An existing file is replaced. May not be
+   *        <code>null</code>.
+   * @return The number of written entries.
+   * @throws IOException
+   *         If the file cannot be written.
+   */
+  @Nonnegative
+  public static int write (@Nonnull final SMPEndpointCache aCache, @Nonnull final File aFile) throws IOException
+  {
+    ValueEnforcer.notNull (aCache, "Cache");
+    ValueEnforcer.notNull (aFile, "File");
+
+    final ICommonsOrderedMap <SMPEndpointCacheKey, SMPEndpointCacheEntry> aEntries = aCache.getAllPositiveEntries ();
+    // Expirations are stored as wall clock time
+    final long nNowNanos = System.nanoTime ();
+    final long nNowMillis = System.currentTimeMillis ();
+
+    final File aTargetFile = aFile.getAbsoluteFile ();
+    Files.createDirectories (aTargetFile.getParentFile ().toPath ());
+    // Unique, so that concurrent writers don't interfere
+    final Path aTempFile = Files.createTempFile (aTargetFile.getParentFile ().toPath (),
+                                                 aTargetFile.getName () + ".",
+                                                 ".tmp");
+    try
+    {
+      try (final DataOutputStream aDOS = new DataOutputStream (new GZIPOutputStream (Files.newOutputStream (aTempFile),
+                                                                                     BUFFER_SIZE)))
+      {
+        aDOS.writeInt (MAGIC);
+        aDOS.writeInt (VERSION);
+        aDOS.writeInt (aEntries.size ());
+        for (final Map.Entry <SMPEndpointCacheKey, SMPEndpointCacheEntry> aItem : aEntries.entrySet ())
+        {
+          final SMPEndpointCacheKey aKey = aItem.getKey ();
+          final SMPEndpointCacheEntry aEntry = aItem.getValue ();
+          final EndpointType aEndpoint = aEntry.getEndpoint ();
+
+          _writeString (aDOS, aKey.getParticipantID ().getURIEncoded ());
+          _writeString (aDOS, aKey.getDocTypeID ().getURIEncoded ());
+          _writeString (aDOS, aKey.getProcessID ().getURIEncoded ());
+          _writeString (aDOS, aKey.getTransportProfile ().getID ());
+          _writeString (aDOS, aKey.getSMPHost ());
+          aDOS.writeLong (nNowMillis + TimeUnit.NANOSECONDS.toMillis (aEntry.getExpirationNanos () - nNowNanos));
+
+          _writeString (aDOS, SMPClientReadOnly.getEndpointAddress (aEndpoint));
+          _writeString (aDOS, aEndpoint.getCertificate ());
+          _writeString (aDOS, aEndpoint.getTransportProfile ());
+          aDOS.writeBoolean (aEndpoint.isRequireBusinessLevelSignature ());
+          _writeString (aDOS, aEndpoint.getMinimumAuthenticationLevel ());
+          _writeString (aDOS, aEndpoint.getServiceDescription ());
+          _writeString (aDOS, aEndpoint.getTechnicalContactUrl ());
+          _writeString (aDOS, aEndpoint.getTechnicalInformationUrl ());
+        }
+      }
+      Files.move (aTempFile, aTargetFile.toPath (), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    finally
+    {
+      // Only exists if something failed
+      Files.deleteIfExists (aTempFile);
+    }
+    return aEntries.size ();
+  }
+
+  /**
+   * Read a snapshot file and put all entries that are not older than the
+   * maximum staleness of the cache into the provided cache, unless the cache
+   * already contains an entry for the same key. Expired entries
+   * are only used as a fallback or while they are revalidated - see
+   * {@link SMPEndpointCache#getStaleIfPresent(SMPEndpointCacheKey)}.
+   *
+   * @param aFile
+   *        The file to read. May not be <code>null</code>.
+   * @param aCache
+   *        The cache to fill. May not be <code>null</code>.
+   * @return The keys of all entries contained in the file, including the ones
+   *         that were too old to be restored. They should be revalidated.
+   *         Never <code>null</code>.
+   * @throws IOException
+   *         If the file cannot be read or is not a valid snapshot.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public static ICommonsList <SMPEndpointCacheKey> restore (@Nonnull final File aFile,
+                                                            @Nonnull final SMPEndpointCache aCache) throws IOException
+  {
+    ValueEnforcer.notNull (aFile, "File");
+    ValueEnforcer.notNull (aCache, "Cache");
+
+    final long nNowNanos = System.nanoTime ();
+    final long nNowMillis = System.currentTimeMillis ();
+    final long nMaxStaleMillis = aCache.getMaxStale ().toMillis ();
+    final PeppolIdentifierFactory aIF = PeppolIdentifierFactory.INSTANCE;
+
+    final ICommonsList <SMPEndpointCacheKey> ret = new CommonsArrayList <> ();
+    try (final DataInputStream aDIS = new DataInputStream (new GZIPInputStream (Files.newInputStream (aFile.toPath ()),
+                                                                                BUFFER_SIZE)))
+    {
+      if (aDIS.readInt () != MAGIC)
+        throw new IOException ("The file " + aFile.getAbsolutePath () + " is not an SMP endpoint snapshot");
+      final int nVersion = aDIS.readInt ();
+      if (nVersion != VERSION)
+        throw new IOException ("Unsupported SMP endpoint snapshot version " + nVersion);
+
+      int nRestored = 0;
+      final int nCount = aDIS.readInt ();
+      for (int i = 0; i < nCount; ++i)
+      {
+        final String sParticipantID = _readString (aDIS);
+        final String sDocTypeID = _readString (aDIS);
+        final String sProcessID = _readString (aDIS);
+        final String sTransportProfileID = _readString (aDIS);
+        final String sSMPHost = _readString (aDIS);
+        final long nExpirationMillis = aDIS.readLong ();
+
+        final String sAddress = _readString (aDIS);
+        final EndpointType aEndpoint = new EndpointType ();
+        if (sAddress != null)
+          aEndpoint.setEndpointReference (W3CEndpointReferenceHelper.createEndpointReference (sAddress));
+        aEndpoint.setCertificate (_readString (aDIS));
+        aEndpoint.setTransportProfile (_readString (aDIS));
+        aEndpoint.setRequireBusinessLevelSignature (aDIS.readBoolean ());
+        aEndpoint.setMinimumAuthenticationLevel (_readString (aDIS));
+        aEndpoint.setServiceDescription (_readString (aDIS));
+        aEndpoint.setTechnicalContactUrl (_readString (aDIS));
+        aEndpoint.setTechnicalInformationUrl (_readString (aDIS));
+
+        final IParticipantIdentifier aParticipantID = aIF.parseParticipantIdentifier (sParticipantID);
+        final IDocumentTypeIdentifier aDocTypeID = aIF.parseDocumentTypeIdentifier (sDocTypeID);
+        final IProcessIdentifier aProcessID = aIF.parseProcessIdentifier (sProcessID);
+        final ISMPTransportProfile aTransportProfile = _getTransportProfile (sTransportProfileID);
+        if (aParticipantID == null ||
+            aDocTypeID == null ||
+            aProcessID == null ||
+            aTransportProfile == null ||
+            StringHelper.hasNoText (sSMPHost))
+        {
+          LOGGER.warn ("Ignoring invalid SMP endpoint snapshot entry for '" +
+                       sParticipantID +
+                       "', '" +
+                       sDocTypeID +
+                       "', '" +
+                       sProcessID +
+                       "' and '" +
+                       sTransportProfileID +
+                       "' of SMP '" +
+                       sSMPHost +
+                       "'");
+          continue;
+        }
+
+        final SMPEndpointCacheKey aKey = new SMPEndpointCacheKey (aParticipantID,
+                                                                  aDocTypeID,
+                                                                  aProcessID,
+                                                                  aTransportProfile,
+                                                                  sSMPHost);
+        ret.add (aKey);
+        if (nNowMillis - nExpirationMillis < nMaxStaleMillis)
+        {
+          final long nExpirationNanos = nNowNanos + TimeUnit.MILLISECONDS.toNanos (nExpirationMillis - nNowMillis);
+          // Don't replace fresher lookup results
+          if (aCache.putEntryIfAbsent (aKey, new SMPEndpointCacheEntry (aEndpoint, nExpirationNanos)).isChanged ())
+            nRestored++;
+        }
+      }
+      LOGGER.info ("Restored " + nRestored + " of " + nCount + " SMP endpoints from " + aFile.getAbsolutePath ());
+    }
+    return ret;
+  }
+
+  /**
+   * Read a list of lookups that should be performed on startup. Each line
+   * contains the URI encoded participant identifier, document type identifier
+   * and process identifier, separated by whitespace, optionally followed by
+   * the transport profile ID. Empty lines and lines starting with
+   * <code>#</code> are ignored.
+   *
+   * @param aFile
+   *        The file to read. May not be <code>null</code>.
+   * @param aDefaultTransportProfile
+   *        The transport profile to use if a line contains none. May not be
+   *        <code>null</code>.
+   * @param aSMPHostResolver
+   *        Determines the SMP to query for a participant. If it returns
+   *        <code>null</code> the line is skipped. May not be
+   *        <code>null</code>.
+   * @return The keys of all valid lines. Never <code>null</code>.
+   * @throws IOException
+   *         If the file cannot be read.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public static ICommonsList <SMPEndpointCacheKey> readLookupList (@Nonnull final File aFile,
+                                                                   @Nonnull final ISMPTransportProfile aDefaultTransportProfile,
+                                                                   @Nonnull final Function <IParticipantIdentifier, String> aSMPHostResolver) throws IOException
+  {
+    ValueEnforcer.notNull (aFile, "File");
+    ValueEnforcer.notNull (aDefaultTransportProfile, "DefaultTransportProfile");
+    ValueEnforcer.notNull (aSMPHostResolver, "SMPHostResolver");
+
+    final PeppolIdentifierFactory aIF = PeppolIdentifierFactory.INSTANCE;
+    final ICommonsList <SMPEndpointCacheKey> ret = new CommonsArrayList <> ();
+    try (final BufferedReader aReader = Files.newBufferedReader (aFile.toPath (), StandardCharsets.UTF_8))
+    {
+      String sLine;
+      int nLine = 0;
+      while ((sLine = aReader.readLine ()) != null)
+      {
+        nLine++;
+        sLine = sLine.trim ();
+        if (sLine.isEmpty () || sLine.startsWith ("#"))
+          continue;
+
+        final String [] aParts = sLine.split ("\\s+");
+        final IParticipantIdentifier aParticipantID = aParts.length >= 3 ? aIF.parseParticipantIdentifier (aParts[0])
+                                                                         : null;
+        final IDocumentTypeIdentifier aDocTypeID = aParts.length >= 3 ? aIF.parseDocumentTypeIdentifier (aParts[1])
+                                                                      : null;
+        final IProcessIdentifier aProcessID = aParts.length >= 3 ? aIF.parseProcessIdentifier (aParts[2]) : null;
+        final ISMPTransportProfile aTransportProfile = aParts.length >= 4 ? _getTransportProfile (aParts[3])
+                                                                          : aDefaultTransportProfile;
+        if (aParticipantID == null || aDocTypeID == null || aProcessID == null || aTransportProfile == null)
+        {
+          LOGGER.warn ("Ignoring invalid line " + nLine + " of " + aFile.getAbsolutePath () + ": '" + sLine + "'");
+          continue;
+        }
+        final String sSMPHost = aSMPHostResolver.apply (aParticipantID);
+        if (StringHelper.hasNoText (sSMPHost))
+        {
+          if (LOGGER.isDebugEnabled ())
+            LOGGER.debug ("No SMP to query for line " + nLine + " of " + aFile.getAbsolutePath ());
+          continue;
+        }
+        ret.add (new SMPEndpointCacheKey (aParticipantID, aDocTypeID, aProcessID, aTransportProfile, sSMPHost));
+      }
+    }
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Read " + ret.size () + " SMP lookups from " + aFile.getAbsolutePath ());
+    return ret;
+  }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.concurrent.SimpleLock;
+
+/**
+ * Periodically writes the shared endpoint cache to the configured snapshot
+ * file. All module instances share a single scheduler: it is started when the
+ * first module registers and stopped, after a final write, when the last
+ * module unregisters.
+ *
+ * @author Philip Helger
+ * @see AS2PeppolServletConfiguration#setEndpointSnapshotFile(File)
+ */
+@ThreadSafe
+final class SMPEndpointSnapshotScheduler
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (SMPEndpointSnapshotScheduler.class);
+  private static final SimpleLock LOCK = new SimpleLock ();
+  @GuardedBy ("LOCK")
+  private static int s_nUsers = 0;
+  @GuardedBy ("LOCK")
+  private static ScheduledExecutorService s_aScheduler;
+
+  private SMPEndpointSnapshotScheduler ()
+  {}
+
+  /**
+   * Register a user and start the periodic writing, if a snapshot file and
+   * interval are configured and it is not yet running.
+   */
+  static void register ()
+  {
+    LOCK.locked ( () -> {
+      s_nUsers++;
+      if (s_aScheduler == null)
+      {
+        final File aSnapshotFile = AS2PeppolServletConfiguration.getEndpointSnapshotFile ();
+        final Duration aInterval = AS2PeppolServletConfiguration.getEndpointSnapshotInterval ();
+        if (aSnapshotFile != null && aInterval != null)
+        {
+          final ScheduledExecutorService aScheduler = Executors.newSingleThreadScheduledExecutor (new BasicThreadFactory.Builder ().setNamingPattern ("as2-peppol-smp-snapshot-%d")
+                                                                                                                                    .setDaemon (true)
+                                                                                                                                    .build ());
+          aScheduler.scheduleWithFixedDelay (SMPEndpointSnapshotScheduler::writeSnapshot,
+                                             aInterval.toMillis (),
+                                             aInterval.toMillis (),
+                                             TimeUnit.MILLISECONDS);
+          s_aScheduler = aScheduler;
+        }
+      }
+    });
+  }
+
+  /**
+   * Unregister a user. When the last user unregisters, the periodic writing is
+   * stopped and the snapshot is written a last time.
+   */
+  static void unregister ()
+  {
+    final ScheduledExecutorService aScheduler;
+    final boolean bLast;
+    LOCK.lock ();
+    try
+    {
+      if (s_nUsers > 0)
+        s_nUsers--;
+      bLast = s_nUsers == 0;
+      aScheduler = bLast ? s_aScheduler : null;
+      if (bLast)
+        s_aScheduler = null;
+    }
+    finally
+    {
+      LOCK.unlock ();
+    }
+
+    if (aScheduler != null)
+      ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (aScheduler);
+
+    // Persist the endpoints for the next startup
+    if (bLast)
+      writeSnapshot ();
+  }
+
+  /**
+   * Write the endpoint cache to the configured snapshot file, if any.
+   */
+  static void writeSnapshot ()
+  {
+    final File aFile = AS2PeppolServletConfiguration.getEndpointSnapshotFile ();
+    if (aFile == null || !AS2PeppolServletConfiguration.isEndpointCacheEnabled ())
+      return;
+
+    try
+    {
+      final int nCount = SMPEndpointSnapshot.write (AS2PeppolServletConfiguration.getEndpointCache (), aFile);
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Wrote " + nCount + " SMP endpoints to " + aFile.getAbsolutePath ());
+    }
+    catch (final IOException | RuntimeException ex)
+    {
+      // Don't stop the periodic execution
+      LOGGER.error ("Failed to write the SMP endpoint snapshot " + aFile.getAbsolutePath (), ex);
+    }
+  }
+}
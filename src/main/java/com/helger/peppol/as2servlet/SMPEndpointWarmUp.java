@@ -0,0 +1,214 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.smpclient.peppol.ISMPServiceMetadataProvider;
+import com.helger.smpclient.peppol.jaxb.EndpointType;
+
+/**
+ * Revalidates a list of SMP lookups in a background thread, so that the
+ * endpoint cache is filled with current data shortly after startup without
+ * delaying the startup itself. Only a few lookups are performed in parallel,
+ * so that the SMPs and the lookup threads of the {@link SMPEndpointResolver}
+ * are not flooded.
+ *
+ * @author Philip Helger
+ * @see SMPEndpointSnapshot
+ */
+@ThreadSafe
+public class SMPEndpointWarmUp implements AutoCloseable
+{
+  public static final int DEFAULT_PARALLEL_LOOKUPS = 4;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (SMPEndpointWarmUp.class);
+
+  private final SMPEndpointResolver m_aResolver;
+  private final Function <? super SMPEndpointCacheKey, ? extends ISMPServiceMetadataProvider> m_aSMPClientProvider;
+  private final int m_nParallelLookups;
+  private final AtomicInteger m_aRevalidated = new AtomicInteger ();
+  private final AtomicInteger m_aFailed = new AtomicInteger ();
+  private volatile Thread m_aThread;
+
+  /**
+   * Constructor
+   *
+   * @param aResolver
+   *        The resolver to perform the lookups with. May not be
+   *        <code>null</code>.
+   * @param aSMPClientProvider
+   *        Determines the SMP client to be used for a lookup. It may return
+   *        <code>null</code> to skip a lookup. May not be <code>null</code>.
+   * @param nParallelLookups
+   *        The maximum number of lookups running at the same time. Must be
+   *        &gt; 0.
+   */
+  public SMPEndpointWarmUp (@Nonnull final SMPEndpointResolver aResolver,
+                            @Nonnull final Function <? super SMPEndpointCacheKey, ? extends ISMPServiceMetadataProvider> aSMPClientProvider,
+                            @Nonnegative final int nParallelLookups)
+  {
+    ValueEnforcer.notNull (aResolver, "Resolver");
+    ValueEnforcer.notNull (aSMPClientProvider, "SMPClientProvider");
+    ValueEnforcer.isGT0 (nParallelLookups, "ParallelLookups");
+    m_aResolver = aResolver;
+    m_aSMPClientProvider = aSMPClientProvider;
+    m_nParallelLookups = nParallelLookups;
+  }
+
+  /**
+   * @return The number of successfully revalidated lookups.
+   */
+  @Nonnegative
+  public int getRevalidatedCount ()
+  {
+    return m_aRevalidated.get ();
+  }
+
+  /**
+   * @return The number of lookups that failed.
+   */
+  @Nonnegative
+  public int getFailedCount ()
+  {
+    return m_aFailed.get ();
+  }
+
+  /**
+   * @return <code>true</code> if the revalidation is still running.
+   */
+  public boolean isRunning ()
+  {
+    final Thread aThread = m_aThread;
+    return aThread != null && aThread.isAlive ();
+  }
+
+  /**
+   * Start revalidating the provided lookups in the background. A previously
+   * started revalidation is stopped.
+   *
+   * @param aKeys
+   *        The lookups to perform. May not be <code>null</code>.
+   */
+  public synchronized void start (@Nonnull final ICommonsList <SMPEndpointCacheKey> aKeys)
+  {
+    ValueEnforcer.notNull (aKeys, "Keys");
+
+    close ();
+    final ICommonsList <SMPEndpointCacheKey> aCopy = aKeys.getClone ();
+    final Thread aThread = new Thread ( () -> _revalidateAll (aCopy), "as2-peppol-smp-warmup");
+    aThread.setDaemon (true);
+    m_aThread = aThread;
+    aThread.start ();
+  }
+
+  /**
+   * Wait for a single lookup.
+   *
+   * @param aFuture
+   *        The lookup to wait for. May not be <code>null</code>.
+   * @return <code>false</code> if the thread was interrupted.
+   */
+  private boolean _await (@Nonnull final CompletableFuture <EndpointType> aFuture)
+  {
+    try
+    {
+      aFuture.get (AS2PeppolServletConfiguration.getSMPLookupTimeout ().toNanos (), TimeUnit.NANOSECONDS);
+      m_aRevalidated.incrementAndGet ();
+    }
+    catch (final ExecutionException | TimeoutException ex)
+    {
+      m_aFailed.incrementAndGet ();
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Failed to revalidate SMP endpoint", ex);
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+      return false;
+    }
+    return true;
+  }
+
+  private void _revalidateAll (@Nonnull final ICommonsList <SMPEndpointCacheKey> aKeys)
+  {
+    final long nStart = System.nanoTime ();
+    final ICommonsList <CompletableFuture <EndpointType>> aPending = new CommonsArrayList <> ();
+    boolean bContinue = true;
+    for (final SMPEndpointCacheKey aKey : aKeys)
+    {
+      if (!bContinue || Thread.currentThread ().isInterrupted ())
+        break;
+
+      final ISMPServiceMetadataProvider aSMPClient = m_aSMPClientProvider.apply (aKey);
+      if (aSMPClient == null)
+        continue;
+
+      aPending.add (m_aResolver.refreshAsync (aSMPClient, aKey));
+      if (aPending.size () >= m_nParallelLookups)
+        bContinue = _await (aPending.remove (0));
+    }
+    for (final CompletableFuture <EndpointType> aFuture : aPending)
+      if (bContinue)
+        bContinue = _await (aFuture);
+
+    LOGGER.info ("Revalidated " +
+                 m_aRevalidated.get () +
+                 " SMP endpoints (" +
+                 m_aFailed.get () +
+                 " failed) in " +
+                 TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - nStart) +
+                 " milliseconds");
+  }
+
+  /**
+   * Stop a running revalidation. Lookups that are already running are not
+   * aborted.
+   */
+  public synchronized void close ()
+  {
+    final Thread aThread = m_aThread;
+    m_aThread = null;
+    if (aThread != null)
+    {
+      aThread.interrupt ();
+      try
+      {
+        aThread.join (1000);
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+      }
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.smpclient.peppol.jaxb.EndpointType;
+
+/**
+ * Ensures that concurrent SMP endpoint lookups for the same key are only
+ * executed once. The first caller starts the lookup and all other callers that
+ * arrive while the lookup is in progress share the same future.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class SMPLookupCoalescer
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (SMPLookupCoalescer.class);
+
+  private final ConcurrentMap <SMPEndpointCacheKey, CompletableFuture <EndpointType>> m_aInFlight = new ConcurrentHashMap <> ();
+
+  public SMPLookupCoalescer ()
+  {}
+
+  /**
+   * Start the provided lookup asynchronously, unless a lookup for the same key
+   * is already in progress. In that case the future of the running lookup is
+   * returned.
+   *
+   * @param aKey
+   *        The lookup key. May not be <code>null</code>.
+   * @param aLookup
+   *        The lookup to be performed. Is only invoked, if no other lookup for
+   *        the same key is in progress. May not be <code>null</code>.
+   * @param aExecutor
+   *        The executor to run the lookup in. May not be <code>null</code>.
+   * @return The future that is completed with the lookup result or the
+   *         exception of the lookup. If the executor rejects the lookup, the
+   *         future is completed exceptionally with the
+   *         {@link RejectedExecutionException}. Never <code>null</code>.
+   */
+  @Nonnull
+  public CompletableFuture <EndpointType> lookupAsync (@Nonnull final SMPEndpointCacheKey aKey,
+                                                       @Nonnull final Callable <EndpointType> aLookup,
+                                                       @Nonnull final Executor aExecutor)
+  {
+    ValueEnforcer.notNull (aKey, "Key");
+    ValueEnforcer.notNull (aLookup, "Lookup");
+    ValueEnforcer.notNull (aExecutor, "Executor");
+
+    final CompletableFuture <EndpointType> aOwnFuture = new CompletableFuture <> ();
+    final CompletableFuture <EndpointType> aRunningFuture = m_aInFlight.putIfAbsent (aKey, aOwnFuture);
+    if (aRunningFuture != null)
+    {
+      // Another thread is already performing the lookup
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Joining the in-flight SMP lookup of " + aKey);
+      return aRunningFuture;
+    }
+
+    // We're the one to perform the lookup
+    try
+    {
+      aExecutor.execute ( () -> {
+        try
+        {
+          aOwnFuture.complete (aLookup.call ());
+        }
+        catch (final Throwable t)
+        {
+          aOwnFuture.completeExceptionally (t);
+        }
+        finally
+        {
+          m_aInFlight.remove (aKey, aOwnFuture);
+        }
+      });
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      m_aInFlight.remove (aKey, aOwnFuture);
+      aOwnFuture.completeExceptionally (ex);
+    }
+    return aOwnFuture;
+  }
+
+  /**
+   * @return The number of lookups currently in progress.
+   */
+  @Nonnegative
+  public int getInFlightCount ()
+  {
+    return m_aInFlight.size ();
+  }
+}
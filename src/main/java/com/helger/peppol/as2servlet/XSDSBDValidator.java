@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import java.net.URL;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.xml.XMLConstants;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+
+import org.unece.cefact.namespaces.sbdh.StandardBusinessDocument;
+import org.w3c.dom.Element;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.io.resource.IReadableResource;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * An {@link ISBDValidator} that validates the business message of a Standard
+ * Business Document against a compiled XML Schema. The compiled
+ * {@link Schema} is thread-safe and shared, only the lightweight
+ * {@link Validator} is created per document.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class XSDSBDValidator implements ISBDValidator
+{
+  private final Schema m_aSchema;
+
+  public XSDSBDValidator (@Nonnull final Schema aSchema)
+  {
+    ValueEnforcer.notNull (aSchema, "Schema");
+    m_aSchema = aSchema;
+  }
+
+  /**
+   * @return The compiled XML Schema. Never <code>null</code>.
+   */
+  @Nonnull
+  public Schema getSchema ()
+  {
+    return m_aSchema;
+  }
+
+  @Nonnull
+  public ICommonsList <String> validate (@Nonnull final PeppolSBDHHeader aSBDH,
+                                         @Nonnull final StandardBusinessDocument aSBD) throws Exception
+  {
+    final ICommonsList <String> ret = new CommonsArrayList <> ();
+    final Object aBusinessMessage = aSBD.getAny ();
+    if (!(aBusinessMessage instanceof Element))
+    {
+      ret.add ("The Standard Business Document contains no business message");
+      return ret;
+    }
+
+    // Validators are not thread-safe
+    final Validator aValidator = m_aSchema.newValidator ();
+    aValidator.setErrorHandler (new ErrorHandler ()
+    {
+      public void warning (@Nonnull final SAXParseException ex)
+      {
+        // Ignore
+      }
+
+      public void error (@Nonnull final SAXParseException ex)
+      {
+        ret.add (ex.getMessage ());
+      }
+
+      public void fatalError (@Nonnull final SAXParseException ex)
+      {
+        ret.add (ex.getMessage ());
+      }
+    });
+    aValidator.validate (new DOMSource ((Element) aBusinessMessage));
+    return ret;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Schema", m_aSchema).getToString ();
+  }
+
+  /**
+   * Compile the provided XML Schemas into a new validator.
+   *
+   * @param aXSDs
+   *        The XML Schemas to compile. Relative imports and includes are
+   *        resolved against the URL of each resource. May neither be
+   *        <code>null</code> nor empty.
+   * @return The new validator. Never <code>null</code>.
+   * @throws SAXException
+   *         If the XML Schemas cannot be compiled.
+   */
+  @Nonnull
+  public static XSDSBDValidator create (@Nonnull final IReadableResource... aXSDs) throws SAXException
+  {
+    ValueEnforcer.notEmptyNoNullValue (aXSDs, "XSDs");
+
+    final Source [] aSources = new Source [aXSDs.length];
+    for (int i = 0; i < aXSDs.length; ++i)
+    {
+      final URL aURL = aXSDs[i].getAsURL ();
+      if (aURL == null)
+        throw new IllegalArgumentException ("The XML Schema " + aXSDs[i].getPath () + " cannot be resolved");
+      aSources[i] = new StreamSource (aURL.toExternalForm ());
+    }
+    final SchemaFactory aSchemaFactory = SchemaFactory.newInstance (XMLConstants.W3C_XML_SCHEMA_NS_URI);
+    return new XSDSBDValidator (aSchemaFactory.newSchema (aSources));
+  }
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test class for class {@link AS2PeppolServletConfiguration}.
+ *
+ * @author Philip Helger
+ */
+public final class AS2PeppolServletConfigurationTest
+{
+  @Test
+  public void testSnapshot ()
+  {
+    final AS2PeppolServletConfigurationSnapshot aOld = AS2PeppolServletConfiguration.getSnapshot ();
+    try
+    {
+      AS2PeppolServletConfiguration.setAS2EndpointURL ("https://ap.example.org/as2");
+      AS2PeppolServletConfiguration.setReceiverCheckEnabled (true);
+
+      final AS2PeppolServletConfigurationSnapshot aSnapshot = AS2PeppolServletConfiguration.getSnapshot ();
+      assertTrue (aSnapshot.isReceiverCheckEnabled ());
+      assertEquals ("https://ap.example.org/as2", aSnapshot.getAS2EndpointURL ());
+
+      // A snapshot never changes
+      AS2PeppolServletConfiguration.setAS2EndpointURL ("https://ap2.example.org/as2");
+      assertEquals ("https://ap.example.org/as2", aSnapshot.getAS2EndpointURL ());
+      assertNotSame (aSnapshot, AS2PeppolServletConfiguration.getSnapshot ());
+      assertEquals ("https://ap2.example.org/as2", AS2PeppolServletConfiguration.getAS2EndpointURL ());
+
+      // Replace everything at once
+      AS2PeppolServletConfiguration.setSnapshot (AS2PeppolServletConfigurationSnapshot.DEFAULT);
+      assertSame (AS2PeppolServletConfigurationSnapshot.DEFAULT, AS2PeppolServletConfiguration.getSnapshot ());
+      assertFalse (AS2PeppolServletConfiguration.isReceiverCheckEnabled ());
+      assertNull (AS2PeppolServletConfiguration.getAS2EndpointURL ());
+    }
+    finally
+    {
+      AS2PeppolServletConfiguration.setSnapshot (aOld);
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsHashSet;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+
+/**
+ * Test class for class {@link AS2PeppolTenantRegistry}.
+ *
+ * @author Philip Helger
+ */
+public final class AS2PeppolTenantRegistryTest
+{
+  @Nonnull
+  private static String _receiver (@Nonnull final String sValue)
+  {
+    return PeppolIdentifierFactory.INSTANCE.createParticipantIdentifierWithDefaultScheme (sValue).getURIEncoded ();
+  }
+
+  @Nonnull
+  private static PeppolSBDHHeader _createHeader (@Nonnull final String sReceiverID)
+  {
+    final PeppolIdentifierFactory aIF = PeppolIdentifierFactory.INSTANCE;
+    return new PeppolSBDHHeader (aIF.createParticipantIdentifierWithDefaultScheme ("9915:sender"),
+                                 aIF.createParticipantIdentifierWithDefaultScheme (sReceiverID),
+                                 aIF.createDocumentTypeIdentifierWithDefaultScheme ("invoice"),
+                                 aIF.createProcessIdentifierWithDefaultScheme ("process"),
+                                 null,
+                                 null,
+                                 null,
+                                 "id",
+                                 null);
+  }
+
+  @Test
+  public void testResolve ()
+  {
+    final AS2PeppolTenantRegistry aRegistry = new AS2PeppolTenantRegistry ();
+    assertTrue (aRegistry.isEmpty ());
+    assertNull (aRegistry.resolveTenant (_createHeader ("9915:a"), "APP_A"));
+
+    final AS2PeppolTenant aTenantA = new AS2PeppolTenant ("a",
+                                                          AS2PeppolServletConfigurationSnapshot.DEFAULT.getWithAS2EndpointURL ("https://a.example.org/as2"),
+                                                          new CommonsHashSet <> (_receiver ("9915:a")),
+                                                          new CommonsHashSet <> ("APP_A"));
+    final AS2PeppolTenant aTenantB = new AS2PeppolTenant ("b",
+                                                          AS2PeppolServletConfigurationSnapshot.DEFAULT.getWithAS2EndpointURL ("https://b.example.org/as2"),
+                                                          null,
+                                                          new CommonsHashSet <> ("APP_B"));
+    aRegistry.registerTenant (aTenantA);
+    aRegistry.registerTenant (aTenantB);
+    assertEquals (2, aRegistry.getAllTenants ().size ());
+
+    // Receiver takes precedence
+    assertSame (aTenantA, aRegistry.resolveTenant (_createHeader ("9915:a"), "APP_B"));
+    // Fallback to the AS2 ID
+    assertSame (aTenantB, aRegistry.resolveTenant (_createHeader ("9915:x"), "APP_B"));
+    assertNull (aRegistry.resolveTenant (_createHeader ("9915:x"), "APP_X"));
+    assertNull (aRegistry.resolveTenant (_createHeader ("9915:x"), null));
+
+    assertTrue (aRegistry.updateTenantConfiguration ("b", AS2PeppolServletConfigurationSnapshot.DEFAULT).isChanged ());
+    assertSame (AS2PeppolServletConfigurationSnapshot.DEFAULT, aRegistry.getTenantOfAS2ID ("APP_B").getConfiguration ());
+    assertTrue (aRegistry.updateTenantConfiguration ("c", AS2PeppolServletConfigurationSnapshot.DEFAULT).isUnchanged ());
+
+    assertTrue (aRegistry.unregisterTenant ("a").isChanged ());
+    assertNull (aRegistry.getTenantOfReceiverID (_receiver ("9915:a")));
+    assertTrue (aRegistry.unregisterTenant ("a").isUnchanged ());
+    assertTrue (aRegistry.unregisterAllTenants ().isChanged ());
+    assertTrue (aRegistry.isEmpty ());
+  }
+
+  @Test
+  public void testTenantIDsAreCopied ()
+  {
+    final CommonsHashSet <String> aReceiverIDs = new CommonsHashSet <> (_receiver ("9915:a"));
+    final AS2PeppolTenant aTenant = new AS2PeppolTenant ("a",
+                                                         AS2PeppolServletConfigurationSnapshot.DEFAULT,
+                                                         aReceiverIDs,
+                                                         new CommonsHashSet <> ("APP_A"));
+    aReceiverIDs.add (_receiver ("9915:b"));
+    aTenant.getReceiverIDs ().add (_receiver ("9915:c"));
+    aTenant.getAS2IDs ().clear ();
+    assertEquals (new CommonsHashSet <> (_receiver ("9915:a")), aTenant.getReceiverIDs ());
+    assertEquals (new CommonsHashSet <> ("APP_A"), aTenant.getAS2IDs ());
+  }
+
+  @Test
+  public void testConflict ()
+  {
+    final AS2PeppolTenantRegistry aRegistry = new AS2PeppolTenantRegistry ();
+    aRegistry.registerTenant (new AS2PeppolTenant ("a",
+                                                   AS2PeppolServletConfigurationSnapshot.DEFAULT,
+                                                   new CommonsHashSet <> (_receiver ("9915:a")),
+                                                   null));
+    try
+    {
+      aRegistry.registerTenant (new AS2PeppolTenant ("b",
+                                                     AS2PeppolServletConfigurationSnapshot.DEFAULT,
+                                                     new CommonsHashSet <> (_receiver ("9915:a")),
+                                                     null));
+      fail ();
+    }
+    catch (final IllegalArgumentException ex)
+    {
+      // expected
+    }
+    // The previous state is unchanged
+    assertEquals (1, aRegistry.getAllTenants ().size ());
+
+    // Replacing a tenant with the same ID is fine
+    aRegistry.registerTenant (new AS2PeppolTenant ("a",
+                                                   AS2PeppolServletConfigurationSnapshot.DEFAULT,
+                                                   new CommonsHashSet <> (_receiver ("9915:a")),
+                                                   null));
+    assertEquals (1, aRegistry.getAllTenants ().size ());
+  }
+}
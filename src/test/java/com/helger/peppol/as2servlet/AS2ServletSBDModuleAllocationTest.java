@@ -0,0 +1,261 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.activation.DataHandler;
+import javax.annotation.Nonnull;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.util.ByteArrayDataSource;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.unece.cefact.namespaces.sbdh.StandardBusinessDocument;
+
+import com.helger.as2lib.message.AS2Message;
+import com.helger.as2lib.processor.storage.IProcessorStorageModule;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.StringHelper;
+import com.helger.peppol.as2servlet.mock.MockCertificates;
+import com.helger.peppol.as2servlet.mock.MockSMPClient;
+
+/**
+ * Allocation regression test for
+ * {@link AS2ServletSBDModule#handle(String, com.helger.as2lib.message.IMessage, java.util.Map)}.
+ * Uses the per-thread allocation counter of the JVM and is skipped if it is not
+ * available.
+ *
+ * @author Philip Helger
+ */
+public final class AS2ServletSBDModuleAllocationTest
+{
+  private static final int WARMUP = 2_000;
+  private static final int ITERATIONS = 1_000;
+  /**
+   * The maximum number of bytes the module may allocate per message on top of
+   * the parsing that cannot be avoided
+   */
+  private static final long MAX_OVERHEAD_BYTES_PER_MESSAGE = 16 * 1024L;
+  private static final String AP_URL = "https://ap.example.org/as2";
+
+  private static AS2PeppolServletConfigurationSnapshot s_aOldSnapshot;
+  private static com.sun.management.ThreadMXBean s_aThreadMXBean;
+
+  private static final class NoOpStreamHandler implements IAS2IncomingSBDStreamHandlerSPI
+  {
+    private final AtomicInteger m_aCount = new AtomicInteger ();
+
+    public void handleIncomingSBD (@Nonnull final HttpHeaderMap aHeaders,
+                                  @Nonnull final PeppolSBDHHeader aSBDH,
+                                  @Nonnull final InputStream aSBDStream)
+    {
+      m_aCount.incrementAndGet ();
+    }
+  }
+
+  private static final class NoOpHandler implements IAS2IncomingSBDHandlerSPI
+  {
+    private final AtomicInteger m_aCount = new AtomicInteger ();
+
+    public void handleIncomingSBD (@Nonnull final HttpHeaderMap aHeaders, @Nonnull final StandardBusinessDocument aSBD)
+    {
+      m_aCount.incrementAndGet ();
+    }
+  }
+
+  @FunctionalInterface
+  private interface IMessageConsumer
+  {
+    void accept (@Nonnull AS2Message aMsg) throws Exception;
+  }
+
+  @BeforeClass
+  public static void beforeClass ()
+  {
+    final java.lang.management.ThreadMXBean aBean = ManagementFactory.getThreadMXBean ();
+    Assume.assumeTrue (aBean instanceof com.sun.management.ThreadMXBean);
+    s_aThreadMXBean = (com.sun.management.ThreadMXBean) aBean;
+    Assume.assumeTrue (s_aThreadMXBean.isThreadAllocatedMemorySupported ());
+    if (!s_aThreadMXBean.isThreadAllocatedMemoryEnabled ())
+      s_aThreadMXBean.setThreadAllocatedMemoryEnabled (true);
+
+    s_aOldSnapshot = AS2PeppolServletConfiguration.getSnapshot ();
+    AS2PeppolServletConfiguration.setSnapshot (AS2PeppolServletConfigurationSnapshot.DEFAULT.getWithReceiverCheckEnabled (false));
+  }
+
+  @AfterClass
+  public static void afterClass ()
+  {
+    if (s_aOldSnapshot != null)
+      AS2PeppolServletConfiguration.setSnapshot (s_aOldSnapshot);
+  }
+
+  @Nonnull
+  private static byte [] _getSBD (final int nPaddingChars)
+  {
+    final String sSBD = new String (StreamHelper.getAllBytes (new ClassPathResource ("sbd/example-invoice.xml")),
+                                    StandardCharsets.UTF_8);
+    if (nPaddingChars == 0)
+      return sSBD.getBytes (StandardCharsets.UTF_8);
+
+    // Increase the payload size only - the header stays the same
+    final String sEnd = "</StandardBusinessDocument>";
+    final int nIndex = sSBD.lastIndexOf (sEnd);
+    return (sSBD.substring (0, nIndex) +
+            "<!--" +
+            StringHelper.getRepeated ('x', nPaddingChars) +
+            "-->\n" +
+            sSBD.substring (nIndex)).getBytes (StandardCharsets.UTF_8);
+  }
+
+  @Nonnull
+  private static AS2Message [] _createMessages (@Nonnull final byte [] aSBD, final int nCount) throws Exception
+  {
+    final AS2Message [] ret = new AS2Message [nCount];
+    for (int i = 0; i < nCount; ++i)
+    {
+      final AS2Message aMsg = new AS2Message ();
+      final MimeBodyPart aPart = new MimeBodyPart ();
+      aPart.setDataHandler (new DataHandler (new ByteArrayDataSource (aSBD, "application/xml")));
+      aMsg.setData (aPart);
+      ret[i] = aMsg;
+    }
+    return ret;
+  }
+
+  private static long _getAllocatedBytesPerMessage (@Nonnull final byte [] aSBD,
+                                                    @Nonnull final IMessageConsumer aConsumer) throws Exception
+  {
+    // Create the messages outside of the measurement
+    for (final AS2Message aMsg : _createMessages (aSBD, WARMUP))
+      aConsumer.accept (aMsg);
+
+    final AS2Message [] aMsgs = _createMessages (aSBD, ITERATIONS);
+    final long nThreadID = Thread.currentThread ().getId ();
+    final long nStart = s_aThreadMXBean.getThreadAllocatedBytes (nThreadID);
+    for (final AS2Message aMsg : aMsgs)
+      aConsumer.accept (aMsg);
+    final long nEnd = s_aThreadMXBean.getThreadAllocatedBytes (nThreadID);
+    return (nEnd - nStart) / ITERATIONS;
+  }
+
+  private static long _getAllocatedBytesPerMessage (@Nonnull final AS2ServletSBDModule aModule,
+                                                    @Nonnull final byte [] aSBD) throws Exception
+  {
+    return _getAllocatedBytesPerMessage (aSBD, aMsg -> aModule.handle (IProcessorStorageModule.DO_STORE, aMsg, null));
+  }
+
+  /**
+   * The allocations that every module has to do: read the header from the
+   * payload stream and optionally unmarshal the whole document.
+   */
+  private static long _getBaselineBytesPerMessage (@Nonnull final byte [] aSBD,
+                                                   final boolean bUnmarshal) throws Exception
+  {
+    final PeppolSBDHHeaderReader aHeaderReader = new PeppolSBDHHeaderReader ();
+    final SBDUnmarshallerPool aSBDReader = new SBDUnmarshallerPool ();
+    return _getAllocatedBytesPerMessage (aSBD, aMsg -> {
+      try (final InputStream aIS = aMsg.getData ().getInputStream ())
+      {
+        aHeaderReader.readHeader (aIS);
+      }
+      if (bUnmarshal)
+        try (final InputStream aIS = aMsg.getData ().getInputStream ())
+        {
+          aSBDReader.read (aIS);
+        }
+    });
+  }
+
+  @Test
+  public void testStreamHandlerWithoutReceiverChecks () throws Exception
+  {
+    final NoOpStreamHandler aHandler = new NoOpStreamHandler ();
+    final AS2ServletSBDModule aModule = new AS2ServletSBDModule (EPeppolAS2Version.V2,
+                                                                 new CommonsArrayList <> (),
+                                                                 new CommonsArrayList <> (aHandler),
+                                                                 new CommonsArrayList <> ());
+    try
+    {
+      final byte [] aSBD = _getSBD (0);
+      final long nBaseline = _getBaselineBytesPerMessage (aSBD, false);
+      final long nSmall = _getAllocatedBytesPerMessage (aModule, aSBD);
+      assertTrue ("Allocated " + nSmall + " bytes per message compared to a baseline of " + nBaseline,
+                  nSmall < nBaseline + MAX_OVERHEAD_BYTES_PER_MESSAGE);
+
+      // The payload is neither parsed nor copied, so a 1 MB document must not
+      // allocate considerably more
+      final long nLarge = _getAllocatedBytesPerMessage (aModule, _getSBD (1024 * 1024));
+      assertTrue ("Allocated " + nLarge + " bytes per message for a large document compared to " + nSmall,
+                  nLarge < nSmall + 64 * 1024L);
+
+      assertEquals (2 * (WARMUP + ITERATIONS), aHandler.m_aCount.get ());
+    }
+    finally
+    {
+      aModule.shutdown ();
+    }
+  }
+
+  @Test
+  public void testHandlerWithReceiverChecks () throws Exception
+  {
+    final FingerprintedCertificate aCert = MockCertificates.getFingerprintedCertificate (MockCertificates.AP_1);
+    final MockSMPClient aSMPClient = new MockSMPClient (AP_URL,
+                                                        MockCertificates.getCertificateString (MockCertificates.AP_1));
+    final AS2PeppolServletConfigurationSnapshot aOldSnapshot = AS2PeppolServletConfiguration.getSnapshot ();
+    AS2PeppolServletConfiguration.setSnapshot (AS2PeppolServletConfigurationSnapshot.DEFAULT.getWithReceiverCheckEnabled (true)
+                                                                                            .getWithSMPClient (aSMPClient)
+                                                                                            .getWithAS2EndpointURL (AP_URL)
+                                                                                            .getWithAPFingerprintedCertificate (aCert));
+    final NoOpHandler aHandler = new NoOpHandler ();
+    final AS2ServletSBDModule aModule = new AS2ServletSBDModule (EPeppolAS2Version.V2,
+                                                                 new CommonsArrayList <> (aHandler),
+                                                                 new CommonsArrayList <> (),
+                                                                 new CommonsArrayList <> ());
+    try
+    {
+      final byte [] aSBD = _getSBD (0);
+      final long nBaseline = _getBaselineBytesPerMessage (aSBD, true);
+      final long nAllocated = _getAllocatedBytesPerMessage (aModule, aSBD);
+      assertTrue ("Allocated " + nAllocated + " bytes per message compared to a baseline of " + nBaseline,
+                  nAllocated < nBaseline + MAX_OVERHEAD_BYTES_PER_MESSAGE);
+
+      assertEquals (WARMUP + ITERATIONS, aHandler.m_aCount.get ());
+      // All but the first lookup are served from the cache
+      assertEquals (1, aSMPClient.getQueryCount ());
+    }
+    finally
+    {
+      aModule.shutdown ();
+      AS2PeppolServletConfiguration.setSnapshot (aOldSnapshot);
+      AS2PeppolServletConfiguration.getEndpointCache ().invalidateAll ();
+    }
+  }
+}
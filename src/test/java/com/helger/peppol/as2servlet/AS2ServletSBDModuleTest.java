@@ -16,9 +16,47 @@
  */
 package com.helger.peppol.as2servlet;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.File;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.activation.DataHandler;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.util.ByteArrayDataSource;
+
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.unece.cefact.namespaces.sbdh.StandardBusinessDocument;
+
+import com.helger.as2lib.exception.AS2Exception;
+import com.helger.as2lib.message.AS2Message;
+import com.helger.as2lib.processor.storage.IProcessorStorageModule;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.peppol.as2servlet.mock.MockCertificates;
+import com.helger.peppol.as2servlet.mock.MockSMPClient;
+import com.helger.peppol.smp.ISMPTransportProfile;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.smpclient.exception.SMPClientException;
+import com.helger.smpclient.peppol.jaxb.EndpointType;
 
 /**
  * Test class for class {@link AS2ServletSBDModule}.
@@ -27,6 +65,44 @@ import org.junit.Test;
  */
 public final class AS2ServletSBDModuleTest
 {
+  private static final String AP_URL = "https://ap.example.org/as2";
+
+  @Rule
+  public final TemporaryFolder m_aTempFolder = new TemporaryFolder ();
+
+  private static final class CapturingHandler implements IAS2IncomingSBDHandlerSPI
+  {
+    private final ICommonsList <PeppolSBDHHeader> m_aReceived;
+
+    CapturingHandler (@Nonnull final ICommonsList <PeppolSBDHHeader> aReceived)
+    {
+      m_aReceived = aReceived;
+    }
+
+    public void handleIncomingSBD (@Nonnull final HttpHeaderMap aHeaders, @Nonnull final StandardBusinessDocument aSBD)
+    {
+      throw new IllegalStateException ("Not expected to be called");
+    }
+
+    @Override
+    public void handleIncomingSBD (@Nonnull final HttpHeaderMap aHeaders,
+                                  @Nonnull final PeppolSBDHHeader aSBDH,
+                                  @Nonnull final StandardBusinessDocument aSBD)
+    {
+      m_aReceived.add (aSBDH);
+    }
+  }
+
+  @Nonnull
+  private static AS2Message _createMessage (@Nonnull final byte [] aSBD) throws Exception
+  {
+    final AS2Message aMsg = new AS2Message ();
+    final MimeBodyPart aPart = new MimeBodyPart ();
+    aPart.setDataHandler (new DataHandler (new ByteArrayDataSource (aSBD, "application/xml")));
+    aMsg.setData (aPart);
+    return aMsg;
+  }
+
   @Test
   public void testDefaultCtor ()
   {
@@ -36,4 +112,358 @@ public final class AS2ServletSBDModuleTest
       assertNotNull (x);
     }
   }
+
+  @Test
+  public void testHandlersReceiveExtractedSBDH () throws Exception
+  {
+    final ICommonsList <PeppolSBDHHeader> aReceived = new CommonsArrayList <> ();
+    final ICommonsList <StandardBusinessDocument> aReceivedSBDOnly = new CommonsArrayList <> ();
+    final IAS2IncomingSBDHandlerSPI aHandler1 = new CapturingHandler (aReceived);
+    final IAS2IncomingSBDHandlerSPI aHandler2 = new CapturingHandler (aReceived);
+    // Handlers that only implement the old method are still supported
+    final IAS2IncomingSBDHandlerSPI aLegacyHandler = (aHeaders, aSBD) -> aReceivedSBDOnly.add (aSBD);
+
+    final AS2PeppolServletConfigurationSnapshot aOldSnapshot = AS2PeppolServletConfiguration.getSnapshot ();
+    AS2PeppolServletConfiguration.setSnapshot (AS2PeppolServletConfigurationSnapshot.DEFAULT.getWithReceiverCheckEnabled (false));
+    final AS2ServletSBDModule aModule = new AS2ServletSBDModule (EPeppolAS2Version.V2,
+                                                                 new CommonsArrayList <> (aHandler1, aLegacyHandler, aHandler2),
+                                                                 new CommonsArrayList <> (),
+                                                                 new CommonsArrayList <> ());
+    try
+    {
+      final AS2Message aMsg = new AS2Message ();
+      final MimeBodyPart aPart = new MimeBodyPart ();
+      aPart.setDataHandler (new DataHandler (new ByteArrayDataSource (StreamHelper.getAllBytes (new ClassPathResource ("sbd/example-invoice.xml")),
+                                                                      "application/xml")));
+      aMsg.setData (aPart);
+      aModule.handle (IProcessorStorageModule.DO_STORE, aMsg, null);
+
+      // Extracted once and passed to all handlers
+      assertEquals (2, aReceived.size ());
+      assertSame (aReceived.get (0), aReceived.get (1));
+      assertEquals ("9915:sender", aReceived.get (0).getSenderAsIdentifier ().getValue ());
+      assertEquals ("9915:receiver", aReceived.get (0).getReceiverAsIdentifier ().getValue ());
+      assertEquals ("4c5e3d5e-7b07-4a3e-9c9d-0c1b2d3e4f50", aReceived.get (0).getInstanceIdentifier ());
+      assertEquals (1, aReceivedSBDOnly.size ());
+    }
+    finally
+    {
+      aModule.shutdown ();
+      AS2PeppolServletConfiguration.setSnapshot (aOldSnapshot);
+    }
+  }
+
+  @Test
+  public void testInvalidDocumentIsRejected () throws Exception
+  {
+    final ICommonsList <PeppolSBDHHeader> aReceived = new CommonsArrayList <> ();
+    final ICommonsList <String> aErrors = new CommonsArrayList <> ("Invalid for testing");
+
+    final AS2PeppolServletConfigurationSnapshot aOldSnapshot = AS2PeppolServletConfiguration.getSnapshot ();
+    AS2PeppolServletConfiguration.setSnapshot (AS2PeppolServletConfigurationSnapshot.DEFAULT.getWithReceiverCheckEnabled (false));
+    AS2PeppolServletConfiguration.setValidatorCache (new SBDValidatorCache (aDocTypeID -> (aSBDH, aSBD) -> aErrors));
+    final AS2ServletSBDModule aModule = new AS2ServletSBDModule (EPeppolAS2Version.V2,
+                                                                 new CommonsArrayList <> (new CapturingHandler (aReceived)),
+                                                                 new CommonsArrayList <> (),
+                                                                 new CommonsArrayList <> ());
+    try
+    {
+      final byte [] aSBD = StreamHelper.getAllBytes (new ClassPathResource ("sbd/example-invoice.xml"));
+      AS2Message aMsg = new AS2Message ();
+      MimeBodyPart aPart = new MimeBodyPart ();
+      aPart.setDataHandler (new DataHandler (new ByteArrayDataSource (aSBD, "application/xml")));
+      aMsg.setData (aPart);
+      try
+      {
+        aModule.handle (IProcessorStorageModule.DO_STORE, aMsg, null);
+        fail ();
+      }
+      catch (final AS2Exception ex)
+      {
+        assertTrue (ex.getMessage ().contains ("Invalid for testing"));
+      }
+      assertTrue (aReceived.isEmpty ());
+
+      // Only the first errors are part of the message
+      aErrors.clear ();
+      for (int i = 0; i < 15; ++i)
+        aErrors.add ("Error " + i);
+      aMsg = new AS2Message ();
+      aPart = new MimeBodyPart ();
+      aPart.setDataHandler (new DataHandler (new ByteArrayDataSource (aSBD, "application/xml")));
+      aMsg.setData (aPart);
+      try
+      {
+        aModule.handle (IProcessorStorageModule.DO_STORE, aMsg, null);
+        fail ();
+      }
+      catch (final AS2Exception ex)
+      {
+        assertTrue (ex.getMessage ().contains ("Error 9; and 5 more error(s)"));
+        assertFalse (ex.getMessage ().contains ("Error 10"));
+      }
+      assertTrue (aReceived.isEmpty ());
+
+      // Valid documents are handled
+      aErrors.clear ();
+      aMsg = new AS2Message ();
+      aPart = new MimeBodyPart ();
+      aPart.setDataHandler (new DataHandler (new ByteArrayDataSource (aSBD, "application/xml")));
+      aMsg.setData (aPart);
+      aModule.handle (IProcessorStorageModule.DO_STORE, aMsg, null);
+      assertEquals (1, aReceived.size ());
+    }
+    finally
+    {
+      aModule.shutdown ();
+      AS2PeppolServletConfiguration.setValidatorCache (null);
+      AS2PeppolServletConfiguration.setSnapshot (aOldSnapshot);
+    }
+  }
+
+  @Test
+  public void testAdmissionIsKeptUntilAsyncHandlerFinished () throws Exception
+  {
+    final CountDownLatch aBlock = new CountDownLatch (1);
+    final CountDownLatch aHandled = new CountDownLatch (2);
+    final IAS2IncomingSBDHandlerSPI aHandler = (aHeaders, aSBD) -> {
+      aBlock.await ();
+      aHandled.countDown ();
+    };
+
+    final AS2PeppolServletConfigurationSnapshot aOldSnapshot = AS2PeppolServletConfiguration.getSnapshot ();
+    AS2PeppolServletConfiguration.setSnapshot (AS2PeppolServletConfigurationSnapshot.DEFAULT.getWithReceiverCheckEnabled (false));
+    AS2PeppolServletConfiguration.setAsyncDispatchSettings (new AsyncDispatchSettings (1,
+                                                                                       10,
+                                                                                       EAsyncDispatchRejectionPolicy.REJECT,
+                                                                                       null));
+    // One document at a time, waiting at most 200 ms
+    AS2PeppolServletConfiguration.setAdmissionControlSettings (new AdmissionControlSettings (1,
+                                                                                             Long.MAX_VALUE,
+                                                                                             1,
+                                                                                             Duration.ofMillis (200)));
+    final AS2ServletSBDModule aModule = new AS2ServletSBDModule (EPeppolAS2Version.V2,
+                                                                 new CommonsArrayList <> (aHandler),
+                                                                 new CommonsArrayList <> (),
+                                                                 new CommonsArrayList <> ());
+    try
+    {
+      final byte [] aSBD = StreamHelper.getAllBytes (new ClassPathResource ("sbd/example-invoice.xml"));
+
+      // Returns before the handler finished
+      aModule.handle (IProcessorStorageModule.DO_STORE, _createMessage (aSBD), null);
+
+      // The queued document still occupies the only slot
+      try
+      {
+        aModule.handle (IProcessorStorageModule.DO_STORE, _createMessage (aSBD), null);
+        fail ();
+      }
+      catch (final AS2Exception ex)
+      {
+        assertTrue (ex.getMessage ().contains ("admission"));
+      }
+
+      // After the handler finished, the next document is admitted
+      aBlock.countDown ();
+      aModule.handle (IProcessorStorageModule.DO_STORE, _createMessage (aSBD), null);
+      assertTrue (aHandled.await (5, TimeUnit.SECONDS));
+    }
+    finally
+    {
+      aBlock.countDown ();
+      aModule.shutdown ();
+      AS2PeppolServletConfiguration.setAdmissionControlSettings (null);
+      AS2PeppolServletConfiguration.setAsyncDispatchSettings (null);
+      AS2PeppolServletConfiguration.setSnapshot (aOldSnapshot);
+    }
+  }
+
+  /**
+   * Run the passed message through a module with receiver checks and SMP
+   * lookup pipelining enabled.
+   *
+   * @return The exception thrown by the module or <code>null</code> if the
+   *         document was accepted.
+   */
+  @Nullable
+  private static AS2Exception _handleWithReceiverChecks (@Nonnull final MockSMPClient aSMPClient,
+                                                         @Nonnull final ICommonsList <PeppolSBDHHeader> aReceived) throws Exception
+  {
+    final AS2PeppolServletConfigurationSnapshot aOldSnapshot = AS2PeppolServletConfiguration.getSnapshot ();
+    final boolean bOldPipelining = AS2PeppolServletConfiguration.isSMPLookupPipeliningEnabled ();
+    AS2PeppolServletConfiguration.setSnapshot (AS2PeppolServletConfigurationSnapshot.DEFAULT.getWithReceiverCheckEnabled (true)
+                                                                                            .getWithSMPClient (aSMPClient)
+                                                                                            .getWithAS2EndpointURL (AP_URL)
+                                                                                            .getWithAPFingerprintedCertificate (MockCertificates.getFingerprintedCertificate (MockCertificates.AP_1)));
+    AS2PeppolServletConfiguration.setSMPLookupPipeliningEnabled (true);
+    final AS2ServletSBDModule aModule = new AS2ServletSBDModule (EPeppolAS2Version.V2,
+                                                                 new CommonsArrayList <> (new CapturingHandler (aReceived)),
+                                                                 new CommonsArrayList <> (),
+                                                                 new CommonsArrayList <> ());
+    try
+    {
+      aModule.handle (IProcessorStorageModule.DO_STORE,
+                      _createMessage (StreamHelper.getAllBytes (new ClassPathResource ("sbd/example-invoice.xml"))),
+                      null);
+      return null;
+    }
+    catch (final AS2Exception ex)
+    {
+      return ex;
+    }
+    finally
+    {
+      aModule.shutdown ();
+      AS2PeppolServletConfiguration.setSMPLookupPipeliningEnabled (bOldPipelining);
+      AS2PeppolServletConfiguration.setSnapshot (aOldSnapshot);
+      AS2PeppolServletConfiguration.getEndpointCache ().invalidateAll ();
+    }
+  }
+
+  @Test
+  public void testSMPLookupOverlapsWithParsing () throws Exception
+  {
+    // The SMP answers only after the document was parsed, which would time
+    // out if both were done one after the other
+    final CountDownLatch aParsed = new CountDownLatch (1);
+    final MockSMPClient aSMPClient = new MockSMPClient (AP_URL,
+                                                        MockCertificates.getCertificateString (MockCertificates.AP_1))
+    {
+      @Override
+      public EndpointType getEndpoint (@Nonnull final IParticipantIdentifier aServiceGroupID,
+                                       @Nonnull final IDocumentTypeIdentifier aDocumentTypeID,
+                                       @Nonnull final IProcessIdentifier aProcessID,
+                                       @Nonnull final ISMPTransportProfile aTransportProfile) throws SMPClientException
+      {
+        try
+        {
+          if (!aParsed.await (5, TimeUnit.SECONDS))
+            return null;
+        }
+        catch (final InterruptedException ex)
+        {
+          Thread.currentThread ().interrupt ();
+          return null;
+        }
+        return super.getEndpoint (aServiceGroupID, aDocumentTypeID, aProcessID, aTransportProfile);
+      }
+    };
+
+    final IAS2PeppolServletMetrics aOldMetrics = AS2PeppolServletConfiguration.getMetrics ();
+    AS2PeppolServletConfiguration.setMetrics (new IAS2PeppolServletMetrics ()
+    {
+      @Override
+      public void onStage (@Nonnull final EAS2ReceiveStage eStage, final long nDurationNanos, final boolean bSuccess)
+      {
+        if (eStage == EAS2ReceiveStage.PARSE_SBD)
+          aParsed.countDown ();
+      }
+    });
+    try
+    {
+      final ICommonsList <PeppolSBDHHeader> aReceived = new CommonsArrayList <> ();
+      final AS2Exception ex = _handleWithReceiverChecks (aSMPClient, aReceived);
+      assertNull (ex);
+      assertEquals (1, aReceived.size ());
+      assertEquals (1, aSMPClient.getQueryCount ());
+    }
+    finally
+    {
+      AS2PeppolServletConfiguration.setMetrics (aOldMetrics);
+    }
+  }
+
+  @Test
+  public void testFailedLookupRejectsBeforeHandlers () throws Exception
+  {
+    final ICommonsList <PeppolSBDHHeader> aReceived = new CommonsArrayList <> ();
+    // Receiver not registered
+    final AS2Exception ex = _handleWithReceiverChecks (new MockSMPClient (null, null), aReceived);
+    assertNotNull (ex);
+    assertTrue (ex.getMessage ().contains ("Failed to resolve endpoint"));
+    assertTrue (aReceived.isEmpty ());
+  }
+
+  @Test
+  public void testValidatorOnlyAfterReceiverCheck () throws Exception
+  {
+    final AtomicInteger aValidatorCreations = new AtomicInteger (0);
+    AS2PeppolServletConfiguration.setValidatorCache (new SBDValidatorCache (aDocTypeID -> {
+      aValidatorCreations.incrementAndGet ();
+      return null;
+    }));
+    try
+    {
+      final ICommonsList <PeppolSBDHHeader> aReceived = new CommonsArrayList <> ();
+      AS2Exception ex = _handleWithReceiverChecks (new MockSMPClient ("https://other.example.org/as2",
+                                                                      MockCertificates.getCertificateString (MockCertificates.AP_1)),
+                                                   aReceived);
+      assertNotNull (ex);
+      // Documents that are not for us don't create validators
+      assertEquals (0, aValidatorCreations.get ());
+
+      ex = _handleWithReceiverChecks (new MockSMPClient (AP_URL,
+                                                         MockCertificates.getCertificateString (MockCertificates.AP_1)),
+                                      aReceived);
+      assertNull (ex);
+      assertEquals (1, aValidatorCreations.get ());
+      assertEquals (1, aReceived.size ());
+    }
+    finally
+    {
+      AS2PeppolServletConfiguration.setValidatorCache (null);
+    }
+  }
+
+  @Test
+  public void testNotForUsRejectsBeforeHandlers () throws Exception
+  {
+    final ICommonsList <PeppolSBDHHeader> aReceived = new CommonsArrayList <> ();
+
+    // Other endpoint URL
+    AS2Exception ex = _handleWithReceiverChecks (new MockSMPClient ("https://other.example.org/as2",
+                                                                    MockCertificates.getCertificateString (MockCertificates.AP_1)),
+                                                 aReceived);
+    assertNotNull (ex);
+    assertTrue (ex.getMessage ().contains ("is not for us"));
+    assertTrue (aReceived.isEmpty ());
+
+    // Other certificate with the same serial number
+    ex = _handleWithReceiverChecks (new MockSMPClient (AP_URL,
+                                                       MockCertificates.getCertificateString (MockCertificates.AP_2)),
+                                    aReceived);
+    assertNotNull (ex);
+    assertTrue (ex.getMessage ().contains ("different fingerprints"));
+    assertTrue (aReceived.isEmpty ());
+  }
+
+  @Test
+  public void testContextListenerWritesEndpointSnapshot () throws Exception
+  {
+    final File aSnapshotFile = new File (m_aTempFolder.getRoot (), "endpoints.bin");
+    final File aOldSnapshotFile = AS2PeppolServletConfiguration.getEndpointSnapshotFile ();
+    AS2PeppolServletConfiguration.setEndpointSnapshotFile (aSnapshotFile);
+    try
+    {
+      final AS2ServletSBDModule aModule = new AS2ServletSBDModule (EPeppolAS2Version.V2,
+                                                                   new CommonsArrayList <> (),
+                                                                   new CommonsArrayList <> (),
+                                                                   new CommonsArrayList <> ());
+      assertNotNull (aModule);
+      // No interval is configured, so it is only written on shutdown
+      assertFalse (aSnapshotFile.exists ());
+
+      // The AS2 processor never shuts down its modules
+      new AS2PeppolServletContextListener ().contextDestroyed (null);
+      assertTrue (aSnapshotFile.isFile ());
+
+      // Already shut down
+      aModule.shutdown ();
+    }
+    finally
+    {
+      AS2PeppolServletConfiguration.setEndpointSnapshotFile (aOldSnapshotFile);
+    }
+  }
 }
@@ -0,0 +1,270 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.activation.DataHandler;
+import javax.annotation.Nonnull;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.util.ByteArrayDataSource;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.helger.as2lib.exception.AS2Exception;
+import com.helger.as2lib.message.AS2Message;
+import com.helger.as2lib.processor.storage.IProcessorStorageModule;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsCopyOnWriteArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+
+/**
+ * Test class for class {@link AsyncSBDDispatcher}.
+ *
+ * @author Philip Helger
+ */
+public final class AsyncSBDDispatcherTest
+{
+  @Rule
+  public final TemporaryFolder m_aTempFolder = new TemporaryFolder ();
+
+  @Nonnull
+  private static AS2IncomingSBD _createDocument (final int nIndex)
+  {
+    final PeppolIdentifierFactory aIF = PeppolIdentifierFactory.INSTANCE;
+    final PeppolSBDHHeader aSBDH = new PeppolSBDHHeader (aIF.createParticipantIdentifierWithDefaultScheme ("9915:sender"),
+                                                         aIF.createParticipantIdentifierWithDefaultScheme ("9915:receiver"),
+                                                         aIF.createDocumentTypeIdentifierWithDefaultScheme ("doctype"),
+                                                         aIF.createProcessIdentifierWithDefaultScheme ("process"),
+                                                         null,
+                                                         null,
+                                                         null,
+                                                         "id-" + nIndex,
+                                                         null);
+    return new AS2IncomingSBD (new HttpHeaderMap (),
+                               aSBDH,
+                               null,
+                               () -> new NonBlockingByteArrayInputStream (new byte [0]));
+  }
+
+  @Nonnull
+  private static String _getID (@Nonnull final AS2IncomingSBD aIncoming)
+  {
+    return aIncoming.getSBDH ().getInstanceIdentifier ();
+  }
+
+  @Test
+  public void testReject () throws Exception
+  {
+    final CountDownLatch aBlock = new CountDownLatch (1);
+    final ICommonsList <String> aHandled = new CommonsCopyOnWriteArrayList <> ();
+    final AsyncSBDDispatcher.ISBDConsumer aConsumer = x -> {
+      aBlock.await ();
+      aHandled.add (_getID (x));
+    };
+
+    final AsyncSBDDispatcher aDispatcher = new AsyncSBDDispatcher (new AsyncDispatchSettings (1,
+                                                                                             1,
+                                                                                             EAsyncDispatchRejectionPolicy.REJECT,
+                                                                                             null));
+    try
+    {
+      // The first one is handled, the second one is queued
+      aDispatcher.dispatch (_createDocument (0), aConsumer);
+      aDispatcher.dispatch (_createDocument (1), aConsumer);
+      assertEquals (1, aDispatcher.getQueueDepth ());
+
+      try
+      {
+        aDispatcher.dispatch (_createDocument (2), aConsumer);
+        fail ();
+      }
+      catch (final AS2Exception ex)
+      {
+        assertTrue (ex.getMessage ().contains ("id-2"));
+      }
+    }
+    finally
+    {
+      aBlock.countDown ();
+      aDispatcher.close ();
+    }
+    assertEquals (new CommonsArrayList <> ("id-0", "id-1"), aHandled);
+  }
+
+  @Test
+  public void testCallerRuns () throws Exception
+  {
+    final CountDownLatch aBlock = new CountDownLatch (1);
+    final Thread aCallerThread = Thread.currentThread ();
+    final ICommonsList <String> aHandledByCaller = new CommonsCopyOnWriteArrayList <> ();
+    final AsyncSBDDispatcher.ISBDConsumer aConsumer = x -> {
+      if (Thread.currentThread () == aCallerThread)
+      {
+        aHandledByCaller.add (_getID (x));
+        if ("id-3".equals (_getID (x)))
+          throw new IllegalStateException ("Failed for testing");
+      }
+      else
+        aBlock.await ();
+    };
+
+    final AsyncSBDDispatcher aDispatcher = new AsyncSBDDispatcher (new AsyncDispatchSettings (1,
+                                                                                             1,
+                                                                                             EAsyncDispatchRejectionPolicy.CALLER_RUNS,
+                                                                                             null));
+    try
+    {
+      aDispatcher.dispatch (_createDocument (0), aConsumer);
+      aDispatcher.dispatch (_createDocument (1), aConsumer);
+
+      // The queue is full - handled before dispatch returns
+      aDispatcher.dispatch (_createDocument (2), aConsumer);
+      assertEquals (new CommonsArrayList <> ("id-2"), aHandledByCaller);
+
+      // Errors are propagated to the caller
+      try
+      {
+        aDispatcher.dispatch (_createDocument (3), aConsumer);
+        fail ();
+      }
+      catch (final IllegalStateException ex)
+      {
+        assertEquals ("Failed for testing", ex.getMessage ());
+      }
+    }
+    finally
+    {
+      aBlock.countDown ();
+      aDispatcher.close ();
+    }
+    assertEquals (new CommonsArrayList <> ("id-2", "id-3"), aHandledByCaller);
+  }
+
+  @Test
+  public void testCloseDrainsQueue () throws Exception
+  {
+    final ICommonsList <String> aHandled = new CommonsCopyOnWriteArrayList <> ();
+    final AsyncSBDDispatcher aDispatcher = new AsyncSBDDispatcher (new AsyncDispatchSettings (1,
+                                                                                             10,
+                                                                                             EAsyncDispatchRejectionPolicy.REJECT,
+                                                                                             null));
+    for (int i = 0; i < 5; ++i)
+      aDispatcher.dispatch (_createDocument (i), x -> {
+        Thread.sleep (10);
+        aHandled.add (_getID (x));
+      });
+    aDispatcher.close ();
+
+    // All queued documents were handled before close returned
+    assertEquals (new CommonsArrayList <> ("id-0", "id-1", "id-2", "id-3", "id-4"), aHandled);
+    assertEquals (0, aDispatcher.getQueueDepth ());
+
+    // No more documents are accepted
+    try
+    {
+      aDispatcher.dispatch (_createDocument (5), x -> aHandled.add (_getID (x)));
+      fail ();
+    }
+    catch (final AS2Exception ex)
+    {
+      // expected
+    }
+  }
+
+  @Nonnull
+  private static AS2Message _createMessage (@Nonnull final byte [] aSBD) throws Exception
+  {
+    final AS2Message aMsg = new AS2Message ();
+    final MimeBodyPart aPart = new MimeBodyPart ();
+    aPart.setDataHandler (new DataHandler (new ByteArrayDataSource (aSBD, "application/xml")));
+    aMsg.setData (aPart);
+    return aMsg;
+  }
+
+  @Test
+  public void testRejectedDocumentIsClosed () throws Exception
+  {
+    final File aSpillDir = m_aTempFolder.newFolder ();
+    final CountDownLatch aBlock = new CountDownLatch (1);
+    final CountDownLatch aStarted = new CountDownLatch (1);
+    final IAS2IncomingSBDStreamHandlerSPI aHandler = (aHeaders, aSBDH, aSBDStream) -> {
+      aStarted.countDown ();
+      aBlock.await ();
+    };
+
+    final AS2PeppolServletConfigurationSnapshot aOldSnapshot = AS2PeppolServletConfiguration.getSnapshot ();
+    final long nOldSpillThreshold = AS2PeppolServletConfiguration.getPayloadSpillThreshold ();
+    final File aOldSpillDir = AS2PeppolServletConfiguration.getPayloadSpillDirectory ();
+    AS2PeppolServletConfiguration.setSnapshot (AS2PeppolServletConfigurationSnapshot.DEFAULT.getWithReceiverCheckEnabled (false));
+    // Every detached document gets a temporary file
+    AS2PeppolServletConfiguration.setPayloadSpillThreshold (0);
+    AS2PeppolServletConfiguration.setPayloadSpillDirectory (aSpillDir);
+    AS2PeppolServletConfiguration.setAsyncDispatchSettings (new AsyncDispatchSettings (1,
+                                                                                       1,
+                                                                                       EAsyncDispatchRejectionPolicy.REJECT,
+                                                                                       null));
+    final AS2ServletSBDModule aModule = new AS2ServletSBDModule (EPeppolAS2Version.V2,
+                                                                 new CommonsArrayList <> (),
+                                                                 new CommonsArrayList <> (aHandler),
+                                                                 new CommonsArrayList <> ());
+    try
+    {
+      final byte [] aSBD = StreamHelper.getAllBytes (new ClassPathResource ("sbd/example-invoice.xml"));
+      aModule.handle (IProcessorStorageModule.DO_STORE, _createMessage (aSBD), null);
+      assertTrue (aStarted.await (5, TimeUnit.SECONDS));
+      aModule.handle (IProcessorStorageModule.DO_STORE, _createMessage (aSBD), null);
+      assertEquals (2, aSpillDir.list ().length);
+
+      try
+      {
+        aModule.handle (IProcessorStorageModule.DO_STORE, _createMessage (aSBD), null);
+        fail ();
+      }
+      catch (final AS2Exception ex)
+      {
+        // expected
+      }
+      // The temporary file of the rejected document was deleted
+      assertEquals (2, aSpillDir.list ().length);
+    }
+    finally
+    {
+      // Shutting down handles the queued document
+      aBlock.countDown ();
+      aModule.shutdown ();
+      AS2PeppolServletConfiguration.setAsyncDispatchSettings (null);
+      AS2PeppolServletConfiguration.setPayloadSpillDirectory (aOldSpillDir);
+      AS2PeppolServletConfiguration.setPayloadSpillThreshold (nOldSpillThreshold);
+      AS2PeppolServletConfiguration.setSnapshot (aOldSnapshot);
+    }
+    assertEquals (0, aSpillDir.list ().length);
+  }
+}
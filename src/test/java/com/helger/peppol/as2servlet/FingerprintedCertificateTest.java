@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.security.cert.X509Certificate;
+
+import org.junit.Test;
+
+import com.helger.peppol.as2servlet.mock.MockCertificates;
+
+/**
+ * Test class for class {@link FingerprintedCertificate}.
+ *
+ * @author Philip Helger
+ */
+public final class FingerprintedCertificateTest
+{
+  @Test
+  public void testFingerprint () throws Exception
+  {
+    final FingerprintedCertificate aCert = MockCertificates.getFingerprintedCertificate (MockCertificates.AP_1);
+    assertEquals ("9a98af3a71582e603ef7d5603a6b867f0955b3316041c377b9761b75faaf62ea", aCert.getFingerprintHex ());
+    assertEquals (32, aCert.getFingerprint ().length);
+
+    // A copy is returned
+    final byte [] aFingerprint = aCert.getFingerprint ();
+    aFingerprint[0]++;
+    assertFalse (aFingerprint[0] == aCert.getFingerprint ()[0]);
+  }
+
+  @Test
+  public void testMatches () throws Exception
+  {
+    final FingerprintedCertificate aCert1 = MockCertificates.getFingerprintedCertificate (MockCertificates.AP_1);
+    final FingerprintedCertificate aCert1Again = MockCertificates.getFingerprintedCertificate (MockCertificates.AP_1);
+    assertNotSame (aCert1, aCert1Again);
+    assertTrue (aCert1.matches (aCert1));
+    assertTrue (aCert1.matches (aCert1Again));
+    assertArrayEquals (aCert1.getFingerprint (), aCert1Again.getFingerprint ());
+    assertFalse (aCert1.matches (null));
+  }
+
+  @Test
+  public void testSameSerialNumberDifferentCertificate () throws Exception
+  {
+    final X509Certificate aX1 = MockCertificates.getCertificate (MockCertificates.AP_1);
+    final X509Certificate aX2 = MockCertificates.getCertificate (MockCertificates.AP_2);
+    // Only the keys differ
+    assertEquals (aX1.getSerialNumber (), aX2.getSerialNumber ());
+    assertEquals (aX1.getSubjectX500Principal (), aX2.getSubjectX500Principal ());
+    assertEquals (aX1.getIssuerX500Principal (), aX2.getIssuerX500Principal ());
+
+    final FingerprintedCertificate aCert1 = FingerprintedCertificate.create (aX1);
+    final FingerprintedCertificate aCert2 = FingerprintedCertificate.create (aX2);
+    assertFalse (aCert1.matches (aCert2));
+    assertFalse (aCert2.matches (aCert1));
+  }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Test class for class {@link InMemoryAS2PeppolServletMetrics}.
+ *
+ * @author Philip Helger
+ */
+public final class InMemoryAS2PeppolServletMetricsTest
+{
+  @Test
+  public void testHistogram ()
+  {
+    final LatencyHistogram aHisto = new LatencyHistogram ();
+    assertEquals (0, aHisto.getPercentileMicros (99));
+    for (int i = 0; i < 99; ++i)
+      aHisto.record (TimeUnit.MICROSECONDS.toNanos (100));
+    aHisto.record (TimeUnit.MILLISECONDS.toNanos (10));
+
+    assertEquals (100, aHisto.getCount ());
+    assertEquals (TimeUnit.MILLISECONDS.toNanos (10), aHisto.getMaxNanos ());
+    // Upper bound of the bucket
+    final long nP50 = aHisto.getPercentileMicros (50);
+    assertTrue (nP50 >= 100 && nP50 <= 200);
+    final long nP100 = aHisto.getPercentileMicros (100);
+    assertTrue (nP100 >= 10_000 && nP100 <= 20_000);
+
+    aHisto.reset ();
+    assertEquals (0, aHisto.getCount ());
+  }
+
+  @Test
+  public void testMetrics ()
+  {
+    final InMemoryAS2PeppolServletMetrics aMetrics = new InMemoryAS2PeppolServletMetrics ();
+    aMetrics.onStage (EAS2ReceiveStage.READ_HEADER, 1000, true);
+    aMetrics.onStage (EAS2ReceiveStage.READ_HEADER, 2000, false);
+    aMetrics.onHandler ("a", 5000, true);
+    aMetrics.onHandler ("a", 5000, false);
+    aMetrics.onDocumentSize (1024);
+    aMetrics.onEndpointCacheAccess (true);
+    aMetrics.onEndpointCacheAccess (false);
+    aMetrics.onEndpointCacheAccess (false);
+
+    assertEquals (2, aMetrics.getStageLatency (EAS2ReceiveStage.READ_HEADER).getCount ());
+    assertEquals (1, aMetrics.getStageFailureCount (EAS2ReceiveStage.READ_HEADER));
+    assertEquals (0, aMetrics.getStageLatency (EAS2ReceiveStage.TOTAL).getCount ());
+    assertEquals (2, aMetrics.getHandlerLatency ("a").getCount ());
+    assertEquals (1, aMetrics.getHandlerFailureCount ("a"));
+    assertEquals (0, aMetrics.getHandlerLatency ("b").getCount ());
+    assertEquals (1, aMetrics.getAllHandlerNames ().size ());
+    assertEquals (1024, aMetrics.getDocumentBytes ());
+    assertEquals (1, aMetrics.getEndpointCacheHitCount ());
+    assertEquals (2, aMetrics.getEndpointCacheMissCount ());
+  }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.Nonnull;
+import javax.xml.stream.XMLStreamException;
+
+import org.junit.Test;
+
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+
+/**
+ * Test class for class {@link PeppolSBDHHeaderReader}.
+ *
+ * @author Philip Helger
+ */
+public final class PeppolSBDHHeaderReaderTest
+{
+  static final String EXAMPLE_INVOICE = "sbd/example-invoice.xml";
+
+  @Test
+  public void testReadHeader () throws Exception
+  {
+    try (final InputStream aIS = new ClassPathResource (EXAMPLE_INVOICE).getInputStream ())
+    {
+      final PeppolSBDHHeader aHeader = new PeppolSBDHHeaderReader ().readHeader (aIS);
+      assertNotNull (aHeader);
+      assertEquals ("iso6523-actorid-upis::9915:sender", aHeader.getSenderAsIdentifier ().getURIEncoded ());
+      assertEquals ("iso6523-actorid-upis::9915:receiver", aHeader.getReceiverAsIdentifier ().getURIEncoded ());
+      assertEquals ("busdox-docid-qns::urn:oasis:names:specification:ubl:schema:xsd:Invoice-2::Invoice##urn:cen.eu:en16931:2017#compliant#urn:fdc:peppol.eu:2017:poacc:billing:3.0::2.1",
+                    aHeader.getDocumentTypeAsIdentifier ().getURIEncoded ());
+      assertEquals ("cenbii-procid-ubl::urn:fdc:peppol.eu:2017:poacc:billing:01:1.0",
+                    aHeader.getProcessAsIdentifier ().getURIEncoded ());
+      assertEquals ("4c5e3d5e-7b07-4a3e-9c9d-0c1b2d3e4f50", aHeader.getInstanceIdentifier ());
+      assertEquals ("Invoice", aHeader.getType ());
+      assertEquals ("2.1", aHeader.getTypeVersion ());
+    }
+  }
+
+  @Test
+  public void testPayloadIsNotRead () throws Exception
+  {
+    // Cut the document after the header - the payload is never read
+    final String sFull = new String (StreamHelper.getAllBytes (new ClassPathResource (EXAMPLE_INVOICE).getInputStream ()),
+                                     StandardCharsets.UTF_8);
+    final int nPayloadStart = sFull.indexOf ("<Invoice ");
+    final String sTruncated = sFull.substring (0, sFull.indexOf ('>', nPayloadStart) + 1) + "<broken";
+    final PeppolSBDHHeader aHeader = new PeppolSBDHHeaderReader ().readHeader (new NonBlockingByteArrayInputStream (sTruncated.getBytes (StandardCharsets.UTF_8)));
+    assertEquals ("4c5e3d5e-7b07-4a3e-9c9d-0c1b2d3e4f50", aHeader.getInstanceIdentifier ());
+  }
+
+  @Test
+  public void testNoSBD ()
+  {
+    try
+    {
+      new PeppolSBDHHeaderReader ().readHeader (new NonBlockingByteArrayInputStream ("<Invoice xmlns='urn:x'/>".getBytes (StandardCharsets.UTF_8)));
+      fail ();
+    }
+    catch (final XMLStreamException ex)
+    {
+      // expected
+    }
+  }
+
+  @Nonnull
+  private static String _getExample ()
+  {
+    return new String (StreamHelper.getAllBytes (new ClassPathResource (EXAMPLE_INVOICE)), StandardCharsets.UTF_8);
+  }
+
+  private static void _assertRejected (@Nonnull final String sSBD)
+  {
+    try
+    {
+      new PeppolSBDHHeaderReader ().readHeader (new NonBlockingByteArrayInputStream (sSBD.getBytes (StandardCharsets.UTF_8)));
+      fail ();
+    }
+    catch (final XMLStreamException ex)
+    {
+      // expected
+    }
+  }
+
+  @Test
+  public void testPeppolRules ()
+  {
+    final String sSBD = _getExample ();
+    final String sReceiver = "<Receiver>\n      <Identifier Authority=\"iso6523-actorid-upis\">9915:receiver</Identifier>\n    </Receiver>";
+    assertTrue (sSBD.contains (sReceiver));
+
+    // Exactly one receiver - otherwise the SMP lookup could use another one
+    _assertRejected (sSBD.replace (sReceiver,
+                                   sReceiver +
+                                              "<Receiver><Identifier Authority=\"iso6523-actorid-upis\">9915:other</Identifier></Receiver>"));
+    _assertRejected (sSBD.replace ("9915:receiver</Identifier>",
+                                   "9915:receiver</Identifier><Identifier Authority=\"iso6523-actorid-upis\">9915:other</Identifier>"));
+    _assertRejected (sSBD.replace ("<Sender>", "<Sender><Identifier Authority=\"iso6523-actorid-upis\">9915:x</Identifier></Sender><Sender>"));
+
+    // Header version
+    _assertRejected (sSBD.replace ("<HeaderVersion>1.0</HeaderVersion>", "<HeaderVersion>2.0</HeaderVersion>"));
+    _assertRejected (sSBD.replace ("<HeaderVersion>1.0</HeaderVersion>", ""));
+
+    // Business scopes
+    _assertRejected (sSBD.replace ("<BusinessScope>",
+                                   "<BusinessScope><Scope><Type>PROCESSID</Type><InstanceIdentifier>other</InstanceIdentifier></Scope>"));
+
+    // The business message must match standard and type
+    _assertRejected (sSBD.replace ("<Type>Invoice</Type>", "<Type>CreditNote</Type>"));
+    _assertRejected (sSBD.replace ("<Standard>urn:oasis:names:specification:ubl:schema:xsd:Invoice-2</Standard>",
+                                   "<Standard>urn:other</Standard>"));
+    _assertRejected (sSBD.substring (0, sSBD.indexOf ("<Invoice ")) + "</StandardBusinessDocument>");
+  }
+}
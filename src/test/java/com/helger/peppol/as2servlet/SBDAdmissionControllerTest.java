@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.helger.as2lib.exception.AS2Exception;
+
+/**
+ * Test class for class {@link SBDAdmissionController}.
+ *
+ * @author Philip Helger
+ */
+public final class SBDAdmissionControllerTest
+{
+  @Test
+  public void testRejectImmediately () throws AS2Exception
+  {
+    final SBDAdmissionController aAC = new SBDAdmissionController (new AdmissionControlSettings (2,
+                                                                                                  1000,
+                                                                                                  0,
+                                                                                                  Duration.ZERO));
+    final long n1 = aAC.acquire (100);
+    final long n2 = aAC.acquire (-1);
+    assertEquals (100, n1);
+    assertEquals (0, n2);
+    assertEquals (2, aAC.getInFlightDocuments ());
+    assertEquals (100, aAC.getInFlightBytes ());
+    try
+    {
+      aAC.acquire (1);
+      fail ();
+    }
+    catch (final AS2Exception ex)
+    {
+      // expected
+    }
+    assertEquals (1, aAC.getRejectedCount ());
+
+    aAC.release (n1);
+    aAC.release (n2);
+    assertEquals (0, aAC.getInFlightDocuments ());
+    assertEquals (0, aAC.getInFlightBytes ());
+  }
+
+  @Test
+  public void testByteBudget () throws AS2Exception
+  {
+    final SBDAdmissionController aAC = new SBDAdmissionController (new AdmissionControlSettings (10,
+                                                                                                  1000,
+                                                                                                  0,
+                                                                                                  Duration.ZERO));
+    // Oversized document is admitted alone
+    final long n1 = aAC.acquire (5000);
+    assertEquals (1000, n1);
+    try
+    {
+      aAC.acquire (1);
+      fail ();
+    }
+    catch (final AS2Exception ex)
+    {
+      // expected
+    }
+    aAC.release (n1);
+    assertEquals (600, aAC.acquire (600));
+  }
+
+  @Test
+  public void testWaitTimeout () throws AS2Exception
+  {
+    final SBDAdmissionController aAC = new SBDAdmissionController (new AdmissionControlSettings (1,
+                                                                                                  1000,
+                                                                                                  5,
+                                                                                                  Duration.ofMillis (50)));
+    aAC.acquire (1);
+    final long nStart = System.nanoTime ();
+    try
+    {
+      aAC.acquire (1);
+      fail ();
+    }
+    catch (final AS2Exception ex)
+    {
+      // expected
+    }
+    assertEquals (true, System.nanoTime () - nStart >= TimeUnit.MILLISECONDS.toNanos (40));
+    assertEquals (0, aAC.getQueuedDocuments ());
+  }
+
+  @Test
+  public void testWaitUntilReleased () throws Exception
+  {
+    final SBDAdmissionController aAC = new SBDAdmissionController (new AdmissionControlSettings (1,
+                                                                                                  1000,
+                                                                                                  5,
+                                                                                                  Duration.ofSeconds (10)));
+    final long n1 = aAC.acquire (10);
+    final CountDownLatch aDone = new CountDownLatch (1);
+    final AtomicLong aAccounted = new AtomicLong (-1);
+    final Thread aThread = new Thread ( () -> {
+      try
+      {
+        aAccounted.set (aAC.acquire (20));
+      }
+      catch (final AS2Exception ex)
+      {
+        // ignore
+      }
+      aDone.countDown ();
+    });
+    aThread.start ();
+    while (aAC.getQueuedDocuments () == 0)
+      Thread.sleep (1);
+    assertEquals (1, aDone.getCount ());
+
+    aAC.release (n1);
+    assertEquals (true, aDone.await (5, TimeUnit.SECONDS));
+    assertEquals (20, aAccounted.get ());
+    assertEquals (20, aAC.getInFlightBytes ());
+  }
+}
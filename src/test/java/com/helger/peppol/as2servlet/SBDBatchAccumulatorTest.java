@@ -0,0 +1,192 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+
+import com.helger.as2lib.exception.AS2Exception;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+
+/**
+ * Test class for class {@link SBDBatchAccumulator}.
+ *
+ * @author Philip Helger
+ */
+public final class SBDBatchAccumulatorTest
+{
+  private static final class MockBatchHandler implements IAS2IncomingSBDBatchHandlerSPI
+  {
+    private final ICommonsList <Integer> m_aBatchSizes = new CommonsArrayList <> ();
+
+    @Override
+    public int getMaxBatchSize ()
+    {
+      return 3;
+    }
+
+    @Override
+    public Duration getMaxBatchDelay ()
+    {
+      return Duration.ofMillis (50);
+    }
+
+    public synchronized void handleIncomingSBDs (@Nonnull final ICommonsList <AS2IncomingSBD> aDocuments)
+    {
+      m_aBatchSizes.add (Integer.valueOf (aDocuments.size ()));
+    }
+  }
+
+  private static final class FailingBatchHandler implements IAS2IncomingSBDBatchHandlerSPI
+  {
+    private final ICommonsList <String> m_aFailedIDs = new CommonsArrayList <> ();
+    private final CountDownLatch m_aFailed = new CountDownLatch (1);
+
+    @Override
+    public Duration getMaxBatchDelay ()
+    {
+      return Duration.ofMillis (10);
+    }
+
+    public void handleIncomingSBDs (@Nonnull final ICommonsList <AS2IncomingSBD> aDocuments) throws Exception
+    {
+      throw new IllegalStateException ("Simulated failure");
+    }
+
+    @Override
+    public synchronized void onBatchFailed (@Nonnull final ICommonsList <AS2IncomingSBD> aDocuments,
+                                            @Nonnull final Exception aException)
+    {
+      for (final AS2IncomingSBD aDocument : aDocuments)
+        m_aFailedIDs.add (aDocument.getSBDH ().getInstanceIdentifier ());
+      m_aFailed.countDown ();
+    }
+  }
+
+  @Nonnull
+  private static PeppolSBDHHeader _createSBDH (final int nIndex)
+  {
+    final PeppolIdentifierFactory aIF = PeppolIdentifierFactory.INSTANCE;
+    return new PeppolSBDHHeader (aIF.createParticipantIdentifierWithDefaultScheme ("9915:sender"),
+                                 aIF.createParticipantIdentifierWithDefaultScheme ("9915:receiver"),
+                                 aIF.createDocumentTypeIdentifierWithDefaultScheme ("doctype"),
+                                 aIF.createProcessIdentifierWithDefaultScheme ("process"),
+                                 null,
+                                 null,
+                                 null,
+                                 "id-" + nIndex,
+                                 null);
+  }
+
+  @Nonnull
+  private static AS2IncomingSBD _createDocument (final int nIndex)
+  {
+    return new AS2IncomingSBD (new HttpHeaderMap (),
+                               _createSBDH (nIndex),
+                               null,
+                               () -> new NonBlockingByteArrayInputStream (new byte [0]));
+  }
+
+  @Test
+  public void testSizeAndTime () throws Exception
+  {
+    final MockBatchHandler aHandler = new MockBatchHandler ();
+    final CountDownLatch aHandled = new CountDownLatch (4);
+    try (final SBDBatchAccumulator aAccumulator = new SBDBatchAccumulator (aHandler))
+    {
+      // One full batch and one that is flushed by time
+      for (int i = 0; i < 4; ++i)
+        aAccumulator.add (_createDocument (i), aHandled::countDown);
+      assertTrue (aHandled.await (5, TimeUnit.SECONDS));
+      assertEquals (0, aAccumulator.getPendingCount ());
+    }
+
+    synchronized (aHandler)
+    {
+      assertEquals (2, aHandler.m_aBatchSizes.size ());
+      assertEquals (3, aHandler.m_aBatchSizes.get (0).intValue ());
+      assertEquals (1, aHandler.m_aBatchSizes.get (1).intValue ());
+    }
+  }
+
+  @Test
+  public void testFailedBatch () throws Exception
+  {
+    final FailingBatchHandler aHandler = new FailingBatchHandler ();
+    final AtomicInteger aHandled = new AtomicInteger (0);
+    try (final SBDBatchAccumulator aAccumulator = new SBDBatchAccumulator (aHandler))
+    {
+      aAccumulator.add (_createDocument (0), aHandled::incrementAndGet);
+      aAccumulator.add (_createDocument (1), null);
+      assertTrue (aHandler.m_aFailed.await (5, TimeUnit.SECONDS));
+    }
+
+    // Nothing was acknowledged, but the handler saw all documents
+    assertEquals (0, aHandled.get ());
+    synchronized (aHandler)
+    {
+      assertEquals (new CommonsArrayList <> ("id-0", "id-1"), aHandler.m_aFailedIDs);
+    }
+  }
+
+  @Test
+  public void testClose () throws Exception
+  {
+    final MockBatchHandler aHandler = new MockBatchHandler ();
+    final AtomicInteger aHandled = new AtomicInteger (0);
+    final SBDBatchAccumulator aAccumulator = new SBDBatchAccumulator (aHandler);
+    aAccumulator.add (_createDocument (0), aHandled::incrementAndGet);
+
+    // The pending batch is handled before the thread stops
+    aAccumulator.close ();
+    assertEquals (1, aHandled.get ());
+    assertEquals (0, aAccumulator.getPendingCount ());
+
+    // Documents added afterwards are rejected and released
+    final SBDPayloadBuffer aPayload = SBDPayloadBuffer.wrap (new byte [0]);
+    final AtomicBoolean aReleased = new AtomicBoolean (false);
+    aPayload.addReleaseCallback ( () -> aReleased.set (true));
+    try
+    {
+      aAccumulator.add (new AS2IncomingSBD (new HttpHeaderMap (), _createSBDH (1), null, aPayload, null),
+                        aHandled::incrementAndGet);
+      fail ();
+    }
+    catch (final AS2Exception ex)
+    {
+      // expected
+    }
+    assertTrue (aReleased.get ());
+    assertEquals (0, aAccumulator.getPendingCount ());
+    assertEquals (1, aHandled.get ());
+  }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+
+/**
+ * Test class for class {@link SBDDuplicateDetector}.
+ *
+ * @author Philip Helger
+ */
+public final class SBDDuplicateDetectorTest
+{
+  @Nonnull
+  private static PeppolSBDHHeader _createHeader (@Nonnull final String sSenderID, @Nonnull final String sInstanceID)
+  {
+    final PeppolIdentifierFactory aIF = PeppolIdentifierFactory.INSTANCE;
+    return new PeppolSBDHHeader (aIF.createParticipantIdentifierWithDefaultScheme (sSenderID),
+                                 aIF.createParticipantIdentifierWithDefaultScheme ("9915:receiver"),
+                                 aIF.createDocumentTypeIdentifierWithDefaultScheme ("doctype"),
+                                 aIF.createProcessIdentifierWithDefaultScheme ("process"),
+                                 null,
+                                 null,
+                                 null,
+                                 sInstanceID,
+                                 null);
+  }
+
+  @Test
+  public void testBasic ()
+  {
+    final SBDDuplicateDetector aDetector = new SBDDuplicateDetector ();
+    final PeppolSBDHHeader aHeader = _createHeader ("9915:sender", "id1");
+    assertFalse (aDetector.isDuplicate (aHeader));
+    // Checking alone does not register
+    assertFalse (aDetector.isDuplicate (aHeader));
+
+    aDetector.register (aHeader);
+    assertTrue (aDetector.isDuplicate (aHeader));
+    assertTrue (aDetector.isDuplicate (_createHeader ("9915:sender", "id1")));
+
+    // Same instance ID from a different sender
+    assertFalse (aDetector.isDuplicate (_createHeader ("9915:other", "id1")));
+    assertFalse (aDetector.isDuplicate (_createHeader ("9915:sender", "id2")));
+    assertEquals (1, aDetector.getEntryCount ());
+  }
+
+  @Test
+  public void testMaxEntries ()
+  {
+    final SBDDuplicateDetector aDetector = new SBDDuplicateDetector (Duration.ofHours (1), 100);
+    for (int i = 0; i < 1000; ++i)
+      aDetector.register (_createHeader ("9915:sender", "id" + i));
+    assertEquals (100, aDetector.getEntryCount ());
+
+    // The oldest were evicted
+    assertFalse (aDetector.isDuplicate (_createHeader ("9915:sender", "id0")));
+    for (int i = 900; i < 1000; ++i)
+      assertTrue (aDetector.isDuplicate (_createHeader ("9915:sender", "id" + i)));
+  }
+
+  @Test
+  public void testRetention () throws InterruptedException
+  {
+    final SBDDuplicateDetector aDetector = new SBDDuplicateDetector (Duration.ofMillis (50), 100);
+    final PeppolSBDHHeader aHeader = _createHeader ("9915:sender", "id1");
+    aDetector.register (aHeader);
+    assertTrue (aDetector.isDuplicate (aHeader));
+
+    Thread.sleep (100);
+    assertFalse (aDetector.isDuplicate (aHeader));
+
+    // Expired entries are removed on the next registration
+    aDetector.register (_createHeader ("9915:sender", "id2"));
+    assertEquals (1, aDetector.getEntryCount ());
+  }
+
+  @Test
+  public void testClaim ()
+  {
+    final SBDDuplicateDetector aDetector = new SBDDuplicateDetector ();
+    final PeppolSBDHHeader aHeader = _createHeader ("9915:sender", "id1");
+    assertEquals (EDuplicateClaim.CLAIMED, aDetector.tryClaim (aHeader));
+    // A concurrent retransmission
+    assertEquals (EDuplicateClaim.IN_PROGRESS, aDetector.tryClaim (_createHeader ("9915:sender", "id1")));
+    assertEquals (1, aDetector.getClaimCount ());
+
+    // Handling failed - the retransmission is handled again
+    aDetector.release (aHeader);
+    assertEquals (0, aDetector.getClaimCount ());
+    assertEquals (EDuplicateClaim.CLAIMED, aDetector.tryClaim (aHeader));
+
+    // Handling succeeded
+    aDetector.register (aHeader);
+    assertEquals (0, aDetector.getClaimCount ());
+    assertEquals (EDuplicateClaim.DUPLICATE, aDetector.tryClaim (aHeader));
+    assertEquals (0, aDetector.getClaimCount ());
+  }
+
+  @Test
+  public void testConcurrentClaim () throws Exception
+  {
+    final SBDDuplicateDetector aDetector = new SBDDuplicateDetector ();
+    final int nThreads = 8;
+    final ExecutorService aES = Executors.newFixedThreadPool (nThreads);
+    try
+    {
+      for (int nRound = 0; nRound < 100; ++nRound)
+      {
+        final String sInstanceID = "id" + nRound;
+        final CountDownLatch aStart = new CountDownLatch (1);
+        final ICommonsList <Future <EDuplicateClaim>> aFutures = new CommonsArrayList <> ();
+        for (int i = 0; i < nThreads; ++i)
+          aFutures.add (aES.submit ( () -> {
+            aStart.await ();
+            final PeppolSBDHHeader aHeader = _createHeader ("9915:sender", sInstanceID);
+            final EDuplicateClaim eClaim = aDetector.tryClaim (aHeader);
+            if (eClaim == EDuplicateClaim.CLAIMED)
+              aDetector.register (aHeader);
+            return eClaim;
+          }));
+        aStart.countDown ();
+
+        // Exactly one of the retransmissions is handled
+        int nClaimed = 0;
+        for (final Future <EDuplicateClaim> aFuture : aFutures)
+          if (aFuture.get () == EDuplicateClaim.CLAIMED)
+            nClaimed++;
+        assertEquals (1, nClaimed);
+      }
+    }
+    finally
+    {
+      aES.shutdown ();
+    }
+  }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsSortedMap;
+
+/**
+ * Test class for class {@link SBDHandlerFanOut}.
+ *
+ * @author Philip Helger
+ */
+public final class SBDHandlerFanOutTest
+{
+  private static final class MockPhaseHandler implements IAS2IncomingSBDHandlerPhaseAware
+  {
+    private final int m_nPhase;
+
+    MockPhaseHandler (final int nPhase)
+    {
+      m_nPhase = nPhase;
+    }
+
+    @Override
+    public int getHandlerPhase ()
+    {
+      return m_nPhase;
+    }
+  }
+
+  @Test
+  public void testConcurrentWithinPhase () throws Exception
+  {
+    try (final SBDHandlerFanOut aFanOut = new SBDHandlerFanOut (4))
+    {
+      // Both handlers wait for each other - only works if run concurrently
+      final CountDownLatch aLatch = new CountDownLatch (2);
+      final AtomicInteger aSecondPhaseCalls = new AtomicInteger (0);
+      final ICommonsSortedMap <Integer, ICommonsList <SBDHandlerFanOut.IHandlerInvocation>> aPhases = SBDHandlerFanOut.createPhaseMap ();
+      for (int i = 0; i < 2; ++i)
+        SBDHandlerFanOut.addInvocation (aPhases, new Object (), () -> {
+          aLatch.countDown ();
+          assertTrue (aLatch.await (5, TimeUnit.SECONDS));
+        });
+      SBDHandlerFanOut.addInvocation (aPhases, new MockPhaseHandler (1), () -> {
+        // All previous phases are done
+        assertEquals (0, aLatch.getCount ());
+        aSecondPhaseCalls.incrementAndGet ();
+      });
+      aFanOut.invokeAll (aPhases);
+      assertEquals (1, aSecondPhaseCalls.get ());
+    }
+  }
+
+  @Test
+  public void testPartialFailure ()
+  {
+    try (final SBDHandlerFanOut aFanOut = new SBDHandlerFanOut (4))
+    {
+      final AtomicBoolean aOtherHandlerCalled = new AtomicBoolean (false);
+      final AtomicBoolean aLaterPhaseCalled = new AtomicBoolean (false);
+      final ICommonsSortedMap <Integer, ICommonsList <SBDHandlerFanOut.IHandlerInvocation>> aPhases = SBDHandlerFanOut.createPhaseMap ();
+      SBDHandlerFanOut.addInvocation (aPhases, new Object (), () -> {
+        throw new IllegalStateException ("first");
+      });
+      SBDHandlerFanOut.addInvocation (aPhases, new Object (), () -> aOtherHandlerCalled.set (true));
+      SBDHandlerFanOut.addInvocation (aPhases, new Object (), () -> {
+        throw new IllegalStateException ("third");
+      });
+      SBDHandlerFanOut.addInvocation (aPhases, new MockPhaseHandler (1), () -> aLaterPhaseCalled.set (true));
+      try
+      {
+        aFanOut.invokeAll (aPhases);
+        fail ();
+      }
+      catch (final Exception ex)
+      {
+        assertEquals ("first", ex.getMessage ());
+        assertEquals (1, ex.getSuppressed ().length);
+        assertEquals ("third", ex.getSuppressed ()[0].getMessage ());
+      }
+      assertTrue (aOtherHandlerCalled.get ());
+      assertTrue (!aLaterPhaseCalled.get ());
+    }
+  }
+
+  @Test
+  public void testInvokeAfterClose () throws Exception
+  {
+    final SBDHandlerFanOut aFanOut = new SBDHandlerFanOut (2);
+    aFanOut.close ();
+
+    // Must not block forever - the handlers are run in the calling thread
+    final AtomicInteger aCalls = new AtomicInteger (0);
+    final ICommonsSortedMap <Integer, ICommonsList <SBDHandlerFanOut.IHandlerInvocation>> aPhases = SBDHandlerFanOut.createPhaseMap ();
+    for (int i = 0; i < 3; ++i)
+      SBDHandlerFanOut.addInvocation (aPhases, new Object (), aCalls::incrementAndGet);
+    aFanOut.invokeAll (aPhases);
+    assertEquals (3, aCalls.get ());
+  }
+
+  @Test
+  public void testRetireWhileInUse () throws Exception
+  {
+    final SBDHandlerFanOut aFanOut = new SBDHandlerFanOut (2);
+    final CountDownLatch aStarted = new CountDownLatch (1);
+    final CountDownLatch aRetired = new CountDownLatch (1);
+    final AtomicInteger aCalls = new AtomicInteger (0);
+    final ICommonsSortedMap <Integer, ICommonsList <SBDHandlerFanOut.IHandlerInvocation>> aPhases = SBDHandlerFanOut.createPhaseMap ();
+    SBDHandlerFanOut.addInvocation (aPhases, new Object (), () -> {
+      aStarted.countDown ();
+      assertTrue (aRetired.await (5, TimeUnit.SECONDS));
+      aCalls.incrementAndGet ();
+    });
+    SBDHandlerFanOut.addInvocation (aPhases, new Object (), aCalls::incrementAndGet);
+    // The next phase is submitted after the instance was retired
+    for (int i = 0; i < 2; ++i)
+      SBDHandlerFanOut.addInvocation (aPhases, new MockPhaseHandler (1), aCalls::incrementAndGet);
+
+    final Thread aThread = new Thread ( () -> {
+      try
+      {
+        aFanOut.invokeAll (aPhases);
+      }
+      catch (final Exception ex)
+      {
+        throw new IllegalStateException (ex);
+      }
+    });
+    aThread.start ();
+    assertTrue (aStarted.await (5, TimeUnit.SECONDS));
+    aFanOut.retire ();
+    aRetired.countDown ();
+    aThread.join (5000);
+    assertTrue (!aThread.isAlive ());
+    assertEquals (4, aCalls.get ());
+  }
+}
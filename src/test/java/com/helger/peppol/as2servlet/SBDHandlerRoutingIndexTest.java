@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsHashSet;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsSet;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+
+/**
+ * Test class for class {@link SBDHandlerRoutingIndex}.
+ *
+ * @author Philip Helger
+ */
+public final class SBDHandlerRoutingIndexTest
+{
+  private static final class MockRoutedHandler implements IAS2IncomingSBDRoutingAware
+  {
+    private final ICommonsSet <String> m_aDocTypeIDs;
+    private final ICommonsSet <String> m_aReceiverIDs;
+
+    MockRoutedHandler (@Nullable final ICommonsSet <String> aDocTypeIDs, @Nullable final ICommonsSet <String> aReceiverIDs)
+    {
+      m_aDocTypeIDs = aDocTypeIDs;
+      m_aReceiverIDs = aReceiverIDs;
+    }
+
+    @Override
+    public ICommonsSet <String> getAcceptedDocumentTypeIDs ()
+    {
+      return m_aDocTypeIDs;
+    }
+
+    @Override
+    public ICommonsSet <String> getAcceptedReceiverIDs ()
+    {
+      return m_aReceiverIDs;
+    }
+  }
+
+  @Nonnull
+  private static PeppolSBDHHeader _createHeader (@Nonnull final String sDocTypeID, @Nonnull final String sReceiverID)
+  {
+    final PeppolIdentifierFactory aIF = PeppolIdentifierFactory.INSTANCE;
+    return new PeppolSBDHHeader (aIF.createParticipantIdentifierWithDefaultScheme ("9915:sender"),
+                                 aIF.createParticipantIdentifierWithDefaultScheme (sReceiverID),
+                                 aIF.createDocumentTypeIdentifierWithDefaultScheme (sDocTypeID),
+                                 aIF.createProcessIdentifierWithDefaultScheme ("process"),
+                                 null,
+                                 null,
+                                 null,
+                                 "id",
+                                 null);
+  }
+
+  @Nonnull
+  private static ICommonsSet <String> _docTypes (@Nonnull final String... aValues)
+  {
+    final ICommonsSet <String> ret = new CommonsHashSet <> ();
+    for (final String s : aValues)
+      ret.add (PeppolIdentifierFactory.INSTANCE.createDocumentTypeIdentifierWithDefaultScheme (s).getURIEncoded ());
+    return ret;
+  }
+
+  @Test
+  public void testRouting ()
+  {
+    final Object aCatchAll = new Object ();
+    final MockRoutedHandler aInvoice = new MockRoutedHandler (_docTypes ("invoice"), null);
+    final MockRoutedHandler aInvoiceOrOrder = new MockRoutedHandler (_docTypes ("invoice", "order"), null);
+    final ICommonsSet <String> aReceivers = new CommonsHashSet <> (PeppolIdentifierFactory.INSTANCE.createParticipantIdentifierWithDefaultScheme ("9915:a")
+                                                                                                  .getURIEncoded ());
+    final MockRoutedHandler aReceiverA = new MockRoutedHandler (null, aReceivers);
+
+    final SBDHandlerRoutingIndex <Object> aIndex = new SBDHandlerRoutingIndex <> (new CommonsArrayList <> (aInvoiceOrOrder,
+                                                                                                           aCatchAll,
+                                                                                                           aInvoice,
+                                                                                                           aReceiverA));
+    ICommonsList <Object> aMatching = aIndex.getAllMatching (_createHeader ("invoice", "9915:b"));
+    assertEquals (3, aMatching.size ());
+    // Registration order is kept
+    assertSame (aInvoiceOrOrder, aMatching.get (0));
+    assertSame (aCatchAll, aMatching.get (1));
+    assertSame (aInvoice, aMatching.get (2));
+
+    aMatching = aIndex.getAllMatching (_createHeader ("order", "9915:a"));
+    assertEquals (3, aMatching.size ());
+    assertSame (aInvoiceOrOrder, aMatching.get (0));
+    assertSame (aCatchAll, aMatching.get (1));
+    assertSame (aReceiverA, aMatching.get (2));
+
+    aMatching = aIndex.getAllMatching (_createHeader ("other", "9915:b"));
+    assertEquals (1, aMatching.size ());
+    assertSame (aCatchAll, aMatching.get (0));
+  }
+
+  @Test
+  public void testReceiverIDsAreNormalized ()
+  {
+    final MockRoutedHandler aWithScheme = new MockRoutedHandler (null,
+                                                                 new CommonsHashSet <> ("iso6523-actorid-upis::9915:TEST"));
+    final MockRoutedHandler aWithoutScheme = new MockRoutedHandler (null, new CommonsHashSet <> ("9915:TEST"));
+    final SBDHandlerRoutingIndex <Object> aIndex = new SBDHandlerRoutingIndex <> (new CommonsArrayList <> (aWithScheme,
+                                                                                                           aWithoutScheme));
+    ICommonsList <Object> aMatching = aIndex.getAllMatching (_createHeader ("invoice", "9915:test"));
+    assertEquals (2, aMatching.size ());
+    assertSame (aWithScheme, aMatching.get (0));
+    assertSame (aWithoutScheme, aMatching.get (1));
+
+    aMatching = aIndex.getAllMatching (_createHeader ("invoice", "9915:other"));
+    assertTrue (aMatching.isEmpty ());
+  }
+
+  @Test
+  public void testTenants ()
+  {
+    final Object aCatchAll = new Object ();
+    final IAS2IncomingSBDRoutingAware aTenantA = new IAS2IncomingSBDRoutingAware ()
+    {
+      @Override
+      public ICommonsSet <String> getAcceptedTenantIDs ()
+      {
+        return new CommonsHashSet <> ("a");
+      }
+    };
+    final SBDHandlerRoutingIndex <Object> aIndex = new SBDHandlerRoutingIndex <> (new CommonsArrayList <> (aTenantA,
+                                                                                                           aCatchAll));
+    ICommonsList <Object> aMatching = aIndex.getAllMatching (_createHeader ("invoice", "9915:a"), "a");
+    assertEquals (2, aMatching.size ());
+    assertSame (aTenantA, aMatching.get (0));
+    assertSame (aCatchAll, aMatching.get (1));
+
+    aMatching = aIndex.getAllMatching (_createHeader ("invoice", "9915:a"), "b");
+    assertEquals (1, aMatching.size ());
+    assertSame (aCatchAll, aMatching.get (0));
+
+    // No tenant
+    aMatching = aIndex.getAllMatching (_createHeader ("invoice", "9915:a"));
+    assertEquals (1, aMatching.size ());
+    assertSame (aCatchAll, aMatching.get (0));
+  }
+
+  @Test
+  public void testNoRestrictions ()
+  {
+    final SBDHandlerRoutingIndex <Object> aIndex = new SBDHandlerRoutingIndex <> (new CommonsArrayList <> ("a", "b"));
+    assertEquals (2, aIndex.getAllMatching (_createHeader ("invoice", "9915:a")).size ());
+    assertTrue (new SBDHandlerRoutingIndex <> (new CommonsArrayList <> ()).isEmpty ());
+  }
+}
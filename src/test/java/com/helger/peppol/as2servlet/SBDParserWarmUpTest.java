@@ -0,0 +1,46 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test class for class {@link SBDParserWarmUp}.
+ *
+ * @author Philip Helger
+ */
+public final class SBDParserWarmUpTest
+{
+  @Test
+  public void testWarmupResource ()
+  {
+    assertTrue (SBDParserWarmUp.WARMUP_SBD.exists ());
+  }
+
+  @Test
+  public void testWarmUp ()
+  {
+    final SBDUnmarshallerPool aSBDReader = new SBDUnmarshallerPool ();
+    assertTrue (SBDParserWarmUp.warmUp (aSBDReader, new PeppolSBDHHeaderReader ()));
+    assertTrue (SBDParserWarmUp.warmUp (aSBDReader, null));
+    // The warmed up unmarshaller is kept
+    assertEquals (1, aSBDReader.getIdleCount ());
+  }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+
+/**
+ * Test class for class {@link SBDPayloadBuffer}.
+ *
+ * @author Philip Helger
+ */
+public final class SBDPayloadBufferTest
+{
+  @Rule
+  public final TemporaryFolder m_aTempFolder = new TemporaryFolder ();
+
+  private static byte [] _createPayload (final int nSize)
+  {
+    final byte [] ret = new byte [nSize];
+    new Random (nSize).nextBytes (ret);
+    return ret;
+  }
+
+  private static byte [] _readAll (final SBDPayloadBuffer aBuffer) throws Exception
+  {
+    try (final InputStream aIS = aBuffer.openStream ())
+    {
+      return StreamHelper.getAllBytes (aIS);
+    }
+  }
+
+  @Test
+  public void testInMemory () throws Exception
+  {
+    final File aDir = m_aTempFolder.newFolder ("tmp");
+    final byte [] aPayload = _createPayload (1000);
+    try (final SBDPayloadBuffer aBuffer = SBDPayloadBuffer.create (new NonBlockingByteArrayInputStream (aPayload),
+                                                                   1000,
+                                                                   aDir))
+    {
+      assertFalse (aBuffer.isSpilled ());
+      assertEquals (1000, aBuffer.getSize ());
+      assertArrayEquals (aPayload, _readAll (aBuffer));
+    }
+    assertEquals (0, aDir.list ().length);
+  }
+
+  @Test
+  public void testSpilled () throws Exception
+  {
+    final File aDir = m_aTempFolder.newFolder ("tmp");
+    final byte [] aPayload = _createPayload (100_000);
+    final SBDPayloadBuffer aBuffer = SBDPayloadBuffer.create (new NonBlockingByteArrayInputStream (aPayload),
+                                                              1000,
+                                                              aDir);
+    assertTrue (aBuffer.isSpilled ());
+    assertEquals (100_000, aBuffer.getSize ());
+    assertEquals (1, aDir.list ().length);
+    assertArrayEquals (aPayload, _readAll (aBuffer));
+
+    final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+    assertEquals (100_000, aBuffer.writeTo (Channels.newChannel (aBAOS)));
+    assertArrayEquals (aPayload, aBAOS.toByteArray ());
+
+    // The file is deleted with the last reference
+    aBuffer.retain ();
+    aBuffer.close ();
+    assertEquals (1, aDir.list ().length);
+    aBuffer.close ();
+    assertEquals (0, aDir.list ().length);
+    try
+    {
+      aBuffer.openStream ();
+      fail ();
+    }
+    catch (final IllegalStateException ex)
+    {
+      // expected
+    }
+  }
+
+  @Test
+  public void testSpoolAppendSpilled () throws Exception
+  {
+    final File aDir = m_aTempFolder.newFolder ("spool");
+    final byte [] aPayload = _createPayload (100_000);
+    final long nID;
+    try (final SBDSpool aSpool = SBDSpool.open (aDir);
+         final SBDPayloadBuffer aBuffer = SBDPayloadBuffer.create (new NonBlockingByteArrayInputStream (aPayload),
+                                                                   1000,
+                                                                   m_aTempFolder.newFolder ("tmp")))
+    {
+      assertTrue (aBuffer.isSpilled ());
+      nID = aSpool.append (new HttpHeaderMap (), aBuffer);
+    }
+
+    try (final SBDSpool aSpool = SBDSpool.open (aDir))
+    {
+      assertEquals (1, aSpool.getPendingRecordCount ());
+
+      // Read back with spilling
+      final SBDSpoolRecord aRecord = aSpool.readPendingRecord (nID, 1000, m_aTempFolder.newFolder ("tmp2"));
+      assertNotNull (aRecord);
+      try (final SBDPayloadBuffer aRecordPayload = aRecord.getPayload ())
+      {
+        assertTrue (aRecordPayload.isSpilled ());
+        assertArrayEquals (aPayload, StreamHelper.getAllBytes (aRecordPayload.openStream ()));
+      }
+      aSpool.acknowledge (nID);
+    }
+  }
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.stream.StreamHelper;
+
+/**
+ * Test class for class {@link SBDSpool}.
+ *
+ * @author Philip Helger
+ */
+public final class SBDSpoolTest
+{
+  @Rule
+  public final TemporaryFolder m_aTempFolder = new TemporaryFolder ();
+
+  @Test
+  public void testAppendAndReopen () throws Exception
+  {
+    final File aDir = m_aTempFolder.newFolder ("spool");
+    final HttpHeaderMap aHeaders = new HttpHeaderMap ();
+    aHeaders.addHeader ("Message-ID", "<abc@example.org>");
+    final byte [] aPayload1 = "<sbd1/>".getBytes (StandardCharsets.UTF_8);
+    final byte [] aPayload2 = "<sbd2/>".getBytes (StandardCharsets.UTF_8);
+
+    final long nID1;
+    final long nID2;
+    try (final SBDSpool aSpool = SBDSpool.open (aDir))
+    {
+      assertTrue (aSpool.getAllPendingRecordIDs ().isEmpty ());
+      nID1 = aSpool.append (aHeaders, aPayload1);
+      nID2 = aSpool.append (aHeaders, aPayload2);
+      aSpool.acknowledge (nID1);
+    }
+
+    // Only the second one is still pending
+    try (final SBDSpool aSpool = SBDSpool.open (aDir))
+    {
+      final ICommonsList <Long> aPending = aSpool.getAllPendingRecordIDs ();
+      assertEquals (1, aPending.size ());
+      assertEquals (nID2, aPending.getFirst ().longValue ());
+      assertNull (aSpool.readPendingRecord (nID1, Long.MAX_VALUE, null));
+
+      final SBDSpoolRecord aRecord = aSpool.readPendingRecord (nID2, Long.MAX_VALUE, null);
+      assertNotNull (aRecord);
+      assertEquals (nID2, aRecord.getRecordID ());
+      try (final SBDPayloadBuffer aRecordPayload = aRecord.getPayload ())
+      {
+        assertArrayEquals (aPayload2, StreamHelper.getAllBytes (aRecordPayload.openStream ()));
+      }
+      assertEquals ("<abc@example.org>", aRecord.getHeaders ().getFirstHeaderValue ("Message-ID"));
+
+      // New IDs are not reused
+      assertTrue (aSpool.append (aHeaders, aPayload1) > nID2);
+      aSpool.acknowledge (nID2);
+      assertEquals (0, aSpool.getPendingRecordCount ());
+      assertNull (aSpool.readPendingRecord (nID2, Long.MAX_VALUE, null));
+    }
+  }
+
+  @Test
+  public void testSegmentRotation () throws Exception
+  {
+    final File aDir = m_aTempFolder.newFolder ("spool");
+    final HttpHeaderMap aHeaders = new HttpHeaderMap ();
+    final byte [] aPayload = new byte [1000];
+    try (final SBDSpool aSpool = new SBDSpool (aDir, 2000))
+    {
+      for (int i = 0; i < 10; ++i)
+        aSpool.acknowledge (aSpool.append (aHeaders, aPayload));
+    }
+    try (final SBDSpool aSpool = SBDSpool.open (aDir))
+    {
+      assertTrue (aSpool.getAllPendingRecordIDs ().isEmpty ());
+    }
+  }
+
+  @Test
+  public void testAcknowledgementInLaterSegmentSurvivesRestart () throws Exception
+  {
+    final File aDir = m_aTempFolder.newFolder ("spool");
+    final HttpHeaderMap aHeaders = new HttpHeaderMap ();
+    final long nIDB;
+    try (final SBDSpool aSpool = new SBDSpool (aDir, 1500))
+    {
+      // Segment 1 contains A and B and is rotated
+      final long nIDA = aSpool.append (aHeaders, new byte [1000]);
+      nIDB = aSpool.append (aHeaders, new byte [1000]);
+
+      // The acknowledgement of A is written to segment 2
+      aSpool.acknowledge (nIDA);
+
+      // Segment 2 contains C and is rotated
+      final long nIDC = aSpool.append (aHeaders, new byte [1500]);
+
+      // Segment 2 has no pending records, but must be kept for the
+      // acknowledgement of A, as segment 1 still contains B
+      aSpool.acknowledge (nIDC);
+    }
+
+    try (final SBDSpool aSpool = SBDSpool.open (aDir))
+    {
+      final ICommonsList <Long> aPending = aSpool.getAllPendingRecordIDs ();
+      assertEquals (1, aPending.size ());
+      assertEquals (nIDB, aPending.getFirst ().longValue ());
+      aSpool.acknowledge (nIDB);
+    }
+
+    try (final SBDSpool aSpool = SBDSpool.open (aDir))
+    {
+      assertTrue (aSpool.getAllPendingRecordIDs ().isEmpty ());
+    }
+  }
+
+  @Test
+  public void testDirectoryIsLocked () throws Exception
+  {
+    final File aDir = m_aTempFolder.newFolder ("spool");
+    try (final SBDSpool aSpool = SBDSpool.open (aDir))
+    {
+      try (final SBDSpool aSpool2 = SBDSpool.open (aDir))
+      {
+        fail ();
+      }
+      catch (final IOException ex)
+      {
+        // expected
+      }
+    }
+
+    // Unlocked on close
+    try (final SBDSpool aSpool = SBDSpool.open (aDir))
+    {
+      assertTrue (aSpool.claimReplay ());
+      assertFalse (aSpool.claimReplay ());
+    }
+  }
+
+  @Test
+  public void testSharedViaRegistry () throws Exception
+  {
+    final File aDir = m_aTempFolder.newFolder ("spool");
+    final SBDSpool aSpool = SBDSpoolRegistry.acquire (aDir);
+    try
+    {
+      assertSame (aSpool, SBDSpoolRegistry.acquire (aDir));
+      SBDSpoolRegistry.release (aSpool);
+
+      // Still open for the remaining user
+      aSpool.acknowledge (aSpool.append (new HttpHeaderMap (), new byte [10]));
+    }
+    finally
+    {
+      SBDSpoolRegistry.release (aSpool);
+    }
+
+    // Closed by the last release
+    final SBDSpool aSpool2 = SBDSpoolRegistry.acquire (aDir);
+    try
+    {
+      assertNotSame (aSpool, aSpool2);
+    }
+    finally
+    {
+      SBDSpoolRegistry.release (aSpool2);
+    }
+  }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+import org.unece.cefact.namespaces.sbdh.StandardBusinessDocument;
+
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+
+/**
+ * Test class for class {@link SBDUnmarshallerPool}.
+ *
+ * @author Philip Helger
+ */
+public final class SBDUnmarshallerPoolTest
+{
+  @Test
+  public void testReuse ()
+  {
+    final byte [] aBytes = StreamHelper.getAllBytes (new ClassPathResource (PeppolSBDHHeaderReaderTest.EXAMPLE_INVOICE));
+    final SBDUnmarshallerPool aPool = new SBDUnmarshallerPool (2);
+    assertEquals (0, aPool.getIdleCount ());
+    for (int i = 0; i < 3; ++i)
+    {
+      final StandardBusinessDocument aSBD = aPool.read (new NonBlockingByteArrayInputStream (aBytes));
+      assertNotNull (aSBD);
+      assertEquals ("4c5e3d5e-7b07-4a3e-9c9d-0c1b2d3e4f50",
+                    aSBD.getStandardBusinessDocumentHeader ().getDocumentIdentification ().getInstanceIdentifier ());
+      // The same unmarshaller is used again
+      assertEquals (1, aPool.getIdleCount ());
+    }
+  }
+
+  @Test
+  public void testInvalid ()
+  {
+    final SBDUnmarshallerPool aPool = new SBDUnmarshallerPool ();
+    // Not valid according to the schema
+    assertNull (aPool.read (new NonBlockingByteArrayInputStream ("<StandardBusinessDocument xmlns='http://www.unece.org/cefact/namespaces/StandardBusinessDocumentHeader'/>".getBytes (StandardCharsets.UTF_8))));
+    // Not well-formed
+    assertNull (aPool.read (new NonBlockingByteArrayInputStream ("<broken".getBytes (StandardCharsets.UTF_8))));
+    // Failed unmarshallers are not re-used
+    assertEquals (0, aPool.getIdleCount ());
+  }
+}
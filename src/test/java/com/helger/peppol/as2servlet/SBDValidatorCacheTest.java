@@ -0,0 +1,213 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.state.EChange;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+
+/**
+ * Test class for class {@link SBDValidatorCache}.
+ *
+ * @author Philip Helger
+ */
+public final class SBDValidatorCacheTest
+{
+  private static final ISBDValidator VALIDATOR = (aSBDH, aSBD) -> new CommonsArrayList <> ();
+
+  private static IDocumentTypeIdentifier _docType (final String sValue)
+  {
+    return PeppolIdentifierFactory.INSTANCE.createDocumentTypeIdentifierWithDefaultScheme (sValue);
+  }
+
+  @Test
+  public void testCreatedOnce () throws Exception
+  {
+    final AtomicInteger aCalls = new AtomicInteger (0);
+    final CountDownLatch aCreationStarted = new CountDownLatch (1);
+    final CountDownLatch aReleaseCreation = new CountDownLatch (1);
+    final SBDValidatorCache aCache = new SBDValidatorCache (aDocTypeID -> {
+      aCalls.incrementAndGet ();
+      aCreationStarted.countDown ();
+      aReleaseCreation.await ();
+      return VALIDATOR;
+    });
+
+    final int nThreads = 10;
+    final ExecutorService aES = Executors.newFixedThreadPool (nThreads);
+    try
+    {
+      final ICommonsList <Future <ISBDValidator>> aFutures = new CommonsArrayList <> ();
+      aFutures.add (aES.submit ( () -> aCache.getValidator (_docType ("invoice"))));
+      assertTrue (aCreationStarted.await (5, TimeUnit.SECONDS));
+      for (int i = 1; i < nThreads; ++i)
+        aFutures.add (aES.submit ( () -> aCache.getValidator (_docType ("invoice"))));
+      aReleaseCreation.countDown ();
+
+      for (final Future <ISBDValidator> aFuture : aFutures)
+        assertSame (VALIDATOR, aFuture.get (5, TimeUnit.SECONDS));
+      assertEquals (1, aCalls.get ());
+      assertEquals (1, aCache.size ());
+    }
+    finally
+    {
+      aES.shutdownNow ();
+    }
+  }
+
+  @Test
+  public void testNoValidator () throws Exception
+  {
+    final AtomicInteger aCalls = new AtomicInteger (0);
+    final SBDValidatorCache aCache = new SBDValidatorCache (aDocTypeID -> {
+      aCalls.incrementAndGet ();
+      return null;
+    });
+    assertNull (aCache.getValidator (_docType ("invoice")));
+    assertNull (aCache.getValidator (_docType ("invoice")));
+    // Also cached
+    assertEquals (1, aCalls.get ());
+  }
+
+  @Test
+  public void testNoValidatorDoesNotEvictValidators () throws Exception
+  {
+    final AtomicInteger aCalls = new AtomicInteger (0);
+    final SBDValidatorCache aCache = new SBDValidatorCache (aDocTypeID -> {
+      aCalls.incrementAndGet ();
+      return aDocTypeID.getValue ().startsWith ("valid") ? VALIDATOR : null;
+    }, 2);
+    assertSame (VALIDATOR, aCache.getValidator (_docType ("valid-a")));
+    assertSame (VALIDATOR, aCache.getValidator (_docType ("valid-b")));
+
+    // Many document types without a validator
+    for (int i = 0; i < 10; ++i)
+      assertNull (aCache.getValidator (_docType ("other-" + i)));
+    assertEquals (12, aCalls.get ());
+    assertEquals (4, aCache.size ());
+
+    // The validators are still cached
+    assertSame (VALIDATOR, aCache.getValidator (_docType ("valid-a")));
+    assertSame (VALIDATOR, aCache.getValidator (_docType ("valid-b")));
+    assertEquals (12, aCalls.get ());
+
+    // Only the most recent ones without validator are remembered
+    assertNull (aCache.getValidator (_docType ("other-9")));
+    assertEquals (12, aCalls.get ());
+    assertNull (aCache.getValidator (_docType ("other-0")));
+    assertEquals (13, aCalls.get ());
+
+    assertEquals (EChange.CHANGED, aCache.invalidate (_docType ("other-0")));
+    assertEquals (3, aCache.size ());
+  }
+
+  @Test
+  public void testFailureIsNotCached () throws Exception
+  {
+    final AtomicInteger aCalls = new AtomicInteger (0);
+    final SBDValidatorCache aCache = new SBDValidatorCache (aDocTypeID -> {
+      if (aCalls.incrementAndGet () == 1)
+        throw new IOException ("Artefacts not available");
+      return VALIDATOR;
+    });
+    try
+    {
+      aCache.getValidator (_docType ("invoice"));
+      fail ();
+    }
+    catch (final IOException ex)
+    {
+      // expected
+    }
+    assertEquals (0, aCache.size ());
+    assertSame (VALIDATOR, aCache.getValidator (_docType ("invoice")));
+    assertEquals (2, aCalls.get ());
+  }
+
+  @Test
+  public void testErrorIsNotCached () throws Exception
+  {
+    final AtomicInteger aCalls = new AtomicInteger (0);
+    final SBDValidatorCache aCache = new SBDValidatorCache (aDocTypeID -> {
+      if (aCalls.incrementAndGet () == 1)
+        throw new NoClassDefFoundError ("Validation engine not available");
+      return VALIDATOR;
+    });
+    try
+    {
+      aCache.getValidator (_docType ("invoice"));
+      fail ();
+    }
+    catch (final NoClassDefFoundError ex)
+    {
+      // expected
+    }
+    // Not stuck with an uncompleted entry
+    assertEquals (0, aCache.size ());
+    assertSame (VALIDATOR, aCache.getValidator (_docType ("invoice")));
+    assertEquals (2, aCalls.get ());
+  }
+
+  @Test
+  public void testEviction () throws Exception
+  {
+    final AtomicInteger aCalls = new AtomicInteger (0);
+    final SBDValidatorCache aCache = new SBDValidatorCache (aDocTypeID -> {
+      aCalls.incrementAndGet ();
+      return VALIDATOR;
+    }, 2);
+    assertEquals (2, aCache.getMaxSize ());
+
+    assertNotNull (aCache.getValidator (_docType ("a")));
+    assertNotNull (aCache.getValidator (_docType ("b")));
+    // "a" is now the most recently used
+    assertNotNull (aCache.getValidator (_docType ("a")));
+    assertNotNull (aCache.getValidator (_docType ("c")));
+    assertEquals (2, aCache.size ());
+    assertEquals (3, aCalls.get ());
+
+    // "b" was evicted
+    assertNotNull (aCache.getValidator (_docType ("a")));
+    assertEquals (3, aCalls.get ());
+    assertNotNull (aCache.getValidator (_docType ("b")));
+    assertEquals (4, aCalls.get ());
+
+    assertEquals (EChange.CHANGED, aCache.invalidate (_docType ("b")));
+    assertEquals (EChange.UNCHANGED, aCache.invalidate (_docType ("b")));
+    aCache.invalidateAll ();
+    assertEquals (0, aCache.size ());
+  }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.security.cert.CertificateException;
+
+import org.junit.Test;
+
+import com.helger.commons.string.StringHelper;
+import com.helger.peppol.as2servlet.mock.MockCertificates;
+
+/**
+ * Test class for class {@link SMPCertificateCache}.
+ *
+ * @author Philip Helger
+ */
+public final class SMPCertificateCacheTest
+{
+  @Test
+  public void testGetOrParse () throws Exception
+  {
+    final SMPCertificateCache aCache = new SMPCertificateCache ();
+    final String sCert = MockCertificates.getCertificateString (MockCertificates.AP_1);
+
+    final FingerprintedCertificate aCert = aCache.getOrParse (sCert);
+    assertNotNull (aCert);
+    assertTrue (aCert.matches (MockCertificates.getFingerprintedCertificate (MockCertificates.AP_1)));
+    assertEquals (1, aCache.size ());
+
+    // Parsed only once
+    assertSame (aCert, aCache.getOrParse (sCert));
+    assertEquals (1, aCache.size ());
+
+    // Same serial number, but different certificate
+    final FingerprintedCertificate aOther = aCache.getOrParse (MockCertificates.getCertificateString (MockCertificates.AP_2));
+    assertNotNull (aOther);
+    assertEquals (aCert.getCertificate ().getSerialNumber (), aOther.getCertificate ().getSerialNumber ());
+    assertFalse (aCert.matches (aOther));
+    assertEquals (2, aCache.size ());
+
+    aCache.clear ();
+    assertEquals (0, aCache.size ());
+    assertNotSame (aCert, aCache.getOrParse (sCert));
+  }
+
+  @Test
+  public void testPEMHeadersAreOptional () throws Exception
+  {
+    final SMPCertificateCache aCache = new SMPCertificateCache ();
+    final String sPEM = MockCertificates.getCertificateString (MockCertificates.AP_1);
+    // SMPs usually contain the Base64 encoded certificate without headers
+    final String sBase64 = StringHelper.removeAll (sPEM.replace ("-----BEGIN CERTIFICATE-----", "")
+                                                       .replace ("-----END CERTIFICATE-----", ""),
+                                                   '\n');
+
+    final FingerprintedCertificate aFromPEM = aCache.getOrParse (sPEM);
+    final FingerprintedCertificate aFromBase64 = aCache.getOrParse (sBase64);
+    assertNotNull (aFromBase64);
+    assertTrue (aFromPEM.matches (aFromBase64));
+    // The strings are different keys
+    assertEquals (2, aCache.size ());
+  }
+
+  @Test
+  public void testLRUEviction () throws Exception
+  {
+    final SMPCertificateCache aCache = new SMPCertificateCache (2);
+    final String sCert1 = MockCertificates.getCertificateString (MockCertificates.AP_1);
+    final String sCert2 = MockCertificates.getCertificateString (MockCertificates.AP_2);
+    // Another string for the first certificate
+    final String sCert3 = sCert1.trim ();
+    assertFalse (sCert1.equals (sCert3));
+
+    final FingerprintedCertificate aCert1 = aCache.getOrParse (sCert1);
+    final FingerprintedCertificate aCert2 = aCache.getOrParse (sCert2);
+    // Make the second one the least recently used
+    assertSame (aCert1, aCache.getOrParse (sCert1));
+
+    aCache.getOrParse (sCert3);
+    assertEquals (2, aCache.size ());
+    assertSame (aCert1, aCache.getOrParse (sCert1));
+    // Evicted and parsed again - which evicts the third one
+    assertNotSame (aCert2, aCache.getOrParse (sCert2));
+    assertEquals (2, aCache.size ());
+  }
+
+  @Test
+  public void testInvalid () throws Exception
+  {
+    final SMPCertificateCache aCache = new SMPCertificateCache ();
+    assertNull (aCache.getOrParse (null));
+    assertNull (aCache.getOrParse (""));
+    assertEquals (0, aCache.size ());
+
+    try
+    {
+      // Valid Base64 but no certificate
+      aCache.getOrParse ("AAAAAAAA");
+      fail ();
+    }
+    catch (final CertificateException | IllegalArgumentException ex)
+    {
+      // expected
+    }
+    // Failures are not cached
+    assertEquals (0, aCache.size ());
+  }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+
+import org.junit.Test;
+
+/**
+ * Test class for class {@link SMPCircuitBreaker}.
+ *
+ * @author Philip Helger
+ */
+public final class SMPCircuitBreakerTest
+{
+  @Test
+  public void testStateTransitions () throws InterruptedException
+  {
+    final SMPCircuitBreaker aCB = new SMPCircuitBreaker ("http://smp.example.org", 2, Duration.ofMillis (50));
+    assertEquals (ECircuitBreakerState.CLOSED, aCB.getState ());
+    assertTrue (aCB.isCallPermitted ());
+
+    aCB.onFailure ();
+    assertEquals (ECircuitBreakerState.CLOSED, aCB.getState ());
+    aCB.onFailure ();
+    assertEquals (ECircuitBreakerState.OPEN, aCB.getState ());
+    assertFalse (aCB.isCallPermitted ());
+
+    Thread.sleep (100);
+    // Exactly one trial call
+    assertTrue (aCB.isCallPermitted ());
+    assertEquals (ECircuitBreakerState.HALF_OPEN, aCB.getState ());
+    assertFalse (aCB.isCallPermitted ());
+
+    // Trial failed
+    aCB.onFailure ();
+    assertEquals (ECircuitBreakerState.OPEN, aCB.getState ());
+
+    Thread.sleep (100);
+    assertTrue (aCB.isCallPermitted ());
+    // Trial succeeded
+    aCB.onSuccess ();
+    assertEquals (ECircuitBreakerState.CLOSED, aCB.getState ());
+    assertTrue (aCB.isCallPermitted ());
+  }
+}
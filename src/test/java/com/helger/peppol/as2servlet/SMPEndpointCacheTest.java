@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+
+import com.helger.peppol.smp.ESMPTransportProfile;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+import com.helger.smpclient.peppol.jaxb.EndpointType;
+
+/**
+ * Test class for class {@link SMPEndpointCache}.
+ *
+ * @author Philip Helger
+ */
+public final class SMPEndpointCacheTest
+{
+  private static final String SMP_HOST = "http://smp.example.org/";
+
+  @Nonnull
+  private static SMPEndpointCacheKey _createKey (@Nonnull final String sParticipantID)
+  {
+    return _createKey (sParticipantID, SMP_HOST);
+  }
+
+  @Nonnull
+  private static SMPEndpointCacheKey _createKey (@Nonnull final String sParticipantID, @Nonnull final String sSMPHost)
+  {
+    final PeppolIdentifierFactory aIF = PeppolIdentifierFactory.INSTANCE;
+    return new SMPEndpointCacheKey (aIF.createParticipantIdentifierWithDefaultScheme (sParticipantID),
+                                    aIF.createDocumentTypeIdentifierWithDefaultScheme ("doctype"),
+                                    aIF.createProcessIdentifierWithDefaultScheme ("process"),
+                                    ESMPTransportProfile.TRANSPORT_PROFILE_AS2_V2,
+                                    sSMPHost);
+  }
+
+  @Test
+  public void testKey ()
+  {
+    assertEquals (_createKey ("9915:test"), _createKey ("9915:test"));
+    assertEquals (_createKey ("9915:test").hashCode (), _createKey ("9915:test").hashCode ());
+    assertTrue (!_createKey ("9915:test").equals (_createKey ("9915:test2")));
+    // Same lookup but a different SMP
+    assertTrue (!_createKey ("9915:test").equals (_createKey ("9915:test", "http://other-smp.example.org/")));
+  }
+
+  @Test
+  public void testInvalidateAllOfSMPHost ()
+  {
+    final SMPEndpointCache aCache = new SMPEndpointCache ();
+    final SMPEndpointCacheKey aKey1 = _createKey ("9915:test");
+    final SMPEndpointCacheKey aKey2 = _createKey ("9915:test", "http://other-smp.example.org/");
+    final EndpointType aEndpoint1 = new EndpointType ();
+    final EndpointType aEndpoint2 = new EndpointType ();
+    aCache.put (aKey1, aEndpoint1);
+    aCache.put (aKey2, aEndpoint2);
+    assertSame (aEndpoint1, aCache.getIfPresent (aKey1).getEndpoint ());
+    assertSame (aEndpoint2, aCache.getIfPresent (aKey2).getEndpoint ());
+
+    assertTrue (aCache.invalidateAllOfSMPHost ("http://other-smp.example.org/").isChanged ());
+    assertTrue (aCache.invalidateAllOfSMPHost ("http://other-smp.example.org/").isUnchanged ());
+    assertNotNull (aCache.getIfPresent (aKey1));
+    assertNull (aCache.getIfPresent (aKey2));
+  }
+
+  @Test
+  public void testPositiveAndNegative ()
+  {
+    final SMPEndpointCache aCache = new SMPEndpointCache ();
+    final SMPEndpointCacheKey aKey1 = _createKey ("9915:test1");
+    final SMPEndpointCacheKey aKey2 = _createKey ("9915:test2");
+    assertNull (aCache.getIfPresent (aKey1));
+
+    final EndpointType aEndpoint = new EndpointType ();
+    aCache.put (aKey1, aEndpoint);
+    aCache.put (aKey2, null);
+
+    final SMPEndpointCacheEntry aEntry1 = aCache.getIfPresent (aKey1);
+    assertNotNull (aEntry1);
+    assertSame (aEndpoint, aEntry1.getEndpoint ());
+
+    final SMPEndpointCacheEntry aEntry2 = aCache.getIfPresent (aKey2);
+    assertNotNull (aEntry2);
+    assertTrue (aEntry2.isNegative ());
+
+    assertTrue (aCache.invalidate (aKey1).isChanged ());
+    assertNull (aCache.getIfPresent (aKey1));
+    assertTrue (aCache.invalidateAll ().isChanged ());
+    assertEquals (0, aCache.size ());
+  }
+
+  @Test
+  public void testNoNegativeCaching ()
+  {
+    final SMPEndpointCache aCache = new SMPEndpointCache ().setNegativeTTL (Duration.ZERO);
+    final SMPEndpointCacheKey aKey = _createKey ("9915:test");
+    aCache.put (aKey, null);
+    assertNull (aCache.getIfPresent (aKey));
+  }
+
+  @Test
+  public void testExpiration () throws InterruptedException
+  {
+    final SMPEndpointCache aCache = new SMPEndpointCache ().setTTL (Duration.ofMillis (10));
+    final SMPEndpointCacheKey aKey = _createKey ("9915:test");
+    aCache.put (aKey, new EndpointType ());
+    Thread.sleep (50);
+    assertNull (aCache.getIfPresent (aKey));
+  }
+
+  @Test
+  public void testEviction ()
+  {
+    final SMPEndpointCache aCache = new SMPEndpointCache ().setMaxSize (2);
+    final SMPEndpointCacheKey aKey1 = _createKey ("9915:test1");
+    final SMPEndpointCacheKey aKey2 = _createKey ("9915:test2");
+    final SMPEndpointCacheKey aKey3 = _createKey ("9915:test3");
+    aCache.put (aKey1, new EndpointType ());
+    aCache.put (aKey2, new EndpointType ());
+    // Access 1 so that 2 is the least recently used one
+    assertNotNull (aCache.getIfPresent (aKey1));
+    aCache.put (aKey3, new EndpointType ());
+    assertEquals (2, aCache.size ());
+    assertNotNull (aCache.getIfPresent (aKey1));
+    assertNull (aCache.getIfPresent (aKey2));
+    assertNotNull (aCache.getIfPresent (aKey3));
+  }
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.Nonnull;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.helger.as2lib.exception.AS2Exception;
+import com.helger.commons.collection.impl.CommonsHashSet;
+import com.helger.peppol.as2servlet.mock.MockSMPClient;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+import com.helger.smpclient.peppol.ISMPServiceMetadataProvider;
+import com.helger.smpclient.peppol.SMPClientReadOnly;
+import com.helger.smpclient.peppol.jaxb.EndpointType;
+
+/**
+ * Test class for class {@link SMPEndpointResolver}.
+ *
+ * @author Philip Helger
+ */
+public final class SMPEndpointResolverTest
+{
+  @After
+  public void after ()
+  {
+    AS2PeppolServletConfiguration.getEndpointCache ().invalidateAll ();
+  }
+
+  @Nonnull
+  private static SMPEndpointCacheKey _createKey (@Nonnull final String sParticipantID,
+                                                 @Nonnull final ISMPServiceMetadataProvider aSMPClient)
+  {
+    final PeppolIdentifierFactory aIF = PeppolIdentifierFactory.INSTANCE;
+    return new SMPEndpointCacheKey (aIF.createParticipantIdentifierWithDefaultScheme (sParticipantID),
+                                    aIF.createDocumentTypeIdentifierWithDefaultScheme ("invoice"),
+                                    aIF.createProcessIdentifierWithDefaultScheme ("process"),
+                                    EPeppolAS2Version.V2.getTransportProfile (),
+                                    SMPEndpointResolver.getSMPHost (aSMPClient));
+  }
+
+  @Nonnull
+  private static String _getURL (@Nonnull final EndpointType aEndpoint)
+  {
+    return SMPClientReadOnly.getEndpointAddress (aEndpoint);
+  }
+
+  @Test
+  public void testGetSMPHost ()
+  {
+    final MockSMPClient aClient1 = new MockSMPClient ("https://ap1.example.org/as2", null);
+    final MockSMPClient aClient2 = new MockSMPClient ("https://ap2.example.org/as2", null);
+    assertEquals (SMPEndpointResolver.getSMPHost (aClient1), SMPEndpointResolver.getSMPHost (aClient1));
+    // Same class, but different instances
+    assertNotEquals (SMPEndpointResolver.getSMPHost (aClient1), SMPEndpointResolver.getSMPHost (aClient2));
+  }
+
+  @Test
+  public void testTenantsWithDifferentSMPClients () throws Exception
+  {
+    final MockSMPClient aClientA = new MockSMPClient ("https://a.example.org/as2", null);
+    final MockSMPClient aClientB = new MockSMPClient ("https://b.example.org/as2", null);
+
+    final AS2PeppolTenantRegistry aRegistry = new AS2PeppolTenantRegistry ();
+    aRegistry.registerTenant (new AS2PeppolTenant ("a",
+                                                   AS2PeppolServletConfigurationSnapshot.DEFAULT.getWithSMPClient (aClientA),
+                                                   null,
+                                                   new CommonsHashSet <> ("APP_A")));
+    aRegistry.registerTenant (new AS2PeppolTenant ("b",
+                                                   AS2PeppolServletConfigurationSnapshot.DEFAULT.getWithSMPClient (aClientB),
+                                                   null,
+                                                   new CommonsHashSet <> ("APP_B")));
+
+    try (final SMPEndpointResolver aResolver = new SMPEndpointResolver ())
+    {
+      // Both tenants look up the same participant
+      final SMPEndpointCacheKey aKeyA = _createKey ("9915:receiver", aClientA);
+      final SMPEndpointCacheKey aKeyB = _createKey ("9915:receiver", aClientB);
+      assertNotEquals (aKeyA, aKeyB);
+
+      assertEquals ("https://a.example.org/as2", _getURL (aResolver.getEndpoint ("", aClientA, aKeyA)));
+      assertEquals ("https://b.example.org/as2", _getURL (aResolver.getEndpoint ("", aClientB, aKeyB)));
+
+      // Served from the cache - each tenant gets the answer of its own SMP
+      assertEquals ("https://a.example.org/as2", _getURL (aResolver.getEndpoint ("", aClientA, aKeyA)));
+      assertEquals ("https://b.example.org/as2", _getURL (aResolver.getEndpoint ("", aClientB, aKeyB)));
+      assertEquals (1, aClientA.getQueryCount ());
+      assertEquals (1, aClientB.getQueryCount ());
+
+      // Changing the client of tenant "a" drops only its entries
+      final SMPEndpointCache aCache = AS2PeppolServletConfiguration.getEndpointCache ();
+      aRegistry.updateTenantConfiguration ("a",
+                                           AS2PeppolServletConfigurationSnapshot.DEFAULT.getWithSMPClient (new MockSMPClient (null,
+                                                                                                                              null)));
+      assertNull (aCache.getIfPresent (aKeyA));
+      assertNotNull (aCache.getIfPresent (aKeyB));
+
+      // Removing tenant "b" drops its entries
+      aRegistry.unregisterTenant ("b");
+      assertNull (aCache.getIfPresent (aKeyB));
+    }
+  }
+
+  @Test
+  public void testRejectedLookupReleasesHalfOpenPermit () throws Exception
+  {
+    final int nOldThreshold = AS2PeppolServletConfiguration.getSMPCircuitBreakerFailureThreshold ();
+    final Duration aOldOpenDuration = AS2PeppolServletConfiguration.getSMPCircuitBreakerOpenDuration ();
+    AS2PeppolServletConfiguration.setSMPCircuitBreakerFailureThreshold (1);
+    AS2PeppolServletConfiguration.setSMPCircuitBreakerOpenDuration (Duration.ofMillis (50));
+
+    // An executor that rejects every lookup
+    final ExecutorService aExecutor = Executors.newSingleThreadExecutor ();
+    aExecutor.shutdown ();
+    try (final SMPEndpointResolver aResolver = new SMPEndpointResolver (aExecutor))
+    {
+      final MockSMPClient aClient = new MockSMPClient ("https://ap.example.org/as2", null);
+      final SMPEndpointCacheKey aKey = _createKey ("9915:receiver", aClient);
+      final SMPCircuitBreaker aCB = aResolver.getCircuitBreaker (aClient);
+
+      try
+      {
+        aResolver.getEndpoint ("", aClient, aKey);
+        fail ();
+      }
+      catch (final AS2Exception ex)
+      {
+        // expected
+      }
+      assertEquals (ECircuitBreakerState.OPEN, aCB.getState ());
+
+      // The half-open trial call is rejected as well
+      Thread.sleep (100);
+      try
+      {
+        aResolver.getEndpoint ("", aClient, aKey);
+        fail ();
+      }
+      catch (final AS2Exception ex)
+      {
+        // expected
+      }
+      assertEquals (ECircuitBreakerState.OPEN, aCB.getState ());
+
+      // The same for the background refresh
+      Thread.sleep (100);
+      try
+      {
+        aResolver.refreshAsync (aClient, aKey).get ();
+        fail ();
+      }
+      catch (final ExecutionException ex)
+      {
+        assertTrue (ex.getCause () instanceof RejectedExecutionException);
+      }
+      assertEquals (ECircuitBreakerState.OPEN, aCB.getState ());
+
+      // Not stuck in half-open
+      Thread.sleep (100);
+      assertTrue (aCB.isCallPermitted ());
+      assertEquals (0, aClient.getQueryCount ());
+    }
+    finally
+    {
+      AS2PeppolServletConfiguration.setSMPCircuitBreakerFailureThreshold (nOldThreshold);
+      AS2PeppolServletConfiguration.setSMPCircuitBreakerOpenDuration (aOldOpenDuration);
+    }
+  }
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.function.Function;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.peppol.smp.ESMPTransportProfile;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+import com.helger.smpclient.peppol.SMPClientReadOnly;
+import com.helger.smpclient.peppol.jaxb.EndpointType;
+import com.helger.smpclient.peppol.utils.W3CEndpointReferenceHelper;
+
+/**
+ * Test class for class {@link SMPEndpointSnapshot}.
+ *
+ * @author Philip Helger
+ */
+public final class SMPEndpointSnapshotTest
+{
+  @Rule
+  public final TemporaryFolder m_aTempFolder = new TemporaryFolder ();
+
+  private static final String SMP_HOST = "http://smp.example.org/";
+
+  @Nonnull
+  private static SMPEndpointCacheKey _createKey (@Nonnull final String sParticipantID)
+  {
+    return _createKey (sParticipantID, SMP_HOST);
+  }
+
+  @Nonnull
+  private static SMPEndpointCacheKey _createKey (@Nonnull final String sParticipantID, @Nonnull final String sSMPHost)
+  {
+    final PeppolIdentifierFactory aIF = PeppolIdentifierFactory.INSTANCE;
+    return new SMPEndpointCacheKey (aIF.createParticipantIdentifierWithDefaultScheme (sParticipantID),
+                                    aIF.createDocumentTypeIdentifierWithDefaultScheme ("doctype"),
+                                    aIF.createProcessIdentifierWithDefaultScheme ("process"),
+                                    ESMPTransportProfile.TRANSPORT_PROFILE_AS2_V2,
+                                    sSMPHost);
+  }
+
+  @Test
+  public void testWriteAndRestore () throws Exception
+  {
+    final EndpointType aEndpoint = new EndpointType ();
+    aEndpoint.setEndpointReference (W3CEndpointReferenceHelper.createEndpointReference ("https://ap.example.org/as2"));
+    aEndpoint.setCertificate ("MIIcert");
+    aEndpoint.setTransportProfile (ESMPTransportProfile.TRANSPORT_PROFILE_AS2_V2.getID ());
+
+    final SMPEndpointCache aCache = new SMPEndpointCache ();
+    aCache.put (_createKey ("9915:a"), aEndpoint);
+    // Same receiver of another SMP
+    aCache.put (_createKey ("9915:a", "http://other-smp.example.org/"), aEndpoint);
+    // Negative entries are not persisted
+    aCache.put (_createKey ("9915:b"), null);
+
+    final File aFile = new File (m_aTempFolder.getRoot (), "sub/endpoints.bin");
+    assertEquals (2, SMPEndpointSnapshot.write (aCache, aFile));
+    assertTrue (aFile.isFile ());
+
+    final SMPEndpointCache aRestored = new SMPEndpointCache ();
+    final ICommonsList <SMPEndpointCacheKey> aKeys = SMPEndpointSnapshot.restore (aFile, aRestored);
+    assertEquals (2, aKeys.size ());
+    assertEquals (_createKey ("9915:a"), aKeys.getFirst ());
+    assertEquals (_createKey ("9915:a", "http://other-smp.example.org/"), aKeys.getLast ());
+
+    // Still valid
+    final SMPEndpointCacheEntry aEntry = aRestored.getIfPresent (_createKey ("9915:a"));
+    assertNotNull (aEntry);
+    assertEquals ("https://ap.example.org/as2", SMPClientReadOnly.getEndpointAddress (aEntry.getEndpoint ()));
+    assertEquals ("MIIcert", aEntry.getEndpoint ().getCertificate ());
+    assertEquals (ESMPTransportProfile.TRANSPORT_PROFILE_AS2_V2.getID (), aEntry.getEndpoint ().getTransportProfile ());
+    assertNull (aRestored.getIfPresent (_createKey ("9915:b")));
+  }
+
+  @Test
+  public void testRestoreKeepsFresherEntries () throws Exception
+  {
+    final EndpointType aOldEndpoint = new EndpointType ();
+    aOldEndpoint.setEndpointReference (W3CEndpointReferenceHelper.createEndpointReference ("https://old.example.org/as2"));
+    final SMPEndpointCache aCache = new SMPEndpointCache ();
+    aCache.put (_createKey ("9915:a"), aOldEndpoint);
+    final File aFile = m_aTempFolder.newFile ("endpoints.bin");
+    assertEquals (1, SMPEndpointSnapshot.write (aCache, aFile));
+    // Only the snapshot file itself is left
+    assertEquals (1, m_aTempFolder.getRoot ().listFiles ().length);
+
+    // Looked up while the snapshot is restored
+    final EndpointType aNewEndpoint = new EndpointType ();
+    aNewEndpoint.setEndpointReference (W3CEndpointReferenceHelper.createEndpointReference ("https://new.example.org/as2"));
+    final SMPEndpointCache aRestored = new SMPEndpointCache ();
+    aRestored.put (_createKey ("9915:a"), aNewEndpoint);
+
+    assertEquals (1, SMPEndpointSnapshot.restore (aFile, aRestored).size ());
+    assertEquals ("https://new.example.org/as2",
+                  SMPClientReadOnly.getEndpointAddress (aRestored.getIfPresent (_createKey ("9915:a")).getEndpoint ()));
+  }
+
+  @Test
+  public void testRestoreTooOld () throws Exception
+  {
+    final EndpointType aEndpoint = new EndpointType ();
+    aEndpoint.setEndpointReference (W3CEndpointReferenceHelper.createEndpointReference ("https://ap.example.org/as2"));
+
+    final SMPEndpointCache aCache = new SMPEndpointCache ();
+    aCache.putEntryIfAbsent (_createKey ("9915:a"), new SMPEndpointCacheEntry (aEndpoint, System.nanoTime () - 1));
+    final File aFile = m_aTempFolder.newFile ("endpoints.bin");
+    assertEquals (1, SMPEndpointSnapshot.write (aCache, aFile));
+
+    // Not restored, but still returned for revalidation
+    final SMPEndpointCache aRestored = new SMPEndpointCache ().setMaxStale (Duration.ZERO);
+    assertEquals (1, SMPEndpointSnapshot.restore (aFile, aRestored).size ());
+    assertEquals (0, aRestored.size ());
+  }
+
+  @Test
+  public void testReadLookupList () throws Exception
+  {
+    final File aFile = m_aTempFolder.newFile ("lookups.txt");
+    Files.write (aFile.toPath (),
+                 ("# Participants of this AP\n" +
+                  "\n" +
+                  "iso6523-actorid-upis::9915:a busdox-docid-qns::doctype cenbii-procid-ubl::process\n" +
+                  "iso6523-actorid-upis::9915:b busdox-docid-qns::doctype cenbii-procid-ubl::process " +
+                  ESMPTransportProfile.TRANSPORT_PROFILE_AS2.getID () +
+                  "\n" +
+                  "iso6523-actorid-upis::9915:nosmp busdox-docid-qns::doctype cenbii-procid-ubl::process\n" +
+                  "invalid\n").getBytes (StandardCharsets.UTF_8));
+    // No SMP for "9915:nosmp" - e.g. because the receiver checks are disabled
+    final Function <IParticipantIdentifier, String> aSMPHostResolver = x -> "9915:nosmp".equals (x.getValue ()) ? null
+                                                                                                                : SMP_HOST;
+    final ICommonsList <SMPEndpointCacheKey> aKeys = SMPEndpointSnapshot.readLookupList (aFile,
+                                                                                          ESMPTransportProfile.TRANSPORT_PROFILE_AS2_V2,
+                                                                                          aSMPHostResolver);
+    assertEquals (2, aKeys.size ());
+    assertEquals (_createKey ("9915:a"), aKeys.get (0));
+    assertEquals (ESMPTransportProfile.TRANSPORT_PROFILE_AS2.getID (), aKeys.get (1).getTransportProfile ().getID ());
+  }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.peppol.smp.ESMPTransportProfile;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+import com.helger.smpclient.peppol.jaxb.EndpointType;
+
+/**
+ * Test class for class {@link SMPLookupCoalescer}.
+ *
+ * @author Philip Helger
+ */
+public final class SMPLookupCoalescerTest
+{
+  @Test
+  public void testConcurrentLookups () throws Exception
+  {
+    final PeppolIdentifierFactory aIF = PeppolIdentifierFactory.INSTANCE;
+    final SMPEndpointCacheKey aKey = new SMPEndpointCacheKey (aIF.createParticipantIdentifierWithDefaultScheme ("9915:test"),
+                                                             aIF.createDocumentTypeIdentifierWithDefaultScheme ("doctype"),
+                                                             aIF.createProcessIdentifierWithDefaultScheme ("process"),
+                                                             ESMPTransportProfile.TRANSPORT_PROFILE_AS2_V2,
+                                                             "http://smp.example.org/");
+    final SMPLookupCoalescer aCoalescer = new SMPLookupCoalescer ();
+    final EndpointType aEndpoint = new EndpointType ();
+    final AtomicInteger aCalls = new AtomicInteger (0);
+    final CountDownLatch aLookupStarted = new CountDownLatch (1);
+    final CountDownLatch aReleaseLookup = new CountDownLatch (1);
+
+    final int nThreads = 10;
+    final ExecutorService aES = Executors.newFixedThreadPool (nThreads);
+    final ExecutorService aLookupES = Executors.newFixedThreadPool (nThreads);
+    try
+    {
+      final ICommonsList <Future <EndpointType>> aResults = new CommonsArrayList <> ();
+      for (int i = 0; i < nThreads; ++i)
+        aResults.add (aES.submit ( () -> aCoalescer.lookupAsync (aKey, () -> {
+          aCalls.incrementAndGet ();
+          aLookupStarted.countDown ();
+          aReleaseLookup.await ();
+          return aEndpoint;
+        }, aLookupES).get ()));
+
+      aLookupStarted.await ();
+      // Give the other threads a chance to queue up
+      Thread.sleep (100);
+      aReleaseLookup.countDown ();
+
+      for (final Future <EndpointType> aResult : aResults)
+        assertSame (aEndpoint, aResult.get (10, TimeUnit.SECONDS));
+    }
+    finally
+    {
+      aES.shutdownNow ();
+      aLookupES.shutdownNow ();
+    }
+
+    // Threads arriving after the first lookup finished may trigger a new one
+    // but never one per thread
+    assertTrue (aCalls.get () < nThreads);
+    assertEquals (0, aCoalescer.getInFlightCount ());
+  }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet;
+
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+import org.unece.cefact.namespaces.sbdh.StandardBusinessDocument;
+
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.sbdh.SBDMarshaller;
+
+/**
+ * Test class for class {@link XSDSBDValidator}.
+ *
+ * @author Philip Helger
+ */
+public final class XSDSBDValidatorTest
+{
+  @Nonnull
+  private static ICommonsList <String> _validate (@Nonnull final XSDSBDValidator aValidator,
+                                                  @Nonnull final String sSBD) throws Exception
+  {
+    final byte [] aBytes = sSBD.getBytes (StandardCharsets.UTF_8);
+    final PeppolSBDHHeader aHeader = new PeppolSBDHHeaderReader ().readHeader (new NonBlockingByteArrayInputStream (aBytes));
+    final StandardBusinessDocument aSBD = new SBDMarshaller ().read (new NonBlockingByteArrayInputStream (aBytes));
+    return aValidator.validate (aHeader, aSBD);
+  }
+
+  @Test
+  public void testValidate () throws Exception
+  {
+    final XSDSBDValidator aValidator = XSDSBDValidator.create (new ClassPathResource ("xsd/test-invoice.xsd"));
+    final String sSBD = new String (StreamHelper.getAllBytes (new ClassPathResource ("sbd/example-invoice.xml")),
+                                    StandardCharsets.UTF_8);
+
+    assertTrue (_validate (aValidator, sSBD).isEmpty ());
+
+    // Invalid date
+    final ICommonsList <String> aErrors = _validate (aValidator,
+                                                     sSBD.replace ("<cbc:IssueDate>2020-03-01</cbc:IssueDate>",
+                                                                   "<cbc:IssueDate>yesterday</cbc:IssueDate>"));
+    assertTrue (aErrors.isNotEmpty ());
+
+    // Missing element
+    assertTrue (_validate (aValidator, sSBD.replace ("<cbc:ID>12345</cbc:ID>", "")).isNotEmpty ());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void testCreateUnresolvable () throws Exception
+  {
+    XSDSBDValidator.create (new ClassPathResource ("xsd/does-not-exist.xsd"));
+  }
+}
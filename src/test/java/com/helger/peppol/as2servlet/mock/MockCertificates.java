@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet.mock;
+
+import java.nio.charset.StandardCharsets;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+import javax.annotation.Nonnull;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.peppol.as2servlet.FingerprintedCertificate;
+import com.helger.security.certificate.CertificateHelper;
+
+/**
+ * Self-signed test certificates. Both certificates have the same subject,
+ * issuer and serial number but different keys, so they can only be told apart
+ * by their fingerprint.
+ *
+ * @author Philip Helger
+ */
+public final class MockCertificates
+{
+  public static final String AP_1 = "certs/ap-1.pem";
+  public static final String AP_2 = "certs/ap-2.pem";
+
+  private MockCertificates ()
+  {}
+
+  /**
+   * @param sPath
+   *        The class path of the certificate, e.g. {@link #AP_1}.
+   * @return The PEM encoded certificate as contained in an SMP endpoint.
+   */
+  @Nonnull
+  @Nonempty
+  public static String getCertificateString (@Nonnull @Nonempty final String sPath)
+  {
+    return new String (StreamHelper.getAllBytes (new ClassPathResource (sPath)), StandardCharsets.US_ASCII);
+  }
+
+  @Nonnull
+  public static X509Certificate getCertificate (@Nonnull @Nonempty final String sPath) throws CertificateException
+  {
+    return CertificateHelper.convertStringToCertficate (getCertificateString (sPath));
+  }
+
+  @Nonnull
+  public static FingerprintedCertificate getFingerprintedCertificate (@Nonnull @Nonempty final String sPath) throws CertificateException
+  {
+    return FingerprintedCertificate.create (getCertificate (sPath));
+  }
+}
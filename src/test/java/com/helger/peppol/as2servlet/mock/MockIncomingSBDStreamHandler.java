@@ -0,0 +1,50 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet.mock;
+
+import java.io.InputStream;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.annotation.IsSPIImplementation;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.peppol.as2servlet.IAS2IncomingSBDStreamHandlerSPI;
+import com.helger.peppol.as2servlet.PeppolSBDHHeader;
+
+@IsSPIImplementation
+public class MockIncomingSBDStreamHandler implements IAS2IncomingSBDStreamHandlerSPI
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (MockIncomingSBDStreamHandler.class);
+
+  public void handleIncomingSBD (@Nonnull final HttpHeaderMap aHeaders,
+                                 @Nonnull final PeppolSBDHHeader aSBDH,
+                                 @Nonnull final InputStream aSBDStream) throws Exception
+  {
+    // Do something with the incoming headers and SBD bytes
+    LOGGER.info ("Headers:\n");
+    LOGGER.info (aHeaders.toString ());
+
+    LOGGER.info ("SBDH:\n");
+    LOGGER.info (aSBDH.toString ());
+
+    LOGGER.info ("SBD bytes: " + StreamHelper.getAllBytes (aSBDStream).length);
+  }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2014-2020 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2servlet.mock;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.peppol.smp.ISMPTransportProfile;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.smpclient.exception.SMPClientException;
+import com.helger.smpclient.peppol.ISMPServiceMetadataProvider;
+import com.helger.smpclient.peppol.jaxb.EndpointType;
+import com.helger.smpclient.peppol.jaxb.SignedServiceMetadataType;
+import com.helger.smpclient.peppol.utils.W3CEndpointReferenceHelper;
+
+/**
+ * An in-memory SMP client that returns the same endpoint for every query and
+ * counts the queries.
+ *
+ * @author Philip Helger
+ */
+public class MockSMPClient implements ISMPServiceMetadataProvider
+{
+  private final EndpointType m_aEndpoint;
+  private final AtomicInteger m_aQueryCount = new AtomicInteger (0);
+
+  /**
+   * @param sEndpointURL
+   *        The endpoint URL to return. May be <code>null</code> to simulate a
+   *        participant that is not registered.
+   * @param sCertificate
+   *        The endpoint certificate to return. May be <code>null</code>.
+   */
+  public MockSMPClient (@Nullable final String sEndpointURL, @Nullable final String sCertificate)
+  {
+    if (sEndpointURL == null)
+      m_aEndpoint = null;
+    else
+    {
+      m_aEndpoint = new EndpointType ();
+      m_aEndpoint.setEndpointReference (W3CEndpointReferenceHelper.createEndpointReference (sEndpointURL));
+      m_aEndpoint.setCertificate (sCertificate);
+    }
+  }
+
+  @Nonnegative
+  public int getQueryCount ()
+  {
+    return m_aQueryCount.get ();
+  }
+
+  @Nullable
+  public SignedServiceMetadataType getServiceMetadataOrNull (@Nonnull final IParticipantIdentifier aServiceGroupID,
+                                                             @Nonnull final IDocumentTypeIdentifier aDocumentTypeID) throws SMPClientException
+  {
+    // Only the endpoint lookup is used by the receiver checks
+    return null;
+  }
+
+  @Override
+  @Nullable
+  public EndpointType getEndpoint (@Nonnull final IParticipantIdentifier aServiceGroupID,
+                                   @Nonnull final IDocumentTypeIdentifier aDocumentTypeID,
+                                   @Nonnull final IProcessIdentifier aProcessID,
+                                   @Nonnull final ISMPTransportProfile aTransportProfile) throws SMPClientException
+  {
+    m_aQueryCount.incrementAndGet ();
+    return m_aEndpoint;
+  }
+}